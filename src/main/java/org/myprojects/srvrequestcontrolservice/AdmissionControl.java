@@ -0,0 +1,357 @@
+package org.myprojects.srvrequestcontrolservice;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.myprojects.srvrequestcontrolservice.data.ServiceRequest;
+import org.myprojects.srvrequestcontrolservice.exceptions.AdmissionRejectedException;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+// ограничение количества одновременно обрабатываемых запросов перед RequestControlService
+// лимиты ведутся отдельно для каждого потока и каждого филиала и подстраиваются по времени обработки (AIMD):
+// пока время обработки не превышает target-latency-ms, лимит растет на 1 за "окно" запросов,
+// при превышении - уменьшается в backoff-ratio раз
+// запрос, не получивший разрешения сразу, ждет в ограниченной очереди не дольше max-wait-ms,
+// при переполнении очереди или истечении ожидания запрос сразу отклоняется с подсказкой Retry-After
+// лимит филиала не дает пакетной досинхронизации одного филиала занять весь лимит потока
+// интерактивные запросы (RequestExecutor.Priority) получают освободившееся разрешение раньше пакетных,
+// пакетные ждут не дольше bulk-max-wait-ms (по умолчанию сразу отклоняются), чтобы не занимать
+// потоки пула обработки, пока интерактивные запросы ждут в его очереди
+// общий лимит всех потоков не подстраивается и по умолчанию равен размеру пула соединений,
+// чтобы запросы не ждали соединения в getConnection до connectionTimeout
+// лимиты филиалов, не использовавшиеся filial.idle-timeout-ms, удаляются
+@Component
+public class AdmissionControl {
+
+    private static final Permit NOOP_PERMIT = new Permit(null, null, null, 0);
+
+    @Autowired
+    private MeterRegistry meterRegistry;
+
+    @Value("${service.admission.enabled:true}")
+    boolean enabled;
+
+    @Value("${service.admission.flow.initial-limit:20}")
+    int flowInitialLimit;
+
+    @Value("${service.admission.flow.max-limit:200}")
+    int flowMaxLimit;
+
+    @Value("${service.admission.filial.initial-limit:10}")
+    int filialInitialLimit;
+
+    @Value("${service.admission.filial.max-limit:100}")
+    int filialMaxLimit;
+
+    @Value("${service.admission.min-limit:2}")
+    int minLimit;
+
+    @Value("${service.admission.target-latency-ms:500}")
+    long targetLatency;
+
+    @Value("${service.admission.backoff-ratio:0.9}")
+    double backoffRatio;
+
+    @Value("${service.admission.max-queue:100}")
+    int maxQueue;
+
+    @Value("${service.admission.max-wait-ms:1000}")
+    long maxWait;
+
+    @Value("${service.admission.bulk-max-wait-ms:0}")
+    long bulkMaxWait;
+
+    @Value("${service.admission.global-limit:${spring.datasource.hikari.maximum-pool-size:10}}")
+    int globalLimit;
+
+    @Value("${service.admission.filial.idle-timeout-ms:600000}")
+    long filialIdleTimeout;
+
+    // счетчики отклоненных запросов регистрируются один раз: область лимита -> приоритет -> счетчик
+    private final Map<String, Map<RequestExecutor.Priority, Counter>> rejectedCounters = new HashMap<>();
+    private final Map<String, Limiter> flowLimiters = new ConcurrentHashMap<>();
+    private final Map<String, Limiter> filialLimiters = new ConcurrentHashMap<>();
+    private volatile Limiter globalLimiter;
+
+    @PostConstruct
+    public void init() {
+        globalLimiter = registerLimitGauge(new Limiter("global", "all", globalLimit, globalLimit, false));
+        Gauge.builder("request.control.admission.filials", filialLimiters, Map::size)
+                .register(meterRegistry);
+        for (String scope : new String[]{"global", "flow", "filial"}) {
+            Map<RequestExecutor.Priority, Counter> counters = new EnumMap<>(RequestExecutor.Priority.class);
+            for (RequestExecutor.Priority priority : RequestExecutor.Priority.values()) {
+                counters.put(priority, Counter.builder("request.control.admission.rejected")
+                        .tag("scope", scope)
+                        .tag("priority", priority.name().toLowerCase(Locale.ROOT))
+                        .register(meterRegistry));
+            }
+            rejectedCounters.put(scope, counters);
+        }
+    }
+
+    // разрешение на обработку запроса, возвращается закрытием Permit после обработки
+    public Permit acquire(ServiceRequest serviceRequest) throws AdmissionRejectedException {
+        return acquire(serviceRequest, RequestExecutor.Priority.INTERACTIVE);
+    }
+
+    public Permit acquire(ServiceRequest serviceRequest, RequestExecutor.Priority priority)
+            throws AdmissionRejectedException {
+        return acquire(serviceRequest, priority, priority == RequestExecutor.Priority.BULK ? bulkMaxWait : maxWait);
+    }
+
+    // разрешение без ожидания в очереди лимитов: для потоков, которые нельзя блокировать (реактивная обработка)
+    public Permit tryAcquire(ServiceRequest serviceRequest, RequestExecutor.Priority priority)
+            throws AdmissionRejectedException {
+        return acquire(serviceRequest, priority, 0);
+    }
+
+    private Permit acquire(ServiceRequest serviceRequest, RequestExecutor.Priority priority, long wait)
+            throws AdmissionRejectedException {
+        if (!enabled) {
+            return NOOP_PERMIT;
+        }
+
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(wait);
+        // отметка использования в compute не дает удалить лимит филиала между получением и ожиданием разрешения
+        long now = System.nanoTime();
+        Limiter filialLimiter = filialLimiters.compute(
+                serviceRequest.getDataFlowType() + "-" + serviceRequest.getFilialName(),
+                (name, limiter) -> {
+                    Limiter used = limiter != null ? limiter
+                            : new Limiter("filial", name, filialInitialLimit, filialMaxLimit, true);
+                    used.lastUsedAt = now;
+                    return used;
+                });
+        Limiter flowLimiter = flowLimiters.computeIfAbsent(String.valueOf(serviceRequest.getDataFlowType()),
+                name -> registerLimitGauge(new Limiter("flow", name, flowInitialLimit, flowMaxLimit, true)));
+
+        // сначала лимит филиала, чтобы запросы одного филиала не занимали места в очереди потока,
+        // общий лимит - последним, чтобы его не занимали запросы, отклоненные лимитами потока и филиала
+        acquire(filialLimiter, deadline, priority);
+        try {
+            acquire(flowLimiter, deadline, priority);
+        } catch (AdmissionRejectedException e) {
+            filialLimiter.release(-1);
+            throw e;
+        }
+        try {
+            acquire(globalLimiter, deadline, priority);
+        } catch (AdmissionRejectedException e) {
+            flowLimiter.release(-1);
+            filialLimiter.release(-1);
+            throw e;
+        }
+
+        return new Permit(flowLimiter, filialLimiter, globalLimiter, System.nanoTime());
+    }
+
+    // удаляем лимиты филиалов без запросов в обработке и в очереди, не использовавшиеся filial.idle-timeout-ms
+    @Scheduled(fixedDelayString = "${service.admission.filial.evict-interval-ms:60000}")
+    public void evictIdleFilialLimiters() {
+        long idleSince = System.nanoTime() - TimeUnit.MILLISECONDS.toNanos(filialIdleTimeout);
+        for (String name : filialLimiters.keySet()) {
+            filialLimiters.computeIfPresent(name, (key, limiter) -> limiter.isIdleSince(idleSince) ? null : limiter);
+        }
+    }
+
+    private void acquire(Limiter limiter, long deadline, RequestExecutor.Priority priority)
+            throws AdmissionRejectedException {
+        boolean acquired;
+        try {
+            acquired = limiter.tryAcquire(deadline, priority);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            acquired = false;
+        }
+        if (!acquired) {
+            rejectedCounters.get(limiter.scope).get(priority).increment();
+            throw new AdmissionRejectedException(String.format(
+                    "Превышено количество одновременно обрабатываемых запросов (%s %s), повторите запрос позже",
+                    limiter.scope, limiter.name), limiter.getRetryAfterSeconds());
+        }
+    }
+
+    private Limiter registerLimitGauge(Limiter limiter) {
+        Gauge.builder("request.control.admission.limit", limiter, Limiter::getLimit)
+                .tag("scope", limiter.scope)
+                .tag("name", limiter.name)
+                .register(meterRegistry);
+        return limiter;
+    }
+
+    int getLimit(String scope, String name) {
+        Limiter limiter = "global".equals(scope) ? globalLimiter
+                : ("flow".equals(scope) ? flowLimiters : filialLimiters).get(name);
+        return limiter == null ? -1 : (int) limiter.getLimit();
+    }
+
+    public static class Permit implements AutoCloseable {
+
+        private final Limiter flowLimiter;
+        private final Limiter filialLimiter;
+        private final Limiter globalLimiter;
+        private final long startedAt;
+
+        private Permit(Limiter flowLimiter, Limiter filialLimiter, Limiter globalLimiter, long startedAt) {
+            this.flowLimiter = flowLimiter;
+            this.filialLimiter = filialLimiter;
+            this.globalLimiter = globalLimiter;
+            this.startedAt = startedAt;
+        }
+
+        @Override
+        public void close() {
+            if (flowLimiter == null) {
+                return;
+            }
+            long latency = System.nanoTime() - startedAt;
+            globalLimiter.release(latency);
+            flowLimiter.release(latency);
+            filialLimiter.release(latency);
+        }
+    }
+
+    // лимит одновременных запросов с очередью ожидания
+    // ожидание через Condition не закрепляет виртуальный поток за потоком-носителем (в отличие от Object.wait)
+    private class Limiter {
+
+        private final String scope;
+        private final String name;
+        private final int maxLimit;
+        // лимит подстраивается по времени обработки
+        private final boolean adaptive;
+        private double limit;
+        private int inFlight;
+        private int interactiveWaiting;
+        private int bulkWaiting;
+        // сглаженное время обработки, используется для подсказки Retry-After
+        private double averageLatencyNanos;
+        private final ReentrantLock lock = new ReentrantLock();
+        private final Condition released = lock.newCondition();
+        // последнее получение лимита филиала из filialLimiters (System.nanoTime())
+        private volatile long lastUsedAt;
+
+        private Limiter(String scope, String name, int initialLimit, int maxLimit, boolean adaptive) {
+            this.scope = scope;
+            this.name = name;
+            this.adaptive = adaptive;
+            this.maxLimit = Math.max(maxLimit, minLimit);
+            this.limit = Math.max(Math.min(initialLimit, this.maxLimit), minLimit);
+        }
+
+        private boolean tryAcquire(long deadline, RequestExecutor.Priority priority) throws InterruptedException {
+            boolean interactive = priority != RequestExecutor.Priority.BULK;
+            lock.lock();
+            try {
+                if (canAcquire(interactive)) {
+                    inFlight++;
+                    return true;
+                }
+                long remaining = deadline - System.nanoTime();
+                if (remaining <= 0 || interactiveWaiting + bulkWaiting >= maxQueue) {
+                    return false;
+                }
+
+                if (interactive) {
+                    interactiveWaiting++;
+                } else {
+                    bulkWaiting++;
+                }
+                try {
+                    while (!canAcquire(interactive)) {
+                        if (remaining <= 0) {
+                            return false;
+                        }
+                        remaining = released.awaitNanos(remaining);
+                    }
+                    inFlight++;
+                    return true;
+                } finally {
+                    if (interactive) {
+                        interactiveWaiting--;
+                        // пакетные запросы ждали, пока в очереди есть интерактивные
+                        if (interactiveWaiting == 0) {
+                            released.signalAll();
+                        }
+                    } else {
+                        bulkWaiting--;
+                    }
+                }
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        // пакетный запрос не забирает разрешение, пока его ждут интерактивные
+        private boolean canAcquire(boolean interactive) {
+            return inFlight < (int) limit && (interactive || interactiveWaiting == 0);
+        }
+
+        // latency < 0 - запрос не обрабатывался, лимит не меняется
+        private void release(long latency) {
+            lock.lock();
+            try {
+                inFlight--;
+                if (latency >= 0) {
+                    averageLatencyNanos = averageLatencyNanos == 0
+                            ? latency
+                            : averageLatencyNanos * 0.9 + latency * 0.1;
+                    if (adaptive && latency > TimeUnit.MILLISECONDS.toNanos(targetLatency)) {
+                        limit = Math.max(minLimit, limit * backoffRatio);
+                    } else if (adaptive && inFlight + 1 >= (int) limit / 2) {
+                        // лимит растет, только если он действительно используется
+                        limit = Math.min(maxLimit, limit + 1 / limit);
+                    }
+                }
+                released.signalAll();
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        private boolean isIdleSince(long idleSince) {
+            lock.lock();
+            try {
+                return inFlight == 0 && interactiveWaiting == 0 && bulkWaiting == 0 && lastUsedAt - idleSince < 0;
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        private double getLimit() {
+            lock.lock();
+            try {
+                return limit;
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        // оценка времени, за которое обработается очередь перед новым запросом
+        private long getRetryAfterSeconds() {
+            lock.lock();
+            try {
+                double queueNanos = averageLatencyNanos * (interactiveWaiting + bulkWaiting + 1)
+                        / Math.max(1, (int) limit);
+                return Math.max(1, (long) Math.ceil(queueNanos / TimeUnit.SECONDS.toNanos(1)));
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+}
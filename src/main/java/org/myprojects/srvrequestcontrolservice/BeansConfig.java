@@ -2,7 +2,7 @@ package org.myprojects.srvrequestcontrolservice;
 
 import com.zaxxer.hikari.HikariConfig;
 import com.zaxxer.hikari.HikariDataSource;
-import org.myprojects.srvrequestcontrolservice.utils.SimpleCache;
+import org.myprojects.srvrequestcontrolservice.metrics.StageTimingDataSource;
 import org.myprojects.srvrequestcontrolservice.utils.TempCache;
 import org.springframework.beans.factory.annotation.Value;
 import org.springframework.context.annotation.Bean;
@@ -17,11 +17,6 @@ import javax.sql.DataSource;
 @ComponentScan
 public class BeansConfig {
 
-    @Bean
-    SimpleCache<XmlRequestTemplate> templateCache() {
-        return new SimpleCache<>("templateCache");
-    }
-
     @Bean(name = "savedRequestCache")
     TempCache<TempCache.Unit<ParsedXmlRequest>> savedRequestCache(
             @Value("${service.client-attrs-cache.time}") long cacheTimePeriod) {
@@ -32,7 +27,9 @@ public class BeansConfig {
     public DataSource dataSource(@Value("${spring.datasource.driver-class-name}") String dbDriver,
                                  @Value("${spring.datasource.url}") String dbUrl,
                                  @Value("${spring.datasource.username}") String dbUsername,
-                                 @Value("${spring.datasource.password}") String dbPassword) {
+                                 @Value("${spring.datasource.password}") String dbPassword,
+                                 @Value("${spring.datasource.hikari.maximum-pool-size:10}") int maximumPoolSize,
+                                 @Value("${spring.datasource.hikari.minimum-idle:-1}") int minimumIdle) {
         HikariConfig config = new HikariConfig();
         HikariDataSource dataSource;
 
@@ -40,8 +37,12 @@ public class BeansConfig {
         config.setJdbcUrl(dbUrl);
         config.setUsername(dbUsername);
         config.setPassword(dbPassword);
+        // размер пула подбирается по результатам нагрузочного теста
+        config.setMaximumPoolSize(maximumPoolSize);
+        config.setMinimumIdle(minimumIdle < 0 ? maximumPoolSize : minimumIdle);
         dataSource = new HikariDataSource(config);
 
-        return dataSource;
+        // учитываем время запросов к БД в этапах обработки запроса
+        return new StageTimingDataSource(dataSource);
     }
 }
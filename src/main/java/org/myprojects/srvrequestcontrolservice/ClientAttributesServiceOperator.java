@@ -5,10 +5,13 @@ import org.myprojects.srvrequestcontrolservice.data.*;
 import org.myprojects.srvrequestcontrolservice.exceptions.ClientAttributesDataException;
 import org.myprojects.srvrequestcontrolservice.exceptions.DatabaseException;
 import org.myprojects.srvrequestcontrolservice.exceptions.RequestControlServiceException;
-import org.myprojects.srvrequestcontrolservice.utils.SimpleCache;
+import org.myprojects.srvrequestcontrolservice.metrics.StageClock;
+import org.myprojects.srvrequestcontrolservice.utils.AttributesDigest;
+import org.myprojects.srvrequestcontrolservice.utils.SubtreeValues;
 import org.myprojects.srvrequestcontrolservice.utils.TempCache;
 import org.myprojects.srvrequestcontrolservice.utils.XmlUtils;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.scheduling.annotation.EnableScheduling;
 import org.springframework.scheduling.annotation.Scheduled;
 import org.springframework.stereotype.Component;
@@ -17,6 +20,8 @@ import org.w3c.dom.Document;
 import org.w3c.dom.Node;
 import org.xml.sax.SAXException;
 
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
 import javax.sql.DataSource;
 import javax.xml.parsers.ParserConfigurationException;
 import javax.xml.transform.TransformerException;
@@ -26,7 +31,9 @@ import java.time.LocalDateTime;
 import java.time.ZoneId;
 import java.time.ZonedDateTime;
 import java.util.*;
-import java.util.stream.Collectors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.concurrent.RecursiveTask;
 
 import static org.myprojects.srvrequestcontrolservice.data.RequestIdentifier.Id.ID_MASTER_SYSTEM;
 import static org.myprojects.srvrequestcontrolservice.utils.XmlUtils.HASH;
@@ -48,16 +55,53 @@ public class ClientAttributesServiceOperator extends AbstractServiceOperator {
         public static final String POSTFIX_ERROR_DESCRIPTION = "postfixDescription";
     }
 
+    // сколько измененных поддеревьев сохраненного запроса загружается без разбора запроса целиком
+    private static final int MAX_LOADED_SUBTREES = 500;
+
     @Autowired
     private DataSource dataSource;
 
     @Autowired
-    // кэш шаблонов
-    private SimpleCache<XmlRequestTemplate> templateCache;
+    // реестр шаблонов
+    private TemplateRegistry templateRegistry;
     @Autowired
     // кэш распарсенных сохраненных запросов
     private TempCache<TempCache.Unit<ParsedXmlRequest>> savedRequestsCache;
 
+    // параллельный поиск путей и сравнение значений клиентских атрибутов для больших запросов
+    @Value("${service.parallel-match.enabled:true}")
+    boolean parallelMatchEnabled;
+
+    // 0 - по количеству процессоров
+    @Value("${service.parallel-match.parallelism:0}")
+    int parallelMatchParallelism;
+
+    // с какого количества однотипных поддеревьев (секций, FileInfo) под одной нодой поиск идет параллельно
+    @Value("${service.parallel-match.subtree-threshold:64}")
+    int parallelMatchSubtreeThreshold;
+
+    // с какого количества номеров путей сравнение значений идет параллельно
+    @Value("${service.parallel-match.compare-threshold:4096}")
+    int parallelMatchCompareThreshold;
+
+    private ForkJoinPool matchPool;
+
+    @PostConstruct
+    public void init() {
+        if (parallelMatchEnabled) {
+            matchPool = new ForkJoinPool(parallelMatchParallelism > 0
+                    ? parallelMatchParallelism
+                    : Runtime.getRuntime().availableProcessors());
+        }
+    }
+
+    @PreDestroy
+    public void destroy() {
+        if (matchPool != null) {
+            matchPool.shutdownNow();
+        }
+    }
+
     @Override
     public void updateServiceData(ControlTypeRequest controlTypeRequest, Connection conn)
             throws RequestControlServiceException {
@@ -88,38 +132,62 @@ public class ClientAttributesServiceOperator extends AbstractServiceOperator {
                 .withZoneSameInstant(ZoneId.systemDefault())
                 .toLocalDateTime();
 
+        RequestContext requestContext = getRequestContext(controlTypeRequest);
         try {
             // получаем актуальный сохраненный шаблон клиентских атрибутов
-            XmlRequestTemplate template = getCurrentTemplate(controlTypeRequest.getFlowType().name(), now, conn);
-
-            // получаем дерево входящего запроса
-            Document checkRequestDoc = XmlUtils.getDocumentFromXmlString(controlTypeRequest.getRequest());
-
+            XmlRequestTemplate template = getCurrentTemplate(controlTypeRequest.getFlowType().name(), now,
+                    requestContext, conn);
 
-            // получаем актуальный документ последнего сохраненного запроса
-            XmlRequestPaths effectiveRequest = getEffectiveRequest(
+            // получаем дату обновления и дайджест клиентских атрибутов последнего сохраненного запроса
+            // (до дерева входящего запроса, чтобы запрос к БД шел параллельно с заранее запущенным разбором)
+            SavedRequestInfo savedRequestInfo = getSavedRequestInfo(
                     controlTypeRequest.getFlowType().name(),
                     controlTypeRequest.getSegment(),
                     controlTypeRequest.getRequestIdentifiers().getRequestIds().get(0).getIdValue(),
-                    template,
                     conn);
 
             // если запрос не найден в БД, возвращаем соответствующий статус
-            if (effectiveRequest == null) {
+            if (savedRequestInfo == null) {
                 return new ControlTypeResult(controlType, ServiceResponse.Status.FAILED,
                         String.format("Невозможно выполнить проверку клиентских атрибутов. Сохраненное обращение с идентификатором %s не найдено",
                                 controlTypeRequest.getRequestIdentifiers().getRequestIds().get(0).getIdValue()));
             }
 
-            // получаем дерево проверяемого запроса
-            Map<XmlPath, Node> checkRequestPaths = matchClientAttributesByPaths(template, checkRequestDoc, true);
+            // получаем дерево входящего запроса
+            Document checkRequestDoc = getRequestDocument(controlTypeRequest.getRequest(), requestContext);
+
+            // получаем значения клиентских атрибутов проверяемого запроса
+            XmlRequestPaths checkRequestValues = getRequestAttributeValues(template, checkRequestDoc,
+                    requestContext);
+
+            // если корневые дайджесты совпадают, значения клиентских атрибутов не изменились,
+            // сохраненный запрос не загружаем и попутное сравнение не выполняем
+            AttributesDigest checkRequestDigest = AttributesDigest.compute(template.getName(),
+                    checkRequestValues.getDictionary(), checkRequestValues.getValues());
+            if (checkRequestDigest.getRootDigest().equals(savedRequestInfo.getAttrsDigest())) {
+                return new ControlTypeResult(controlType);
+            }
+
+            // получаем значения клиентских атрибутов последнего сохраненного запроса
+            // (только измененных поддеревьев, если их значения сохранены вместе с запросом)
+            XmlRequestPaths effectiveRequest = getEffectiveRequest(
+                    controlTypeRequest.getFlowType().name(),
+                    controlTypeRequest.getSegment(),
+                    controlTypeRequest.getRequestIdentifiers().getRequestIds().get(0).getIdValue(),
+                    savedRequestInfo,
+                    checkRequestDigest,
+                    template,
+                    conn);
+
             ParsedXmlRequest parsedCheckRequest = new ParsedXmlRequest(controlTypeRequest.getFlowType().name(),
                     controlTypeRequest.getSegment(),
                     controlTypeRequest.getRequestIdentifiers().getRequestIds().get(0).getIdValue(),
-                    checkRequestPaths);
+                    checkRequestValues.getDictionary(), checkRequestValues.getValues());
 
             // проверяем, что значения клиентских атрибутов в сохраненном и проверяемом запросах не изменились
-            List<String> errorDescription = checkClientAttributesMatch(template, effectiveRequest, parsedCheckRequest);
+            // сравниваем только атрибуты поддеревьев, дайджесты которых изменились
+            List<String> errorDescription = checkClientAttributesMatch(template, effectiveRequest, parsedCheckRequest,
+                    checkRequestDigest.getUnchangedSubtrees(savedRequestInfo.getAttrsSubtreeDigests()));
 
             // если нет ошибок, возвращаем статус ОК
             if (errorDescription.isEmpty()) {
@@ -142,60 +210,99 @@ public class ClientAttributesServiceOperator extends AbstractServiceOperator {
         }
     }
 
+    private XmlRequestTemplate getCurrentTemplate(String flow, LocalDateTime timestamp,
+                                                  RequestContext requestContext, Connection conn)
+            throws ClientAttributesDataException {
+        // шаблон определяется один раз на запрос к сервису
+        if (requestContext.getTemplate() == null) {
+            requestContext.setTemplate(getCurrentTemplate(flow, timestamp, conn));
+        }
+
+        return requestContext.getTemplate();
+    }
+
     private XmlRequestTemplate getCurrentTemplate(String flow, LocalDateTime timestamp, Connection conn)
             throws ClientAttributesDataException {
-        // получаем из базы название последнего актуального шаблона на дату
-        String effectiveTemplateName = getEffectiveTemplateName(flow, timestamp, conn);
+        // актуальный на дату шаблон определяется реестром без запроса самого шаблона из БД
+        XmlRequestTemplate effectiveTemplate = templateRegistry.getTemplate(flow, timestamp, conn);
 
-        if (effectiveTemplateName == null) {
+        if (effectiveTemplate == null) {
             throw new ClientAttributesDataException(String.format(
                     "Не найдены данные о шаблоне по клиентским атрибутам для потока %s", flow));
         }
 
-        // проверяем, был ли шаблон под таким названием сохранен в кэше
-        XmlRequestTemplate effectiveTemplate = templateCache.getCachedUnit(effectiveTemplateName);
-        if (effectiveTemplate == null ) {
-            // удаляем предыдущие шаблоны из кеша
-            List<String> allEffectiveTemplateNames = getAllEffectiveTemplateNames(conn);
-            templateCache.clearCachedUnitExcept(allEffectiveTemplateNames);
+        return effectiveTemplate;
+    }
 
-            // загружаем новый шаблон из базы и сохраняем в кэш
-            effectiveTemplate = getEffectiveTemplate(flow, timestamp, conn);
+    // дерево тела запроса разбирается один раз на запрос к сервису,
+    // если разбор запущен заранее (RequestPrefetch), дожидаемся его результата
+    private Document getRequestDocument(String request, RequestContext requestContext)
+            throws ParserConfigurationException, IOException, SAXException {
+        Document requestDoc = requestContext.getRequestDocument(request);
+        if (requestDoc != null) {
+            return requestDoc;
+        }
 
-            if (effectiveTemplate == null) {
-                throw new ClientAttributesDataException(String.format(
-                        "Не найдены данные о шаблоне по клиентским атрибутам для потока %s", flow));
+        try (StageClock.Span ignored = StageClock.current().enter(StageClock.Stage.PARSE)) {
+            Future<Document> prefetchedDocument = requestContext.getPrefetchedDocument(request);
+            if (prefetchedDocument != null) {
+                requestDoc = RequestPrefetch.await(prefetchedDocument);
+            }
+            if (requestDoc == null) {
+                requestDoc = XmlUtils.getDocumentFromXmlString(request);
             }
-            // сохраняем новый шаблон в кеш
-            templateCache.cacheUnit(effectiveTemplateName, effectiveTemplate);
         }
+        requestContext.setRequestDocument(request, requestDoc);
 
-        return effectiveTemplate;
+        return requestDoc;
+    }
+
+    // значения клиентских атрибутов запроса по актуальному шаблону, вычисляются один раз на запрос к сервису
+    private XmlRequestPaths getRequestAttributeValues(XmlRequestTemplate template, Document requestDoc,
+                                                              RequestContext requestContext) {
+        if (requestContext.getAttributeValues() == null) {
+            try (StageClock.Span ignored = StageClock.current().enter(StageClock.Stage.PARSE)) {
+                // персональные данные хешируются прямо в дереве, повторно не хешируем
+                requestContext.setAttributeValues(matchClientAttributesByPaths(template, requestDoc,
+                        !requestContext.isPersonalDataHashed() && !requestContext.isRequestBodyHashed()));
+            }
+            requestContext.setPersonalDataHashed(true);
+        }
+
+        return requestContext.getAttributeValues();
     }
 
     private XmlRequestPaths getEffectiveRequest(String flow, String filial, String messageId,
+                                                SavedRequestInfo savedRequestInfo,
+                                                AttributesDigest checkRequestDigest,
                                                 XmlRequestTemplate template,
                                                 Connection conn)
             throws DatabaseException, ClientAttributesDataException {
+        LocalDateTime lastUpdate = savedRequestInfo.getUpdatedAt();
         TempCache.Unit<ParsedXmlRequest> cacheData = savedRequestsCache.getCachedUnit(
                 getRequestIdentifier(flow, filial, messageId));
 
-        LocalDateTime lastUpdate = getSavedRequestLastUpdate(flow, filial, messageId, conn);
-
-        if (lastUpdate == null) {
-            return null;
-        }
         ParsedXmlRequest effectiveRequest = null;
         // проверяем в кэше сохраненный запрос с распарсенными путями и сравниваем с последнием обновлением в БД
         if (cacheData != null) {
             effectiveRequest = cacheData.getCacheUnit();
 
             LocalDateTime currentUpdate = effectiveRequest.getLastUpdated();
-            if (!currentUpdate.isEqual(lastUpdate)) {
+            // номера путей действительны только для шаблона, по которому запрос был разобран
+            if (!currentUpdate.isEqual(lastUpdate)
+                    || effectiveRequest.getDictionary().getShared() != template.getDictionary()) {
                 effectiveRequest = null;
             }
         }
+        StageClock.current().recordSavedRequestCache(effectiveRequest != null);
         if (effectiveRequest == null) {
+            // сохраненный запрос не разбираем, если сохранены значения его измененных поддеревьев
+            XmlRequestPaths changedSubtrees = getChangedSubtreeValues(flow, filial, messageId,
+                    savedRequestInfo, checkRequestDigest, template, conn);
+            if (changedSubtrees != null) {
+                return changedSubtrees;
+            }
+
             // получаем актуальный сохраненный запрос из БД
             String requestStr = getSavedRequest(flow, filial, messageId, conn);
 
@@ -203,15 +310,16 @@ public class ClientAttributesServiceOperator extends AbstractServiceOperator {
                 throw new ClientAttributesDataException(
                         String.format("Не найдены данные по клиентским атрибутам для потока %s", flow));
             }
-            Document requestDoc;
-            try {
-                requestDoc = XmlUtils.getDocumentFromXmlString(requestStr);
+            XmlRequestPaths effectiveRequestValues;
+            try (StageClock.Span ignored = StageClock.current().enter(StageClock.Stage.PARSE)) {
+                Document requestDoc = XmlUtils.getDocumentFromXmlString(requestStr);
+                effectiveRequestValues = matchClientAttributesByPaths(template, requestDoc, false);
             } catch (ParserConfigurationException | IOException | SAXException e) {
                 e.printStackTrace();
                 throw new IllegalArgumentException("Не удалось обработать xml структуру запроса.");
             }
-            Map<XmlPath, Node> effectiveRequestPaths = matchClientAttributesByPaths(template, requestDoc, false);
-            effectiveRequest = new ParsedXmlRequest(flow, filial, messageId, lastUpdate, effectiveRequestPaths);
+            effectiveRequest = new ParsedXmlRequest(flow, filial, messageId, lastUpdate,
+                    effectiveRequestValues.getDictionary(), effectiveRequestValues.getValues());
             savedRequestsCache.cacheUnit(
                     getRequestIdentifier(flow, filial, messageId),
                     new TempCache.Unit<>(effectiveRequest));
@@ -220,110 +328,133 @@ public class ClientAttributesServiceOperator extends AbstractServiceOperator {
         return effectiveRequest;
     }
 
-    private List<String> checkClientAttributesMatch(XmlRequestPaths template,
-                                                    XmlRequestPaths savedRequest,
-                                                    XmlRequestPaths checkRequest) throws ClientAttributesDataException {
-        Map<XmlPath, Node> templatePaths = template.getPaths();
-        Map<XmlPath, Node> savedRequestPaths = savedRequest.getPaths();
-        Map<XmlPath, Node> checkRequestPaths = checkRequest.getPaths();
+    // значения клиентских атрибутов сохраненного запроса только для поддеревьев, дайджесты которых изменились
+    // (атрибуты остальных поддеревьев не сравниваются, поэтому и не загружаются)
+    // null - значения поддеревьев не сохранены (запрос сохранен до их появления или по другому шаблону),
+    // сохраненный запрос нужно разобрать целиком
+    private XmlRequestPaths getChangedSubtreeValues(String flow, String filial, String messageId,
+                                                    SavedRequestInfo savedRequestInfo,
+                                                    AttributesDigest checkRequestDigest,
+                                                    XmlRequestTemplate template,
+                                                    Connection conn) throws DatabaseException {
+        if (savedRequestInfo.getAttrsSubtreeDigests() == null) {
+            return null;
+        }
+        Set<String> changedDigests = checkRequestDigest.getChangedSavedSubtrees(
+                savedRequestInfo.getAttrsSubtreeDigests());
+        // если изменился почти весь запрос, дешевле разобрать его целиком
+        if (changedDigests.size() > MAX_LOADED_SUBTREES) {
+            return null;
+        }
+
+        List<String> subtrees = new ArrayList<>();
+        if (!changedDigests.isEmpty()) {
+            String sql = "SELECT template_name, attrs FROM client_attrs_subtrees WHERE flow=? AND filial=? AND message_id=? AND subtree_digest IN ("
+                    + String.join(",", Collections.nCopies(changedDigests.size(), "?")) + ")";
+            try (PreparedStatement preparedStatement = conn.prepareStatement(sql)) {
+                preparedStatement.setString(1, flow);
+                preparedStatement.setString(2, filial);
+                preparedStatement.setString(3, messageId);
+                int index = 4;
+                for (String digest : changedDigests) {
+                    preparedStatement.setString(index++, digest);
+                }
 
-        // перебираем все найденные пути в сохраненном и проверяемом запросах и сравниваем, изменились ли значения клиенстких атрибутов
-        List<String> errors = getCheckRequestNonMatchErrors(savedRequestPaths, checkRequestPaths, templatePaths);
+                ResultSet rs = preparedStatement.executeQuery();
+                while (rs.next()) {
+                    // номера путей и ключи поддеревьев действительны только для шаблона, по которому запрос сохранен
+                    if (!template.getName().equals(rs.getString(1))) {
+                        return null;
+                    }
+                    subtrees.add(rs.getString(2));
+                }
+            } catch (SQLException ex) {
+                ex.printStackTrace();
+                throw new DatabaseException(String.format(
+                        "Не удалось получить данные из базы данных по поддеревьям сохраненного запроса:%n%s",
+                        ex.getMessage() == null ? "" : ex.getMessage()));
+            }
+            if (subtrees.size() != changedDigests.size()) {
+                return null;
+            }
+        }
 
-        // находим клиентские атрибуты, которых не было в сохраненном запросе, но появились в проверяемом и добавляем ошибки
-        Map<XmlPath, Node> checkReqAdditionalPaths = checkRequestPaths.entrySet().stream()
-                .filter(e -> !savedRequestPaths.containsKey(e.getKey()))
-                .collect(Collectors.toMap(Map.Entry::getKey, Map.Entry::getValue));
+        try (StageClock.Span ignored = StageClock.current().enter(StageClock.Stage.PARSE)) {
+            return SubtreeValues.deserialize(template.getDictionary(), subtrees);
+        } catch (ClientAttributesDataException e) {
+            log.warn("Значения поддеревьев сохраненного запроса {} не прочитаны, запрос разбирается целиком: {}",
+                    getRequestIdentifier(flow, filial, messageId), e.getMessage());
+            return null;
+        }
+    }
 
-        List<String> additionalErrors = getCheckRequestAdditionalErrors(checkReqAdditionalPaths, templatePaths);
-        // объединяем ошибки
-        errors.addAll(additionalErrors);
+    private List<String> checkClientAttributesMatch(XmlRequestTemplate template,
+                                                    XmlRequestPaths savedRequest,
+                                                    XmlRequestPaths checkRequest,
+                                                    Set<String> unchangedSubtrees) throws ClientAttributesDataException {
+        XmlPathDictionary dictionary = template.getDictionary();
+        // номера путей шаблона совпадают в обоих запросах, номера конкретных динамических путей словарей запросов - нет
+        int sharedSlotCount = dictionary.getPathCount();
+        int slotCount = Math.min(sharedSlotCount, Math.max(savedRequest.getSlotCount(), checkRequest.getSlotCount()));
+        List<String> errors;
+        if (matchPool != null && slotCount >= parallelMatchCompareThreshold) {
+            // номера путей делятся на диапазоны, ошибки объединяются в порядке номеров путей
+            errors = matchPool.invoke(new CompareTask(dictionary, savedRequest, checkRequest, unchangedSubtrees,
+                    0, slotCount, Math.max(1, parallelMatchCompareThreshold / 4)));
+        } else {
+            errors = checkClientAttributesMatch(dictionary, savedRequest, checkRequest, unchangedSubtrees,
+                    0, slotCount);
+        }
+        if (savedRequest.getSlotCount() > sharedSlotCount || checkRequest.getSlotCount() > sharedSlotCount) {
+            errors.addAll(checkRequestDictionaryMatch(sharedSlotCount, savedRequest, checkRequest,
+                    unchangedSubtrees));
+        }
 
         return errors;
     }
 
-    private static List<String> getCheckRequestNonMatchErrors(Map<XmlPath, Node> savedRequestPaths,
-                                                              Map<XmlPath, Node> checkRequestPaths,
-                                                              Map<XmlPath, Node> templatePaths)
+    // конкретные динамические пути, получившие номера в словарях запросов, сопоставляются по самому пути
+    private static List<String> checkRequestDictionaryMatch(int sharedSlotCount,
+                                                            XmlRequestPaths savedRequest,
+                                                            XmlRequestPaths checkRequest,
+                                                            Set<String> unchangedSubtrees)
             throws ClientAttributesDataException {
         List<String> errors = new ArrayList<>();
-        XmlPath currentPath;
-        for (Map.Entry<XmlPath, Node> savedReqPath : savedRequestPaths.entrySet()) {
-            currentPath = savedReqPath.getKey();
-            XmlPath templatePath = currentPath;
-            // если путь динамический (т е в пути есть ноды с произвольным значением (например, sectionNumber для секций))
-            // формируем динамический путь для шаблона, соответствующий динамическому пути запроса с конкретным динамическим значением
-            boolean pathIsDynamic = XmlUtils.isDynamicPath(currentPath);
-            if (pathIsDynamic) {
-                templatePath = XmlUtils.createTemplateDynamicPath(currentPath);
-            }
-            Node templatePathNode = templatePaths.get(templatePath);
-
-            if (templatePathNode == null) {
-                throw new IllegalArgumentException("Обнаружена неизвестная структура данных.");
-            }
-            // ищем соответствующий путь в проверяемом запросе
-            Node checkReqPathNode = checkRequestPaths.get(currentPath);
-
-            Node savedReqPathNode = savedReqPath.getValue();
-            boolean match;
-            String requestValue = "";
-            String savedValue = "";
-            if (savedReqPathNode.getFirstChild() == null || savedReqPathNode.getFirstChild().getNodeValue() == null
-                    || savedReqPathNode.getFirstChild().getNodeValue().isBlank()) {
-                savedValue = "null";
-                if (checkReqPathNode == null || checkReqPathNode.getFirstChild() == null
-                        || checkReqPathNode.getFirstChild().getNodeValue() == null
-                        || checkReqPathNode.getFirstChild().getNodeValue().isBlank()) {
-                    match = true;
-                    requestValue = "null";
-                }
-                else {
-                    match = false;
-                    requestValue = checkReqPathNode.getFirstChild().getNodeValue();
-                }
-
-            } else {
-                // если в сохраненном запросе клиентский атрибут передан с текстовым значением
-                // то в проверяемом запросе клиентский атрибут должен либо отсутствовать,
-                // либо значение клиентского атрибута не должно меняться по сравнению с сохраненным значение
-                savedValue = savedReqPathNode.getFirstChild().getNodeValue();
-                if (checkReqPathNode == null || checkReqPathNode.getFirstChild() == null
-                        || checkReqPathNode.getFirstChild().getNodeValue() == null
-                        || checkReqPathNode.getFirstChild().getNodeValue().isBlank()) {
-                    match = true;
-                    requestValue = "checkReqPathNode is null or empty and doesn't change client attribute";
-                } else {
-                    // сравниваем сохраненное и проверяемое значения
-                    requestValue = checkReqPathNode.getFirstChild().getNodeValue();
-                    // проверяем файлы
-                    requestValue = XmlUtils.checkFileAttribute(requestValue);
-                    savedValue = XmlUtils.checkFileAttribute(savedValue);
-
-                    match = XmlUtils.compareClientAttrsValues(savedValue, requestValue);
-                }
+        XmlPathDictionary savedDictionary = savedRequest.getDictionary();
+        XmlPathDictionary checkDictionary = checkRequest.getDictionary();
+        Map<XmlPath, Integer> savedSlots = new HashMap<>();
+        for (int slot = sharedSlotCount; slot < savedRequest.getSlotCount(); slot++) {
+            if (savedRequest.getValue(slot) != null) {
+                savedSlots.put(savedDictionary.getSlotPath(slot), slot);
             }
+        }
 
-            if (!match) {
-                log.warn("Attributes don't match.\nPath: {}\nRequest value: {}\n  Saved value: {}",
-                        currentPath,
-                        requestValue,
-                        savedValue);
-            }
-
-            // если значение клиентского атрибута поменялось в проверяемом запросе,
-            // добавляем ошибку клиентского атрибута
-            if (!match) {
-                String error = getErrorDescription(pathIsDynamic, templatePath, templatePathNode, savedReqPathNode);
-                if (savedReqPathNode.getFirstChild() == null) {
-                    error = error + ". Ранее указанный атрибут не передавался.";
-                } else {
-                    if (!XmlUtils.nodeHasPersonalDataMark(templatePathNode)
-                            && !savedValue.contains(HASH)) {
-                        error = error + ". Ранее передаваемое значение атрибута - "
-                                + savedReqPathNode.getFirstChild().getNodeValue();
-                    }
-                }
+        for (int slot = sharedSlotCount; slot < checkRequest.getSlotCount(); slot++) {
+            RequestAttributeValue checkReqValue = checkRequest.getValue(slot);
+            if (checkReqValue == null) {
+                continue;
+            }
+            Integer savedSlot = savedSlots.remove(checkDictionary.getSlotPath(slot));
+            if (!unchangedSubtrees.isEmpty() && unchangedSubtrees.contains(checkDictionary.getSlotSubtreeKey(slot))) {
+                continue;
+            }
+            String error = savedSlot != null
+                    ? getCheckRequestNonMatchError(savedDictionary, savedSlot, savedRequest.getValue(savedSlot),
+                    checkReqValue)
+                    : getCheckRequestAdditionalError(checkDictionary, slot, checkReqValue);
+            if (error != null) {
+                errors.add(error);
+            }
+        }
+        // атрибуты сохраненного запроса, которых нет в проверяемом
+        for (int savedSlot : savedSlots.values()) {
+            if (!unchangedSubtrees.isEmpty()
+                    && unchangedSubtrees.contains(savedDictionary.getSlotSubtreeKey(savedSlot))) {
+                continue;
+            }
+            String error = getCheckRequestNonMatchError(savedDictionary, savedSlot, savedRequest.getValue(savedSlot),
+                    null);
+            if (error != null) {
                 errors.add(error);
             }
         }
@@ -331,105 +462,240 @@ public class ClientAttributesServiceOperator extends AbstractServiceOperator {
         return errors;
     }
 
-    private static List<String> getCheckRequestAdditionalErrors(Map<XmlPath, Node> checkReqAdditionalPaths,
-                                                                Map<XmlPath, Node> templatePaths)
+    private static List<String> checkClientAttributesMatch(XmlPathDictionary dictionary,
+                                                           XmlRequestPaths savedRequest,
+                                                           XmlRequestPaths checkRequest,
+                                                           Set<String> unchangedSubtrees,
+                                                           int fromSlot, int toSlot)
             throws ClientAttributesDataException {
         List<String> errors = new ArrayList<>();
-        XmlPath currentPath;
-        for (Map.Entry<XmlPath, Node> path : checkReqAdditionalPaths.entrySet()) {
-            currentPath = path.getKey();
-            Node pathNode = path.getValue();
-            if (!XmlUtils.nodeIsTextValueNode(pathNode)) {
+
+        // перебираем номера путей сохраненного и проверяемого запросов и сравниваем, изменились ли значения клиенстких атрибутов
+        for (int slot = fromSlot; slot < toSlot; slot++) {
+            if (!unchangedSubtrees.isEmpty() && unchangedSubtrees.contains(dictionary.getSlotSubtreeKey(slot))) {
                 continue;
             }
-            // если атрибута раньше не было, а сейчас пришел 0, то ошибки нет
-            if (XmlUtils.checkIsZeroNumberAttribute(pathNode)) {
+            RequestAttributeValue savedReqValue = savedRequest.getValue(slot);
+            RequestAttributeValue checkReqValue = checkRequest.getValue(slot);
+            String error;
+            if (savedReqValue != null) {
+                error = getCheckRequestNonMatchError(dictionary, slot, savedReqValue, checkReqValue);
+            } else if (checkReqValue != null) {
+                // клиентский атрибут, которого не было в сохраненном запросе, но появился в проверяемом
+                error = getCheckRequestAdditionalError(dictionary, slot, checkReqValue);
+            } else {
                 continue;
             }
-            XmlPath templatePath = currentPath;
-            boolean pathIsDynamic = XmlUtils.isDynamicPath(currentPath);
-            if (pathIsDynamic) {
-                templatePath = XmlUtils.createTemplateDynamicPath(currentPath);
+            if (error != null) {
+                errors.add(error);
             }
-            Node templatePathNode = templatePaths.get(templatePath);
+        }
 
-            if (templatePathNode == null) {
-                throw new IllegalArgumentException("Обнаружена неизвестная структура данных.");
+        return errors;
+    }
+
+    // параллельное сравнение значений по диапазону номеров путей
+    private static class CompareTask extends RecursiveTask<List<String>> {
+
+        private final XmlPathDictionary dictionary;
+        private final XmlRequestPaths savedRequest;
+        private final XmlRequestPaths checkRequest;
+        private final Set<String> unchangedSubtrees;
+        private final int fromSlot;
+        private final int toSlot;
+        private final int batchSize;
+
+        private CompareTask(XmlPathDictionary dictionary, XmlRequestPaths savedRequest, XmlRequestPaths checkRequest,
+                            Set<String> unchangedSubtrees, int fromSlot, int toSlot, int batchSize) {
+            this.dictionary = dictionary;
+            this.savedRequest = savedRequest;
+            this.checkRequest = checkRequest;
+            this.unchangedSubtrees = unchangedSubtrees;
+            this.fromSlot = fromSlot;
+            this.toSlot = toSlot;
+            this.batchSize = batchSize;
+        }
+
+        @Override
+        protected List<String> compute() {
+            if (toSlot - fromSlot <= batchSize) {
+                return checkClientAttributesMatch(dictionary, savedRequest, checkRequest, unchangedSubtrees,
+                        fromSlot, toSlot);
             }
 
+            int middleSlot = (fromSlot + toSlot) >>> 1;
+            CompareTask right = new CompareTask(dictionary, savedRequest, checkRequest, unchangedSubtrees,
+                    middleSlot, toSlot, batchSize);
+            right.fork();
+            List<String> errors = new CompareTask(dictionary, savedRequest, checkRequest, unchangedSubtrees,
+                    fromSlot, middleSlot, batchSize).compute();
+            errors.addAll(right.join());
 
-            String error = getErrorDescription(pathIsDynamic, templatePath, templatePathNode, pathNode);
-            errors.add(error  + ". Ранее указанный атрибут не передавался.");
+            return errors;
         }
-
-        return errors;
     }
 
-    private static String getErrorDescription(boolean pathIsDynamic, XmlPath templatePath, Node templatePathNode,
-                                              Node pathNode) throws ClientAttributesDataException {
-        String error = null;
-        if (pathIsDynamic) {
-            return XmlUtils.getDynamicErrorDescription(templatePath, templatePathNode, pathNode);
+    private static String getCheckRequestNonMatchError(XmlPathDictionary dictionary, int slot,
+                                                       RequestAttributeValue savedReqValue,
+                                                       RequestAttributeValue checkReqValue)
+            throws ClientAttributesDataException {
+        TemplateAttribute templateAttribute = dictionary.getSlotAttribute(slot);
+        boolean match;
+        String requestValue = "";
+        String savedValue = "";
+        if (savedReqValue.isBlank()) {
+            savedValue = "null";
+            if (checkReqValue == null || checkReqValue.isBlank()) {
+                match = true;
+                requestValue = "null";
+            }
+            else {
+                match = false;
+                requestValue = checkReqValue.getValue();
+            }
+
+        } else {
+            // если в сохраненном запросе клиентский атрибут передан с текстовым значением
+            // то в проверяемом запросе клиентский атрибут должен либо отсутствовать,
+            // либо значение клиентского атрибута не должно меняться по сравнению с сохраненным значение
+            savedValue = savedReqValue.getValue();
+            if (checkReqValue == null || checkReqValue.isBlank()) {
+                match = true;
+                requestValue = "checkReqPathNode is null or empty and doesn't change client attribute";
+            } else {
+                // сравниваем сохраненное и проверяемое значения, нормализованные при разборе
+                // (файлы приведены к хешу, числа - к канонической форме)
+                requestValue = checkReqValue.getValue();
+                match = savedReqValue.getComparableValue().equals(checkReqValue.getComparableValue());
+            }
+        }
+
+        if (match) {
+            return null;
+        }
+
+        log.warn("Attributes don't match.\nPath: {}\nRequest value: {}\n  Saved value: {}",
+                dictionary.getSlotPath(slot),
+                requestValue,
+                savedValue);
+
+        // значение клиентского атрибута поменялось в проверяемом запросе, формируем ошибку клиентского атрибута
+        String error = getErrorDescription(templateAttribute, savedReqValue);
+        if (savedReqValue.getValue() == null) {
+            error = error + ". Ранее указанный атрибут не передавался.";
         } else {
-            error = XmlUtils.getErrorDescription(templatePathNode);
-            if (error == null) {
-                throw new ClientAttributesDataException("Не найдено описание ошибки атрибута "
-                        + templatePathNode.getNodeName());
+            if (!templateAttribute.isPersonalData()
+                    && !savedValue.contains(HASH)) {
+                error = error + ". Ранее передаваемое значение атрибута - "
+                        + savedReqValue.getValue();
             }
+        }
+
+        return error;
+    }
+
+    private static String getCheckRequestAdditionalError(XmlPathDictionary dictionary, int slot,
+                                                         RequestAttributeValue checkReqValue)
+            throws ClientAttributesDataException {
+        if (!checkReqValue.isTextValue()) {
+            return null;
+        }
+        // если атрибута раньше не было, а сейчас пришел 0, то ошибки нет
+        if (checkReqValue.isZero()) {
+            return null;
+        }
+
+        String error = getErrorDescription(dictionary.getSlotAttribute(slot), checkReqValue);
+        return error + ". Ранее указанный атрибут не передавался.";
+    }
 
-            return error;
+    private static String getErrorDescription(TemplateAttribute templateAttribute,
+                                              RequestAttributeValue attributeValue) throws ClientAttributesDataException {
+        if (templateAttribute.isDynamic()) {
+            // описание ошибки шаблона дополняем значением динамической ноды запроса
+            return templateAttribute.getDynamicErrorDescription(attributeValue.getDynamicValue());
+        } else {
+            return templateAttribute.getErrorDescription();
         }
     }
 
-    private Map<XmlPath, Node> matchClientAttributesByPaths(XmlRequestPaths templatePaths,
-                                                            Document requestDocument,
-                                                            boolean hashPersData) {
+    // значения клиентских атрибутов запроса по номерам путей словаря шаблона
+    private XmlRequestPaths matchClientAttributesByPaths(XmlRequestTemplate template,
+                                                         Document requestDocument,
+                                                         boolean hashPersData) {
+        XmlPathDictionary dictionary = template.getDictionary();
+        // массив значений растет только на конкретные динамические пути самого запроса
+        RequestAttributeValue[] values = new RequestAttributeValue[dictionary.getPathCount()];
         Map<XmlPath, Node> clientAttributes = new HashMap<>();
         XmlPath lastSavedPath = null;
         // проходим в дереве запроса по сохраненным путям шаблона, по которым находятся ноды с клиентскими атрибутамм
-        for (Map.Entry<XmlPath, Node> entry : templatePaths.getPaths().entrySet()) {
+        for (int pathId = 0; pathId < dictionary.getPathCount(); pathId++) {
+            XmlPath templatePath = dictionary.getTemplatePath(pathId);
+            TemplateAttribute templateAttribute = dictionary.getAttribute(pathId);
             // получаем пути к тегам с клиентским атрибутом
             Map<XmlPath, Node> requestPaths;
 
-            if (lastSavedPath == null || XmlUtils.isDynamicPath(lastSavedPath) || XmlUtils.isDynamicPath(entry.getKey())) {
+            if (lastSavedPath == null || XmlUtils.isDynamicPath(lastSavedPath) || templateAttribute.isDynamic()) {
                 // ищем с начала дерева, если пути еще не проверялись или в случае динамического пути
-                requestPaths = XmlUtils.findNodesMatchingPathFromParent(requestDocument, entry.getKey());
+                requestPaths = XmlUtils.findNodesMatchingPathFromParent(requestDocument, templatePath,
+                        dictionary.getPathNodePool(), matchPool, parallelMatchSubtreeThreshold);
             }
             // если ранее пути проверялись
             // проверяем, что текущий путь содержит в начале предыдущий путь полностью или частично, чтобы не проходить повторно
             else {
-                requestPaths = XmlUtils.getChildNodesByPathsDiff(lastSavedPath, entry.getKey(),
+                requestPaths = XmlUtils.getChildNodesByPathsDiff(lastSavedPath, templatePath,
                         clientAttributes.get(lastSavedPath));
             }
             if (!requestPaths.isEmpty()) {
                 // запоминаем последний найденный путь для последующей обработки следующего пути только по разнице двух путей
                 lastSavedPath = requestPaths.entrySet().stream().findFirst().get().getKey();
             }
-            if (hashPersData && XmlUtils.nodeHasPersonalDataMark(entry.getValue())) {
+            if (hashPersData && templateAttribute.isPersonalData()) {
                 requestPaths.forEach((key, value) -> XmlUtils.hashPersonalDataAttribute(value));
             }
             clientAttributes.putAll(requestPaths);
+            // копируем значения из дерева, чтобы разобранный запрос не удерживал дерево
+            for (Map.Entry<XmlPath, Node> requestPath : requestPaths.entrySet()) {
+                int slot = dictionary.intern(pathId, requestPath.getKey());
+                if (slot == XmlPathDictionary.REQUEST_PATH) {
+                    // конкретный динамический путь получает номер только в словаре этого запроса
+                    dictionary = dictionary.newRequestDictionary();
+                    slot = dictionary.intern(pathId, requestPath.getKey());
+                }
+                if (slot >= values.length) {
+                    values = Arrays.copyOf(values, Math.max(slot + 1, values.length * 2));
+                }
+                values[slot] = XmlUtils.createRequestAttributeValue(templatePath, templateAttribute,
+                        requestPath.getValue());
+            }
         }
 
-        return clientAttributes;
+        if (values.length != dictionary.getSlotCount()) {
+            values = Arrays.copyOf(values, dictionary.getSlotCount());
+        }
+
+        return new XmlRequestPaths(dictionary, values);
     }
 
-    private void hashPersonalData(XmlRequestPaths templatePaths, Document requestDocument) {
+    private void hashPersonalData(XmlRequestTemplate template, Document requestDocument) {
+        XmlPathDictionary dictionary = template.getDictionary();
         Map<XmlPath, Node> clientAttributes = new HashMap<>();
         XmlPath lastSavedPath = null;
         // проходим в дереве запроса по сохраненным путям шаблона, по которым находятся ноды с клиентскими атрибутамм
-        for (Map.Entry<XmlPath, Node> entry : templatePaths.getPaths().entrySet()) {
+        for (int pathId = 0; pathId < dictionary.getPathCount(); pathId++) {
+            XmlPath templatePath = dictionary.getTemplatePath(pathId);
             // получаем пути к тегам с клиентским атрибутом
             Map<XmlPath, Node> requestPaths;
 
-            if (lastSavedPath == null || XmlUtils.isDynamicPath(lastSavedPath) || XmlUtils.isDynamicPath(entry.getKey())) {
+            if (lastSavedPath == null || XmlUtils.isDynamicPath(lastSavedPath) || XmlUtils.isDynamicPath(templatePath)) {
                 // ищем с начала дерева, если пути еще не проверялись или в случае динамического пути
-                requestPaths = XmlUtils.findNodesMatchingPathFromParent(requestDocument, entry.getKey());
+                requestPaths = XmlUtils.findNodesMatchingPathFromParent(requestDocument, templatePath, null,
+                        matchPool, parallelMatchSubtreeThreshold);
             }
             // если ранее пути проверялись
             // проверяем, что текущий путь содержит в начале предыдущий путь полностью или частично, чтобы не проходить повторно
             else {
-                requestPaths = XmlUtils.getChildNodesByPathsDiff(lastSavedPath, entry.getKey(),
+                requestPaths = XmlUtils.getChildNodesByPathsDiff(lastSavedPath, templatePath,
                         clientAttributes.get(lastSavedPath));
             }
             if (!requestPaths.isEmpty()) {
@@ -437,7 +703,7 @@ public class ClientAttributesServiceOperator extends AbstractServiceOperator {
                 lastSavedPath = requestPaths.entrySet().stream().findFirst().get().getKey();
             }
 
-            if (XmlUtils.nodeHasPersonalDataMark(entry.getValue())) {
+            if (dictionary.getAttribute(pathId).isPersonalData()) {
                 requestPaths.entrySet().forEach(
                         p -> XmlUtils.hashPersonalDataAttribute(p.getValue())
                 );
@@ -446,6 +712,38 @@ public class ClientAttributesServiceOperator extends AbstractServiceOperator {
         }
     }
 
+    // возвращаем запрос с хешированными по актуальному шаблону персональными данными
+    // (используется, когда запрос сохраняется за пределами БД сервиса)
+    public String getRequestWithHashedPersonalData(String flow, String request, Connection conn)
+            throws RequestControlServiceException {
+        LocalDateTime now = ZonedDateTime.now()
+                .withZoneSameInstant(ZoneId.systemDefault())
+                .toLocalDateTime();
+
+        return getRequestWithHashedPersonalData(getCurrentTemplate(flow, now, conn), request);
+    }
+
+    // хеширование по уже определенному шаблону запроса, без обращения к БД
+    public String getRequestWithHashedPersonalData(XmlRequestTemplate template, String request)
+            throws RequestControlServiceException {
+        Document preparedDoc;
+        try {
+            preparedDoc = XmlUtils.getDocumentFromXmlString(request);
+        } catch (ParserConfigurationException | IOException | SAXException e) {
+            throw new RequestControlServiceException("Не удалось обработать xml структуру запроса.");
+        }
+
+        hashPersonalData(template, preparedDoc);
+
+        try {
+            return XmlUtils.getXmlStringFromDocument(preparedDoc);
+        } catch (TransformerException e) {
+            throw new RequestControlServiceException(String.format(
+                    "Не удалось обработать xml структуру запроса:%n%s",
+                    e.getMessage() == null ? "" : e.getMessage()));
+        }
+    }
+
     public String getSavedRequest(String flow, String filial, String messageId, Connection conn)
             throws DatabaseException {
         String sql = "SELECT request FROM client_attrs_requests WHERE flow=? AND filial=? AND message_id=?";
@@ -492,6 +790,31 @@ public class ClientAttributesServiceOperator extends AbstractServiceOperator {
         }
     }
 
+    // дата обновления и дайджесты клиентских атрибутов сохраненного запроса одним запросом к БД
+    public SavedRequestInfo getSavedRequestInfo(String flow, String filial, String messageId, Connection conn)
+            throws DatabaseException {
+        String sql = "SELECT updated_at, attrs_digest, attrs_subtree_digests FROM client_attrs_requests WHERE flow=? AND filial=? AND message_id=?";
+        try (PreparedStatement preparedStatement = conn.prepareStatement(sql)) {
+            preparedStatement.setString(1, flow);
+            preparedStatement.setString(2, filial);
+            preparedStatement.setString(3, messageId);
+
+            ResultSet rs = preparedStatement.executeQuery();
+            SavedRequestInfo savedRequestInfo = null;
+            if (rs.next()) {
+                savedRequestInfo = new SavedRequestInfo(rs.getObject(1, LocalDateTime.class), rs.getString(2),
+                        rs.getString(3));
+            }
+
+            return savedRequestInfo;
+        } catch(SQLException ex) {
+            ex.printStackTrace();
+            throw new DatabaseException(String.format(
+                    "Не удалось получить данные из базы данных по дате обновления сохраненного запроса:%n%s",
+                    ex.getMessage() == null ? "" : ex.getMessage()));
+        }
+    }
+
     public void saveRequest(ControlTypeRequest controlTypeRequest, Connection conn)
             throws RequestControlServiceException {
 
@@ -500,29 +823,41 @@ public class ClientAttributesServiceOperator extends AbstractServiceOperator {
                 .toLocalDateTime();
         String flow = controlTypeRequest.getFlowType().name();
 
+        RequestContext requestContext = getRequestContext(controlTypeRequest);
+        // если запрос уже разобран при проверке, используем готовое дерево
         Document preparedDoc;
-        // парсим xml-строку в дерево
         try {
-            preparedDoc = XmlUtils.getDocumentFromXmlString(controlTypeRequest.getRequest());
+            preparedDoc = getRequestDocument(controlTypeRequest.getRequest(), requestContext);
         } catch (ParserConfigurationException | IOException | SAXException e) {
             throw new RequestControlServiceException("Не удалось обработать xml структуру запроса на сохранение.");
         }
-
-        // хешируем перс данные
-        try {
-            hashPersonalData(getCurrentTemplate(flow, timestamp, conn), preparedDoc);
-        } catch (RequestControlServiceException e) {
-            throw new RequestControlServiceException(String.format(
-                    "Не удалось выполнить хеширование персональных данных. %n%s",
-                    e.getMessage() == null ? "" : e.getMessage()));
+        AttributesDigest attrsDigest;
+        Map<String, String> subtreeValues;
+        try (StageClock.Span ignored = StageClock.current().enter(StageClock.Stage.PARSE)) {
+            // хешируем перс данные и получаем значения клиентских атрибутов для дерева дайджестов
+            // (если запрос уже проверялся, значения берем из контекста)
+            try {
+                XmlRequestTemplate template = getCurrentTemplate(flow, timestamp, requestContext, conn);
+                XmlRequestPaths values = getRequestAttributeValues(template, preparedDoc, requestContext);
+                attrsDigest = AttributesDigest.compute(template.getName(), values.getDictionary(),
+                        values.getValues());
+                subtreeValues = SubtreeValues.serialize(values.getDictionary(), values.getValues());
+            } catch (RequestControlServiceException e) {
+                throw new RequestControlServiceException(String.format(
+                        "Не удалось выполнить хеширование персональных данных. %n%s",
+                        e.getMessage() == null ? "" : e.getMessage()));
+            }
         }
 
-        saveOrUpdateRequest(controlTypeRequest, preparedDoc, timestamp, conn);
+        saveOrUpdateRequest(controlTypeRequest, preparedDoc, attrsDigest, subtreeValues, timestamp, conn);
     }
 
+    // subtreeValues - значения клиентских атрибутов по ключам поддеревьев (SubtreeValues)
     @Transactional
     public void saveOrUpdateRequest(ControlTypeRequest controlTypeRequest,
                                      Document preparedDoc,
+                                     AttributesDigest attrsDigest,
+                                     Map<String, String> subtreeValues,
                                      LocalDateTime timestamp,
                                      Connection conn) {
         String flow = controlTypeRequest.getFlowType().name();
@@ -544,28 +879,33 @@ public class ClientAttributesServiceOperator extends AbstractServiceOperator {
             LocalDateTime lastUpdatedAt = getSavedRequestLastUpdate(flow, filial, masterId, conn);
             String sql;
             if (lastUpdatedAt == null) {
-                sql = "INSERT INTO client_attrs_requests (flow, filial, message_id, updated_at, request) VALUES (?,?,?,?,?)";
+                sql = "INSERT INTO client_attrs_requests (flow, filial, message_id, updated_at, request, attrs_digest, attrs_subtree_digests) VALUES (?,?,?,?,?,?,?)";
                 try (PreparedStatement preparedStatement = conn.prepareStatement(sql)) {
                     preparedStatement.setString(1, flow);
                     preparedStatement.setString(2, filial);
                     preparedStatement.setString(3, masterId);
                     preparedStatement.setObject(4, timestamp, Types.TIMESTAMP);
                     preparedStatement.setString(5, request);
+                    preparedStatement.setString(6, attrsDigest.getRootDigest());
+                    preparedStatement.setString(7, attrsDigest.getSubtreeDigests());
 
                     preparedStatement.executeUpdate();
                 }
             } else {
-                sql = "UPDATE client_attrs_requests SET updated_at=?, request=? WHERE flow=? AND filial=? AND message_id=?";
+                sql = "UPDATE client_attrs_requests SET updated_at=?, request=?, attrs_digest=?, attrs_subtree_digests=? WHERE flow=? AND filial=? AND message_id=?";
                 try (PreparedStatement preparedStatement = conn.prepareStatement(sql)) {
                     preparedStatement.setObject(1, timestamp, Types.TIMESTAMP);
                     preparedStatement.setString(2, request);
-                    preparedStatement.setString(3, flow);
-                    preparedStatement.setString(4, filial);
-                    preparedStatement.setString(5, masterId);
+                    preparedStatement.setString(3, attrsDigest.getRootDigest());
+                    preparedStatement.setString(4, attrsDigest.getSubtreeDigests());
+                    preparedStatement.setString(5, flow);
+                    preparedStatement.setString(6, filial);
+                    preparedStatement.setString(7, masterId);
 
                     preparedStatement.executeUpdate();
                 }
             }
+            saveSubtreeValues(flow, filial, masterId, attrsDigest, subtreeValues, conn);
         } catch(SQLException e) {
             e.printStackTrace();
             throw new DatabaseException(String.format(
@@ -574,78 +914,74 @@ public class ClientAttributesServiceOperator extends AbstractServiceOperator {
         }
     }
 
-    public String getEffectiveTemplateName(String flow, LocalDateTime timestamp, Connection conn)
-            throws DatabaseException {
-            String sql = "SELECT name FROM client_attrs_templates where flow=? and created_at < ? ORDER BY created_at DESC LIMIT 1";
-            try (PreparedStatement preparedStatement = conn.prepareStatement(sql)) {
-                preparedStatement.setString(1, flow);
-                preparedStatement.setObject(2, timestamp, Types.TIMESTAMP);
-
-                ResultSet rs = preparedStatement.executeQuery();
-                String templateName = null;
-                if (rs.next()) {
-                    templateName = rs.getString(1);
-                }
-
-                return templateName;
-        } catch(SQLException ex) {
-            ex.printStackTrace();
-            throw new DatabaseException(String.format(
-                    "Не удалось получить данные из базы данных о наименовании актуального шаблона:%n%s",
-                    ex.getMessage() == null ? "" : ex.getMessage()));
-        }
-    }
-
-    public List<String> getAllEffectiveTemplateNames(Connection conn) throws DatabaseException {
-        String sql = "SELECT DISTINCT flow, MAX(created_at) FROM client_attrs_templates GROUP BY flow";
+    // строки адресуются дайджестом поддерева (включает шаблон, ключ поддерева и значения),
+    // поэтому строка с тем же дайджестом всегда содержит те же значения и не перезаписывается:
+    // вставляются только поддеревья с новым дайджестом, удаляются только поддеревья, которых больше нет в запросе
+    private static void saveSubtreeValues(String flow, String filial, String messageId,
+                                          AttributesDigest attrsDigest, Map<String, String> subtreeValues,
+                                          Connection conn) throws SQLException {
+        Set<String> savedDigests = new HashSet<>();
+        String sql = "SELECT subtree_digest FROM client_attrs_subtrees WHERE flow=? AND filial=? AND message_id=?";
         try (PreparedStatement preparedStatement = conn.prepareStatement(sql)) {
+            preparedStatement.setString(1, flow);
+            preparedStatement.setString(2, filial);
+            preparedStatement.setString(3, messageId);
+
             ResultSet rs = preparedStatement.executeQuery();
-            List<String> templateNames = new ArrayList<>();
             while (rs.next()) {
-                templateNames.add(rs.getString(1));
+                savedDigests.add(rs.getString(1));
             }
+        }
 
-            return templateNames;
-        } catch(SQLException ex) {
-            ex.printStackTrace();
-            throw new DatabaseException(String.format(
-                    "Не удалось получить данные из базы данных о всех актуальных шаблонах:%n%s",
-                    ex.getMessage() == null ? "" : ex.getMessage()));
+        Map<String, String> addedSubtrees = new HashMap<>();
+        for (Map.Entry<String, String> subtree : subtreeValues.entrySet()) {
+            String digest = attrsDigest.getSubtreeDigest(subtree.getKey());
+            // оставшиеся сохраненные дайджесты - удаленные или измененные поддеревья
+            if (!savedDigests.remove(digest)) {
+                addedSubtrees.put(digest, subtree.getValue());
+            }
         }
-    }
 
-    public XmlRequestTemplate getEffectiveTemplate(String flow, LocalDateTime date, Connection conn)
-            throws DatabaseException, ClientAttributesDataException {
-        String sql = "SELECT name, template FROM client_attrs_templates where flow=? and created_at < ? ORDER BY created_at DESC LIMIT 1";
-        try (PreparedStatement preparedStatement = conn.prepareStatement(sql)) {
-            preparedStatement.setString(1, flow);
-            preparedStatement.setObject(2, date, Types.TIMESTAMP);
+        if (!savedDigests.isEmpty()) {
+            sql = "DELETE FROM client_attrs_subtrees WHERE flow=? AND filial=? AND message_id=? AND subtree_digest=?";
+            try (PreparedStatement preparedStatement = conn.prepareStatement(sql)) {
+                for (String digest : savedDigests) {
+                    preparedStatement.setString(1, flow);
+                    preparedStatement.setString(2, filial);
+                    preparedStatement.setString(3, messageId);
+                    preparedStatement.setString(4, digest);
+                    preparedStatement.addBatch();
+                }
 
-            ResultSet rs = preparedStatement.executeQuery();
-            XmlRequestTemplate template = null;
-            Document templateDocument = null;
-            if (rs.next()) {
-                String templateName = rs.getString(1);
-                String templateStr = rs.getString(2);
+                preparedStatement.executeBatch();
+            }
+        }
+
+        if (!addedSubtrees.isEmpty()) {
+            sql = "INSERT INTO client_attrs_subtrees (flow, filial, message_id, subtree_digest, template_name, attrs) VALUES (?,?,?,?,?,?)";
+            try (PreparedStatement preparedStatement = conn.prepareStatement(sql)) {
+                for (Map.Entry<String, String> subtree : addedSubtrees.entrySet()) {
+                    preparedStatement.setString(1, flow);
+                    preparedStatement.setString(2, filial);
+                    preparedStatement.setString(3, messageId);
+                    preparedStatement.setString(4, subtree.getKey());
+                    preparedStatement.setString(5, attrsDigest.getTemplateName());
+                    preparedStatement.setString(6, subtree.getValue());
+                    preparedStatement.addBatch();
+                }
 
-                templateDocument = XmlUtils.getDocumentFromXmlString(templateStr);
-                Map<XmlPath, Node> templatePaths = XmlUtils.getTemplatePathsFromNode(
-                        new XmlPath(), templateDocument.getFirstChild());
-                template = new XmlRequestTemplate(templateName, templatePaths);
+                preparedStatement.executeBatch();
             }
+        }
+    }
 
-            return template;
-        } catch (SQLException ex) {
-            ex.printStackTrace();
-            throw new DatabaseException(String.format(
-                    "Не удалось получить данные из базы данных об актуальном шаблоне:%n%s",
-                    ex.getMessage() == null ? "" : ex.getMessage()));
-        } catch (ParserConfigurationException | IOException | SAXException e) {
-            e.printStackTrace();
-            throw new ClientAttributesDataException(String.format(
-                    "Ошибка обработки шаблона клиентских атрибутов.%n%s",
-                    e.getMessage() == null ? "" : e.getMessage()));
+    // если запрос сформирован без общего контекста, используем контекст только для текущей операции
+    private static RequestContext getRequestContext(ControlTypeRequest controlTypeRequest) {
+        if (controlTypeRequest.getRequestContext() == null) {
+            controlTypeRequest.setRequestContext(new RequestContext());
         }
+
+        return controlTypeRequest.getRequestContext();
     }
 
     public static String getRequestIdentifier(String flow, String filial, String messageId) {
@@ -660,19 +996,57 @@ public class ClientAttributesServiceOperator extends AbstractServiceOperator {
     public void saveTemplate(String flow, LocalDateTime timestamp, String template, Connection conn)
             throws DatabaseException {
         String sql = "INSERT INTO client_attrs_templates (flow, created_at, name, template) VALUES(?,?,?,?)";
-        try (PreparedStatement preparedStatement = conn.prepareStatement(sql)) {
+        // транзакцию фиксирует или откатывает только тот, кто ее начал
+        boolean ownTransaction = false;
+        try {
+            // шаблон и версия шаблонов сохраняются в одной транзакции
+            ownTransaction = conn.getAutoCommit();
+            if (ownTransaction) {
+                conn.setAutoCommit(false);
+            }
+            try (PreparedStatement preparedStatement = conn.prepareStatement(sql)) {
 
-            preparedStatement.setString(1, flow);
-            preparedStatement.setObject(2, timestamp, Types.TIMESTAMP);
-            preparedStatement.setString(3, generateTemplateName(flow, timestamp));
-            preparedStatement.setString(4, template);
+                preparedStatement.setString(1, flow);
+                preparedStatement.setObject(2, timestamp, Types.TIMESTAMP);
+                preparedStatement.setString(3, generateTemplateName(flow, timestamp));
+                preparedStatement.setString(4, template);
 
-            preparedStatement.executeUpdate();
+                preparedStatement.executeUpdate();
+            }
+            TemplateRegistry.incrementTemplatesVersion(conn);
+            if (ownTransaction) {
+                conn.commit();
+            }
         } catch(SQLException ex) {
             ex.printStackTrace();
+            if (ownTransaction) {
+                rollbackQuietly(conn);
+            }
             throw new DatabaseException(String.format(
                     "Не удалось сохранить данные о шаблоне в базе данных:%n%s",
                     ex.getMessage() == null ? "" : ex.getMessage()));
+        } finally {
+            if (ownTransaction) {
+                try {
+                    conn.setAutoCommit(true);
+                } catch (SQLException e) {
+                    e.printStackTrace();
+                }
+            }
+        }
+
+        // на текущем узле новый шаблон доступен сразу, остальные узлы получат его при проверке версии
+        // (в транзакции вызывающего кода шаблон еще не зафиксирован)
+        if (ownTransaction) {
+            templateRegistry.refreshIfChanged(conn);
+        }
+    }
+
+    private static void rollbackQuietly(Connection conn) {
+        try {
+            conn.rollback();
+        } catch (SQLException e) {
+            e.printStackTrace();
         }
     }
 
@@ -680,6 +1054,32 @@ public class ClientAttributesServiceOperator extends AbstractServiceOperator {
         return flow + "-" + timestamp;
     }
 
+    public static class SavedRequestInfo {
+
+        private final LocalDateTime updatedAt;
+        private final String attrsDigest;
+        private final String attrsSubtreeDigests;
+
+        public SavedRequestInfo(LocalDateTime updatedAt, String attrsDigest, String attrsSubtreeDigests) {
+            this.updatedAt = updatedAt;
+            this.attrsDigest = attrsDigest;
+            this.attrsSubtreeDigests = attrsSubtreeDigests;
+        }
+
+        public LocalDateTime getUpdatedAt() {
+            return updatedAt;
+        }
+
+        // может отсутствовать для запросов, сохраненных до появления дайджеста
+        public String getAttrsDigest() {
+            return attrsDigest;
+        }
+
+        public String getAttrsSubtreeDigests() {
+            return attrsSubtreeDigests;
+        }
+    }
+
     @Scheduled(fixedRateString = "${service.client-attrs-cache.time}")
     public void cleanSavedRequestsCache() {
         log.info("Start clean expired saved requests cache");
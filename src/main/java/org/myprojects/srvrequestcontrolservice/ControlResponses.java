@@ -0,0 +1,49 @@
+package org.myprojects.srvrequestcontrolservice;
+
+import lombok.extern.slf4j.Slf4j;
+import org.myprojects.srvrequestcontrolservice.data.ServiceResponse;
+import org.myprojects.srvrequestcontrolservice.exceptions.AdmissionRejectedException;
+import org.myprojects.srvrequestcontrolservice.metrics.StageClock;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.ResponseEntity;
+import org.springframework.stereotype.Component;
+
+// HTTP-ответы /requestControl/control и его реактивного и поэтапного вариантов:
+// успешный ответ с разбивкой времени по этапам, отклоненный при перегрузке и завершившийся ошибкой запрос
+@Slf4j
+@Component
+public class ControlResponses {
+
+    static final String SERVER_TIMING_HEADER = "Server-Timing";
+
+    // HTTP-статус ответа на отклоненный при перегрузке запрос (429 или 200 со статусом FAILED)
+    @Value("${service.admission.reject-http-status:429}")
+    int rejectHttpStatus;
+
+    // serverTimingClock - часы этапов для заголовка Server-Timing или null, если заголовок не отдается
+    public ResponseEntity<ServiceResponse> ok(ServiceResponse serviceResponse, StageClock serverTimingClock) {
+        ResponseEntity.BodyBuilder response = ResponseEntity.ok();
+        if (serverTimingClock != null) {
+            response.header(SERVER_TIMING_HEADER, serverTimingClock.toServerTimingHeader());
+        }
+        return response.body(serviceResponse);
+    }
+
+    // очередь обработки переполнена или запрос не допущен AdmissionControl, запрос отклоняется без обработки
+    // messageId - null, если тело запроса еще не разобрано
+    public ResponseEntity<ServiceResponse> rejected(String messageId, AdmissionRejectedException e) {
+        ServiceResponse rejectedResponse = failed(messageId, e);
+        log.warn("ServiceResponse: " + rejectedResponse.getErrorDescription());
+        return ResponseEntity.status(rejectHttpStatus)
+                .header(HttpHeaders.RETRY_AFTER, String.valueOf(e.getRetryAfterSeconds()))
+                .body(rejectedResponse);
+    }
+
+    public ServiceResponse failed(String messageId, Throwable e) {
+        return new ServiceResponse(ServiceResponse.Status.FAILED, String.format("%s%n%s",
+                messageId == null ? "Запрос не был обработан."
+                        : String.format("Запрос с messageId %s не был обработан.", messageId),
+                e.getMessage() == null ? "" : e.getMessage()));
+    }
+}
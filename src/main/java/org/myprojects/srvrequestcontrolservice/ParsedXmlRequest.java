@@ -1,9 +1,6 @@
 package org.myprojects.srvrequestcontrolservice;
 
-import org.w3c.dom.Node;
-
 import java.time.LocalDateTime;
-import java.util.Map;
 
 public class ParsedXmlRequest extends XmlRequestPaths {
 
@@ -12,19 +9,18 @@ public class ParsedXmlRequest extends XmlRequestPaths {
     private String messageId;
     private LocalDateTime lastUpdated;
 
-    public ParsedXmlRequest(String flow, String filial, String messageId, LocalDateTime lastUpdated, Map<XmlPath, Node> clientAttrPaths) {
-        super(clientAttrPaths);
+    public ParsedXmlRequest(String flow, String filial, String messageId, LocalDateTime lastUpdated,
+                            XmlPathDictionary dictionary, RequestAttributeValue[] values) {
+        super(dictionary, values);
         this.flow = flow;
         this.filial = filial;
         this.messageId = messageId;
         this.lastUpdated = lastUpdated;
     }
 
-    public ParsedXmlRequest(String flow, String filial, String messageId, Map<XmlPath, Node> clientAttrPaths) {
-        this(flow, filial, messageId, null, clientAttrPaths);
-        this.flow = flow;
-        this.filial = filial;
-        this.messageId = messageId;
+    public ParsedXmlRequest(String flow, String filial, String messageId,
+                            XmlPathDictionary dictionary, RequestAttributeValue[] values) {
+        this(flow, filial, messageId, null, dictionary, values);
     }
 
     public String getFlow() {
@@ -0,0 +1,281 @@
+package org.myprojects.srvrequestcontrolservice;
+
+import java.util.AbstractQueue;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.EnumMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+// очередь пула обработки запросов с отдельной ограниченной очередью для каждого приоритета
+// при наличии запросов обоих приоритетов на interactiveWeight интерактивных выбирается один пакетный запрос,
+// поэтому пакетные запросы не простаивают полностью, а при пустой интерактивной очереди занимают все потоки
+// задачи без приоритета (не PriorityTaskQueue.Task) считаются пакетными
+class PriorityTaskQueue extends AbstractQueue<Runnable> implements BlockingQueue<Runnable> {
+
+    private final Map<RequestExecutor.Priority, ArrayDeque<Runnable>> queues =
+            new EnumMap<>(RequestExecutor.Priority.class);
+    private final Map<RequestExecutor.Priority, Integer> capacities = new EnumMap<>(RequestExecutor.Priority.class);
+    private final int interactiveWeight;
+    // сколько интерактивных запросов подряд выбрано при ожидающих пакетных
+    private int interactiveInRow;
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition notEmpty = lock.newCondition();
+    private final Condition notFull = lock.newCondition();
+
+    PriorityTaskQueue(int interactiveCapacity, int bulkCapacity, int interactiveWeight) {
+        queues.put(RequestExecutor.Priority.INTERACTIVE, new ArrayDeque<>());
+        queues.put(RequestExecutor.Priority.BULK, new ArrayDeque<>());
+        capacities.put(RequestExecutor.Priority.INTERACTIVE, interactiveCapacity);
+        capacities.put(RequestExecutor.Priority.BULK, bulkCapacity);
+        this.interactiveWeight = Math.max(1, interactiveWeight);
+    }
+
+    // задача с приоритетом запроса
+    static class Task implements Runnable {
+
+        private final RequestExecutor.Priority priority;
+        private final Runnable runnable;
+
+        Task(RequestExecutor.Priority priority, Runnable runnable) {
+            this.priority = priority;
+            this.runnable = runnable;
+        }
+
+        @Override
+        public void run() {
+            runnable.run();
+        }
+    }
+
+    int size(RequestExecutor.Priority priority) {
+        lock.lock();
+        try {
+            return queues.get(priority).size();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public boolean offer(Runnable runnable) {
+        RequestExecutor.Priority priority = priorityOf(runnable);
+        lock.lock();
+        try {
+            ArrayDeque<Runnable> queue = queues.get(priority);
+            if (queue.size() >= capacities.get(priority)) {
+                return false;
+            }
+            queue.addLast(runnable);
+            notEmpty.signal();
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public boolean offer(Runnable runnable, long timeout, TimeUnit unit) throws InterruptedException {
+        RequestExecutor.Priority priority = priorityOf(runnable);
+        long remaining = unit.toNanos(timeout);
+        lock.lockInterruptibly();
+        try {
+            ArrayDeque<Runnable> queue = queues.get(priority);
+            while (queue.size() >= capacities.get(priority)) {
+                if (remaining <= 0) {
+                    return false;
+                }
+                remaining = notFull.awaitNanos(remaining);
+            }
+            queue.addLast(runnable);
+            notEmpty.signal();
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public void put(Runnable runnable) throws InterruptedException {
+        RequestExecutor.Priority priority = priorityOf(runnable);
+        lock.lockInterruptibly();
+        try {
+            ArrayDeque<Runnable> queue = queues.get(priority);
+            while (queue.size() >= capacities.get(priority)) {
+                notFull.await();
+            }
+            queue.addLast(runnable);
+            notEmpty.signal();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public Runnable poll() {
+        lock.lock();
+        try {
+            return dequeue();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public Runnable poll(long timeout, TimeUnit unit) throws InterruptedException {
+        long remaining = unit.toNanos(timeout);
+        lock.lockInterruptibly();
+        try {
+            Runnable runnable;
+            while ((runnable = dequeue()) == null) {
+                if (remaining <= 0) {
+                    return null;
+                }
+                remaining = notEmpty.awaitNanos(remaining);
+            }
+            return runnable;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public Runnable take() throws InterruptedException {
+        lock.lockInterruptibly();
+        try {
+            Runnable runnable;
+            while ((runnable = dequeue()) == null) {
+                notEmpty.await();
+            }
+            return runnable;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public Runnable peek() {
+        lock.lock();
+        try {
+            ArrayDeque<Runnable> queue = queues.get(nextPriority());
+            return queue == null ? null : queue.peekFirst();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public boolean remove(Object o) {
+        lock.lock();
+        try {
+            for (ArrayDeque<Runnable> queue : queues.values()) {
+                if (queue.removeFirstOccurrence(o)) {
+                    notFull.signalAll();
+                    return true;
+                }
+            }
+            return false;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public int size() {
+        lock.lock();
+        try {
+            int size = 0;
+            for (ArrayDeque<Runnable> queue : queues.values()) {
+                size += queue.size();
+            }
+            return size;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public int remainingCapacity() {
+        lock.lock();
+        try {
+            int remaining = 0;
+            for (Map.Entry<RequestExecutor.Priority, ArrayDeque<Runnable>> e : queues.entrySet()) {
+                remaining += capacities.get(e.getKey()) - e.getValue().size();
+            }
+            return remaining;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // снимок очереди, в порядке приоритетов
+    @Override
+    public Iterator<Runnable> iterator() {
+        lock.lock();
+        try {
+            List<Runnable> snapshot = new ArrayList<>();
+            queues.values().forEach(snapshot::addAll);
+            return snapshot.iterator();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public int drainTo(Collection<? super Runnable> c) {
+        return drainTo(c, Integer.MAX_VALUE);
+    }
+
+    @Override
+    public int drainTo(Collection<? super Runnable> c, int maxElements) {
+        lock.lock();
+        try {
+            int drained = 0;
+            Runnable runnable;
+            while (drained < maxElements && (runnable = dequeue()) != null) {
+                c.add(runnable);
+                drained++;
+            }
+            return drained;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // вызывается под блокировкой
+    private Runnable dequeue() {
+        RequestExecutor.Priority priority = nextPriority();
+        if (priority == null) {
+            return null;
+        }
+        boolean bulkWaiting = !queues.get(RequestExecutor.Priority.BULK).isEmpty();
+        if (priority == RequestExecutor.Priority.INTERACTIVE && bulkWaiting) {
+            interactiveInRow++;
+        } else {
+            interactiveInRow = 0;
+        }
+        Runnable runnable = queues.get(priority).pollFirst();
+        notFull.signalAll();
+        return runnable;
+    }
+
+    // вызывается под блокировкой
+    private RequestExecutor.Priority nextPriority() {
+        boolean interactiveWaiting = !queues.get(RequestExecutor.Priority.INTERACTIVE).isEmpty();
+        boolean bulkWaiting = !queues.get(RequestExecutor.Priority.BULK).isEmpty();
+        if (interactiveWaiting && (!bulkWaiting || interactiveInRow < interactiveWeight)) {
+            return RequestExecutor.Priority.INTERACTIVE;
+        }
+        return bulkWaiting ? RequestExecutor.Priority.BULK : null;
+    }
+
+    private static RequestExecutor.Priority priorityOf(Runnable runnable) {
+        return runnable instanceof Task ? ((Task) runnable).priority : RequestExecutor.Priority.BULK;
+    }
+}
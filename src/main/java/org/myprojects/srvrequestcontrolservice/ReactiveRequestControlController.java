@@ -0,0 +1,173 @@
+package org.myprojects.srvrequestcontrolservice;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import lombok.extern.slf4j.Slf4j;
+import org.myprojects.srvrequestcontrolservice.capture.SlowRequestCapture;
+import org.myprojects.srvrequestcontrolservice.data.ServiceRequest;
+import org.myprojects.srvrequestcontrolservice.data.ServiceResponse;
+import org.myprojects.srvrequestcontrolservice.exceptions.AdmissionRejectedException;
+import org.myprojects.srvrequestcontrolservice.metrics.StageClock;
+import org.myprojects.srvrequestcontrolservice.metrics.StageMetrics;
+import org.myprojects.srvrequestcontrolservice.utils.Deadline;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.http.MediaType;
+import org.springframework.http.ResponseEntity;
+import org.springframework.validation.annotation.Validated;
+import org.springframework.web.bind.annotation.PostMapping;
+import org.springframework.web.bind.annotation.RequestBody;
+import org.springframework.web.bind.annotation.RequestHeader;
+import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RestController;
+import reactor.core.publisher.Mono;
+import reactor.core.scheduler.Scheduler;
+import reactor.core.scheduler.Schedulers;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import javax.validation.Valid;
+import java.util.concurrent.RejectedExecutionException;
+
+// реактивный вариант /requestControl/control (service.reactive.enabled)
+// поток Tomcat освобождается сразу после приема запроса, дальше обработка идет на двух ограниченных планировщиках:
+// разбор XML - на планировщике по числу процессоров, обращения к БД - на планировщике по размеру пула соединений
+// очереди планировщиков ограничены: при переполнении запрос сразу отклоняется (backpressure),
+// а не занимает поток в ожидании свободного соединения
+// как и /requestControl/control, запрос проходит AdmissionControl (с приоритетом RequestExecutor.Priority)
+// до разбора XML, разрешение возвращается после обработки; разрешение запрашивается без ожидания (tryAcquire),
+// чтобы не занимать потоки разбора XML, очередь ожидания здесь заменяют очереди планировщиков
+// драйвер БД остается блокирующим (JDBC), поэтому обращения к БД изолированы на отдельном планировщике
+@Slf4j
+@RestController
+@Validated
+@RequestMapping("/requestControl/reactive")
+@ConditionalOnProperty(name = "service.reactive.enabled", havingValue = "true")
+public class ReactiveRequestControlController {
+
+    @Autowired
+    private RequestControlService requestControlService;
+
+    @Autowired
+    private RequestPrefetch requestPrefetch;
+
+    @Autowired
+    private StageMetrics stageMetrics;
+
+    @Autowired
+    private SlowRequestCapture slowRequestCapture;
+
+    @Autowired
+    private AdmissionControl admissionControl;
+
+    @Autowired
+    private RequestExecutor requestExecutor;
+
+    @Autowired
+    private ControlResponses controlResponses;
+
+    // 0 - по количеству процессоров
+    @Value("${service.reactive.xml-threads:0}")
+    int xmlThreads;
+
+    @Value("${service.reactive.xml-queue:1000}")
+    int xmlQueue;
+
+    @Value("${service.reactive.jdbc-threads:${spring.datasource.hikari.maximum-pool-size:10}}")
+    int jdbcThreads;
+
+    @Value("${service.reactive.jdbc-queue:10000}")
+    int jdbcQueue;
+
+    @Value("${service.server-timing.enabled:false}")
+    private boolean serverTimingEnabled;
+
+    private final ObjectMapper mapper = new ObjectMapper();
+
+    private Scheduler xmlScheduler;
+    private Scheduler jdbcScheduler;
+
+    @PostConstruct
+    public void init() {
+        int threads = xmlThreads > 0 ? xmlThreads : Runtime.getRuntime().availableProcessors();
+        xmlScheduler = Schedulers.newBoundedElastic(threads, xmlQueue, "reactive-xml");
+        jdbcScheduler = Schedulers.newBoundedElastic(jdbcThreads, jdbcQueue, "reactive-jdbc");
+        log.info("Реактивная обработка запросов: потоков разбора XML {}, потоков работы с БД {}",
+                threads, jdbcThreads);
+    }
+
+    @PreDestroy
+    public void destroy() {
+        xmlScheduler.dispose();
+        jdbcScheduler.dispose();
+    }
+
+    @PostMapping(value = "/control", consumes = MediaType.APPLICATION_JSON_VALUE,
+            produces = MediaType.APPLICATION_JSON_VALUE)
+    public Mono<ResponseEntity<ServiceResponse>> process(
+            @RequestBody @Valid ServiceRequest serviceRequest,
+            @RequestHeader(value = RequestControlController.REQUEST_TIMEOUT_HEADER, required = false)
+                    Long requestTimeout,
+            @RequestHeader(value = RequestControlController.REQUEST_PRIORITY_HEADER, required = false)
+                    String requestPriority) {
+        // засекаем время этапов обработки запроса, часы переходят вместе с запросом между потоками
+        StageClock clock = StageClock.create();
+        // срок обработки отсчитывается от получения запроса, включая ожидание в очередях планировщиков
+        Deadline deadline = requestControlService.newDeadline(serviceRequest, requestTimeout);
+        RequestExecutor.Priority priority = requestExecutor.getPriority(serviceRequest, requestPriority);
+
+        // при перегрузке запрос отклоняется до разбора XML, не дожидаясь свободного соединения с БД
+        return Mono.using(() -> admissionControl.tryAcquire(serviceRequest, priority),
+                        permit -> Mono.fromCallable(() -> prepareRequestContext(serviceRequest, clock, deadline))
+                                .flatMap(requestContext -> Mono.fromCallable(() ->
+                                                processServiceRequest(serviceRequest, requestContext, clock))
+                                        .subscribeOn(jdbcScheduler)),
+                        AdmissionControl.Permit::close)
+                .subscribeOn(xmlScheduler)
+                // разбивку времени по этапам отдаем клиенту только при включенной настройке
+                .map(serviceResponse -> controlResponses.ok(serviceResponse, serverTimingEnabled ? clock : null))
+                .onErrorResume(AdmissionRejectedException.class, e -> Mono.fromCallable(() ->
+                        controlResponses.rejected(serviceRequest.getMessageId(), e)))
+                .onErrorResume(RejectedExecutionException.class, e -> Mono.fromCallable(() ->
+                        controlResponses.rejected(serviceRequest.getMessageId(), new AdmissionRejectedException(
+                                "Превышено количество запросов в очереди на обработку, повторите запрос позже", 1))))
+                .onErrorResume(e -> Mono.just(ResponseEntity.ok(
+                        controlResponses.failed(serviceRequest.getMessageId(), e))));
+    }
+
+    // разбираем тело проверяемого запроса заранее, чтобы не занимать разбором поток работы с БД
+    private RequestContext prepareRequestContext(ServiceRequest serviceRequest, StageClock clock,
+                                                 Deadline deadline) {
+        RequestContext requestContext = new RequestContext();
+        requestContext.setDeadline(deadline);
+        if (deadline != null && deadline.isExpired()) {
+            return requestContext;
+        }
+
+        StageClock.attach(clock);
+        try {
+            requestPrefetch.parse(serviceRequest, requestContext);
+        } finally {
+            StageClock.detach();
+        }
+        return requestContext;
+    }
+
+    private ServiceResponse processServiceRequest(ServiceRequest serviceRequest, RequestContext requestContext,
+                                                  StageClock clock) throws JsonProcessingException {
+        StageClock.attach(clock);
+        ServiceResponse serviceResponse;
+        try {
+            serviceResponse = requestControlService.processServiceRequest(serviceRequest, requestContext);
+        } finally {
+            StageClock.stop();
+            stageMetrics.record(clock);
+            // сохраняем медленный запрос для последующего воспроизведения
+            slowRequestCapture.captureIfSlow(serviceRequest, clock, requestContext.getTemplate());
+        }
+
+        log.info("ServiceResponse: " + mapper.writer().writeValueAsString(serviceResponse));
+        return serviceResponse;
+    }
+}
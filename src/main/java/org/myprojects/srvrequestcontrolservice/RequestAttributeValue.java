@@ -0,0 +1,50 @@
+package org.myprojects.srvrequestcontrolservice;
+
+// значение клиентского атрибута, скопированное из дерева запроса
+// хранит только то, что нужно для сравнения и описания ошибки, поэтому дерево запроса после разбора не удерживается
+public final class RequestAttributeValue {
+
+    // нормализованное текстовое значение (для файлов - хеш, для персональных данных - md5)
+    private final String value;
+    // значение для сравнения (для чисел - каноническая десятичная форма)
+    private final String comparableValue;
+    private final boolean zero;
+    // нода содержит только текстовое значение
+    private final boolean textValue;
+    // значение динамической ноды (например, номер множественной секции) для динамического пути
+    private final String dynamicValue;
+
+    public RequestAttributeValue(String value, String comparableValue, boolean zero, boolean textValue,
+                                 String dynamicValue) {
+        this.value = value;
+        this.comparableValue = comparableValue;
+        this.zero = zero;
+        this.textValue = textValue;
+        this.dynamicValue = dynamicValue;
+    }
+
+    public String getValue() {
+        return value;
+    }
+
+    public String getComparableValue() {
+        return comparableValue;
+    }
+
+    // числовое значение, равное нулю
+    public boolean isZero() {
+        return zero;
+    }
+
+    public boolean isTextValue() {
+        return textValue;
+    }
+
+    public boolean isBlank() {
+        return value == null || value.isBlank();
+    }
+
+    public String getDynamicValue() {
+        return dynamicValue;
+    }
+}
@@ -0,0 +1,115 @@
+package org.myprojects.srvrequestcontrolservice;
+
+import org.myprojects.srvrequestcontrolservice.data.ControlTypeResult;
+import org.myprojects.srvrequestcontrolservice.utils.Deadline;
+import org.w3c.dom.Document;
+
+import java.util.List;
+import java.util.concurrent.Future;
+
+// данные, общие для проверки и обновления в рамках одного запроса к сервису:
+// дерево проверяемого запроса, значения его клиентских атрибутов и актуальный шаблон клиентских атрибутов
+// позволяют распарсить тело запроса и получить шаблон один раз
+public class RequestContext {
+
+    private XmlRequestTemplate template;
+    private String request;
+    private Document requestDocument;
+    // заранее запущенный разбор тела запроса (RequestPrefetch)
+    private String prefetchedRequest;
+    private Future<Document> prefetchedDocument;
+    // персональные данные в дереве запроса уже хешированы по шаблону template
+    private boolean personalDataHashed;
+    // тело запроса получено с уже хешированными персональными данными (сохраненный медленный запрос),
+    // персональные данные не хешируются повторно при любом разборе тела запроса
+    private boolean requestBodyHashed;
+    // значения клиентских атрибутов дерева запроса по шаблону template
+    private XmlRequestPaths attributeValues;
+    // срок обработки запроса, отсчитывается от получения запроса
+    private Deadline deadline;
+    // предупреждения проверок, возвращаются в ответе после обновлений
+    private List<ControlTypeResult> checkWarnings;
+
+    public XmlRequestTemplate getTemplate() {
+        return template;
+    }
+
+    public void setTemplate(XmlRequestTemplate template) {
+        this.template = template;
+    }
+
+    // возвращаем дерево, только если оно было получено из того же тела запроса
+    public Document getRequestDocument(String request) {
+        return requestDocument != null && request != null && request.equals(this.request) ? requestDocument : null;
+    }
+
+    public void setRequestDocument(String request, Document requestDocument) {
+        this.request = request;
+        this.requestDocument = requestDocument;
+        this.prefetchedRequest = null;
+        this.prefetchedDocument = null;
+        this.personalDataHashed = false;
+        this.attributeValues = null;
+    }
+
+    public void setPrefetchedDocument(String request, Future<Document> prefetchedDocument) {
+        this.prefetchedRequest = request;
+        this.prefetchedDocument = prefetchedDocument;
+    }
+
+    // обработка завершается без разбора тела запроса - заранее запущенный разбор отменяется,
+    // чтобы не занимать поток и очередь пула разбора
+    public void cancelPrefetchedDocument() {
+        if (prefetchedDocument != null) {
+            prefetchedDocument.cancel(true);
+            prefetchedRequest = null;
+            prefetchedDocument = null;
+        }
+    }
+
+    // возвращаем заранее запущенный разбор, только если он запущен для того же тела запроса
+    public Future<Document> getPrefetchedDocument(String request) {
+        return prefetchedDocument != null && request != null && request.equals(prefetchedRequest)
+                ? prefetchedDocument : null;
+    }
+
+    public boolean isPersonalDataHashed() {
+        return personalDataHashed;
+    }
+
+    public void setPersonalDataHashed(boolean personalDataHashed) {
+        this.personalDataHashed = personalDataHashed;
+    }
+
+    public boolean isRequestBodyHashed() {
+        return requestBodyHashed;
+    }
+
+    public void setRequestBodyHashed(boolean requestBodyHashed) {
+        this.requestBodyHashed = requestBodyHashed;
+    }
+
+    public XmlRequestPaths getAttributeValues() {
+        return attributeValues;
+    }
+
+    public void setAttributeValues(XmlRequestPaths attributeValues) {
+        this.attributeValues = attributeValues;
+    }
+
+    public Deadline getDeadline() {
+        return deadline;
+    }
+
+    public void setDeadline(Deadline deadline) {
+        this.deadline = deadline;
+    }
+
+    public List<ControlTypeResult> getCheckWarnings() {
+        return checkWarnings;
+    }
+
+    public void setCheckWarnings(List<ControlTypeResult> checkWarnings) {
+        this.checkWarnings = checkWarnings;
+    }
+}
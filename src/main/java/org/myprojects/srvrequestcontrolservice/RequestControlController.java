@@ -3,15 +3,22 @@ package org.myprojects.srvrequestcontrolservice;
 import com.fasterxml.jackson.core.JsonProcessingException;
 import com.fasterxml.jackson.databind.ObjectMapper;
 import lombok.extern.slf4j.Slf4j;
+import org.myprojects.srvrequestcontrolservice.capture.SlowRequestCapture;
 import org.myprojects.srvrequestcontrolservice.data.ControlTypeRequest;
 import org.myprojects.srvrequestcontrolservice.data.ServiceRequest;
 import org.myprojects.srvrequestcontrolservice.data.ServiceResponse;
+import org.myprojects.srvrequestcontrolservice.exceptions.AdmissionRejectedException;
 import org.myprojects.srvrequestcontrolservice.exceptions.RequestControlServiceException;
+import org.myprojects.srvrequestcontrolservice.metrics.StageClock;
+import org.myprojects.srvrequestcontrolservice.metrics.StageMetrics;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.http.MediaType;
+import org.springframework.http.ResponseEntity;
 import org.springframework.validation.annotation.Validated;
 import org.springframework.web.bind.annotation.PostMapping;
 import org.springframework.web.bind.annotation.RequestBody;
+import org.springframework.web.bind.annotation.RequestHeader;
 import org.springframework.web.bind.annotation.RequestMapping;
 import org.springframework.web.bind.annotation.RestController;
 
@@ -19,6 +26,8 @@ import javax.validation.Valid;
 import java.time.LocalDateTime;
 import java.time.ZoneId;
 import java.time.ZonedDateTime;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
 
 @Slf4j
 @RestController
@@ -29,23 +38,85 @@ public class RequestControlController {
     @Autowired
     private RequestControlService requestControlService;
 
+    @Autowired
+    private StageMetrics stageMetrics;
+
+    @Autowired
+    private SlowRequestCapture slowRequestCapture;
+
+    @Autowired
+    private AdmissionControl admissionControl;
+
+    @Autowired
+    private RequestExecutor requestExecutor;
+
+    @Autowired
+    private ControlResponses controlResponses;
+
+    @Value("${service.server-timing.enabled:false}")
+    boolean serverTimingEnabled;
+    // сколько миллисекунд вызывающая сторона готова ждать ответа
+    static final String REQUEST_TIMEOUT_HEADER = "X-Request-Timeout-Ms";
+    // приоритет запроса: interactive или bulk (RequestExecutor.Priority)
+    static final String REQUEST_PRIORITY_HEADER = "X-Request-Priority";
+
     private final ObjectMapper mapper = new ObjectMapper();
 
+    // запрос передается в пул обработки (RequestExecutor), поток Tomcat освобождается сразу после приема запроса
     @PostMapping(value ="/control", consumes = MediaType.APPLICATION_JSON_VALUE,
             produces = MediaType.APPLICATION_JSON_VALUE)
-    public ServiceResponse process(@RequestBody @Valid ServiceRequest serviceRequest) throws JsonProcessingException {
-        ServiceResponse serviceResponse;
+    public CompletableFuture<ResponseEntity<ServiceResponse>> process(
+            @RequestBody @Valid ServiceRequest serviceRequest,
+            @RequestHeader(value = REQUEST_TIMEOUT_HEADER, required = false) Long requestTimeout,
+            @RequestHeader(value = REQUEST_PRIORITY_HEADER, required = false) String requestPriority) {
+        // срок обработки отсчитывается от получения запроса, включая ожидание в пуле и AdmissionControl
+        RequestContext requestContext = new RequestContext();
+        requestContext.setDeadline(requestControlService.newDeadline(serviceRequest, requestTimeout));
+
+        // интерактивные запросы обрабатываются раньше пакетной досинхронизации
+        RequestExecutor.Priority priority = requestExecutor.getPriority(serviceRequest, requestPriority);
+        return requestExecutor.submit(priority, () -> processServiceRequest(serviceRequest, requestContext, priority))
+                .exceptionally(e -> errorResponse(serviceRequest, e));
+    }
+
+    private ResponseEntity<ServiceResponse> processServiceRequest(ServiceRequest serviceRequest,
+                                                                  RequestContext requestContext,
+                                                                  RequestExecutor.Priority priority)
+            throws JsonProcessingException {
+        // при перегрузке сразу отклоняем запрос, не дожидаясь свободного соединения с БД
+        AdmissionControl.Permit permit;
         try {
-            serviceResponse = requestControlService.processServiceRequest(serviceRequest);
+            permit = admissionControl.acquire(serviceRequest, priority);
+        } catch (AdmissionRejectedException e) {
+            return controlResponses.rejected(serviceRequest.getMessageId(), e);
+        }
+
+        ServiceResponse serviceResponse;
+        // засекаем время этапов обработки запроса
+        StageClock clock = StageClock.start();
+        try (permit) {
+            serviceResponse = requestControlService.processServiceRequest(serviceRequest, requestContext);
         } catch (Exception e) {
-            serviceResponse = new ServiceResponse(ServiceResponse.Status.FAILED,
-                   String.format("Запрос с messageId %s не был обработан.%n%s",
-                            serviceRequest.getMessageId(),
-                           e.getMessage() == null ? "" : e.getMessage()));
+            serviceResponse = controlResponses.failed(serviceRequest.getMessageId(), e);
+        } finally {
+            StageClock.stop();
+            stageMetrics.record(clock);
+            // сохраняем медленный запрос для последующего воспроизведения
+            slowRequestCapture.captureIfSlow(serviceRequest, clock, requestContext.getTemplate());
         }
 
         log.info("ServiceResponse: " + mapper.writer().writeValueAsString(serviceResponse));
-        return serviceResponse;
+        // разбивку времени по этапам отдаем клиенту только при включенной настройке
+        return controlResponses.ok(serviceResponse, serverTimingEnabled ? clock : null);
+    }
+
+    // очередь пула обработки переполнена - запрос отклоняется, иначе возвращаем ошибку обработки
+    private ResponseEntity<ServiceResponse> errorResponse(ServiceRequest serviceRequest, Throwable e) {
+        Throwable cause = e instanceof CompletionException && e.getCause() != null ? e.getCause() : e;
+        if (cause instanceof AdmissionRejectedException) {
+            return controlResponses.rejected(serviceRequest.getMessageId(), (AdmissionRejectedException) cause);
+        }
+        return ResponseEntity.ok(controlResponses.failed(serviceRequest.getMessageId(), cause));
     }
 
     @PostMapping(value ="/clientAttributes/template/save", consumes = MediaType.APPLICATION_JSON_VALUE,
@@ -6,7 +6,10 @@ import lombok.extern.slf4j.Slf4j;
 import org.apache.commons.lang3.StringUtils;
 import org.myprojects.srvrequestcontrolservice.data.*;
 import org.myprojects.srvrequestcontrolservice.exceptions.DatabaseException;
+import org.myprojects.srvrequestcontrolservice.exceptions.DeadlineExceededException;
 import org.myprojects.srvrequestcontrolservice.exceptions.RequestControlServiceException;
+import org.myprojects.srvrequestcontrolservice.metrics.StageClock;
+import org.myprojects.srvrequestcontrolservice.utils.Deadline;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.beans.factory.annotation.Value;
 import org.springframework.scheduling.annotation.EnableScheduling;
@@ -41,6 +44,22 @@ public class RequestControlService {
     @Value("${service.check.request_version.enabled}")
     boolean requestVersionCheckEnabled;
 
+    @Value("${service.deadline.enabled:true}")
+    boolean deadlineEnabled;
+
+    // срок обработки по умолчанию для каждого типа операторов, для запроса берется наибольший
+    @Value("${service.deadline.timeout-ms.request:5000}")
+    long requestTimeout;
+
+    @Value("${service.deadline.timeout-ms.control-identifiers:2000}")
+    long controlIdentifiersTimeout;
+
+    @Value("${service.deadline.timeout-ms.request-version:2000}")
+    long requestVersionTimeout;
+
+    @Value("${service.deadline.timeout-ms.client-attributes:10000}")
+    long clientAttributesTimeout;
+
     @Autowired
     private DataSource dataSource;
 
@@ -51,24 +70,159 @@ public class RequestControlService {
     @Autowired
     private ClientAttributesServiceOperator clientAttributesServiceOperator;
 
+    @Autowired
+    private RequestLockManager requestLockManager;
+
+    @Autowired
+    private RequestPrefetch requestPrefetch;
+
     private final ObjectMapper logMapper = new ObjectMapper();
 
     public ServiceResponse processServiceRequest(ServiceRequest serviceRequest) throws JsonProcessingException {
+        return processServiceRequest(serviceRequest, new RequestContext());
+    }
+
+    // requestContext может содержать заранее подготовленные данные запроса (например, дерево тела запроса)
+    // и срок обработки, если он не задан, срок отсчитывается от текущего момента по типам операторов запроса
+    public ServiceResponse processServiceRequest(ServiceRequest serviceRequest, RequestContext requestContext)
+            throws JsonProcessingException {
+        Deadline deadline = requestContext.getDeadline() != null ? requestContext.getDeadline()
+                : newDeadline(serviceRequest, null);
+        // срок привязывается к потоку обработки, чтобы запросы к БД выполнялись с таймаутом по оставшемуся времени
+        Deadline.attach(deadline);
+        try {
+            ServiceResponse serviceResponse;
+            try {
+                serviceResponse = processServiceRequestWithinDeadline(serviceRequest, requestContext);
+            } catch (DeadlineExceededException e) {
+                serviceResponse = new ServiceResponse(FAILED, e.getMessage());
+            }
+            return applyDeadline(serviceRequest, deadline, serviceResponse);
+        } finally {
+            Deadline.detach();
+        }
+    }
+
+    // после истечения срока оставшиеся операторы пропускаются, и ошибка, вызванная их пропуском,
+    // возвращается с указанием причины - истечения срока обработки
+    // результат проверок, завершившихся без пропуска операторов (в том числе уже после истечения срока), не заменяется
+    ServiceResponse applyDeadline(ServiceRequest serviceRequest, Deadline deadline,
+                                  ServiceResponse serviceResponse) {
+        if (deadline != null && deadline.isExceeded()
+                && serviceResponse.getStatus() != OK && serviceResponse.getStatus() != OKWithWarnings) {
+            log.warn(String.format("Истек срок обработки запроса с messageId %s: %s",
+                    serviceRequest.getMessageId(), serviceResponse.getErrorDescription()));
+            return new ServiceResponse(FAILED, String.format(
+                    "Запрос с messageId %s не был обработан. %nИстек срок обработки запроса (%d мс)",
+                    serviceRequest.getMessageId(), deadline.getTimeoutMillis()));
+        }
+        return serviceResponse;
+    }
+
+    // срок обработки запроса: из заголовка запроса или по умолчанию по типам операторов запроса
+    public Deadline newDeadline(ServiceRequest serviceRequest, Long requestTimeoutMillis) {
+        return newDeadline(serviceRequest, requestTimeoutMillis, System.nanoTime());
+    }
+
+    // receivedAt - момент получения запроса (System.nanoTime()), если запрос разбирается не сразу
+    public Deadline newDeadline(ServiceRequest serviceRequest, Long requestTimeoutMillis, long receivedAt) {
+        if (!deadlineEnabled) {
+            return null;
+        }
+        if (requestTimeoutMillis != null && requestTimeoutMillis > 0) {
+            return Deadline.since(receivedAt, requestTimeoutMillis);
+        }
+
+        long timeout = requestTimeout;
+        if (serviceRequest.getOperators() != null && serviceRequest.getOperators().getControlOperations() != null) {
+            for (Operators.ControlType controlType : serviceRequest.getOperators().getControlOperations().keySet()) {
+                timeout = Math.max(timeout, getDefaultTimeout(controlType));
+            }
+        }
+        return Deadline.since(receivedAt, timeout);
+    }
+
+    private long getDefaultTimeout(Operators.ControlType controlType) {
+        switch (controlType) {
+            case CONTROL_IDENTIFIERS:
+                return controlIdentifiersTimeout;
+            case REQUEST_VERSION:
+                return requestVersionTimeout;
+            case CLIENT_ATTRIBUTES:
+                return clientAttributesTimeout;
+            default:
+                return requestTimeout;
+        }
+    }
+
+    private ServiceResponse processServiceRequestWithinDeadline(ServiceRequest serviceRequest,
+                                                                RequestContext requestContext)
+            throws JsonProcessingException {
 
         log.info("Получен новый serviceRequest" + logMapper.writer().writeValueAsString(serviceRequest));
 
-        // валидируем поступившие данные
+        // если один из операторов не прошел валидацию, возвращаем ошибку
+        ServiceResponse validationError = validate(serviceRequest);
+        if (validationError != null) {
+            return validationError;
+        }
+
+        RequestLockManager.Lease lease;
+        try {
+            lease = acquireLease(serviceRequest);
+        } catch (RequestControlServiceException e) {
+            return new ServiceResponse(FAILED, String.format(
+                    "Запрос с messageId %s не был обработан. %n%s", serviceRequest.getMessageId(),
+                    e.getMessage() == null ? "" : e.getMessage()));
+        }
+        try (lease) {
+            // если проверки не завершили обработку запроса, выполняем обновления
+            ServiceResponse checkResponse = processChecks(serviceRequest, requestContext);
+            return checkResponse != null ? checkResponse : processUpdates(serviceRequest, requestContext, lease);
+        }
+    }
+
+    // валидируем поступившие данные, возвращаем ответ с ошибкой валидации или null
+    ServiceResponse validate(ServiceRequest serviceRequest) {
         List<ControlTypeResult> validateResults = validateServiceRequest(serviceRequest);
 
         // проверяем есть ли ошибки валидации
         boolean validateResultsHasError = validateResults.stream()
                 .anyMatch(r -> r.getStatus() != OK && r.getStatus() != OKWithWarnings);
 
-        // если один из операторов не прошел валидацию, возвращаем ошибку
-        if (validateResultsHasError) {
-            return joinResults(validateResults);
+        return validateResultsHasError ? joinResults(validateResults) : null;
+    }
+
+    // запросы с одинаковым бизнес-ключом (поток, филиал, идентификатор обращения) обрабатываются последовательно,
+    // чтобы параллельные обращения не перезаписывали данные друг друга в request_identifiers,
+    // request_cache и client_attrs_requests
+    RequestLockManager.Lease acquireLease(ServiceRequest serviceRequest) throws RequestControlServiceException {
+        return requestLockManager.acquire(RequestLockManager.getRequestKey(serviceRequest));
+    }
+
+    // операции уровня запроса и проверки, выполняются под блокировкой ключа запроса
+    // возвращает ответ, если обработка запроса на этом завершена, или null, если нужно выполнить обновления
+    // (предупреждения проверок сохраняются в requestContext для ответа после обновлений)
+    ServiceResponse processChecks(ServiceRequest serviceRequest, RequestContext requestContext) {
+        Deadline.checkCurrent("ожидание обработки параллельного запроса");
+        // разбор тела запроса идет параллельно с запросами к БД операций и проверок
+        requestPrefetch.prefetch(serviceRequest, requestContext);
+
+        ServiceResponse checkResponse = null;
+        boolean completed = false;
+        try {
+            checkResponse = runChecks(serviceRequest, requestContext);
+            completed = true;
+        } finally {
+            // обработка завершается без обновлений (ошибка проверки, истек срок) - тело запроса больше не разбирается
+            if (!completed || checkResponse != null) {
+                requestContext.cancelPrefetchedDocument();
+            }
         }
+        return checkResponse;
+    }
 
+    private ServiceResponse runChecks(ServiceRequest serviceRequest, RequestContext requestContext) {
         // проверяем операторы уровня REQUEST (если есть)
         // (используется для обращений из Филиала, для подтверждения после получения ответа Мастер-системы проверок)
         if (serviceRequest.getOperators().contains(REQUEST)) {
@@ -81,8 +235,10 @@ public class RequestControlService {
             }
         }
 
+        Deadline.checkCurrent("операции уровня запроса");
+        // тело запроса и шаблон, полученные при проверке, переиспользуются при обновлении
         // проверяем, если ли задачи на проверку данных
-        List<ControlTypeResult> checkResults = doChecks(serviceRequest);
+        List<ControlTypeResult> checkResults = doChecks(serviceRequest, requestContext);
         boolean checkResultsHasError = checkResults.stream()
                 .anyMatch(r -> r.getStatus() != OK && r.getStatus() != OKWithWarnings);
         // если проверки выполнились с ошибкой, возвращаем ошибку
@@ -91,14 +247,37 @@ public class RequestControlService {
         }
 
         // отфильтровываем предупреждения для последующей отправки в ответе
-        List<ControlTypeResult> checkWarnings = checkResults.stream()
+        requestContext.setCheckWarnings(checkResults.stream()
                 .filter(r -> r.getStatus() == OKWithWarnings)
-                .collect(Collectors.toList());
+                .collect(Collectors.toList()));
+        return null;
+    }
+
+    // обновления выполняются, только если блокировка ключа запроса не потеряна вместе с соединением advisory-блокировки
+    ServiceResponse processUpdates(ServiceRequest serviceRequest, RequestContext requestContext,
+                                   RequestLockManager.Lease lease) {
+        try {
+            lease.checkHeld();
+        } catch (RequestControlServiceException e) {
+            requestContext.cancelPrefetchedDocument();
+            return new ServiceResponse(FAILED, String.format(
+                    "Запрос с messageId %s не был обработан. %n%s", serviceRequest.getMessageId(),
+                    e.getMessage() == null ? "" : e.getMessage()));
+        }
+
+        return processUpdates(serviceRequest, requestContext);
+    }
+
+    // обновления после успешных проверок, выполняются под блокировкой ключа запроса
+    ServiceResponse processUpdates(ServiceRequest serviceRequest, RequestContext requestContext) {
+        List<ControlTypeResult> checkWarnings = requestContext.getCheckWarnings() == null
+                ? new ArrayList<>() : requestContext.getCheckWarnings();
 
         // выполняем задачи на обновление данных
         List<ControlTypeResult> updateResults;
+        Deadline.checkCurrent("проверки");
         try {
-            updateResults = doUpdates(serviceRequest);
+            updateResults = doUpdates(serviceRequest, requestContext);
         } catch (Exception e) {
             e.printStackTrace();
             return new ServiceResponse(FAILED, String.format("Запрос не был обработан. %n%s",
@@ -280,7 +459,7 @@ public class RequestControlService {
     @Transactional
     public void cacheCurrentValues(ServiceRequest currentValues, Connection conn)
             throws DatabaseException {
-        String sql = "INSERT INTO request_cache (messageId, flow, filial, request_version, id_integration, id_master_system, id_filial, filial_id, id_main_check_system, request_type_id) VALUES(?,?,?,?,?,?,?,?,?,?)";
+        String sql = "INSERT INTO request_cache (message_id, flow, filial, request_version, id_integration, id_master_system, id_filial, filial_id, id_main_check_system, request_type_id) VALUES(?,?,?,?,?,?,?,?,?,?)";
         try (PreparedStatement preparedStatement = conn.prepareStatement(sql)) {
             preparedStatement.setString(1, currentValues.getMessageId());
             preparedStatement.setString(2, currentValues.getDataFlowType().name());
@@ -330,7 +509,7 @@ public class RequestControlService {
             if (rs.next()) {
                 messageId = rs.getString(1);
                 requestVersion = rs.getInt(2);
-                identifiers = RequestControlService.getIdentifiersFromResultSet(3, rs);
+                identifiers = RequestControlService.getIdentifiersFromCurrentRow(3, rs);
             }
 
             if (messageId != null) {
@@ -356,7 +535,7 @@ public class RequestControlService {
 
     @Transactional
     public void clearCachedData(ServiceRequest serviceRequest, Connection conn) {
-        String sql = "DELETE FROM request_cache WHERE messageId=?";
+        String sql = "DELETE FROM request_cache WHERE message_id=?";
         try (PreparedStatement preparedStatement = conn.prepareStatement(sql)) {
             preparedStatement.setString(1, serviceRequest.getMessageId());
 
@@ -458,11 +637,17 @@ public class RequestControlService {
     }
 
     public List<ControlTypeResult> doUpdates(ServiceRequest serviceRequest) throws DatabaseException {
+        return doUpdates(serviceRequest, new RequestContext());
+    }
+
+    public List<ControlTypeResult> doUpdates(ServiceRequest serviceRequest, RequestContext requestContext)
+            throws DatabaseException {
         // отфильтровываем задачи на обновление
         List<Operators.ControlType> controlTypes = getUpdateControlTypes(serviceRequest.getOperators());
 
-        try (Connection conn = dataSource.getConnection()) {
-            return getUpdateResults(controlTypes, serviceRequest, conn);
+        try (Connection conn = dataSource.getConnection();
+             StageClock.Span ignored = StageClock.current().enter(StageClock.Stage.UPDATE)) {
+            return getUpdateResults(controlTypes, serviceRequest, requestContext, conn);
         } catch (SQLException e) {
             e.printStackTrace();
             throw new DatabaseException(String.format(
@@ -474,6 +659,7 @@ public class RequestControlService {
 
     private List<ControlTypeResult> getUpdateResults(List<Operators.ControlType> controlTypes,
                                                      ServiceRequest serviceRequest,
+                                                     RequestContext requestContext,
                                                      Connection conn)
             throws DatabaseException {
 
@@ -494,9 +680,10 @@ public class RequestControlService {
 
             // сохраняем для отдельных операторов
             for (Operators.ControlType controlType : controlTypes) {
+                Deadline.checkCurrent("обновление " + controlType.name());
                 // генерируем запрос под конкретную задачу
                 ControlTypeRequest controlTypeRequest = generateControlTypeRequest(controlType,
-                        serviceRequest);
+                        serviceRequest, requestContext);
                 if (controlTypeRequest == null) {
                     throw new RequestControlServiceException(String.format(
                             "Затребована неизвестная операция %s.", controlType.name()));
@@ -528,13 +715,14 @@ public class RequestControlService {
         return updateResults;
     }
 
-    private List<ControlTypeResult> doChecks(ServiceRequest serviceRequest) {
+    private List<ControlTypeResult> doChecks(ServiceRequest serviceRequest, RequestContext requestContext) {
         // отфильтровываем задачи на проверку
         // сортируем их по приоритетности
         List<Operators.ControlType> controlTypes = getCheckControlTypes(serviceRequest.getOperators());
 
-        try (Connection conn = dataSource.getConnection()) {
-            return getCheckResults(controlTypes, serviceRequest, conn);
+        try (Connection conn = dataSource.getConnection();
+             StageClock.Span ignored = StageClock.current().enter(StageClock.Stage.COMPARE)) {
+            return getCheckResults(controlTypes, serviceRequest, requestContext, conn);
         } catch (SQLException e) {
             e.printStackTrace();
             throw new DatabaseException(String.format(
@@ -546,6 +734,7 @@ public class RequestControlService {
 
     private List<ControlTypeResult> getCheckResults(List<Operators.ControlType> controlTypes,
                                                     ServiceRequest serviceRequest,
+                                                    RequestContext requestContext,
                                                     Connection conn) {
         List<ControlTypeResult> checkResults = new ArrayList<>();
         try {
@@ -566,9 +755,11 @@ public class RequestControlService {
             }
 
             for (Operators.ControlType controlType : controlTypes) {
+                Deadline.checkCurrent("проверка " + controlType.name());
                 ControlTypeResult result;
                 // генерируем запрос для конкретной проверки
-                ControlTypeRequest controlTypeRequest = generateControlTypeRequest(controlType, serviceRequest);
+                ControlTypeRequest controlTypeRequest = generateControlTypeRequest(controlType, serviceRequest,
+                        requestContext);
                 if (controlTypeRequest == null) {
                     throw new IllegalArgumentException(String.format(
                             "Затребована неизвестная операция %s.", controlType.name()));
@@ -695,6 +886,12 @@ public class RequestControlService {
 
     private ControlTypeRequest generateControlTypeRequest(Operators.ControlType controlType,
                                                           ServiceRequest serviceRequest) {
+        return generateControlTypeRequest(controlType, serviceRequest, null);
+    }
+
+    private ControlTypeRequest generateControlTypeRequest(Operators.ControlType controlType,
+                                                          ServiceRequest serviceRequest,
+                                                          RequestContext requestContext) {
         ControlTypeRequest controlTypeRequest;
         switch (controlType) {
             case REQUEST:
@@ -728,6 +925,7 @@ public class RequestControlService {
                         .setRequestIdentifiers(new IdList(List.of(
                                 serviceRequest.getIdList().get(RequestIdentifier.Id.ID_MASTER_SYSTEM))))
                         .setRequest(serviceRequest.getCheckRequestBody())
+                        .setRequestContext(requestContext)
                         .build();
                 break;
             default:
@@ -852,7 +1050,7 @@ public class RequestControlService {
 
     @Transactional
     public void insertIdentifiersAndRequestVersionToDB(ControlTypeRequest controlTypeRequest, Connection conn) throws DatabaseException {
-        String sql = "INSERT INTO request_identifiers (flow, filial, request_version, id_integration, id_master_system, id_filial, filial_id, id_main, request_type_id) VALUES(?,?,?,?,?,?,?,?,?)";
+        String sql = "INSERT INTO request_identifiers (flow, filial, request_version, id_integration, id_master_system, id_filial, filial_id, id_main_check_system, request_type_id) VALUES(?,?,?,?,?,?,?,?,?)";
         try (PreparedStatement preparedStatement = conn.prepareStatement(sql)) {
             preparedStatement.setString(1, controlTypeRequest.getFlowType().name());
             preparedStatement.setString(2, controlTypeRequest.getSegment());
@@ -978,7 +1176,7 @@ public class RequestControlService {
                     RequestIdentifier.Id.ID_INTEGRATION) != null
                     && !StringUtils.isBlank(controlTypeRequest.getRequestIdentifiers().
                     get(RequestIdentifier.Id.ID_INTEGRATION).getIdValue())) {
-                sql = "SELECT id_integration, id_master_system, id_filial, id_main, filial_id, request_type_id  FROM request_identifiers WHERE flow=? AND filial=? AND id_master_system=? AND id_integration=?";
+                sql = "SELECT id_integration, id_master_system, id_filial, id_main_check_system, filial_id, request_type_id  FROM request_identifiers WHERE flow=? AND filial=? AND id_master_system=? AND id_integration=?";
                 preparedStatement = conn.prepareStatement(sql);
                 RequestControlService.setPreparedStatementStringParams(
                         preparedStatement,
@@ -999,7 +1197,7 @@ public class RequestControlService {
                     RequestIdentifier.Id.ID_INTEGRATION) != null
                     && !StringUtils.isBlank(controlTypeRequest.getRequestIdentifiers().
                     get(RequestIdentifier.Id.ID_INTEGRATION).getIdValue())) {
-                sql = "SELECT id_integration, id_master_system, id_filial, id_main, filial_id, request_type_id FROM request_identifiers WHERE flow=? AND filial=? AND id_filial=? AND id_integration=?";
+                sql = "SELECT id_integration, id_master_system, id_filial, id_main_check_system, filial_id, request_type_id FROM request_identifiers WHERE flow=? AND filial=? AND id_filial=? AND id_integration=?";
                 preparedStatement = conn.prepareStatement(sql);
                 RequestControlService.setPreparedStatementStringParams(preparedStatement,
                         controlTypeRequest.getFlowType().name(),
@@ -1029,16 +1227,23 @@ public class RequestControlService {
     }
 
     public static List<RequestIdentifier> getIdentifiersFromResultSet(int index, ResultSet rs) throws SQLException {
-        List<RequestIdentifier> identifiers = new ArrayList<>();
         if (rs.next()) {
-            identifiers.add(new RequestIdentifier(RequestIdentifier.Id.ID_INTEGRATION, rs.getString(index++)));
-            identifiers.add(new RequestIdentifier(RequestIdentifier.Id.ID_MASTER_SYSTEM, rs.getString(index++)));
-            identifiers.add(new RequestIdentifier(RequestIdentifier.Id.ID_FILIAL, rs.getString(index++)));
-            identifiers.add(new RequestIdentifier(RequestIdentifier.Id.ID_MAIN_CHECK_SYSTEM, rs.getString(index++)));
-            identifiers.add(new RequestIdentifier(RequestIdentifier.Id.FILIAL_ID, rs.getString(index++)));
-            identifiers.add(new RequestIdentifier(RequestIdentifier.Id.REQUEST_TYPE_ID, rs.getString(index++)));
+            return getIdentifiersFromCurrentRow(index, rs);
         }
 
+        return new ArrayList<>();
+    }
+
+    // читает идентификаторы из текущей строки, не сдвигая курсор
+    public static List<RequestIdentifier> getIdentifiersFromCurrentRow(int index, ResultSet rs) throws SQLException {
+        List<RequestIdentifier> identifiers = new ArrayList<>();
+        identifiers.add(new RequestIdentifier(RequestIdentifier.Id.ID_INTEGRATION, rs.getString(index++)));
+        identifiers.add(new RequestIdentifier(RequestIdentifier.Id.ID_MASTER_SYSTEM, rs.getString(index++)));
+        identifiers.add(new RequestIdentifier(RequestIdentifier.Id.ID_FILIAL, rs.getString(index++)));
+        identifiers.add(new RequestIdentifier(RequestIdentifier.Id.ID_MAIN_CHECK_SYSTEM, rs.getString(index++)));
+        identifiers.add(new RequestIdentifier(RequestIdentifier.Id.FILIAL_ID, rs.getString(index++)));
+        identifiers.add(new RequestIdentifier(RequestIdentifier.Id.REQUEST_TYPE_ID, rs.getString(index++)));
+
         return identifiers;
     }
 }
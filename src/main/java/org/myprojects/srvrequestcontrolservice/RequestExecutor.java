@@ -0,0 +1,181 @@
+package org.myprojects.srvrequestcontrolservice;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Tags;
+import io.micrometer.core.instrument.Timer;
+import io.micrometer.core.instrument.binder.jvm.ExecutorServiceMetrics;
+import lombok.extern.slf4j.Slf4j;
+import org.myprojects.srvrequestcontrolservice.data.Operators;
+import org.myprojects.srvrequestcontrolservice.data.ServiceRequest;
+import org.myprojects.srvrequestcontrolservice.exceptions.AdmissionRejectedException;
+import org.myprojects.srvrequestcontrolservice.utils.VirtualThreads;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.scheduling.concurrent.CustomizableThreadFactory;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.util.EnumMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+// пул обработки запросов /requestControl/control
+// поток Tomcat только принимает запрос и передает его в пул, поэтому медленный разбор XML и ожидание БД
+// не занимают потоки, обслуживающие health и prometheus, а размер пула настраивается независимо от Tomcat
+// очередь пула ограничена: при переполнении запрос сразу отклоняется (AdmissionRejectedException)
+// интерактивные запросы (правки Филиала, подтверждение и восстановление из кеша) и пакетные
+// (досинхронизация Мастер-системы) ждут в отдельных очередях, интерактивные выбираются чаще (PriorityTaskQueue)
+// приоритет задается заголовком X-Request-Priority или определяется по операции уровня запроса
+// метрики: executor.* (name=request.control), по приоритетам: request.control.executor.queue (глубина очереди),
+// request.control.executor.wait (ожидание в очереди), request.control.executor.rejected
+// при service.virtual-threads.enabled (Java 21+) потоки пула виртуальные: очередь и приоритеты сохраняются,
+// а ожидание БД не занимает потоки платформы
+// при service.executor.enabled=false запрос обрабатывается в потоке Tomcat
+@Slf4j
+@Component
+public class RequestExecutor {
+
+    private static final String NAME = "request.control";
+
+    @Autowired
+    private MeterRegistry meterRegistry;
+
+    @Value("${service.executor.enabled:true}")
+    boolean enabled;
+
+    @Value("${service.virtual-threads.enabled:false}")
+    boolean virtualThreads;
+
+    @Value("${service.executor.threads:${spring.datasource.hikari.maximum-pool-size:10}}")
+    int threads;
+
+    @Value("${service.executor.queue:200}")
+    int queueSize;
+
+    @Value("${service.executor.priority.interactive-queue:200}")
+    int interactiveQueueSize;
+
+    // сколько интерактивных запросов выбирается из очереди на один пакетный, если ждут оба
+    @Value("${service.executor.priority.interactive-weight:4}")
+    int interactiveWeight;
+
+    // приоритет запросов без заголовка и без интерактивной операции уровня запроса
+    @Value("${service.executor.priority.default:BULK}")
+    Priority defaultPriority;
+
+    public enum Priority {
+        INTERACTIVE,
+        BULK
+    }
+
+    private ThreadPoolExecutor executor;
+    private PriorityTaskQueue queue;
+    private final Map<Priority, Timer> waitTimers = new EnumMap<>(Priority.class);
+    private final Map<Priority, Counter> rejectedCounters = new EnumMap<>(Priority.class);
+
+    @PostConstruct
+    public void init() {
+        if (!enabled) {
+            return;
+        }
+        ThreadFactory threadFactory;
+        if (virtualThreads && VirtualThreads.isSupported()) {
+            threadFactory = VirtualThreads.newThreadFactory("request-control-virtual-");
+        } else {
+            CustomizableThreadFactory platformThreadFactory = new CustomizableThreadFactory("request-control-");
+            platformThreadFactory.setDaemon(true);
+            threadFactory = platformThreadFactory;
+        }
+        queue = new PriorityTaskQueue(interactiveQueueSize, queueSize, interactiveWeight);
+        executor = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS, queue, threadFactory);
+        executor.allowCoreThreadTimeOut(true);
+
+        new ExecutorServiceMetrics(executor, NAME, Tags.empty()).bindTo(meterRegistry);
+        for (Priority priority : Priority.values()) {
+            String tag = priority.name().toLowerCase(Locale.ROOT);
+            Gauge.builder("request.control.executor.queue", queue, q -> q.size(priority))
+                    .tag("priority", tag)
+                    .register(meterRegistry);
+            waitTimers.put(priority, Timer.builder("request.control.executor.wait")
+                    .tag("priority", tag)
+                    .register(meterRegistry));
+            rejectedCounters.put(priority, Counter.builder("request.control.executor.rejected")
+                    .tag("priority", tag)
+                    .register(meterRegistry));
+        }
+        log.info("Пул обработки запросов: потоков {}{}, очередь интерактивных запросов {}, пакетных {}",
+                threads, threadFactory instanceof CustomizableThreadFactory ? "" : " (виртуальные)",
+                interactiveQueueSize, queueSize);
+    }
+
+    @PreDestroy
+    public void destroy() {
+        if (executor != null) {
+            executor.shutdownNow();
+        }
+    }
+
+    // приоритет из заголовка запроса (interactive, bulk), иначе по операции уровня запроса:
+    // подтверждение запроса и восстановление из кеша ждет пользователь
+    public Priority getPriority(ServiceRequest serviceRequest, String priorityHeader) {
+        if (priorityHeader != null && !priorityHeader.isBlank()) {
+            try {
+                return Priority.valueOf(priorityHeader.trim().toUpperCase(Locale.ROOT));
+            } catch (IllegalArgumentException e) {
+                log.warn("Неизвестный приоритет запроса {}", priorityHeader);
+            }
+        }
+        Operators.Operation requestOperation = serviceRequest.getOperators()
+                .getCheckOperation(Operators.ControlType.REQUEST);
+        if (requestOperation == Operators.Operation.CONFIRM_REQUEST
+                || requestOperation == Operators.Operation.RESTORE_FROM_CACHE) {
+            return Priority.INTERACTIVE;
+        }
+
+        return defaultPriority;
+    }
+
+    public <T> CompletableFuture<T> submit(Callable<T> task) {
+        return submit(defaultPriority, task);
+    }
+
+    // результат завершается в потоке пула, при переполнении очереди - исключением AdmissionRejectedException
+    public <T> CompletableFuture<T> submit(Priority priority, Callable<T> task) {
+        CompletableFuture<T> result = new CompletableFuture<>();
+        if (executor == null) {
+            complete(result, task);
+            return result;
+        }
+
+        long submittedAt = System.nanoTime();
+        try {
+            executor.execute(new PriorityTaskQueue.Task(priority, () -> {
+                waitTimers.get(priority).record(System.nanoTime() - submittedAt, TimeUnit.NANOSECONDS);
+                complete(result, task);
+            }));
+        } catch (RejectedExecutionException e) {
+            rejectedCounters.get(priority).increment();
+            result.completeExceptionally(new AdmissionRejectedException(
+                    "Превышено количество запросов в очереди на обработку, повторите запрос позже", 1));
+        }
+
+        return result;
+    }
+
+    private static <T> void complete(CompletableFuture<T> result, Callable<T> task) {
+        try {
+            result.complete(task.call());
+        } catch (Exception e) {
+            result.completeExceptionally(e);
+        }
+    }
+}
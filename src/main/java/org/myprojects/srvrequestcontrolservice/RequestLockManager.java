@@ -0,0 +1,360 @@
+package org.myprojects.srvrequestcontrolservice;
+
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import lombok.extern.slf4j.Slf4j;
+import org.myprojects.srvrequestcontrolservice.data.IdList;
+import org.myprojects.srvrequestcontrolservice.data.RequestIdentifier;
+import org.myprojects.srvrequestcontrolservice.data.ServiceRequest;
+import org.myprojects.srvrequestcontrolservice.exceptions.RequestControlServiceException;
+import org.myprojects.srvrequestcontrolservice.utils.Deadline;
+import com.zaxxer.hikari.HikariConfig;
+import com.zaxxer.hikari.HikariDataSource;
+import org.postgresql.PGConnection;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.ReentrantLock;
+
+// блокировки запросов по бизнес-ключу (поток, филиал, идентификатор обращения)
+// запросы с одинаковым ключом выполняются последовательно, с разными ключами - параллельно
+// ключ отображается на одну из service.request-lock.stripes блокировок, поэтому разные ключи изредка ожидают друг друга
+// ожидание ограничено service.request-lock.wait-timeout-ms, время ожидания публикуется в метрику request.control.lock.wait
+// блокировка не привязана к потоку: при поэтапной обработке (StagedRequestEngine) она снимается в потоке другого этапа
+// в режиме advisory блокировка дополнительно берется в PostgreSQL (pg_advisory_lock), что сериализует запросы
+// с одинаковым ключом на нескольких узлах сервиса
+// каждая advisory-блокировка держится на собственном соединении отдельного пула advisory-блокировок
+// (service.request-lock.advisory-pool-size): запрос, держащий блокировку, не занимает соединение основного пула,
+// запросы с разными ключами не ждут друг друга на общей сессии, а потеря соединения снимает только блокировку
+// своего запроса - такой Lease считается потерянным (checkHeld), обновления по нему не выполняются
+@Slf4j
+@Component
+public class RequestLockManager {
+
+    // пространство ключей advisory-блокировок сервиса (первый аргумент pg_advisory_lock(int, int))
+    static final int ADVISORY_LOCK_NAMESPACE = 0x52435331;
+    // ошибка PostgreSQL при истечении lock_timeout
+    private static final String LOCK_NOT_AVAILABLE = "55P03";
+    private static final int VALIDATION_TIMEOUT_SECONDS = 1;
+    private static final Lease NOOP_LEASE = new Lease(null, null, null, 0);
+
+    @Autowired
+    private MeterRegistry meterRegistry;
+
+    @Value("${service.request-lock.enabled:true}")
+    boolean enabled;
+
+    @Value("${service.request-lock.stripes:1024}")
+    int stripeCount;
+
+    @Value("${service.request-lock.wait-timeout-ms:5000}")
+    long waitTimeout;
+
+    // local - блокировки внутри узла, advisory - дополнительно advisory-блокировки PostgreSQL
+    @Value("${service.request-lock.mode:local}")
+    String mode;
+
+    @Value("${spring.datasource.url}")
+    String dbUrl;
+
+    @Value("${spring.datasource.username}")
+    String dbUsername;
+
+    @Value("${spring.datasource.password}")
+    String dbPassword;
+
+    // соединений не больше, чем запросов, одновременно держащих advisory-блокировки
+    @Value("${service.request-lock.advisory-pool-size:${spring.datasource.hikari.maximum-pool-size:10}}")
+    int advisoryPoolSize;
+
+    private Semaphore[] stripes;
+    volatile boolean advisory;
+    // пул соединений advisory-блокировок, создается при первой блокировке под advisoryPoolLock
+    private volatile HikariDataSource advisoryPool;
+    private final ReentrantLock advisoryPoolLock = new ReentrantLock();
+    private Timer acquiredTimer;
+    private Timer timeoutTimer;
+
+    @PostConstruct
+    public void init() {
+        // количество блокировок округляем до степени двойки, номер блокировки берется по маске
+        int size = Integer.highestOneBit(Math.max(stripeCount - 1, 1)) << 1;
+        stripes = new Semaphore[size];
+        for (int i = 0; i < size; i++) {
+            stripes[i] = new Semaphore(1);
+        }
+        advisory = "advisory".equalsIgnoreCase(mode);
+
+        acquiredTimer = Timer.builder("request.control.lock.wait")
+                .tag("result", "acquired")
+                .register(meterRegistry);
+        timeoutTimer = Timer.builder("request.control.lock.wait")
+                .tag("result", "timeout")
+                .register(meterRegistry);
+    }
+
+    @PreDestroy
+    public void destroy() {
+        advisoryPoolLock.lock();
+        try {
+            closeAdvisoryPool();
+        } finally {
+            advisoryPoolLock.unlock();
+        }
+    }
+
+    // бизнес-ключ запроса: ID_INTEGRATION, а если его нет - ID_MASTER_SYSTEM
+    // запросы без идентификаторов не блокируются
+    public static String getRequestKey(ServiceRequest serviceRequest) {
+        IdList idList = serviceRequest.getIdList();
+        if (idList == null || idList.getRequestIds() == null) {
+            return null;
+        }
+        String id = idList.getValue(RequestIdentifier.Id.ID_INTEGRATION);
+        if (id == null || id.isBlank()) {
+            id = idList.getValue(RequestIdentifier.Id.ID_MASTER_SYSTEM);
+        }
+        if (id == null || id.isBlank()) {
+            return null;
+        }
+
+        return serviceRequest.getDataFlowType() + "-" + serviceRequest.getFilialName() + "-" + id;
+    }
+
+    // ждем освобождения ключа не дольше waitTimeout, блокировка снимается закрытием Lease
+    public Lease acquire(String key) throws RequestControlServiceException {
+        if (!enabled || key == null) {
+            return NOOP_LEASE;
+        }
+
+        // ожидание не превышает оставшегося срока обработки запроса
+        Deadline requestDeadline = Deadline.current();
+        long wait = requestDeadline == null ? waitTimeout
+                : Math.min(waitTimeout, requestDeadline.getRemainingMillis());
+        long startedAt = System.nanoTime();
+        long deadline = startedAt + TimeUnit.MILLISECONDS.toNanos(wait);
+        Semaphore lock = stripes[getStripeIndex(key)];
+        boolean locked;
+        try {
+            locked = lock.tryAcquire(wait, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            locked = false;
+        }
+        if (!locked) {
+            throw timeout(key, startedAt);
+        }
+
+        Connection advisoryConn = null;
+        if (advisory) {
+            try {
+                advisoryConn = acquireAdvisoryLock(key, startedAt, deadline);
+            } catch (RuntimeException e) {
+                lock.release();
+                throw e;
+            }
+        }
+        acquiredTimer.record(System.nanoTime() - startedAt, TimeUnit.NANOSECONDS);
+
+        return new Lease(lock, advisoryConn == null ? null : this, advisoryConn, key.hashCode());
+    }
+
+    private int getStripeIndex(String key) {
+        int hash = key.hashCode();
+        return (hash ^ (hash >>> 16)) & (stripes.length - 1);
+    }
+
+    private RequestControlServiceException timeout(String key, long startedAt) {
+        timeoutTimer.record(System.nanoTime() - startedAt, TimeUnit.NANOSECONDS);
+        return new RequestControlServiceException(String.format(
+                "Не удалось дождаться завершения обработки параллельного запроса с ключом %s за %d мс",
+                key, waitTimeout));
+    }
+
+    // ждем advisory-блокировку до срока ожидания на собственном соединении запроса, ожидание идет в PostgreSQL
+    // возвращает соединение, на котором взята блокировка, или null, если база данных не поддерживает advisory-блокировки
+    private Connection acquireAdvisoryLock(String key, long startedAt, long deadline)
+            throws RequestControlServiceException {
+        Connection conn = null;
+        try {
+            conn = getAdvisoryConnection();
+            if (conn == null) {
+                return null;
+            }
+            long remaining = Math.max(1, TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime()));
+            try (PreparedStatement preparedStatement = conn.prepareStatement(
+                    "SELECT set_config('lock_timeout', ?, false), pg_advisory_lock(?, ?)")) {
+                preparedStatement.setString(1, remaining + "ms");
+                preparedStatement.setInt(2, ADVISORY_LOCK_NAMESPACE);
+                preparedStatement.setInt(3, key.hashCode());
+                preparedStatement.executeQuery().close();
+            }
+
+            return conn;
+        } catch (SQLException e) {
+            closeQuietly(conn);
+            if (LOCK_NOT_AVAILABLE.equals(e.getSQLState())) {
+                throw timeout(key, startedAt);
+            }
+            throw new RequestControlServiceException(String.format(
+                    "Не удалось получить advisory-блокировку запроса с ключом %s:%n%s", key,
+                    e.getMessage() == null ? "" : e.getMessage()));
+        }
+    }
+
+    private void advisoryUnlock(Connection conn, int advisoryKey) {
+        try (PreparedStatement preparedStatement = conn.prepareStatement("SELECT pg_advisory_unlock(?, ?)")) {
+            preparedStatement.setInt(1, ADVISORY_LOCK_NAMESPACE);
+            preparedStatement.setInt(2, advisoryKey);
+            preparedStatement.executeQuery().close();
+        } catch (SQLException e) {
+            // блокировка не должна остаться в сессии, соединение удаляется из пула,
+            // при его закрытии PostgreSQL снимает только блокировку этого запроса
+            log.error("Не удалось снять advisory-блокировку, соединение advisory-блокировки закрывается", e);
+            HikariDataSource pool = advisoryPool;
+            if (pool != null) {
+                pool.evictConnection(conn);
+            }
+        }
+        closeQuietly(conn);
+    }
+
+    private Connection getAdvisoryConnection() throws SQLException {
+        HikariDataSource pool = advisoryPool;
+        if (pool == null) {
+            advisoryPoolLock.lock();
+            try {
+                if (advisoryPool == null) {
+                    advisoryPool = createAdvisoryPool();
+                }
+                pool = advisoryPool;
+            } finally {
+                advisoryPoolLock.unlock();
+            }
+        }
+        Connection conn = pool.getConnection();
+        if (!conn.isWrapperFor(PGConnection.class)) {
+            log.warn("База данных не поддерживает advisory-блокировки, используются блокировки внутри узла");
+            advisory = false;
+            conn.close();
+            advisoryPoolLock.lock();
+            try {
+                closeAdvisoryPool();
+            } finally {
+                advisoryPoolLock.unlock();
+            }
+            return null;
+        }
+
+        return conn;
+    }
+
+    private HikariDataSource createAdvisoryPool() {
+        HikariConfig config = new HikariConfig();
+        config.setPoolName("request-lock-advisory");
+        config.setJdbcUrl(dbUrl);
+        config.setUsername(dbUsername);
+        config.setPassword(dbPassword);
+        config.setMaximumPoolSize(advisoryPoolSize);
+        config.setMinimumIdle(0);
+        // ожидание соединения не дольше ожидания блокировки (Hikari не принимает меньше 250 мс)
+        config.setConnectionTimeout(Math.max(250, waitTimeout));
+
+        return new HikariDataSource(config);
+    }
+
+    // вызывается под блокировкой advisoryPoolLock
+    private void closeAdvisoryPool() {
+        if (advisoryPool == null) {
+            return;
+        }
+        advisoryPool.close();
+        advisoryPool = null;
+    }
+
+    private static void closeQuietly(Connection conn) {
+        if (conn == null) {
+            return;
+        }
+        try {
+            conn.close();
+        } catch (SQLException e) {
+            log.warn("Не удалось вернуть соединение advisory-блокировки в пул", e);
+        }
+    }
+
+    // захваченная блокировка ключа, может быть снята в любом потоке
+    public static class Lease implements AutoCloseable {
+
+        private final Semaphore lock;
+        // менеджер и соединение, на котором взята advisory-блокировка, или null
+        private final RequestLockManager advisoryManager;
+        private final Connection advisoryConn;
+        private final int advisoryKey;
+
+        private final AtomicBoolean closed = new AtomicBoolean();
+
+        private Lease(Semaphore lock, RequestLockManager advisoryManager, Connection advisoryConn, int advisoryKey) {
+            this.lock = lock;
+            this.advisoryManager = advisoryManager;
+            this.advisoryConn = advisoryConn;
+            this.advisoryKey = advisoryKey;
+        }
+
+        // advisory-блокировка снимается PostgreSQL вместе с потерянным соединением,
+        // после этого параллельный запрос с тем же ключом на другом узле может изменить данные
+        public void checkHeld() throws RequestControlServiceException {
+            if (advisoryConn == null) {
+                return;
+            }
+            boolean valid;
+            try {
+                valid = !closed.get() && advisoryConn.isValid(VALIDATION_TIMEOUT_SECONDS);
+            } catch (SQLException e) {
+                valid = false;
+            }
+            if (!valid) {
+                throw new RequestControlServiceException(
+                        "Соединение advisory-блокировки запроса потеряно, блокировка ключа запроса не удерживается");
+            }
+        }
+
+        @Override
+        public void close() {
+            // повторное закрытие не должно освобождать блокировку, захваченную другим запросом
+            if (!closed.compareAndSet(false, true)) {
+                return;
+            }
+            // блокировка снимается и после истечения срока обработки запроса
+            Deadline deadline = Deadline.current();
+            Deadline.detach();
+            try {
+                unlock();
+            } finally {
+                Deadline.attach(deadline);
+            }
+        }
+
+        private void unlock() {
+            try {
+                if (advisoryManager != null) {
+                    advisoryManager.advisoryUnlock(advisoryConn, advisoryKey);
+                }
+            } finally {
+                if (lock != null) {
+                    lock.release();
+                }
+            }
+        }
+    }
+}
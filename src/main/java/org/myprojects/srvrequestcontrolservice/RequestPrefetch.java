@@ -0,0 +1,150 @@
+package org.myprojects.srvrequestcontrolservice;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import lombok.extern.slf4j.Slf4j;
+import org.myprojects.srvrequestcontrolservice.data.Operators;
+import org.myprojects.srvrequestcontrolservice.data.ServiceRequest;
+import org.myprojects.srvrequestcontrolservice.exceptions.RequestControlServiceException;
+import org.myprojects.srvrequestcontrolservice.metrics.StageClock;
+import org.myprojects.srvrequestcontrolservice.utils.Deadline;
+import org.myprojects.srvrequestcontrolservice.utils.XmlUtils;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.scheduling.concurrent.CustomizableThreadFactory;
+import org.springframework.stereotype.Component;
+import org.w3c.dom.Document;
+import org.xml.sax.SAXException;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import javax.xml.parsers.ParserConfigurationException;
+import java.io.IOException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+// заранее запускаемый разбор тела проверяемого запроса
+// разбор зависит только от тела запроса, поэтому запускается сразу после валидации и получения блокировки
+// ключа запроса и идет параллельно с запросами к БД (идентификаторы, версия, шаблон, дата обновления
+// сохраненного запроса), а оператор клиентских атрибутов дожидается готового дерева, когда оно ему нужно
+// запросы к БД остаются в потоке обработки запроса на его соединении, чтобы запрос не занимал
+// второе соединение из пула
+@Slf4j
+@Component
+public class RequestPrefetch {
+
+    @Autowired
+    private MeterRegistry meterRegistry;
+
+    @Value("${service.prefetch.enabled:true}")
+    boolean enabled;
+
+    // 0 - по количеству процессоров
+    @Value("${service.prefetch.threads:0}")
+    int threads;
+
+    @Value("${service.prefetch.queue:1000}")
+    int queueSize;
+
+    private ThreadPoolExecutor executor;
+    private Counter submittedCounter;
+    private Counter rejectedCounter;
+
+    @PostConstruct
+    public void init() {
+        int poolSize = threads > 0 ? threads : Runtime.getRuntime().availableProcessors();
+        CustomizableThreadFactory threadFactory = new CustomizableThreadFactory("request-prefetch-");
+        threadFactory.setDaemon(true);
+        executor = new ThreadPoolExecutor(poolSize, poolSize, 60, TimeUnit.SECONDS,
+                new ArrayBlockingQueue<>(queueSize), threadFactory);
+        executor.allowCoreThreadTimeOut(true);
+
+        submittedCounter = Counter.builder("request.control.prefetch")
+                .tag("result", "submitted")
+                .register(meterRegistry);
+        rejectedCounter = Counter.builder("request.control.prefetch")
+                .tag("result", "rejected")
+                .register(meterRegistry);
+    }
+
+    @PreDestroy
+    public void destroy() {
+        executor.shutdownNow();
+    }
+
+    // запускаем разбор тела запроса, если его будет проверять или сохранять оператор клиентских атрибутов
+    public void prefetch(ServiceRequest serviceRequest, RequestContext requestContext) {
+        if (!enabled || !needsDocument(serviceRequest, requestContext)) {
+            return;
+        }
+
+        String request = serviceRequest.getCheckRequestBody();
+        try {
+            requestContext.setPrefetchedDocument(request,
+                    executor.submit(() -> XmlUtils.getDocumentFromXmlString(request)));
+            submittedCounter.increment();
+        } catch (RejectedExecutionException e) {
+            // очередь разбора переполнена, тело запроса будет разобрано в потоке обработки запроса
+            rejectedCounter.increment();
+        }
+    }
+
+    // разбираем тело запроса в текущем потоке, если обработка запроса разделена на этапы
+    // (разбор XML и работа с БД выполняются разными пулами потоков)
+    // ошибку разбора вернет оператор клиентских атрибутов, который повторит разбор
+    public void parse(ServiceRequest serviceRequest, RequestContext requestContext) {
+        if (!needsDocument(serviceRequest, requestContext)) {
+            return;
+        }
+
+        String request = serviceRequest.getCheckRequestBody();
+        try (StageClock.Span ignored = StageClock.current().enter(StageClock.Stage.PARSE)) {
+            requestContext.setRequestDocument(request, XmlUtils.getDocumentFromXmlString(request));
+        } catch (Exception e) {
+            log.debug("Не удалось разобрать тело запроса с messageId {}: {}",
+                    serviceRequest.getMessageId(), e.getMessage());
+        }
+    }
+
+    private static boolean needsDocument(ServiceRequest serviceRequest, RequestContext requestContext) {
+        String request = serviceRequest.getCheckRequestBody();
+        return request != null && !request.isBlank()
+                && serviceRequest.getOperators() != null
+                && serviceRequest.getOperators().contains(Operators.ControlType.CLIENT_ATTRIBUTES)
+                && requestContext.getRequestDocument(request) == null;
+    }
+
+    // дожидаемся заранее запущенного разбора не дольше оставшегося срока обработки запроса
+    // возвращает null, если разбор не удался по причине, не связанной с телом запроса (разбираем повторно)
+    public static Document await(Future<Document> prefetchedDocument)
+            throws ParserConfigurationException, IOException, SAXException {
+        Deadline deadline = Deadline.current();
+        try {
+            return deadline == null ? prefetchedDocument.get()
+                    : prefetchedDocument.get(deadline.getRemainingMillis(), TimeUnit.MILLISECONDS);
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof ParserConfigurationException) {
+                throw (ParserConfigurationException) cause;
+            } else if (cause instanceof IOException) {
+                throw (IOException) cause;
+            } else if (cause instanceof SAXException) {
+                throw (SAXException) cause;
+            }
+            log.warn("Не удалось заранее разобрать тело запроса", cause);
+            return null;
+        } catch (TimeoutException e) {
+            prefetchedDocument.cancel(true);
+            throw deadline.exceeded("разбор тела запроса", null);
+        } catch (InterruptedException e) {
+            prefetchedDocument.cancel(true);
+            Thread.currentThread().interrupt();
+            throw new RequestControlServiceException("Прервано ожидание разбора тела запроса");
+        }
+    }
+}
@@ -0,0 +1,69 @@
+package org.myprojects.srvrequestcontrolservice;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import lombok.extern.slf4j.Slf4j;
+import org.myprojects.srvrequestcontrolservice.data.ServiceResponse;
+import org.myprojects.srvrequestcontrolservice.exceptions.AdmissionRejectedException;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.http.MediaType;
+import org.springframework.http.ResponseEntity;
+import org.springframework.web.bind.annotation.PostMapping;
+import org.springframework.web.bind.annotation.RequestBody;
+import org.springframework.web.bind.annotation.RequestHeader;
+import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RestController;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+
+// поэтапный вариант /requestControl/control (service.staged.enabled), обработка идет в StagedRequestEngine
+// тело запроса принимается строкой: разбор JSON и валидация выполняются на этапе decode, а не в потоке Tomcat
+@Slf4j
+@RestController
+@RequestMapping("/requestControl/staged")
+@ConditionalOnProperty(name = "service.staged.enabled", havingValue = "true")
+public class StagedRequestControlController {
+
+    @Autowired
+    private StagedRequestEngine stagedRequestEngine;
+
+    @Autowired
+    private ControlResponses controlResponses;
+
+    private final ObjectMapper mapper = new ObjectMapper();
+
+    @PostMapping(value = "/control", consumes = MediaType.APPLICATION_JSON_VALUE,
+            produces = MediaType.APPLICATION_JSON_VALUE)
+    public CompletableFuture<ResponseEntity<ServiceResponse>> process(
+            @RequestBody String body,
+            @RequestHeader(value = RequestControlController.REQUEST_TIMEOUT_HEADER, required = false)
+                    Long requestTimeout,
+            @RequestHeader(value = RequestControlController.REQUEST_PRIORITY_HEADER, required = false)
+                    String requestPriority) {
+        return stagedRequestEngine.process(body, requestTimeout, requestPriority)
+                .handle((serviceResponse, e) -> e == null
+                        ? ResponseEntity.ok(logResponse(serviceResponse))
+                        : errorResponse(e instanceof CompletionException ? e.getCause() : e));
+    }
+
+    // очередь одного из этапов переполнена или запрос не допущен AdmissionControl - запрос отклоняется,
+    // иначе возвращаем ошибку обработки
+    private ResponseEntity<ServiceResponse> errorResponse(Throwable e) {
+        if (e instanceof AdmissionRejectedException) {
+            return controlResponses.rejected(null, (AdmissionRejectedException) e);
+        }
+        log.error("Ошибка поэтапной обработки запроса", e);
+        return ResponseEntity.ok(controlResponses.failed(null, e));
+    }
+
+    private ServiceResponse logResponse(ServiceResponse serviceResponse) {
+        try {
+            log.info("ServiceResponse: " + mapper.writer().writeValueAsString(serviceResponse));
+        } catch (JsonProcessingException e) {
+            log.warn("Не удалось записать ServiceResponse в лог", e);
+        }
+        return serviceResponse;
+    }
+}
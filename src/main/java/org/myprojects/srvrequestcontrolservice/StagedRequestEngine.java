@@ -0,0 +1,338 @@
+package org.myprojects.srvrequestcontrolservice;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import lombok.extern.slf4j.Slf4j;
+import org.myprojects.srvrequestcontrolservice.capture.SlowRequestCapture;
+import org.myprojects.srvrequestcontrolservice.data.ServiceRequest;
+import org.myprojects.srvrequestcontrolservice.data.ServiceResponse;
+import org.myprojects.srvrequestcontrolservice.exceptions.AdmissionRejectedException;
+import org.myprojects.srvrequestcontrolservice.exceptions.DeadlineExceededException;
+import org.myprojects.srvrequestcontrolservice.exceptions.RequestControlServiceException;
+import org.myprojects.srvrequestcontrolservice.metrics.StageClock;
+import org.myprojects.srvrequestcontrolservice.metrics.StageMetrics;
+import org.myprojects.srvrequestcontrolservice.utils.Deadline;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.scheduling.concurrent.CustomizableThreadFactory;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import javax.validation.ConstraintViolation;
+import javax.validation.Validator;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+
+import static org.myprojects.srvrequestcontrolservice.data.ServiceResponse.Status.FAILED;
+
+// поэтапная обработка запросов (SEDA, service.staged.enabled)
+// запрос проходит этапы decode (JSON и валидация), xml (разбор тела запроса), check (операции уровня запроса
+// и проверки операторов) и persist (обновления), у каждого этапа свой пул потоков и ограниченная очередь,
+// поэтому потоки разбора XML настраиваются по процессорам, а потоки check и persist - по пулу соединений
+// при переполнении очереди любого этапа запрос отклоняется (AdmissionRejectedException)
+// разрешение AdmissionControl берется на этапе decode, блокировка ключа запроса - на этапе check,
+// оба снимаются после persist (в потоке другого этапа) или при отклонении запроса
+// метрики этапов: request.control.staged.queue (глубина очереди), request.control.staged.wait
+// (ожидание в очереди), request.control.staged.service (время обработки), request.control.staged.rejected
+@Slf4j
+@Component
+@ConditionalOnProperty(name = "service.staged.enabled", havingValue = "true")
+public class StagedRequestEngine {
+
+    @Autowired
+    private RequestControlService requestControlService;
+
+    @Autowired
+    private RequestPrefetch requestPrefetch;
+
+    @Autowired
+    private StageMetrics stageMetrics;
+
+    @Autowired
+    private SlowRequestCapture slowRequestCapture;
+
+    @Autowired
+    private AdmissionControl admissionControl;
+
+    @Autowired
+    private RequestExecutor requestExecutor;
+
+    @Autowired
+    private MeterRegistry meterRegistry;
+
+    @Autowired
+    private ObjectMapper objectMapper;
+
+    @Autowired
+    private Validator validator;
+
+    @Value("${service.staged.decode.threads:2}")
+    int decodeThreads;
+
+    @Value("${service.staged.decode.queue:1000}")
+    int decodeQueue;
+
+    // 0 - по количеству процессоров
+    @Value("${service.staged.xml.threads:0}")
+    int xmlThreads;
+
+    @Value("${service.staged.xml.queue:1000}")
+    int xmlQueue;
+
+    @Value("${service.staged.check.threads:${spring.datasource.hikari.maximum-pool-size:10}}")
+    int checkThreads;
+
+    @Value("${service.staged.check.queue:1000}")
+    int checkQueue;
+
+    @Value("${service.staged.persist.threads:4}")
+    int persistThreads;
+
+    @Value("${service.staged.persist.queue:1000}")
+    int persistQueue;
+
+    private final ObjectMapper logMapper = new ObjectMapper();
+
+    private Stage decodeStage;
+    private Stage xmlStage;
+    private Stage checkStage;
+    private Stage persistStage;
+
+    @PostConstruct
+    public void init() {
+        decodeStage = new Stage("decode", decodeThreads, decodeQueue);
+        xmlStage = new Stage("xml", xmlThreads > 0 ? xmlThreads : Runtime.getRuntime().availableProcessors(),
+                xmlQueue);
+        checkStage = new Stage("check", checkThreads, checkQueue);
+        persistStage = new Stage("persist", persistThreads, persistQueue);
+    }
+
+    @PreDestroy
+    public void destroy() {
+        decodeStage.executor.shutdownNow();
+        xmlStage.executor.shutdownNow();
+        checkStage.executor.shutdownNow();
+        persistStage.executor.shutdownNow();
+    }
+
+    // обработка тела запроса /requestControl/control, результат завершается в потоке последнего этапа
+    // requestTimeout - срок обработки из заголовка запроса (может быть null)
+    public CompletableFuture<ServiceResponse> process(String body, Long requestTimeout) {
+        return process(body, requestTimeout, null);
+    }
+
+    // requestPriority - приоритет из заголовка запроса (может быть null, RequestExecutor.getPriority)
+    public CompletableFuture<ServiceResponse> process(String body, Long requestTimeout, String requestPriority) {
+        Job job = new Job(body, requestTimeout, requestPriority);
+        decodeStage.submit(job, this::decode);
+        return job.result;
+    }
+
+    private void decode(Job job) throws JsonProcessingException {
+        ServiceRequest serviceRequest;
+        try {
+            serviceRequest = objectMapper.readValue(job.body, ServiceRequest.class);
+        } catch (JsonProcessingException e) {
+            complete(job, new ServiceResponse(FAILED, String.format("Не удалось разобрать запрос:%n%s",
+                    e.getOriginalMessage() == null ? "" : e.getOriginalMessage())));
+            return;
+        }
+        Set<ConstraintViolation<ServiceRequest>> violations = validator.validate(serviceRequest);
+        if (!violations.isEmpty()) {
+            complete(job, new ServiceResponse(FAILED, violations.stream()
+                    .map(v -> v.getPropertyPath() + ": " + v.getMessage())
+                    .sorted()
+                    .collect(Collectors.joining(";" + System.lineSeparator()))));
+            return;
+        }
+
+        log.info("Получен новый serviceRequest" + logMapper.writer().writeValueAsString(serviceRequest));
+        job.serviceRequest = serviceRequest;
+        job.requestContext.setDeadline(requestControlService.newDeadline(serviceRequest, job.requestTimeout,
+                job.receivedAt));
+
+        // если один из операторов не прошел валидацию, возвращаем ошибку
+        ServiceResponse validationError = requestControlService.validate(serviceRequest);
+        if (validationError != null) {
+            complete(job, validationError);
+            return;
+        }
+
+        // при перегрузке отклоняем запрос до разбора XML, не дожидаясь свободного соединения с БД
+        try {
+            job.permit = admissionControl.acquire(serviceRequest,
+                    requestExecutor.getPriority(serviceRequest, job.requestPriority));
+        } catch (AdmissionRejectedException e) {
+            job.result.completeExceptionally(e);
+            return;
+        }
+        xmlStage.submit(job, this::extractXml);
+    }
+
+    private void extractXml(Job job) {
+        requestPrefetch.parse(job.serviceRequest, job.requestContext);
+        checkStage.submit(job, this::check);
+    }
+
+    private void check(Job job) {
+        try {
+            job.lease = requestControlService.acquireLease(job.serviceRequest);
+        } catch (RequestControlServiceException e) {
+            complete(job, failed(job, e));
+            return;
+        }
+
+        // если проверки завершили обработку запроса, обновления не выполняем
+        ServiceResponse checkResponse = requestControlService.processChecks(job.serviceRequest, job.requestContext);
+        if (checkResponse != null) {
+            complete(job, checkResponse);
+            return;
+        }
+        persistStage.submit(job, this::persist);
+    }
+
+    private void persist(Job job) {
+        complete(job, requestControlService.processUpdates(job.serviceRequest, job.requestContext, job.lease));
+    }
+
+    private void complete(Job job, ServiceResponse serviceResponse) {
+        release(job);
+        // срок обработки не ограничивает сохранение медленного запроса, которое обращается к БД
+        Deadline.detach();
+        StageClock.attach(job.clock);
+        StageClock.stop();
+        if (job.serviceRequest != null) {
+            serviceResponse = requestControlService.applyDeadline(job.serviceRequest,
+                    job.requestContext.getDeadline(), serviceResponse);
+            stageMetrics.record(job.clock);
+            // сохраняем медленный запрос для последующего воспроизведения
+            slowRequestCapture.captureIfSlow(job.serviceRequest, job.clock, job.requestContext.getTemplate());
+        }
+        job.result.complete(serviceResponse);
+    }
+
+    private void reject(Job job, Stage stage) {
+        release(job);
+        job.result.completeExceptionally(new AdmissionRejectedException(String.format(
+                "Превышено количество запросов в очереди этапа %s, повторите запрос позже", stage.name), 1));
+    }
+
+    private static void release(Job job) {
+        if (job.lease != null) {
+            job.lease.close();
+        }
+        // разрешение возвращается один раз, даже если запрос завершается повторно после ошибки
+        if (job.permit != null) {
+            job.permit.close();
+            job.permit = null;
+        }
+    }
+
+    private static ServiceResponse failed(Job job, Exception e) {
+        return new ServiceResponse(FAILED, String.format("Запрос с messageId %s не был обработан.%n%s",
+                job.serviceRequest == null ? "" : job.serviceRequest.getMessageId(),
+                e.getMessage() == null ? "" : e.getMessage()));
+    }
+
+    // состояние запроса, передается между этапами через очереди пулов (передача упорядочивает доступ к полям)
+    private static class Job {
+
+        private final String body;
+        private final Long requestTimeout;
+        private final String requestPriority;
+        private final long receivedAt = System.nanoTime();
+        // часы этапов переходят вместе с запросом между потоками
+        private final StageClock clock = StageClock.create();
+        private final RequestContext requestContext = new RequestContext();
+        private final CompletableFuture<ServiceResponse> result = new CompletableFuture<>();
+        private ServiceRequest serviceRequest;
+        private RequestLockManager.Lease lease;
+        private AdmissionControl.Permit permit;
+
+        private Job(String body, Long requestTimeout, String requestPriority) {
+            this.body = body;
+            this.requestTimeout = requestTimeout;
+            this.requestPriority = requestPriority;
+        }
+    }
+
+    @FunctionalInterface
+    private interface StageTask {
+        void run(Job job) throws Exception;
+    }
+
+    // этап обработки: собственный пул потоков с ограниченной очередью и метриками
+    private class Stage {
+
+        private final String name;
+        private final ThreadPoolExecutor executor;
+        private final Timer waitTimer;
+        private final Timer serviceTimer;
+        private final Counter rejectedCounter;
+
+        private Stage(String name, int threads, int queueSize) {
+            this.name = name;
+            CustomizableThreadFactory threadFactory = new CustomizableThreadFactory("staged-" + name + "-");
+            threadFactory.setDaemon(true);
+            this.executor = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS,
+                    new ArrayBlockingQueue<>(queueSize), threadFactory);
+            this.executor.allowCoreThreadTimeOut(true);
+
+            Gauge.builder("request.control.staged.queue", executor, e -> e.getQueue().size())
+                    .tag("stage", name)
+                    .register(meterRegistry);
+            waitTimer = Timer.builder("request.control.staged.wait")
+                    .tag("stage", name)
+                    .register(meterRegistry);
+            serviceTimer = Timer.builder("request.control.staged.service")
+                    .tag("stage", name)
+                    .register(meterRegistry);
+            rejectedCounter = Counter.builder("request.control.staged.rejected")
+                    .tag("stage", name)
+                    .register(meterRegistry);
+        }
+
+        // передаем запрос на этап, при переполнении очереди запрос отклоняется
+        private void submit(Job job, StageTask task) {
+            long submittedAt = System.nanoTime();
+            try {
+                executor.execute(() -> run(job, task, submittedAt));
+            } catch (RejectedExecutionException e) {
+                rejectedCounter.increment();
+                reject(job, this);
+            }
+        }
+
+        private void run(Job job, StageTask task, long submittedAt) {
+            long startedAt = System.nanoTime();
+            waitTimer.record(startedAt - submittedAt, TimeUnit.NANOSECONDS);
+            StageClock.attach(job.clock);
+            Deadline.attach(job.requestContext.getDeadline());
+            try {
+                // ответ уже не нужен - не начинаем этап
+                Deadline.checkCurrent("очередь этапа " + name);
+                task.run(job);
+            } catch (DeadlineExceededException e) {
+                complete(job, new ServiceResponse(FAILED, e.getMessage()));
+            } catch (Exception e) {
+                log.error(String.format("Ошибка на этапе %s обработки запроса", name), e);
+                complete(job, failed(job, e));
+            } finally {
+                StageClock.detach();
+                Deadline.detach();
+                serviceTimer.record(System.nanoTime() - startedAt, TimeUnit.NANOSECONDS);
+            }
+        }
+    }
+}
@@ -0,0 +1,69 @@
+package org.myprojects.srvrequestcontrolservice;
+
+import org.myprojects.srvrequestcontrolservice.exceptions.ClientAttributesDataException;
+
+// скомпилированное описание клиентского атрибута шаблона
+// все отметки и описания ошибок читаются из дерева шаблона один раз при компиляции,
+// после чего дерево шаблона не хранится
+public final class TemplateAttribute {
+
+    private final String name;
+    private final String errorDescription;
+    private final boolean personalData;
+    private final boolean dynamic;
+    // динамическая нода (например, номер множественной секции) найдена в шаблоне для динамического пути
+    private final boolean dynamicNodeFound;
+    private final String prefixDescription;
+    private final String postfixDescription;
+
+    public TemplateAttribute(String name, String errorDescription, boolean personalData) {
+        this(name, errorDescription, personalData, false, false, null, null);
+    }
+
+    public TemplateAttribute(String name, String errorDescription, boolean personalData, boolean dynamic,
+                             boolean dynamicNodeFound, String prefixDescription, String postfixDescription) {
+        this.name = name;
+        this.errorDescription = errorDescription;
+        this.personalData = personalData;
+        this.dynamic = dynamic;
+        this.dynamicNodeFound = dynamicNodeFound;
+        this.prefixDescription = prefixDescription;
+        this.postfixDescription = postfixDescription;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public boolean isPersonalData() {
+        return personalData;
+    }
+
+    public boolean isDynamic() {
+        return dynamic;
+    }
+
+    public String getErrorDescription() throws ClientAttributesDataException {
+        if (errorDescription == null) {
+            throw new ClientAttributesDataException("Не найдено описание ошибки атрибута " + name);
+        }
+
+        return errorDescription;
+    }
+
+    // описание ошибки для динамического пути дополняется значением динамической ноды запроса
+    public String getDynamicErrorDescription(String dynamicValue) throws ClientAttributesDataException {
+        if (!dynamicNodeFound || dynamicValue == null) {
+            throw new IllegalArgumentException("Некорректная структура данных.");
+        }
+
+        String error = getErrorDescription();
+        if (prefixDescription != null) {
+            return prefixDescription + dynamicValue + ". " + error;
+        } else if (postfixDescription != null) {
+            return error + ". " + postfixDescription + dynamicValue;
+        } else {
+            throw new IllegalArgumentException("Для динамической ошибки не найдена переменная часть описания.");
+        }
+    }
+}
@@ -0,0 +1,96 @@
+package org.myprojects.srvrequestcontrolservice;
+
+import lombok.extern.slf4j.Slf4j;
+import org.postgresql.PGConnection;
+import org.postgresql.PGNotification;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.Statement;
+
+// подписка на уведомления PostgreSQL об изменении версии шаблонов (LISTEN/NOTIFY)
+// позволяет подхватить новый шаблон сразу, периодическая проверка версии остается как резервная
+// подписка держится на выделенном соединении вне пула, поэтому не уменьшает пул обработки запросов
+@Slf4j
+@Component
+public class TemplateChangeListener {
+
+    @Autowired
+    private TemplateRegistry templateRegistry;
+
+    @Value("${service.templates.listen-notify:false}")
+    boolean enabled;
+
+    @Value("${service.templates.refresh-interval}")
+    long refreshInterval;
+
+    @Value("${spring.datasource.url}")
+    String dbUrl;
+
+    @Value("${spring.datasource.username}")
+    String dbUsername;
+
+    @Value("${spring.datasource.password}")
+    String dbPassword;
+
+    private volatile boolean running;
+    private Thread listenerThread;
+
+    @PostConstruct
+    public void start() {
+        if (!enabled) {
+            return;
+        }
+        running = true;
+        listenerThread = new Thread(this::listen, "template-change-listener");
+        listenerThread.setDaemon(true);
+        listenerThread.start();
+    }
+
+    @PreDestroy
+    public void stop() {
+        running = false;
+        if (listenerThread != null) {
+            listenerThread.interrupt();
+        }
+    }
+
+    private void listen() {
+        while (running) {
+            try (Connection conn = DriverManager.getConnection(dbUrl, dbUsername, dbPassword)) {
+                if (!conn.isWrapperFor(PGConnection.class)) {
+                    log.warn("База данных не поддерживает LISTEN/NOTIFY, используется периодическая проверка версии шаблонов");
+                    return;
+                }
+                PGConnection pgConnection = conn.unwrap(PGConnection.class);
+                try (Statement statement = conn.createStatement()) {
+                    statement.execute("LISTEN " + TemplateRegistry.NOTIFY_CHANNEL);
+                }
+                log.info("Подписка на изменения шаблонов клиентских атрибутов оформлена");
+
+                while (running) {
+                    PGNotification[] notifications = pgConnection.getNotifications((int) refreshInterval);
+                    if (notifications != null && notifications.length > 0) {
+                        templateRegistry.refreshIfChanged(conn);
+                    }
+                }
+            } catch (Exception e) {
+                if (!running) {
+                    return;
+                }
+                log.error("Ошибка подписки на изменения шаблонов клиентских атрибутов, повторная попытка", e);
+                try {
+                    Thread.sleep(refreshInterval);
+                } catch (InterruptedException ie) {
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+            }
+        }
+    }
+}
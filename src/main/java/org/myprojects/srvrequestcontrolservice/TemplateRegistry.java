@@ -0,0 +1,300 @@
+package org.myprojects.srvrequestcontrolservice;
+
+import lombok.extern.slf4j.Slf4j;
+import org.myprojects.srvrequestcontrolservice.exceptions.ClientAttributesDataException;
+import org.myprojects.srvrequestcontrolservice.exceptions.DatabaseException;
+import org.myprojects.srvrequestcontrolservice.metrics.StageClock;
+import org.myprojects.srvrequestcontrolservice.utils.XmlUtils;
+import org.postgresql.PGConnection;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+import org.w3c.dom.Document;
+import org.w3c.dom.Node;
+import org.xml.sax.SAXException;
+
+import javax.sql.DataSource;
+import javax.xml.parsers.ParserConfigurationException;
+import java.io.IOException;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.sql.Types;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.locks.ReentrantLock;
+
+// реестр шаблонов клиентских атрибутов
+// для каждого потока хранит отсортированную по created_at ленту шаблонов,
+// актуальный шаблон на дату определяется бинарным поиском без обращения к БД
+// реестр перечитывается из БД только при изменении версии шаблонов в таблице config_versions,
+// версия проверяется раз в service.templates.refresh-interval (или по уведомлению PostgreSQL)
+@Slf4j
+@Component
+public class TemplateRegistry {
+
+    public static final String TEMPLATES_VERSION_NAME = "client_attrs_templates";
+    public static final String NOTIFY_CHANNEL = "config_versions";
+
+    @Autowired
+    private DataSource dataSource;
+
+    // неизменяемое состояние реестра, заменяется целиком при перезагрузке
+    private volatile State state = new State(null, new HashMap<>(), new HashMap<>());
+    // перезагрузка читает шаблоны из БД, поэтому вместо synchronized используется ReentrantLock,
+    // который не закрепляет виртуальный поток за потоком-носителем на время ожидания БД
+    private final ReentrantLock reloadLock = new ReentrantLock();
+    // версия шаблонов не была получена при последней фоновой проверке
+    private volatile boolean versionUnavailable;
+
+    // возвращаем шаблон, действующий на момент timestamp (последний с created_at < timestamp)
+    // к БД обращаемся только при первом использовании реестра
+    public XmlRequestTemplate getTemplate(String flow, LocalDateTime timestamp, Connection conn)
+            throws DatabaseException, ClientAttributesDataException {
+        boolean loaded = state.version != null;
+        if (!loaded) {
+            refreshIfChanged(conn);
+        }
+
+        Timeline timeline = state.timelines.get(flow);
+        XmlRequestTemplate template = timeline == null ? null : timeline.resolve(timestamp);
+        // попадание - шаблон найден в уже загруженном реестре, промах - реестр загружался или шаблона нет
+        StageClock.current().recordTemplateCache(loaded && template != null);
+        return template;
+    }
+
+    // фоновая проверка версии шаблонов, новые шаблоны загружаются и компилируются вне обработки запросов
+    @Scheduled(fixedDelayString = "${service.templates.refresh-interval}")
+    public void pollTemplatesVersion() {
+        try (Connection conn = dataSource.getConnection()) {
+            refreshIfChanged(conn);
+            versionUnavailable = false;
+        } catch (DatabaseException e) {
+            // до создания схемы (например, при старте сервиса) версия недоступна,
+            // предупреждаем один раз до следующей успешной проверки
+            if (!versionUnavailable) {
+                versionUnavailable = true;
+                log.warn("Не удалось обновить реестр шаблонов клиентских атрибутов: {}", e.getMessage());
+            }
+        } catch (Exception e) {
+            log.error("Не удалось обновить реестр шаблонов клиентских атрибутов", e);
+        }
+    }
+
+    // перечитываем шаблоны, если версия набора шаблонов в БД изменилась
+    public boolean refreshIfChanged(Connection conn) throws DatabaseException, ClientAttributesDataException {
+        String version = getTemplatesVersion(conn);
+        if (version.equals(state.version)) {
+            return false;
+        }
+
+        reloadLock.lock();
+        try {
+            if (version.equals(state.version)) {
+                return false;
+            }
+            state = load(version, conn);
+            log.info("Загружены шаблоны клиентских атрибутов, версия {}", version);
+            return true;
+        } finally {
+            reloadLock.unlock();
+        }
+    }
+
+    private String getTemplatesVersion(Connection conn) throws DatabaseException {
+        String sql = "SELECT version FROM config_versions WHERE name=?";
+        try (PreparedStatement preparedStatement = conn.prepareStatement(sql)) {
+            preparedStatement.setString(1, TEMPLATES_VERSION_NAME);
+
+            ResultSet rs = preparedStatement.executeQuery();
+            return rs.next() ? String.valueOf(rs.getLong(1)) : "0";
+        } catch (SQLException ex) {
+            throw new DatabaseException(String.format(
+                    "Не удалось получить данные из базы данных о версии шаблонов:%n%s",
+                    ex.getMessage() == null ? "" : ex.getMessage()));
+        }
+    }
+
+    // увеличиваем версию шаблонов, вызывается в той же транзакции, что и сохранение шаблона
+    // строка версии создается скриптом схемы, а в PostgreSQL при ее отсутствии вставляется тем же запросом
+    // (INSERT ... ON CONFLICT), поэтому параллельное сохранение шаблонов не приводит к ошибке уникальности
+    public static void incrementTemplatesVersion(Connection conn) throws SQLException {
+        LocalDateTime now = LocalDateTime.now();
+        if (conn.isWrapperFor(PGConnection.class)) {
+            String sql = "INSERT INTO config_versions (name, version, updated_at) VALUES (?,?,?) "
+                    + "ON CONFLICT (name) DO UPDATE SET version=config_versions.version+1, updated_at=EXCLUDED.updated_at";
+            try (PreparedStatement preparedStatement = conn.prepareStatement(sql)) {
+                preparedStatement.setString(1, TEMPLATES_VERSION_NAME);
+                preparedStatement.setLong(2, 1);
+                preparedStatement.setObject(3, now, Types.TIMESTAMP);
+
+                preparedStatement.executeUpdate();
+            }
+        } else {
+            String sql = "UPDATE config_versions SET version=version+1, updated_at=? WHERE name=?";
+            int updateCount;
+            try (PreparedStatement preparedStatement = conn.prepareStatement(sql)) {
+                preparedStatement.setObject(1, now, Types.TIMESTAMP);
+                preparedStatement.setString(2, TEMPLATES_VERSION_NAME);
+
+                updateCount = preparedStatement.executeUpdate();
+            }
+            if (updateCount == 0) {
+                sql = "INSERT INTO config_versions (name, version, updated_at) VALUES (?,?,?)";
+                try (PreparedStatement preparedStatement = conn.prepareStatement(sql)) {
+                    preparedStatement.setString(1, TEMPLATES_VERSION_NAME);
+                    preparedStatement.setLong(2, 1);
+                    preparedStatement.setObject(3, now, Types.TIMESTAMP);
+
+                    preparedStatement.executeUpdate();
+                }
+            }
+        }
+        // в PostgreSQL уведомление доставляется подписчикам после фиксации транзакции
+        if (conn.isWrapperFor(PGConnection.class)) {
+            try (Statement statement = conn.createStatement()) {
+                statement.execute("NOTIFY " + NOTIFY_CHANNEL);
+            }
+        }
+    }
+
+    private State load(String version, Connection conn) throws DatabaseException, ClientAttributesDataException {
+        Map<String, List<Entry>> entriesByFlow = new HashMap<>();
+        Map<String, XmlRequestTemplate> compiled = new HashMap<>();
+
+        String sql = "SELECT id, flow, created_at, name FROM client_attrs_templates ORDER BY flow, created_at, id";
+        try (PreparedStatement preparedStatement = conn.prepareStatement(sql);
+             ResultSet rs = preparedStatement.executeQuery()) {
+            while (rs.next()) {
+                long id = rs.getLong(1);
+                String flow = rs.getString(2);
+                LocalDateTime createdAt = rs.getObject(3, LocalDateTime.class);
+                String name = rs.getString(4);
+                if (createdAt == null) {
+                    continue;
+                }
+
+                // ранее скомпилированные шаблоны переиспользуем, новые загружаем из БД
+                String key = getTemplateKey(id, name, createdAt);
+                XmlRequestTemplate template = state.compiled.get(key);
+                if (template == null) {
+                    template = compileTemplate(name, getTemplateBody(id, conn));
+                }
+                compiled.put(key, template);
+                entriesByFlow.computeIfAbsent(flow, f -> new ArrayList<>()).add(new Entry(createdAt, template));
+            }
+        } catch (SQLException ex) {
+            ex.printStackTrace();
+            throw new DatabaseException(String.format(
+                    "Не удалось получить данные из базы данных о шаблонах клиентских атрибутов:%n%s",
+                    ex.getMessage() == null ? "" : ex.getMessage()));
+        }
+
+        Map<String, Timeline> timelines = new HashMap<>();
+        entriesByFlow.forEach((flow, entries) -> timelines.put(flow, new Timeline(entries)));
+
+        return new State(version, timelines, compiled);
+    }
+
+    private String getTemplateBody(long id, Connection conn) throws DatabaseException {
+        String sql = "SELECT template FROM client_attrs_templates WHERE id=?";
+        try (PreparedStatement preparedStatement = conn.prepareStatement(sql)) {
+            preparedStatement.setLong(1, id);
+
+            ResultSet rs = preparedStatement.executeQuery();
+            return rs.next() ? rs.getString(1) : null;
+        } catch (SQLException ex) {
+            ex.printStackTrace();
+            throw new DatabaseException(String.format(
+                    "Не удалось получить данные из базы данных о шаблоне:%n%s",
+                    ex.getMessage() == null ? "" : ex.getMessage()));
+        }
+    }
+
+    private static XmlRequestTemplate compileTemplate(String name, String templateStr)
+            throws ClientAttributesDataException {
+        try (StageClock.Span ignored = StageClock.current().enter(StageClock.Stage.PARSE)) {
+            Document templateDocument = XmlUtils.getDocumentFromXmlString(templateStr);
+            Map<XmlPath, Node> templatePaths = XmlUtils.getTemplatePathsFromNode(
+                    new XmlPath(), templateDocument.getFirstChild());
+            // дерево шаблона нужно только на время компиляции
+            Map<XmlPath, TemplateAttribute> attributes = new HashMap<>();
+            templatePaths.forEach((path, node) -> attributes.put(path, XmlUtils.createTemplateAttribute(path, node)));
+            return new XmlRequestTemplate(name, attributes);
+        } catch (ParserConfigurationException | IOException | SAXException | RuntimeException e) {
+            e.printStackTrace();
+            throw new ClientAttributesDataException(String.format(
+                    "Ошибка обработки шаблона клиентских атрибутов %s.%n%s", name,
+                    e.getMessage() == null ? "" : e.getMessage()));
+        }
+    }
+
+    // id и created_at отличают шаблоны с одинаковым названием после пересоздания таблицы
+    private static String getTemplateKey(long id, String name, LocalDateTime createdAt) {
+        return id + ":" + name + ":" + createdAt;
+    }
+
+    private static class State {
+
+        private final String version;
+        private final Map<String, Timeline> timelines;
+        private final Map<String, XmlRequestTemplate> compiled;
+
+        private State(String version, Map<String, Timeline> timelines, Map<String, XmlRequestTemplate> compiled) {
+            this.version = version;
+            this.timelines = timelines;
+            this.compiled = compiled;
+        }
+    }
+
+    private static class Entry {
+
+        private final LocalDateTime createdAt;
+        private final XmlRequestTemplate template;
+
+        private Entry(LocalDateTime createdAt, XmlRequestTemplate template) {
+            this.createdAt = createdAt;
+            this.template = template;
+        }
+    }
+
+    // лента шаблонов одного потока, отсортированная по дате создания
+    private static class Timeline {
+
+        private final LocalDateTime[] createdAt;
+        private final XmlRequestTemplate[] templates;
+
+        private Timeline(List<Entry> entries) {
+            this.createdAt = new LocalDateTime[entries.size()];
+            this.templates = new XmlRequestTemplate[entries.size()];
+            for (int i = 0; i < entries.size(); i++) {
+                createdAt[i] = entries.get(i).createdAt;
+                templates[i] = Objects.requireNonNull(entries.get(i).template);
+            }
+        }
+
+        // последний шаблон, созданный строго раньше timestamp
+        private XmlRequestTemplate resolve(LocalDateTime timestamp) {
+            int low = 0;
+            int high = createdAt.length - 1;
+            int found = -1;
+            while (low <= high) {
+                int mid = (low + high) >>> 1;
+                if (createdAt[mid].isBefore(timestamp)) {
+                    found = mid;
+                    low = mid + 1;
+                } else {
+                    high = mid - 1;
+                }
+            }
+
+            return found < 0 ? null : templates[found];
+        }
+    }
+}
@@ -0,0 +1,35 @@
+package org.myprojects.srvrequestcontrolservice;
+
+import lombok.extern.slf4j.Slf4j;
+import org.myprojects.srvrequestcontrolservice.utils.VirtualThreads;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.boot.web.embedded.tomcat.TomcatServletWebServerFactory;
+import org.springframework.boot.web.server.WebServerFactoryCustomizer;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+
+// обработка запросов Tomcat на виртуальных потоках (service.virtual-threads.enabled, Java 21+)
+// поток запроса, ожидающий БД, не занимает поток платформы, количество одновременных запросов
+// ограничивается не числом потоков Tomcat, а пулом соединений и AdmissionControl
+// выигрыш по сравнению с пулом потоков Tomcat не измерялся, его проверяет VirtualThreadsLoadTest на Java 21
+// пул обработки запросов (RequestExecutor) при этом тоже создает виртуальные потоки
+// на Java ниже 21 настройка игнорируется и используется пул потоков Tomcat
+@Slf4j
+@Configuration
+@ConditionalOnProperty(name = "service.virtual-threads.enabled", havingValue = "true")
+public class VirtualThreadsConfig {
+
+    @Bean
+    public WebServerFactoryCustomizer<TomcatServletWebServerFactory> virtualThreadsTomcatCustomizer() {
+        return factory -> {
+            if (!VirtualThreads.isSupported()) {
+                log.warn("Виртуальные потоки не поддерживаются версией Java {}, используется пул потоков Tomcat",
+                        System.getProperty("java.version"));
+                return;
+            }
+            log.info("Запросы обрабатываются на виртуальных потоках");
+            factory.addProtocolHandlerCustomizers(protocolHandler ->
+                    protocolHandler.setExecutor(VirtualThreads.newThreadPerTaskExecutor("http-virtual-")));
+        };
+    }
+}
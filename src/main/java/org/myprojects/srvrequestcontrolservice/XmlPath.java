@@ -2,34 +2,49 @@ package org.myprojects.srvrequestcontrolservice;
 
 import java.util.*;
 
-public class XmlPath {
+// неизменяемый путь в xml-дереве
+// хеш вычисляется один раз при создании, т.к. пути используются как ключи при каждом разборе запроса
+// части пути (getPathElementsSubList) возвращаются представлениями без копирования элементов
+public final class XmlPath {
 
-    private List<XmlPathNode> pathElements = new ArrayList<>();
+    private static final XmlPathNode[] EMPTY = new XmlPathNode[0];
 
-    public XmlPath() {}
+    private final XmlPathNode[] pathElements;
+    private final int hash;
+
+    public XmlPath() {
+        this(EMPTY);
+    }
 
     public XmlPath(Collection<XmlPathNode> pathNodes) {
-        this.pathElements.addAll(pathNodes);
+        this(pathNodes.toArray(EMPTY));
     }
 
     public XmlPath(XmlPathNode... pathNodes) {
-        this.pathElements.addAll(Arrays.asList(pathNodes));
+        this.pathElements = pathNodes.length == 0 ? EMPTY : pathNodes.clone();
+        this.hash = Arrays.hashCode(this.pathElements);
     }
 
-    public XmlPath(XmlPath other) {
-        addAllElements(other);
+    // путь, дополненный одним элементом в конце
+    public XmlPath append(XmlPathNode pathElement) {
+        XmlPathNode[] elements = Arrays.copyOf(pathElements, pathElements.length + 1);
+        elements[pathElements.length] = pathElement;
+        return new XmlPath(elements);
     }
 
-    public void addPathElement(XmlPathNode pathElement) {
-        pathElements.add(pathElement);
+    // путь, в котором элемент с индексом index заменен
+    public XmlPath replace(int index, XmlPathNode pathElement) {
+        XmlPathNode[] elements = pathElements.clone();
+        elements[index] = pathElement;
+        return new XmlPath(elements);
     }
 
     public List<XmlPathNode> getPathElements() {
-        return Collections.unmodifiableList(pathElements);
+        return Collections.unmodifiableList(Arrays.asList(pathElements));
     }
 
     public List<XmlPathNode> getPathElementsSubList(int fromIndex, int toIndex) {
-        return pathElements.subList(fromIndex, toIndex);
+        return getPathElements().subList(fromIndex, toIndex);
     }
 
     public List<XmlPathNode> getPathElementsSubList(int fromIndex) {
@@ -41,35 +56,25 @@ public class XmlPath {
         if (this == o) return true;
         if (o == null || getClass() != o.getClass()) return false;
         XmlPath xmlPath = (XmlPath) o;
-        return pathElements.equals(xmlPath.pathElements);
+        return hash == xmlPath.hash && Arrays.equals(pathElements, xmlPath.pathElements);
     }
 
     @Override
     public int hashCode() {
-        return Objects.hash(pathElements);
-    }
-
-    public void addAllElements(XmlPath otherPath) {
-        for (XmlPathNode el : otherPath.getPathElements()) {
-            this.addPathElement(el);
-        }
-    }
-
-    public void addAllElements(List<XmlPathNode> pathNodes) {
-        for (XmlPathNode el : pathNodes) {
-            this.addPathElement(el);
-        }
+        return hash;
     }
 
     public int containsPath(XmlPath otherPath, int index) {
-        if (index >= this.pathElements.size()) {
+        if (index >= this.pathElements.length) {
             return -1;
         }
 
         int lastMatchIndex = -1;
         int length = Math.min(this.getPathElementsLength(), otherPath.getPathElementsLength());
         for (int i = index; i < length; i++) {
-            if (this.pathElements.get(i).equals(otherPath.getPathElement(i))) {
+            XmlPathNode element = this.pathElements[i];
+            XmlPathNode otherElement = otherPath.pathElements[i];
+            if (element == otherElement || element.equals(otherElement)) {
                 lastMatchIndex = i;
             } else {
                 break;
@@ -80,15 +85,15 @@ public class XmlPath {
     }
 
     public XmlPathNode getPathElement(int index) {
-        if (index >= pathElements.size()) {
+        if (index >= pathElements.length) {
             return null;
         }
 
-        return pathElements.get(index);
+        return pathElements[index];
     }
 
     public int getPathElementsLength() {
-        return this.pathElements.size();
+        return this.pathElements.length;
     }
 
     @Override
@@ -0,0 +1,192 @@
+package org.myprojects.srvrequestcontrolservice;
+
+import org.myprojects.srvrequestcontrolservice.utils.XmlUtils;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+// словарь путей скомпилированного шаблона
+// каждому пути шаблона присваивается плотный номер (id пути), значения атрибутов запроса хранятся в массивах по номеру
+// словарь шаблона содержит только пути шаблона и не изменяется после создания, поэтому разделяется между запросами
+// без блокировок; конкретные динамические пути запроса (например, с номером множественной секции) получают номера
+// в словаре запроса (newRequestDictionary) после номеров путей шаблона, номер конкретного пути ссылается на id пути шаблона
+// размер массивов значений и время сравнения зависят от размера запроса, а не от истории запросов по шаблону
+public class XmlPathDictionary {
+
+    // путь не получил номер в словаре шаблона, его нужно интернировать в словаре запроса
+    public static final int REQUEST_PATH = -1;
+
+    private final XmlPathNodePool pathNodePool;
+    private final XmlPath[] templatePaths;
+    private final TemplateAttribute[] attributes;
+    // строковое представление пути, не зависит от номеров путей и используется в дайджесте значений
+    private final String[] templateKeys;
+    // строковое представление поддерева пути (секции, вложений или корня запроса) для дерева дайджестов
+    private final String[] templateSubtreeKeys;
+    // путь шаблона -> id пути шаблона
+    private final Map<XmlPath, Integer> templatePathIds;
+    // словарь шаблона для словаря запроса, для словаря шаблона - null
+    private final XmlPathDictionary shared;
+    // конкретные динамические пути запроса (только в словаре запроса), номер пути - templatePaths.length + индекс
+    private final Map<XmlPath, Integer> requestPathSlots;
+    private final List<RequestPath> requestPaths;
+
+    public XmlPathDictionary(Map<XmlPath, TemplateAttribute> clientAttrPaths) {
+        this.pathNodePool = new XmlPathNodePool();
+        this.shared = null;
+        this.requestPathSlots = null;
+        this.requestPaths = null;
+        this.templatePaths = new XmlPath[clientAttrPaths.size()];
+        this.attributes = new TemplateAttribute[clientAttrPaths.size()];
+        this.templateKeys = new String[clientAttrPaths.size()];
+        this.templateSubtreeKeys = new String[clientAttrPaths.size()];
+        this.templatePathIds = new HashMap<>();
+        int pathId = 0;
+        for (Map.Entry<XmlPath, TemplateAttribute> entry : clientAttrPaths.entrySet()) {
+            // одинаковые элементы разных путей шаблона хранятся одним экземпляром
+            templatePaths[pathId] = pathNodePool.intern(entry.getKey());
+            attributes[pathId] = entry.getValue();
+            templateKeys[pathId] = templatePaths[pathId].toString();
+            templateSubtreeKeys[pathId] = getSubtreePath(templatePaths[pathId]).toString();
+            templatePathIds.put(templatePaths[pathId], pathId);
+            pathId++;
+        }
+    }
+
+    // словарь запроса: номера путей шаблона сохраняются, конкретные динамические пути получают номера после них
+    // используется одним запросом (и его кешированным разбором только для чтения), поэтому не синхронизируется
+    private XmlPathDictionary(XmlPathDictionary shared) {
+        this.pathNodePool = shared.pathNodePool;
+        this.templatePaths = shared.templatePaths;
+        this.attributes = shared.attributes;
+        this.templateKeys = shared.templateKeys;
+        this.templateSubtreeKeys = shared.templateSubtreeKeys;
+        this.templatePathIds = shared.templatePathIds;
+        this.shared = shared;
+        this.requestPathSlots = new HashMap<>();
+        this.requestPaths = new ArrayList<>();
+    }
+
+    public XmlPathDictionary newRequestDictionary() {
+        return new XmlPathDictionary(getShared());
+    }
+
+    // словарь шаблона, к которому относятся номера путей
+    public XmlPathDictionary getShared() {
+        return shared == null ? this : shared;
+    }
+
+    public XmlPathNodePool getPathNodePool() {
+        return pathNodePool;
+    }
+
+    public int getPathCount() {
+        return templatePaths.length;
+    }
+
+    public XmlPath getTemplatePath(int pathId) {
+        return templatePaths[pathId];
+    }
+
+    public TemplateAttribute getAttribute(int pathId) {
+        return attributes[pathId];
+    }
+
+    // id пути шаблона, по которому найден конкретный путь запроса (значения динамических нод не учитываются),
+    // -1 - путь не относится к шаблону
+    public int getPathId(XmlPath concretePath) {
+        Integer pathId = templatePathIds.get(concretePath);
+        if (pathId == null && XmlUtils.isDynamicPath(concretePath)) {
+            pathId = templatePathIds.get(XmlUtils.createTemplateDynamicPath(concretePath));
+        }
+
+        return pathId == null ? -1 : pathId;
+    }
+
+    public int getSlotCount() {
+        return requestPaths == null ? templatePaths.length : templatePaths.length + requestPaths.size();
+    }
+
+    public XmlPath getSlotPath(int slot) {
+        return slot < templatePaths.length ? templatePaths[slot] : getRequestPath(slot).path;
+    }
+
+    public String getSlotKey(int slot) {
+        return slot < templatePaths.length ? templateKeys[slot] : getRequestPath(slot).key;
+    }
+
+    public String getSlotSubtreeKey(int slot) {
+        return slot < templatePaths.length ? templateSubtreeKeys[slot] : getRequestPath(slot).subtreeKey;
+    }
+
+    public TemplateAttribute getSlotAttribute(int slot) {
+        return attributes[slot < templatePaths.length ? slot : getRequestPath(slot).pathId];
+    }
+
+    private RequestPath getRequestPath(int slot) {
+        return requestPaths.get(slot - templatePaths.length);
+    }
+
+    // номер конкретного пути запроса, найденного по пути шаблона pathId
+    // для НЕдинамических путей и единственной динамической секции совпадает с id пути шаблона
+    // для остальных динамических путей словарь шаблона возвращает REQUEST_PATH, путь нужно интернировать в словаре запроса
+    public int intern(int pathId, XmlPath concretePath) {
+        if (!attributes[pathId].isDynamic() || concretePath.equals(templatePaths[pathId])) {
+            return pathId;
+        }
+        if (requestPathSlots == null) {
+            return REQUEST_PATH;
+        }
+
+        Integer slot = requestPathSlots.get(concretePath);
+        if (slot != null) {
+            return slot;
+        }
+        int newSlot = getSlotCount();
+        requestPaths.add(new RequestPath(concretePath, pathId));
+        requestPathSlots.put(concretePath, newSlot);
+
+        return newSlot;
+    }
+
+    // поддерево, к которому относится путь атрибута: последний элемент с дочерними узлами-признаками
+    // (например, секция с SectionId/SectionNumber) перед элементом, содержащим сам атрибут,
+    // и следующий за ним элемент пути (SectionAttributes, AttachedFiles)
+    // атрибуты, расположенные непосредственно под таким элементом, относятся к нему самому
+    static XmlPath getSubtreePath(XmlPath path) {
+        int attributeIndex = path.getPathElementsLength() - 1;
+        // элемент вида SectionAttribute{Name=...} или FileInfo{Name=...} описывает сам атрибут
+        if (attributeIndex > 0
+                && path.getPathElement(attributeIndex - 1).getType() == XmlPathNode.Type.NODE_WITH_CHILDREN) {
+            attributeIndex--;
+        }
+
+        int boundaryIndex = -1;
+        for (int i = 0; i < attributeIndex; i++) {
+            if (path.getPathElement(i).getType() == XmlPathNode.Type.NODE_WITH_CHILDREN) {
+                boundaryIndex = i;
+            }
+        }
+        int toIndex = boundaryIndex + 1 < attributeIndex ? boundaryIndex + 2 : boundaryIndex + 1;
+
+        return new XmlPath(path.getPathElementsSubList(0, toIndex));
+    }
+
+    // конкретный динамический путь запроса и id пути шаблона, по которому он найден
+    private static class RequestPath {
+
+        private final XmlPath path;
+        private final int pathId;
+        private final String key;
+        private final String subtreeKey;
+
+        private RequestPath(XmlPath path, int pathId) {
+            this.path = path;
+            this.pathId = pathId;
+            this.key = path.toString();
+            this.subtreeKey = getSubtreePath(path).toString();
+        }
+    }
+}
@@ -4,12 +4,15 @@ import java.util.Collections;
 import java.util.List;
 import java.util.Objects;
 
-public class XmlPathNode {
+// неизменяемый элемент пути, хеш вычисляется при создании
+// одинаковые элементы путей шаблона и запросов приводятся к одному экземпляру через XmlPathNodePool
+public final class XmlPathNode {
 
     private final Type type;
-    protected String name;
-    protected String value;
-    protected List<XmlPathNode> childNodes;
+    private final String name;
+    private final String value;
+    private final List<XmlPathNode> childNodes;
+    private final int hash;
 
     public String getValue() {
         return value;
@@ -24,26 +27,27 @@ public class XmlPathNode {
     }
 
     public List<XmlPathNode> getChildNodes() {
-        if (childNodes != null) {
-            return Collections.unmodifiableList(childNodes);
-        } else {
-            return Collections.emptyList();
-        }
+        return childNodes;
     }
 
     public XmlPathNode(Type type, String name) {
-        this.type = type;
-        this.name = name;
+        this(type, name, null, null);
     }
 
     public XmlPathNode(Type type, String name, String value) {
-        this(type, name);
-        this.value = value;
+        this(type, name, value, null);
     }
 
     public XmlPathNode(Type type, String name, List<XmlPathNode> childNodes) {
-        this(type, name);
-        this.childNodes = childNodes;
+        this(type, name, null, childNodes);
+    }
+
+    private XmlPathNode(Type type, String name, String value, List<XmlPathNode> childNodes) {
+        this.type = type;
+        this.name = name;
+        this.value = value;
+        this.childNodes = childNodes == null ? Collections.emptyList() : List.copyOf(childNodes);
+        this.hash = Objects.hash(type, name, value, this.childNodes);
     }
 
     @Override
@@ -51,14 +55,14 @@ public class XmlPathNode {
         if (this == o) return true;
         if (o == null || getClass() != o.getClass()) return false;
         XmlPathNode pathNode = (XmlPathNode) o;
-        return type == pathNode.type && name.equals(pathNode.name)
+        return hash == pathNode.hash && type == pathNode.type && name.equals(pathNode.name)
                 && Objects.equals(value, pathNode.value)
-                && Objects.equals(childNodes, pathNode.childNodes);
+                && childNodes.equals(pathNode.childNodes);
     }
 
     @Override
     public int hashCode() {
-        return Objects.hash(type, name, value, childNodes);
+        return hash;
     }
 
     public enum Type {
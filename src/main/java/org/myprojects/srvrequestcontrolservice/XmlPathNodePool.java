@@ -0,0 +1,55 @@
+package org.myprojects.srvrequestcontrolservice;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+// пул элементов путей шаблона
+// одинаковые элементы путей (например, main:Section с SectionId=6 или Name=TypeTC) хранятся одним экземпляром,
+// поэтому пути шаблона и конкретные пути запросов сравниваются в основном по ссылке
+public class XmlPathNodePool {
+
+    // ограничение на размер пула, сверх него элементы (например, с новыми номерами секций) не сохраняются
+    static final int MAX_NODES = 100_000;
+
+    private final Map<XmlPathNode, XmlPathNode> nodes = new ConcurrentHashMap<>();
+
+    public XmlPathNode intern(XmlPathNode pathNode) {
+        if (pathNode == null) {
+            return null;
+        }
+        XmlPathNode canonical = nodes.get(pathNode);
+        if (canonical != null) {
+            return canonical;
+        }
+
+        // чилды приводим к общим экземплярам до сохранения самой ноды
+        if (!pathNode.getChildNodes().isEmpty()) {
+            List<XmlPathNode> children = new ArrayList<>(pathNode.getChildNodes().size());
+            for (XmlPathNode child : pathNode.getChildNodes()) {
+                children.add(intern(child));
+            }
+            pathNode = new XmlPathNode(pathNode.getType(), pathNode.getName(), children);
+        }
+        if (nodes.size() >= MAX_NODES) {
+            return pathNode;
+        }
+        canonical = nodes.putIfAbsent(pathNode, pathNode);
+
+        return canonical == null ? pathNode : canonical;
+    }
+
+    public XmlPath intern(XmlPath path) {
+        XmlPathNode[] pathNodes = new XmlPathNode[path.getPathElementsLength()];
+        for (int i = 0; i < pathNodes.length; i++) {
+            pathNodes[i] = intern(path.getPathElement(i));
+        }
+
+        return new XmlPath(pathNodes);
+    }
+
+    public int size() {
+        return nodes.size();
+    }
+}
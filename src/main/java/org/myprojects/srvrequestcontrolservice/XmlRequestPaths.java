@@ -1,18 +1,30 @@
 package org.myprojects.srvrequestcontrolservice;
 
-import org.w3c.dom.Node;
+// значения клиентских атрибутов запроса по номерам путей словаря шаблона (или словаря запроса, если словарь
+// шаблона заполнен)
+public class XmlRequestPaths {
 
-import java.util.Map;
+    protected XmlPathDictionary dictionary;
+    protected RequestAttributeValue[] values;
 
-public abstract class XmlRequestPaths {
+    public XmlRequestPaths(XmlPathDictionary dictionary, RequestAttributeValue[] values) {
+        this.dictionary = dictionary;
+        this.values = values;
+    }
+
+    public XmlPathDictionary getDictionary() {
+        return dictionary;
+    }
 
-    protected Map<XmlPath, Node> paths;
+    public int getSlotCount() {
+        return values.length;
+    }
 
-    protected XmlRequestPaths(Map<XmlPath, Node> paths) {
-        this.paths = paths;
+    public RequestAttributeValue[] getValues() {
+        return values;
     }
 
-    public Map<XmlPath, Node> getPaths() {
-        return paths;
+    public RequestAttributeValue getValue(int slot) {
+        return slot < values.length ? values[slot] : null;
     }
 }
@@ -1,19 +1,23 @@
 package org.myprojects.srvrequestcontrolservice;
 
-import org.w3c.dom.Node;
-
 import java.util.Map;
 
-public class XmlRequestTemplate extends XmlRequestPaths {
+// скомпилированный шаблон клиентских атрибутов, не зависит от дерева шаблона
+public class XmlRequestTemplate {
 
-    private String name;
+    private final String name;
+    private final XmlPathDictionary dictionary;
 
-    public XmlRequestTemplate(String name, Map<XmlPath, Node> clientAttrPaths) {
-        super(clientAttrPaths);
+    public XmlRequestTemplate(String name, Map<XmlPath, TemplateAttribute> clientAttrPaths) {
         this.name = name;
+        this.dictionary = new XmlPathDictionary(clientAttrPaths);
     }
 
     public String getName() {
         return name;
     }
+
+    public XmlPathDictionary getDictionary() {
+        return dictionary;
+    }
 }
@@ -0,0 +1,25 @@
+package org.myprojects.srvrequestcontrolservice.capture;
+
+import lombok.Getter;
+import lombok.Setter;
+import org.myprojects.srvrequestcontrolservice.data.ServiceRequest;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+// медленный запрос, сохраненный для последующего воспроизведения
+// тело проверяемого запроса хранится с хешированными персональными данными
+@Getter
+@Setter
+public class CapturedRequest {
+
+    private String capturedAt;
+    private String messageId;
+    private double totalMillis;
+    // время этапов обработки на момент сохранения (название этапа -> мс)
+    private Map<String, Double> stageMillis = new LinkedHashMap<>();
+    private int sqlRoundTrips;
+    private ServiceRequest serviceRequest;
+
+    public CapturedRequest() {}
+}
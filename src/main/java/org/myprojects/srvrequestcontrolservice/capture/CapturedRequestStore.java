@@ -0,0 +1,117 @@
+package org.myprojects.srvrequestcontrolservice.capture;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.locks.ReentrantLock;
+
+// локальное файловое хранилище медленных запросов
+// запросы пишутся построчно в json-файл, при превышении размера файл ротируется:
+// captured-requests.jsonl -> captured-requests.1.jsonl -> ... -> captured-requests.<max-files - 1>.jsonl
+@Slf4j
+@Component
+public class CapturedRequestStore {
+
+    private static final String FILE_NAME = "captured-requests";
+    private static final String FILE_EXTENSION = ".jsonl";
+
+    private final Path directory;
+    private final long maxFileSize;
+    private final int maxFiles;
+    private final ObjectMapper mapper;
+    // запись в файл под ReentrantLock не закрепляет виртуальный поток за потоком-носителем
+    private final ReentrantLock fileLock = new ReentrantLock();
+
+    @Autowired
+    public CapturedRequestStore(@Value("${service.capture.dir:capture}") String directory,
+                                @Value("${service.capture.max-file-size:10485760}") long maxFileSize,
+                                @Value("${service.capture.max-files:5}") int maxFiles,
+                                ObjectMapper mapper) {
+        this.directory = Paths.get(directory);
+        this.maxFileSize = maxFileSize;
+        this.maxFiles = Math.max(maxFiles, 1);
+        this.mapper = mapper;
+    }
+
+    public void save(CapturedRequest capturedRequest) throws IOException {
+        byte[] line = (mapper.writeValueAsString(capturedRequest) + System.lineSeparator())
+                .getBytes(StandardCharsets.UTF_8);
+
+        fileLock.lock();
+        try {
+            Files.createDirectories(directory);
+            Path currentFile = getFile(0);
+            // ротируем файлы, если текущий файл превысит допустимый размер
+            if (Files.exists(currentFile) && Files.size(currentFile) + line.length > maxFileSize) {
+                rotate();
+            }
+            Files.write(currentFile, line, StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+        } finally {
+            fileLock.unlock();
+        }
+    }
+
+    // читаем все сохраненные запросы, начиная с самых старых
+    public List<CapturedRequest> readAll() throws IOException {
+        List<CapturedRequest> capturedRequests = new ArrayList<>();
+        fileLock.lock();
+        try {
+            for (int i = maxFiles - 1; i >= 0; i--) {
+                Path file = getFile(i);
+                if (Files.exists(file)) {
+                    capturedRequests.addAll(read(file, mapper));
+                }
+            }
+        } finally {
+            fileLock.unlock();
+        }
+
+        return capturedRequests;
+    }
+
+    // читаем запросы из отдельного файла (например, выгруженного с другого стенда)
+    public static List<CapturedRequest> read(Path file, ObjectMapper mapper) throws IOException {
+        List<CapturedRequest> capturedRequests = new ArrayList<>();
+        try (BufferedReader reader = Files.newBufferedReader(file, StandardCharsets.UTF_8)) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (!line.isBlank()) {
+                    capturedRequests.add(mapper.readValue(line, CapturedRequest.class));
+                }
+            }
+        }
+
+        return capturedRequests;
+    }
+
+    private void rotate() throws IOException {
+        // самый старый файл удаляем, остальные сдвигаем на одну позицию
+        Files.deleteIfExists(getFile(maxFiles - 1));
+        for (int i = maxFiles - 2; i >= 0; i--) {
+            Path file = getFile(i);
+            if (Files.exists(file)) {
+                Files.move(file, getFile(i + 1), StandardCopyOption.REPLACE_EXISTING);
+            }
+        }
+        log.info("Файлы медленных запросов ротированы в " + directory.toAbsolutePath());
+    }
+
+    private Path getFile(int index) {
+        return directory.resolve(index == 0
+                ? FILE_NAME + FILE_EXTENSION
+                : FILE_NAME + "." + index + FILE_EXTENSION);
+    }
+}
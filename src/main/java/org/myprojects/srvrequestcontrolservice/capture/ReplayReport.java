@@ -0,0 +1,128 @@
+package org.myprojects.srvrequestcontrolservice.capture;
+
+import org.myprojects.srvrequestcontrolservice.data.ServiceResponse;
+import org.myprojects.srvrequestcontrolservice.metrics.StageClock;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+
+// результаты воспроизведения сохраненных запросов
+// первый прогон каждого запроса считается "холодным" (пустые кеши шаблонов и запросов),
+// по остальным прогонам считается медиана
+public class ReplayReport {
+
+    private final List<Entry> entries = new ArrayList<>();
+
+    public List<Entry> getEntries() {
+        return Collections.unmodifiableList(entries);
+    }
+
+    Entry addEntry(CapturedRequest capturedRequest) {
+        Entry entry = new Entry(capturedRequest);
+        entries.add(entry);
+        return entry;
+    }
+
+    public String format() {
+        StringBuilder report = new StringBuilder();
+        report.append(String.format(Locale.ROOT, "%-36s %10s %10s %10s", "messageId", "captured", "cold", "warm"));
+        for (StageClock.Stage stage : StageClock.Stage.values()) {
+            report.append(String.format(Locale.ROOT, " %10s", stage.getMetricName()));
+        }
+        report.append(String.format(Locale.ROOT, " %6s %s%n", "sql", "status"));
+
+        for (Entry entry : entries) {
+            report.append(String.format(Locale.ROOT, "%-36s %10.3f %10.3f %10.3f",
+                    entry.getMessageId(),
+                    entry.getCapturedRequest().getTotalMillis(),
+                    entry.getColdTotalMillis(),
+                    entry.getWarmTotalMillis()));
+            for (StageClock.Stage stage : StageClock.Stage.values()) {
+                report.append(String.format(Locale.ROOT, " %10.3f", entry.getWarmStageMillis(stage)));
+            }
+            report.append(String.format(Locale.ROOT, " %6d %s%n", entry.getSqlRoundTrips(), entry.getStatuses()));
+        }
+
+        return report.toString();
+    }
+
+    public static class Entry {
+
+        private final CapturedRequest capturedRequest;
+        // время этапов по прогонам, последний элемент - общее время
+        private final List<long[]> runs = new ArrayList<>();
+        private final List<ServiceResponse.Status> statuses = new ArrayList<>();
+        private int sqlRoundTrips;
+
+        private Entry(CapturedRequest capturedRequest) {
+            this.capturedRequest = capturedRequest;
+        }
+
+        void addRun(StageClock clock, ServiceResponse.Status status) {
+            StageClock.Stage[] stages = StageClock.Stage.values();
+            long[] run = new long[stages.length + 1];
+            for (StageClock.Stage stage : stages) {
+                run[stage.ordinal()] = clock.getStageNanos(stage);
+            }
+            run[stages.length] = clock.getTotalNanos();
+            runs.add(run);
+            if (!statuses.contains(status)) {
+                statuses.add(status);
+            }
+            sqlRoundTrips = clock.getSqlRoundTrips();
+        }
+
+        public String getMessageId() {
+            return capturedRequest.getMessageId();
+        }
+
+        public CapturedRequest getCapturedRequest() {
+            return capturedRequest;
+        }
+
+        public int getRunCount() {
+            return runs.size();
+        }
+
+        // различные статусы ответов, полученные при воспроизведении
+        public List<ServiceResponse.Status> getStatuses() {
+            return Collections.unmodifiableList(statuses);
+        }
+
+        // количество обращений к БД в последнем прогоне
+        public int getSqlRoundTrips() {
+            return sqlRoundTrips;
+        }
+
+        public double getColdTotalMillis() {
+            return runs.isEmpty() ? 0 : toMillis(runs.get(0)[StageClock.Stage.values().length]);
+        }
+
+        public double getWarmTotalMillis() {
+            return getWarmMedianMillis(StageClock.Stage.values().length);
+        }
+
+        public double getWarmStageMillis(StageClock.Stage stage) {
+            return getWarmMedianMillis(stage.ordinal());
+        }
+
+        private double getWarmMedianMillis(int index) {
+            if (runs.isEmpty()) {
+                return 0;
+            }
+            // если прогон был один, используем его
+            List<long[]> warmRuns = runs.size() == 1 ? runs : runs.subList(1, runs.size());
+            long[] values = warmRuns.stream().mapToLong(r -> r[index]).toArray();
+            Arrays.sort(values);
+
+            return toMillis(values[values.length / 2]);
+        }
+
+        private static double toMillis(long nanos) {
+            return nanos / 1_000_000d;
+        }
+    }
+}
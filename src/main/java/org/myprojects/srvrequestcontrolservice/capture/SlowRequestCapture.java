@@ -0,0 +1,156 @@
+package org.myprojects.srvrequestcontrolservice.capture;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import lombok.extern.slf4j.Slf4j;
+import org.myprojects.srvrequestcontrolservice.ClientAttributesServiceOperator;
+import org.myprojects.srvrequestcontrolservice.XmlRequestTemplate;
+import org.myprojects.srvrequestcontrolservice.data.ServiceRequest;
+import org.myprojects.srvrequestcontrolservice.metrics.StageClock;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.scheduling.concurrent.CustomizableThreadFactory;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import javax.sql.DataSource;
+import java.sql.Connection;
+import java.time.LocalDateTime;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+// сохраняет запросы, обработка которых заняла больше порогового времени
+// хеширование персональных данных и запись выполняются в отдельном потоке с ограниченной очередью,
+// чтобы не задерживать ответ, при переполнении очереди запрос не сохраняется (request.control.capture.dropped)
+@Slf4j
+@Component
+public class SlowRequestCapture {
+
+    @Value("${service.capture.enabled:false}")
+    private boolean enabled;
+
+    @Value("${service.capture.threshold-ms:1000}")
+    private long thresholdMs;
+
+    @Value("${service.capture.queue:100}")
+    private int queueSize;
+
+    @Autowired
+    private DataSource dataSource;
+
+    @Autowired
+    private ClientAttributesServiceOperator clientAttributesServiceOperator;
+
+    @Autowired
+    private CapturedRequestStore capturedRequestStore;
+
+    @Autowired
+    private MeterRegistry meterRegistry;
+
+    private ThreadPoolExecutor executor;
+    private Counter droppedCounter;
+
+    @PostConstruct
+    public void init() {
+        if (!enabled) {
+            return;
+        }
+        // один поток: запись в файл хранилища последовательная
+        CustomizableThreadFactory threadFactory = new CustomizableThreadFactory("slow-request-capture-");
+        threadFactory.setDaemon(true);
+        executor = new ThreadPoolExecutor(1, 1, 60, TimeUnit.SECONDS,
+                new ArrayBlockingQueue<>(queueSize), threadFactory);
+        executor.allowCoreThreadTimeOut(true);
+        droppedCounter = Counter.builder("request.control.capture.dropped")
+                .register(meterRegistry);
+    }
+
+    @PreDestroy
+    public void destroy() {
+        if (executor != null) {
+            executor.shutdown();
+        }
+    }
+
+    // вызывается после остановки часов запроса, шаблон определяется по БД
+    public CompletableFuture<Void> captureIfSlow(ServiceRequest serviceRequest, StageClock clock) {
+        return captureIfSlow(serviceRequest, clock, null);
+    }
+
+    // template - шаблон, по которому обрабатывался запрос (RequestContext), персональные данные хешируются по нему
+    // без повторного обращения к БД, результат завершается после записи запроса в хранилище
+    public CompletableFuture<Void> captureIfSlow(ServiceRequest serviceRequest, StageClock clock,
+                                                 XmlRequestTemplate template) {
+        if (!enabled || !clock.isEnabled()
+                || clock.getTotalNanos() < TimeUnit.MILLISECONDS.toNanos(thresholdMs)) {
+            return CompletableFuture.completedFuture(null);
+        }
+
+        // время этапов копируем в потоке обработки, часы запроса дальше не используются
+        CapturedRequest capturedRequest = toCapturedRequest(serviceRequest, clock);
+        try {
+            return CompletableFuture.runAsync(() -> save(capturedRequest, serviceRequest, template), executor);
+        } catch (RejectedExecutionException e) {
+            droppedCounter.increment();
+            log.debug("Очередь сохранения медленных запросов переполнена, запрос с messageId {} не сохранен",
+                    serviceRequest.getMessageId());
+            return CompletableFuture.completedFuture(null);
+        }
+    }
+
+    private void save(CapturedRequest capturedRequest, ServiceRequest serviceRequest, XmlRequestTemplate template) {
+        try {
+            // хешируем персональные данные по шаблону запроса или актуальному шаблону потока
+            String checkRequestBody = serviceRequest.getCheckRequestBody();
+            if (checkRequestBody != null && !checkRequestBody.isBlank()) {
+                capturedRequest.getServiceRequest().setCheckRequestBody(
+                        hashPersonalData(serviceRequest, checkRequestBody, template));
+            }
+            capturedRequestStore.save(capturedRequest);
+        } catch (Exception e) {
+            // запрос без хеширования персональных данных не сохраняем
+            log.warn(String.format("Не удалось сохранить медленный запрос с messageId %s:%n%s",
+                    serviceRequest.getMessageId(),
+                    e.getMessage() == null ? "" : e.getMessage()));
+        }
+    }
+
+    private String hashPersonalData(ServiceRequest serviceRequest, String checkRequestBody,
+                                    XmlRequestTemplate template) throws Exception {
+        if (template != null) {
+            return clientAttributesServiceOperator.getRequestWithHashedPersonalData(template, checkRequestBody);
+        }
+        try (Connection conn = dataSource.getConnection()) {
+            return clientAttributesServiceOperator.getRequestWithHashedPersonalData(
+                    serviceRequest.getDataFlowType().name(), checkRequestBody, conn);
+        }
+    }
+
+    private CapturedRequest toCapturedRequest(ServiceRequest serviceRequest, StageClock clock) {
+        // копируем запрос, чтобы не изменять исходный
+        ServiceRequest capturedServiceRequest = new ServiceRequest(serviceRequest.getDataFlowType(),
+                serviceRequest.getFilialName(), serviceRequest.getMessageId(), serviceRequest.getOperators());
+        capturedServiceRequest.setRequestVersion(serviceRequest.getRequestVersion());
+        capturedServiceRequest.setIdList(serviceRequest.getIdList());
+
+        CapturedRequest capturedRequest = new CapturedRequest();
+        capturedRequest.setCapturedAt(LocalDateTime.now().toString());
+        capturedRequest.setMessageId(serviceRequest.getMessageId());
+        capturedRequest.setTotalMillis(toMillis(clock.getTotalNanos()));
+        for (StageClock.Stage stage : StageClock.Stage.values()) {
+            capturedRequest.getStageMillis().put(stage.getMetricName(), toMillis(clock.getStageNanos(stage)));
+        }
+        capturedRequest.setSqlRoundTrips(clock.getSqlRoundTrips());
+        capturedRequest.setServiceRequest(capturedServiceRequest);
+
+        return capturedRequest;
+    }
+
+    private static double toMillis(long nanos) {
+        return nanos / 1_000_000d;
+    }
+}
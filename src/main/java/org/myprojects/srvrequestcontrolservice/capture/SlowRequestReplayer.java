@@ -0,0 +1,75 @@
+package org.myprojects.srvrequestcontrolservice.capture;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import org.myprojects.srvrequestcontrolservice.RequestContext;
+import org.myprojects.srvrequestcontrolservice.RequestControlService;
+import org.myprojects.srvrequestcontrolservice.data.Operators;
+import org.myprojects.srvrequestcontrolservice.data.ServiceRequest;
+import org.myprojects.srvrequestcontrolservice.data.ServiceResponse;
+import org.myprojects.srvrequestcontrolservice.metrics.StageClock;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+
+// воспроизводит сохраненные медленные запросы через RequestControlService
+// и собирает время этапов обработки
+// персональные данные сохраненных запросов уже хешированы (SlowRequestCapture), повторно они не хешируются
+@Component
+public class SlowRequestReplayer {
+
+    @Autowired
+    private RequestControlService requestControlService;
+
+    // checkOnly - воспроизводить только проверки, чтобы каждый прогон работал с одними и теми же данными в БД
+    public ReplayReport replay(List<CapturedRequest> capturedRequests, int iterations, boolean checkOnly)
+            throws JsonProcessingException {
+        ReplayReport report = new ReplayReport();
+        for (CapturedRequest capturedRequest : capturedRequests) {
+            ReplayReport.Entry entry = report.addEntry(capturedRequest);
+            ServiceRequest serviceRequest = checkOnly
+                    ? toCheckOnlyRequest(capturedRequest.getServiceRequest())
+                    : capturedRequest.getServiceRequest();
+
+            for (int i = 0; i < iterations; i++) {
+                StageClock clock = StageClock.start();
+                ServiceResponse serviceResponse;
+                try {
+                    RequestContext requestContext = new RequestContext();
+                    requestContext.setRequestBodyHashed(true);
+                    serviceResponse = requestControlService.processServiceRequest(serviceRequest, requestContext);
+                } finally {
+                    StageClock.stop();
+                }
+                entry.addRun(clock, serviceResponse.getStatus());
+            }
+        }
+
+        return report;
+    }
+
+    private static ServiceRequest toCheckOnlyRequest(ServiceRequest serviceRequest) {
+        Map<Operators.ControlType, Operators.Operation> checkOperations = new EnumMap<>(Operators.ControlType.class);
+        for (Map.Entry<Operators.ControlType, Operators.Operation> operation
+                : serviceRequest.getOperators().getControlOperations().entrySet()) {
+            // операции уровня REQUEST изменяют данные в БД, не воспроизводим их
+            if (operation.getKey() == Operators.ControlType.REQUEST) {
+                continue;
+            }
+            if (operation.getValue() == Operators.Operation.CHECK
+                    || operation.getValue() == Operators.Operation.CHECK_AND_UPDATE) {
+                checkOperations.put(operation.getKey(), Operators.Operation.CHECK);
+            }
+        }
+
+        ServiceRequest checkRequest = new ServiceRequest(serviceRequest.getDataFlowType(),
+                serviceRequest.getFilialName(), serviceRequest.getMessageId(), new Operators(checkOperations));
+        checkRequest.setRequestVersion(serviceRequest.getRequestVersion());
+        checkRequest.setIdList(serviceRequest.getIdList());
+        checkRequest.setCheckRequestBody(serviceRequest.getCheckRequestBody());
+
+        return checkRequest;
+    }
+}
@@ -1,5 +1,7 @@
 package org.myprojects.srvrequestcontrolservice.data;
 
+import org.myprojects.srvrequestcontrolservice.RequestContext;
+
 public class ControlTypeRequest {
 
     private final Operators.ControlType controlType;
@@ -8,6 +10,8 @@ public class ControlTypeRequest {
     private Integer requestVersion;
     private String request;
     private IdList requestIdentifiers;
+    // общие данные запроса к сервису (может отсутствовать)
+    private RequestContext requestContext;
 
     private ControlTypeRequest(Operators.ControlType controlType, ServiceRequest.DataFlowType dataFlowType, String filial) {
         this.controlType = controlType;
@@ -27,6 +31,10 @@ public class ControlTypeRequest {
         this.requestIdentifiers = requestIdentifiers;
     }
 
+    public void setRequestContext(RequestContext requestContext) {
+        this.requestContext = requestContext;
+    }
+
     public Operators.ControlType getControlType() {
         return controlType;
     }
@@ -51,6 +59,10 @@ public class ControlTypeRequest {
         return requestIdentifiers;
     }
 
+    public RequestContext getRequestContext() {
+        return requestContext;
+    }
+
     public static class Builder {
 
         private final ControlTypeRequest controlTypeRequest;
@@ -74,6 +86,11 @@ public class ControlTypeRequest {
             return this;
         }
 
+        public Builder setRequestContext(RequestContext requestContext) {
+            this.controlTypeRequest.setRequestContext(requestContext);
+            return this;
+        }
+
         public ServiceRequest.DataFlowType getFlowType() {
             return this.controlTypeRequest.getFlowType();
         }
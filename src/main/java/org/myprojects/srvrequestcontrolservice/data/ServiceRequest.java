@@ -12,7 +12,6 @@ public class ServiceRequest {
     @NotBlank
     private final String filialName;
     @NotNull
-    @NotBlank
     private final ServiceRequest.DataFlowType dataFlowType;
     @NotNull
     @NotBlank
@@ -0,0 +1,16 @@
+package org.myprojects.srvrequestcontrolservice.exceptions;
+
+public class AdmissionRejectedException extends RequestControlServiceException {
+
+    // через сколько секунд клиенту стоит повторить запрос
+    private final long retryAfterSeconds;
+
+    public AdmissionRejectedException(String message, long retryAfterSeconds) {
+        super(message);
+        this.retryAfterSeconds = retryAfterSeconds;
+    }
+
+    public long getRetryAfterSeconds() {
+        return retryAfterSeconds;
+    }
+}
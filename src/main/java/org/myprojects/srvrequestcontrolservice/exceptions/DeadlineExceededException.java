@@ -0,0 +1,12 @@
+package org.myprojects.srvrequestcontrolservice.exceptions;
+
+public class DeadlineExceededException extends RequestControlServiceException {
+
+    public DeadlineExceededException(String message) {
+        super(message);
+    }
+
+    public DeadlineExceededException(String message, Throwable t) {
+        super(message, t);
+    }
+}
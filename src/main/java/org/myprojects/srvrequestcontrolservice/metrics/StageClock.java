@@ -0,0 +1,214 @@
+package org.myprojects.srvrequestcontrolservice.metrics;
+
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+// часы этапов обработки одного запроса
+// время этапа считается без учета вложенных этапов одного потока (например, время запросов к БД
+// не попадает в этап сравнения), поэтому последовательные этапы в сумме не превышают общего времени обработки
+// этапы, идущие параллельно в разных потоках (разбор тела запроса в RequestPrefetch одновременно с запросами к БД),
+// учитываются каждый полностью, и сумма этапов может превысить общее время
+public class StageClock {
+
+    private static final ThreadLocal<StageClock> CURRENT = new ThreadLocal<>();
+    private static final ThreadLocal<Span> ACTIVE_SPAN = new ThreadLocal<>();
+
+    // используется, когда обработка идет вне запроса (тесты, служебные вызовы)
+    private static final StageClock DETACHED = new StageClock(false);
+    private static final Span NOOP_SPAN = new Span(DETACHED, null, null);
+
+    private static final int CACHE_UNKNOWN = 0;
+    private static final int CACHE_HIT = 1;
+    private static final int CACHE_MISS = 2;
+
+    private final boolean enabled;
+    private final long startedAt;
+    private final AtomicLongArray stageNanos = new AtomicLongArray(Stage.values().length);
+    private final AtomicInteger sqlRoundTrips = new AtomicInteger();
+    private final AtomicInteger templateCache = new AtomicInteger(CACHE_UNKNOWN);
+    private final AtomicInteger savedRequestCache = new AtomicInteger(CACHE_UNKNOWN);
+    private volatile long totalNanos = -1;
+
+    private StageClock(boolean enabled) {
+        this.enabled = enabled;
+        this.startedAt = System.nanoTime();
+    }
+
+    // создаем часы для нового запроса и привязываем их к текущему потоку
+    public static StageClock start() {
+        StageClock clock = create();
+        CURRENT.set(clock);
+        return clock;
+    }
+
+    // создаем часы для нового запроса без привязки к потоку (обработка запроса переходит между потоками)
+    public static StageClock create() {
+        return new StageClock(true);
+    }
+
+    // привязываем часы запроса к текущему потоку на время выполнения очередной части обработки
+    public static void attach(StageClock clock) {
+        CURRENT.set(clock);
+        ACTIVE_SPAN.remove();
+    }
+
+    // отвязываем часы от текущего потока, не фиксируя общее время обработки
+    public static void detach() {
+        CURRENT.remove();
+        ACTIVE_SPAN.remove();
+    }
+
+    // возвращаем часы текущего запроса или "пустые" часы, если запрос не привязан к потоку
+    public static StageClock current() {
+        StageClock clock = CURRENT.get();
+        return clock == null ? DETACHED : clock;
+    }
+
+    // фиксируем общее время обработки и отвязываем часы от текущего потока
+    public static void stop() {
+        StageClock clock = CURRENT.get();
+        if (clock != null && clock.totalNanos < 0) {
+            clock.totalNanos = System.nanoTime() - clock.startedAt;
+        }
+        CURRENT.remove();
+        ACTIVE_SPAN.remove();
+    }
+
+    public Span enter(Stage stage) {
+        if (!enabled) {
+            return NOOP_SPAN;
+        }
+        Span span = new Span(this, stage, ACTIVE_SPAN.get());
+        ACTIVE_SPAN.set(span);
+        return span;
+    }
+
+    public void countSqlRoundTrip() {
+        if (enabled) {
+            sqlRoundTrips.incrementAndGet();
+        }
+    }
+
+    public void recordTemplateCache(boolean hit) {
+        recordCache(templateCache, hit);
+    }
+
+    public void recordSavedRequestCache(boolean hit) {
+        recordCache(savedRequestCache, hit);
+    }
+
+    private void recordCache(AtomicInteger cache, boolean hit) {
+        if (!enabled) {
+            return;
+        }
+        // если хотя бы одно обращение к кешу было промахом, считаем промахом весь запрос
+        if (hit) {
+            cache.compareAndSet(CACHE_UNKNOWN, CACHE_HIT);
+        } else {
+            cache.set(CACHE_MISS);
+        }
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    public long getStageNanos(Stage stage) {
+        return stageNanos.get(stage.ordinal());
+    }
+
+    public long getTotalNanos() {
+        return totalNanos < 0 ? System.nanoTime() - startedAt : totalNanos;
+    }
+
+    public int getSqlRoundTrips() {
+        return sqlRoundTrips.get();
+    }
+
+    public Boolean getTemplateCacheHit() {
+        return toHit(templateCache.get());
+    }
+
+    public Boolean getSavedRequestCacheHit() {
+        return toHit(savedRequestCache.get());
+    }
+
+    private static Boolean toHit(int cacheState) {
+        return cacheState == CACHE_UNKNOWN ? null : cacheState == CACHE_HIT;
+    }
+
+    // формируем значение заголовка Server-Timing (https://www.w3.org/TR/server-timing/)
+    public String toServerTimingHeader() {
+        StringBuilder header = new StringBuilder();
+        for (Stage stage : Stage.values()) {
+            header.append(stage.getMetricName()).append(";dur=").append(toMillis(getStageNanos(stage)));
+            if (stage == Stage.DATABASE) {
+                header.append(";desc=\"sql=").append(getSqlRoundTrips()).append('"');
+            }
+            header.append(", ");
+        }
+        appendCache(header, "tpl-cache", getTemplateCacheHit());
+        appendCache(header, "req-cache", getSavedRequestCacheHit());
+        header.append("total;dur=").append(toMillis(getTotalNanos()));
+
+        return header.toString();
+    }
+
+    private static void appendCache(StringBuilder header, String name, Boolean hit) {
+        if (hit != null) {
+            header.append(name).append(";desc=").append(hit ? "hit" : "miss").append(", ");
+        }
+    }
+
+    private static String toMillis(long nanos) {
+        return String.format(Locale.ROOT, "%.3f", nanos / 1_000_000d);
+    }
+
+    public enum Stage {
+        PARSE("parse"),
+        DATABASE("db"),
+        COMPARE("compare"),
+        UPDATE("update");
+
+        private final String metricName;
+
+        Stage(String metricName) {
+            this.metricName = metricName;
+        }
+
+        public String getMetricName() {
+            return metricName;
+        }
+    }
+
+    // интервал выполнения этапа, время вложенных интервалов вычитается из времени внешнего
+    public static class Span implements AutoCloseable {
+
+        private final StageClock clock;
+        private final Stage stage;
+        private final Span parent;
+        private final long startedAt;
+        private long childNanos;
+
+        private Span(StageClock clock, Stage stage, Span parent) {
+            this.clock = clock;
+            this.stage = stage;
+            this.parent = parent;
+            this.startedAt = System.nanoTime();
+        }
+
+        @Override
+        public void close() {
+            if (stage == null) {
+                return;
+            }
+            long elapsed = System.nanoTime() - startedAt;
+            clock.stageNanos.addAndGet(stage.ordinal(), elapsed - childNanos);
+            if (parent != null) {
+                parent.childNanos += elapsed;
+            }
+            ACTIVE_SPAN.set(parent);
+        }
+    }
+}
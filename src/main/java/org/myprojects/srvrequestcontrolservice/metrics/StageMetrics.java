@@ -0,0 +1,62 @@
+package org.myprojects.srvrequestcontrolservice.metrics;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+// публикует время этапов обработки запроса в реестр метрик
+@Component
+public class StageMetrics {
+
+    private final Map<StageClock.Stage, Timer> stageTimers = new EnumMap<>(StageClock.Stage.class);
+    private final DistributionSummary sqlRoundTrips;
+    // счетчики попаданий и промахов кешей регистрируются один раз: [0] - попадание, [1] - промах
+    private final Counter[] templateCache;
+    private final Counter[] savedRequestCache;
+
+    @Autowired
+    public StageMetrics(MeterRegistry meterRegistry) {
+        for (StageClock.Stage stage : StageClock.Stage.values()) {
+            stageTimers.put(stage, Timer.builder("request.control.stage")
+                    .tag("stage", stage.getMetricName())
+                    .register(meterRegistry));
+        }
+        this.sqlRoundTrips = DistributionSummary.builder("request.control.sql.roundtrips")
+                .register(meterRegistry);
+        this.templateCache = registerCache(meterRegistry, "template");
+        this.savedRequestCache = registerCache(meterRegistry, "savedRequest");
+    }
+
+    private static Counter[] registerCache(MeterRegistry meterRegistry, String cache) {
+        return new Counter[]{
+                Counter.builder("request.control.cache").tag("cache", cache).tag("result", "hit")
+                        .register(meterRegistry),
+                Counter.builder("request.control.cache").tag("cache", cache).tag("result", "miss")
+                        .register(meterRegistry)};
+    }
+
+    public void record(StageClock clock) {
+        if (!clock.isEnabled()) {
+            return;
+        }
+        for (StageClock.Stage stage : StageClock.Stage.values()) {
+            stageTimers.get(stage).record(clock.getStageNanos(stage), TimeUnit.NANOSECONDS);
+        }
+        sqlRoundTrips.record(clock.getSqlRoundTrips());
+        recordCache(templateCache, clock.getTemplateCacheHit());
+        recordCache(savedRequestCache, clock.getSavedRequestCacheHit());
+    }
+
+    private static void recordCache(Counter[] counters, Boolean hit) {
+        if (hit != null) {
+            counters[hit ? 0 : 1].increment();
+        }
+    }
+}
@@ -0,0 +1,117 @@
+package org.myprojects.srvrequestcontrolservice.metrics;
+
+import org.myprojects.srvrequestcontrolservice.utils.Deadline;
+import org.springframework.jdbc.datasource.DelegatingDataSource;
+
+import javax.sql.DataSource;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.CallableStatement;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Statement;
+
+// источник данных, который учитывает время выполнения запросов к БД и их количество
+// в часах этапов текущего запроса (этап DATABASE)
+// запросы к БД выполняются с таймаутом по оставшемуся сроку обработки текущего запроса (Deadline)
+public class StageTimingDataSource extends DelegatingDataSource {
+
+    public StageTimingDataSource(DataSource targetDataSource) {
+        super(targetDataSource);
+    }
+
+    @Override
+    public Connection getConnection() throws SQLException {
+        Deadline.checkCurrent("получение соединения с БД");
+        return wrapConnection(super.getConnection());
+    }
+
+    @Override
+    public Connection getConnection(String username, String password) throws SQLException {
+        return wrapConnection(super.getConnection(username, password));
+    }
+
+    // закрываем пул соединений при остановке контекста
+    public void close() throws Exception {
+        if (getTargetDataSource() instanceof AutoCloseable) {
+            ((AutoCloseable) getTargetDataSource()).close();
+        }
+    }
+
+    private static Connection wrapConnection(Connection connection) {
+        return (Connection) Proxy.newProxyInstance(StageTimingDataSource.class.getClassLoader(),
+                new Class<?>[] {Connection.class},
+                new ConnectionHandler(connection));
+    }
+
+    private static Object invoke(Object target, Method method, Object[] args) throws Throwable {
+        try {
+            return method.invoke(target, args);
+        } catch (InvocationTargetException e) {
+            throw e.getTargetException();
+        }
+    }
+
+    private static class ConnectionHandler implements InvocationHandler {
+
+        private final Connection target;
+
+        private ConnectionHandler(Connection target) {
+            this.target = target;
+        }
+
+        @Override
+        public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+            Object result = StageTimingDataSource.invoke(target, method, args);
+            // оборачиваем выражения, чтобы учитывать время их выполнения
+            if (result instanceof Statement) {
+                Class<?> statementType = result instanceof CallableStatement ? CallableStatement.class
+                        : result instanceof PreparedStatement ? PreparedStatement.class
+                        : Statement.class;
+                return Proxy.newProxyInstance(StageTimingDataSource.class.getClassLoader(),
+                        new Class<?>[] {statementType},
+                        new StatementHandler((Statement) result));
+            }
+
+            return result;
+        }
+    }
+
+    private static class StatementHandler implements InvocationHandler {
+
+        private final Statement target;
+
+        private StatementHandler(Statement target) {
+            this.target = target;
+        }
+
+        @Override
+        public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+            if (!method.getName().startsWith("execute")) {
+                return StageTimingDataSource.invoke(target, method, args);
+            }
+
+            // ответ на запрос уже не нужен - не выполняем запрос к БД,
+            // иначе ограничиваем время выполнения оставшимся сроком, драйвер отменит запрос по таймауту
+            Deadline deadline = Deadline.current();
+            if (deadline != null) {
+                deadline.check("запрос к БД");
+                target.setQueryTimeout(deadline.getQueryTimeoutSeconds());
+            }
+
+            StageClock clock = StageClock.current();
+            clock.countSqlRoundTrip();
+            try (StageClock.Span ignored = clock.enter(StageClock.Stage.DATABASE)) {
+                return StageTimingDataSource.invoke(target, method, args);
+            } catch (SQLException e) {
+                if (deadline != null && deadline.isExpired()) {
+                    throw deadline.exceeded("запрос к БД", e);
+                }
+                throw e;
+            }
+        }
+    }
+}
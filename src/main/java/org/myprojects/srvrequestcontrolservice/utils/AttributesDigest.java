@@ -0,0 +1,132 @@
+package org.myprojects.srvrequestcontrolservice.utils;
+
+import org.apache.commons.codec.binary.Hex;
+import org.apache.commons.codec.digest.DigestUtils;
+import org.myprojects.srvrequestcontrolservice.RequestAttributeValue;
+import org.myprojects.srvrequestcontrolservice.XmlPathDictionary;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+
+// дерево дайджестов клиентских атрибутов запроса
+// листья - дайджесты поддеревьев (секция, вложения, атрибуты корня запроса) по отсортированным парам
+// (путь, нормализованное значение), корень - дайджест отсортированных дайджестов поддеревьев
+// все дайджесты включают название шаблона и не зависят от порядка атрибутов в запросе и номеров путей словаря
+// совпадение корневых дайджестов означает, что значения клиентских атрибутов не изменились,
+// совпадение дайджестов поддерева - что не изменились значения атрибутов этого поддерева
+public final class AttributesDigest {
+
+    private static final char VALUE_SEPARATOR = '\u001f';
+    private static final char ENTRY_SEPARATOR = '\u001e';
+    private static final String NO_VALUE = "\u0000";
+    private static final String SUBTREE_DIGESTS_SEPARATOR = ",";
+
+    private final String templateName;
+    private final String rootDigest;
+    // ключ поддерева -> дайджест поддерева
+    private final Map<String, String> subtreeDigests;
+
+    private AttributesDigest(String templateName, String rootDigest, Map<String, String> subtreeDigests) {
+        this.templateName = templateName;
+        this.rootDigest = rootDigest;
+        this.subtreeDigests = subtreeDigests;
+    }
+
+    public static AttributesDigest compute(String templateName, XmlPathDictionary dictionary,
+                                           RequestAttributeValue[] values) {
+        Map<String, List<String>> entriesBySubtree = new TreeMap<>();
+        for (int slot = 0; slot < values.length; slot++) {
+            RequestAttributeValue value = values[slot];
+            if (value == null) {
+                continue;
+            }
+            String comparableValue = value.getComparableValue();
+            entriesBySubtree.computeIfAbsent(dictionary.getSlotSubtreeKey(slot), k -> new ArrayList<>())
+                    .add(dictionary.getSlotKey(slot) + VALUE_SEPARATOR
+                            + (comparableValue == null ? NO_VALUE : comparableValue));
+        }
+
+        Map<String, String> subtreeDigests = new TreeMap<>();
+        for (Map.Entry<String, List<String>> subtree : entriesBySubtree.entrySet()) {
+            List<String> entries = subtree.getValue();
+            entries.sort(String::compareTo);
+            entries.add(0, subtree.getKey());
+            subtreeDigests.put(subtree.getKey(), digest(templateName, entries));
+        }
+
+        List<String> sortedSubtreeDigests = new ArrayList<>(subtreeDigests.values());
+        sortedSubtreeDigests.sort(String::compareTo);
+
+        return new AttributesDigest(templateName, digest(templateName, sortedSubtreeDigests),
+                Collections.unmodifiableMap(subtreeDigests));
+    }
+
+    private static String digest(String templateName, List<String> entries) {
+        MessageDigest digest = DigestUtils.getSha256Digest();
+        digest.update(templateName.getBytes(StandardCharsets.UTF_8));
+        for (String entry : entries) {
+            digest.update((byte) ENTRY_SEPARATOR);
+            digest.update(entry.getBytes(StandardCharsets.UTF_8));
+        }
+
+        return Hex.encodeHexString(digest.digest());
+    }
+
+    public String getTemplateName() {
+        return templateName;
+    }
+
+    public String getRootDigest() {
+        return rootDigest;
+    }
+
+    public String getSubtreeDigest(String subtreeKey) {
+        return subtreeDigests.get(subtreeKey);
+    }
+
+    // дайджесты поддеревьев в виде строки для сохранения вместе с запросом
+    // дайджест поддерева включает его ключ, поэтому сами ключи не сохраняются
+    public String getSubtreeDigests() {
+        List<String> digests = new ArrayList<>(subtreeDigests.values());
+        digests.sort(String::compareTo);
+        return String.join(SUBTREE_DIGESTS_SEPARATOR, digests);
+    }
+
+    // ключи поддеревьев, дайджесты которых совпадают с сохраненными, атрибуты этих поддеревьев не сравниваются
+    public Set<String> getUnchangedSubtrees(String savedSubtreeDigests) {
+        if (savedSubtreeDigests == null || savedSubtreeDigests.isEmpty()) {
+            return Collections.emptySet();
+        }
+
+        Set<String> savedDigests = new HashSet<>(Arrays.asList(savedSubtreeDigests.split(SUBTREE_DIGESTS_SEPARATOR)));
+        Set<String> unchangedSubtrees = new HashSet<>();
+        subtreeDigests.forEach((subtreeKey, digest) -> {
+            if (savedDigests.contains(digest)) {
+                unchangedSubtrees.add(subtreeKey);
+            }
+        });
+
+        return unchangedSubtrees;
+    }
+
+    // сохраненные дайджесты поддеревьев, которых нет среди дайджестов запроса:
+    // поддеревья, значения которых изменились или которые отсутствуют в запросе
+    public Set<String> getChangedSavedSubtrees(String savedSubtreeDigests) {
+        if (savedSubtreeDigests == null || savedSubtreeDigests.isEmpty()) {
+            return Collections.emptySet();
+        }
+
+        Set<String> changedDigests = new HashSet<>(Arrays.asList(savedSubtreeDigests.split(SUBTREE_DIGESTS_SEPARATOR)));
+        changedDigests.removeAll(subtreeDigests.values());
+
+        return changedDigests;
+    }
+}
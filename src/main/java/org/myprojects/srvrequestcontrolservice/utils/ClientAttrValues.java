@@ -0,0 +1,119 @@
+package org.myprojects.srvrequestcontrolservice.utils;
+
+import java.math.BigDecimal;
+
+import static org.myprojects.srvrequestcontrolservice.utils.XmlUtils.HASH;
+import static org.myprojects.srvrequestcontrolservice.utils.XmlUtils.KEY;
+import static org.myprojects.srvrequestcontrolservice.utils.XmlUtils.SEGMENT;
+
+// нормализация значений клиентских атрибутов
+// тип значения (число, ссылка на файл, строка) определяется одним проходом по символам без исключений,
+// числа приводятся к канонической десятичной форме и сравниваются точно
+public final class ClientAttrValues {
+
+    // ограничение на количество цифр порядка, чтобы не строить числа с огромным масштабом
+    private static final int MAX_EXPONENT_DIGITS = 8;
+
+    public enum Kind {
+        NUMERIC,
+        FILE,
+        PLAIN
+    }
+
+    private ClientAttrValues() {}
+
+    public static Kind classify(String value) {
+        if (value == null) {
+            return Kind.PLAIN;
+        }
+        int start = 0;
+        int end = value.length();
+        // как и String.trim, не учитываем пробельные символы по краям
+        while (start < end && value.charAt(start) <= ' ') {
+            start++;
+        }
+        while (end > start && value.charAt(end - 1) <= ' ') {
+            end--;
+        }
+
+        boolean numeric = start < end;
+        boolean mantissaDigits = false;
+        boolean dot = false;
+        boolean exponent = false;
+        int exponentDigits = 0;
+        boolean segment = false;
+        boolean key = false;
+        boolean hash = false;
+        for (int i = 0, length = value.length(); i < length; i++) {
+            char c = value.charAt(i);
+            // признаки ссылки на файл
+            if (c == 'f' && !segment) {
+                segment = value.startsWith(SEGMENT, i);
+            } else if (c == 'k' && !key) {
+                key = value.startsWith(KEY, i);
+            } else if (c == 'h' && !hash) {
+                hash = value.startsWith(HASH, i);
+            }
+
+            if (!numeric || i < start || i >= end) {
+                continue;
+            }
+            if (c >= '0' && c <= '9') {
+                if (exponent) {
+                    exponentDigits++;
+                } else {
+                    mantissaDigits = true;
+                }
+            } else if (c == '+' || c == '-') {
+                // знак допустим только в начале числа или сразу после признака порядка
+                numeric = i == start || (exponent && exponentDigits == 0
+                        && (value.charAt(i - 1) == 'e' || value.charAt(i - 1) == 'E'));
+            } else if (c == '.') {
+                numeric = !dot && !exponent;
+                dot = true;
+            } else if (c == 'e' || c == 'E') {
+                numeric = !exponent && mantissaDigits;
+                exponent = true;
+            } else {
+                numeric = false;
+            }
+        }
+
+        if (segment && key && hash) {
+            return Kind.FILE;
+        }
+        if (numeric && mantissaDigits && (!exponent || (exponentDigits > 0 && exponentDigits <= MAX_EXPONENT_DIGITS))) {
+            return Kind.NUMERIC;
+        }
+
+        return Kind.PLAIN;
+    }
+
+    // для файлов неизменность клиентского атрибута проверяется по хешу
+    public static String toFileHash(String value) {
+        return value.substring(value.indexOf(HASH));
+    }
+
+    // каноническая форма числа: без незначащих нулей, 1.50 и 1.5 дают одинаковое значение
+    // вызывается только для значений типа NUMERIC
+    public static String toCanonicalNumber(String value) {
+        BigDecimal number = new BigDecimal(value.trim());
+        if (number.signum() == 0) {
+            return "0";
+        }
+
+        return number.stripTrailingZeros().toString();
+    }
+
+    // значение, по которому сравниваются клиентские атрибуты
+    public static String toComparableValue(String value) {
+        switch (classify(value)) {
+            case NUMERIC:
+                return toCanonicalNumber(value);
+            case FILE:
+                return toFileHash(value);
+            default:
+                return value;
+        }
+    }
+}
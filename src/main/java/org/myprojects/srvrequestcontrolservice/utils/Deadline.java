@@ -0,0 +1,99 @@
+package org.myprojects.srvrequestcontrolservice.utils;
+
+import org.myprojects.srvrequestcontrolservice.exceptions.DeadlineExceededException;
+
+import java.util.concurrent.TimeUnit;
+
+// срок обработки запроса, после которого ответ уже не нужен вызывающей стороне
+// привязывается к потоку обработки запроса (аналогично StageClock), чтобы запросы к БД
+// выполнялись с таймаутом по оставшемуся времени без передачи срока через все операторы
+public final class Deadline {
+
+    private static final ThreadLocal<Deadline> CURRENT = new ThreadLocal<>();
+
+    private final long timeoutMillis;
+    private final long expiresAt;
+    // истечение срока прервало обработку запроса (этап пропущен или запрос к БД отменен)
+    private volatile boolean exceeded;
+
+    private Deadline(long startedAt, long timeoutMillis) {
+        this.timeoutMillis = timeoutMillis;
+        this.expiresAt = startedAt + TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+    }
+
+    // срок отсчитывается от момента создания (получения запроса)
+    public static Deadline after(long timeoutMillis) {
+        return since(System.nanoTime(), timeoutMillis);
+    }
+
+    // срок отсчитывается от момента startedAt (System.nanoTime() при получении запроса)
+    public static Deadline since(long startedAt, long timeoutMillis) {
+        return new Deadline(startedAt, Math.max(0, timeoutMillis));
+    }
+
+    // срок запроса, привязанного к текущему потоку, или null, если срок не задан
+    public static Deadline current() {
+        return CURRENT.get();
+    }
+
+    public static void attach(Deadline deadline) {
+        if (deadline == null) {
+            CURRENT.remove();
+        } else {
+            CURRENT.set(deadline);
+        }
+    }
+
+    public static void detach() {
+        CURRENT.remove();
+    }
+
+    // проверяем срок текущего запроса перед очередным этапом обработки
+    public static void checkCurrent(String stage) throws DeadlineExceededException {
+        Deadline deadline = CURRENT.get();
+        if (deadline != null) {
+            deadline.check(stage);
+        }
+    }
+
+    public void check(String stage) throws DeadlineExceededException {
+        if (isExpired()) {
+            throw exceeded(stage, null);
+        }
+    }
+
+    // исключение об истечении срока на этапе stage, срок отмечается как прервавший обработку запроса
+    public DeadlineExceededException exceeded(String stage, Throwable cause) {
+        exceeded = true;
+        return cause == null ? new DeadlineExceededException(getExpiredMessage(stage))
+                : new DeadlineExceededException(getExpiredMessage(stage), cause);
+    }
+
+    // срок истек и обработка запроса была прервана, а не просто завершилась после истечения срока
+    public boolean isExceeded() {
+        return exceeded;
+    }
+
+    public String getExpiredMessage(String stage) {
+        return String.format("Истек срок обработки запроса (%d мс) на этапе: %s", timeoutMillis, stage);
+    }
+
+    public boolean isExpired() {
+        return System.nanoTime() - expiresAt >= 0;
+    }
+
+    public long getTimeoutMillis() {
+        return timeoutMillis;
+    }
+
+    public long getRemainingMillis() {
+        return Math.max(0, TimeUnit.NANOSECONDS.toMillis(expiresAt - System.nanoTime()));
+    }
+
+    // Statement.setQueryTimeout принимает только целые секунды, 0 означает отсутствие таймаута
+    public int getQueryTimeoutSeconds() {
+        long remainingNanos = Math.max(0, expiresAt - System.nanoTime());
+        return (int) Math.max(1, Math.min(Integer.MAX_VALUE,
+                (remainingNanos + TimeUnit.SECONDS.toNanos(1) - 1) / TimeUnit.SECONDS.toNanos(1)));
+    }
+}
@@ -0,0 +1,153 @@
+package org.myprojects.srvrequestcontrolservice.utils;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ArrayNode;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import org.myprojects.srvrequestcontrolservice.RequestAttributeValue;
+import org.myprojects.srvrequestcontrolservice.XmlPath;
+import org.myprojects.srvrequestcontrolservice.XmlPathDictionary;
+import org.myprojects.srvrequestcontrolservice.XmlPathNode;
+import org.myprojects.srvrequestcontrolservice.XmlPathNodePool;
+import org.myprojects.srvrequestcontrolservice.XmlRequestPaths;
+import org.myprojects.srvrequestcontrolservice.exceptions.ClientAttributesDataException;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+// значения клиентских атрибутов поддеревьев запроса (секция, вложения, атрибуты корня запроса - см. AttributesDigest)
+// сохраняются вместе с запросом, при проверке загружаются и разбираются только поддеревья с измененными дайджестами,
+// поэтому сохраненный запрос не разбирается целиком
+// путь атрибута сохраняется полностью: номера путей словаря зависят от порядка путей шаблона и на разных узлах не совпадают
+public final class SubtreeValues {
+
+    private static final ObjectMapper MAPPER = new ObjectMapper();
+
+    private SubtreeValues() {
+    }
+
+    // ключ поддерева -> значения его клиентских атрибутов (JSON)
+    public static Map<String, String> serialize(XmlPathDictionary dictionary, RequestAttributeValue[] values) {
+        Map<String, ArrayNode> entriesBySubtree = new TreeMap<>();
+        for (int slot = 0; slot < values.length; slot++) {
+            RequestAttributeValue value = values[slot];
+            if (value == null) {
+                continue;
+            }
+            ObjectNode entry = MAPPER.createObjectNode();
+            entry.set("p", writePath(dictionary.getSlotPath(slot)));
+            entry.put("v", value.getValue());
+            entry.put("c", value.getComparableValue());
+            entry.put("z", value.isZero());
+            entry.put("t", value.isTextValue());
+            entry.put("d", value.getDynamicValue());
+            entriesBySubtree.computeIfAbsent(dictionary.getSlotSubtreeKey(slot), k -> MAPPER.createArrayNode())
+                    .add(entry);
+        }
+
+        Map<String, String> subtrees = new TreeMap<>();
+        try {
+            for (Map.Entry<String, ArrayNode> subtree : entriesBySubtree.entrySet()) {
+                subtrees.put(subtree.getKey(), MAPPER.writeValueAsString(subtree.getValue()));
+            }
+        } catch (JsonProcessingException e) {
+            throw new IllegalStateException("Не удалось сохранить значения клиентских атрибутов поддеревьев запроса", e);
+        }
+
+        return subtrees;
+    }
+
+    // значения клиентских атрибутов только переданных поддеревьев по номерам путей словаря шаблона
+    // (конкретные динамические пути - по номерам словаря запроса), как при разборе запроса по шаблону
+    public static XmlRequestPaths deserialize(XmlPathDictionary dictionary, Collection<String> subtrees)
+            throws ClientAttributesDataException {
+        RequestAttributeValue[] values = new RequestAttributeValue[dictionary.getPathCount()];
+        try {
+            for (String subtree : subtrees) {
+                for (JsonNode entry : MAPPER.readTree(subtree)) {
+                    XmlPath path = readPath(entry.get("p"), dictionary.getPathNodePool());
+                    int pathId = dictionary.getPathId(path);
+                    if (pathId < 0) {
+                        throw new ClientAttributesDataException(String.format(
+                                "Путь %s сохраненного запроса не найден в шаблоне", path));
+                    }
+                    int slot = dictionary.intern(pathId, path);
+                    if (slot == XmlPathDictionary.REQUEST_PATH) {
+                        dictionary = dictionary.newRequestDictionary();
+                        slot = dictionary.intern(pathId, path);
+                    }
+                    if (slot >= values.length) {
+                        values = Arrays.copyOf(values, Math.max(slot + 1, values.length * 2));
+                    }
+                    values[slot] = new RequestAttributeValue(textOrNull(entry.get("v")), textOrNull(entry.get("c")),
+                            entry.path("z").asBoolean(), entry.path("t").asBoolean(), textOrNull(entry.get("d")));
+                }
+            }
+        } catch (JsonProcessingException e) {
+            throw new ClientAttributesDataException(String.format(
+                    "Не удалось прочитать значения клиентских атрибутов поддеревьев сохраненного запроса:%n%s",
+                    e.getMessage() == null ? "" : e.getMessage()), e);
+        }
+
+        return new XmlRequestPaths(dictionary, values);
+    }
+
+    private static ArrayNode writePath(XmlPath path) {
+        ArrayNode elements = MAPPER.createArrayNode();
+        for (XmlPathNode pathNode : path.getPathElements()) {
+            elements.add(writeNode(pathNode));
+        }
+
+        return elements;
+    }
+
+    private static ObjectNode writeNode(XmlPathNode pathNode) {
+        ObjectNode node = MAPPER.createObjectNode();
+        node.put("t", pathNode.getType().name());
+        node.put("n", pathNode.getName());
+        if (pathNode.getValue() != null) {
+            node.put("v", pathNode.getValue());
+        }
+        if (!pathNode.getChildNodes().isEmpty()) {
+            ArrayNode children = node.putArray("c");
+            for (XmlPathNode child : pathNode.getChildNodes()) {
+                children.add(writeNode(child));
+            }
+        }
+
+        return node;
+    }
+
+    private static XmlPath readPath(JsonNode elements, XmlPathNodePool pathNodePool) {
+        List<XmlPathNode> pathNodes = new ArrayList<>(elements.size());
+        for (JsonNode element : elements) {
+            // элементы путей приводятся к общим экземплярам пула, как при разборе запроса
+            pathNodes.add(pathNodePool.intern(readNode(element)));
+        }
+
+        return new XmlPath(pathNodes);
+    }
+
+    private static XmlPathNode readNode(JsonNode node) {
+        XmlPathNode.Type type = XmlPathNode.Type.valueOf(node.get("t").asText());
+        String name = node.get("n").asText();
+        if (node.has("c")) {
+            List<XmlPathNode> children = new ArrayList<>(node.get("c").size());
+            for (JsonNode child : node.get("c")) {
+                children.add(readNode(child));
+            }
+            return new XmlPathNode(type, name, children);
+        }
+
+        return new XmlPathNode(type, name, textOrNull(node.get("v")));
+    }
+
+    private static String textOrNull(JsonNode node) {
+        return node == null || node.isNull() ? null : node.asText();
+    }
+}
@@ -1,10 +1,11 @@
 package org.myprojects.srvrequestcontrolservice.utils;
 
 import org.apache.commons.codec.digest.DigestUtils;
-import org.apache.commons.lang3.StringUtils;
+import org.myprojects.srvrequestcontrolservice.RequestAttributeValue;
+import org.myprojects.srvrequestcontrolservice.TemplateAttribute;
 import org.myprojects.srvrequestcontrolservice.XmlPath;
 import org.myprojects.srvrequestcontrolservice.XmlPathNode;
-import org.myprojects.srvrequestcontrolservice.exceptions.ClientAttributesDataException;
+import org.myprojects.srvrequestcontrolservice.XmlPathNodePool;
 import org.w3c.dom.Document;
 import org.w3c.dom.NamedNodeMap;
 import org.w3c.dom.Node;
@@ -26,6 +27,10 @@ import java.io.StringWriter;
 import java.math.BigDecimal;
 import java.nio.charset.StandardCharsets;
 import java.util.*;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveTask;
+import java.util.regex.Pattern;
 import java.util.stream.Collectors;
 
 import static org.myprojects.srvrequestcontrolservice.ClientAttributesServiceOperator.ClientAttributesConstants.*;
@@ -34,9 +39,13 @@ import static org.myprojects.srvrequestcontrolservice.XmlPathNode.Type.*;
 public class XmlUtils {
 
     public static final String CLIENT_ATTR_VALUE_REG_EX = "[,\"'( )]*";
+    private static final Pattern CLIENT_ATTR_VALUE_PATTERN = Pattern.compile(CLIENT_ATTR_VALUE_REG_EX);
     public static final String HASH = "hash";
     public static final String KEY = "key";
     public static final String SEGMENT = "filial";
+    private static final String DEFER_NODE_EXPANSION = "http://apache.org/xml/features/dom/defer-node-expansion";
+    // количество поддеревьев в одной задаче параллельного поиска по пути шаблона
+    private static final int PARALLEL_MATCH_BATCH = 8;
 
     private XmlUtils() {}
 
@@ -46,6 +55,9 @@ public class XmlUtils {
 
         DocumentBuilderFactory factory = DocumentBuilderFactory.newInstance();
         factory.setFeature("http://apache.org/xml/features/disallow-doctype-decl", true);
+        // дерево строится сразу целиком: без отложенного создания нод чтение дерева не меняет его,
+        // и поддеревья запроса можно обходить параллельно
+        factory.setFeature(DEFER_NODE_EXPANSION, false);
         Document doc = factory
                 .newDocumentBuilder()
                 .parse(new ByteArrayInputStream(byteArray));
@@ -64,6 +76,9 @@ public class XmlUtils {
 
         DocumentBuilderFactory factory = DocumentBuilderFactory.newInstance();
         factory.setFeature("http://apache.org/xml/features/disallow-doctype-decl", true);
+        // дерево строится сразу целиком: без отложенного создания нод чтение дерева не меняет его,
+        // и поддеревья запроса можно обходить параллельно
+        factory.setFeature(DEFER_NODE_EXPANSION, false);
         Document doc = factory
                 .newDocumentBuilder()
                 .parse(new ByteArrayInputStream(byteArray));
@@ -93,7 +108,7 @@ public class XmlUtils {
             return Collections.emptyMap();
         }
 
-        XmlPath currentPath = new XmlPath(pathToParent);
+        XmlPath currentPath;
         // формируем мапу, где ключом является путь к нодам, хранящим текстовое значение клиентского атрибута
         Map<XmlPath, Node> nodePaths = new HashMap<>();
 
@@ -121,11 +136,11 @@ public class XmlUtils {
                 }
                 children.add(xmlPathNode);
             }
-            currentPath.addPathElement(new XmlPathNode(NODE_WITH_CHILDREN, parent.getNodeName(),
+            currentPath = pathToParent.append(new XmlPathNode(NODE_WITH_CHILDREN, parent.getNodeName(),
                     children));
         } else {
             // если нет чилдов, являющихся частью пути, добавляем только саму ноду в путь
-            currentPath.addPathElement(new XmlPathNode(NODE, parent.getNodeName()));
+            currentPath = pathToParent.append(new XmlPathNode(NODE, parent.getNodeName()));
         }
         // удаляем обработанные чилды для дальнейшей обработки остальных чилдов
         childNodes.removeAll(pathNodes);
@@ -133,8 +148,7 @@ public class XmlUtils {
         // проверяем чилды, в которых стоит отметка клиентского атрибута,
         // и добавляем к пути
         for (Node clientAttrNode : clientAttrNodes) {
-            XmlPath nodePath = new XmlPath(currentPath);
-            nodePath.addPathElement(new XmlPathNode(NODE, clientAttrNode.getNodeName()));
+            XmlPath nodePath = currentPath.append(new XmlPathNode(NODE, clientAttrNode.getNodeName()));
             nodePaths.put(nodePath, clientAttrNode);
         }
         // удаляем обработанные чилды с клиентским атрибутом для дальнейшей обработки остальных чилдов
@@ -165,6 +179,22 @@ public class XmlUtils {
                 .collect(Collectors.toList());
     }
 
+    // дочерние элементы по ссылкам между соседними нодами, без NodeList
+    // (NodeList использует общий для документа кэш и не подходит для параллельного обхода)
+    public static List<Node> getElementNodesSorted(Node parent) {
+        List<Node> nodeList = new ArrayList<>();
+
+        for (Node child = parent.getFirstChild(); child != null; child = child.getNextSibling()) {
+            if (child.getNodeType() == Node.ELEMENT_NODE) {
+                nodeList.add(child);
+            }
+        }
+        nodeList.sort(Comparator.comparing(Node::getNodeName)
+                .thenComparing(Node::getNodeValue, Comparator.nullsLast(String::compareTo)));
+
+        return nodeList;
+    }
+
     public static List<Node> getAllNodesAsList(NodeList nodes) {
         List<Node> nodeList = new ArrayList<>();
 
@@ -207,12 +237,11 @@ public class XmlUtils {
             return null;
         }
 
-        // получаем обратный путь с конца xml-дерева запроса к динамической ноде
-        List<XmlPathNode> subPath = new ArrayList<>(templatePath.getPathElementsSubList(dynamicNodeIndex));
-        Collections.reverse(subPath);
-
-        // находим парент ноду запроса по полученному пути
-        Node dynamicParentNode = XmlUtils.findParentNodeByBackwardPath(requestLastNodeByPath, new XmlPath(subPath));
+        // находим парент ноду запроса, поднимаясь с конца пути к динамической ноде
+        Node dynamicParentNode = findParentNodeByPathSuffix(requestLastNodeByPath, templatePath, dynamicNodeIndex);
+        if (dynamicParentNode == null) {
+            return null;
+        }
 
         // находим чилд парент ноды по имени
         return getChildNodeByName(dynamicParentNode, dynamicChildName);
@@ -251,7 +280,7 @@ public class XmlUtils {
     }
 
     public static XmlPath createTemplateDynamicPath(XmlPath filledPath) {
-        XmlPath templateDynamicPath = new XmlPath();
+        List<XmlPathNode> templateDynamicPath = new ArrayList<>(filledPath.getPathElementsLength());
 
         for (XmlPathNode pathNode : filledPath.getPathElements()) {
             // если нода динамическая, заменяем ее новой нодой с динкамическим (пустым) значением
@@ -269,20 +298,21 @@ public class XmlUtils {
                 }
                 XmlPathNode dynamicNode = new XmlPathNode(NODE_WITH_CHILDREN, pathNode.getName(), children);
 
-                templateDynamicPath.addPathElement(dynamicNode);
+                templateDynamicPath.add(dynamicNode);
             } else {
                 // если нода НЕдинамическая, оставляем как было
-                templateDynamicPath.addPathElement(pathNode);
+                templateDynamicPath.add(pathNode);
             }
         }
 
-        return templateDynamicPath;
+        return new XmlPath(templateDynamicPath);
     }
 
     public static boolean nodeIsTextValueNode(Node node) {
-        return node.getChildNodes() != null && node.getChildNodes().getLength() == 1
-                && node.getChildNodes().item(0).getNodeType() == Node.TEXT_NODE
-                && node.getChildNodes().item(0).getNodeValue() != null;
+        Node firstChild = node.getFirstChild();
+        return firstChild != null && firstChild.getNextSibling() == null
+                && firstChild.getNodeType() == Node.TEXT_NODE
+                && firstChild.getNodeValue() != null;
     }
 
     public static boolean nodeHasClientAttributeMark(Node node) {
@@ -349,31 +379,57 @@ public class XmlUtils {
         return null;
     }
 
-    public static String getDynamicErrorDescription(XmlPath path, Node templateChildNode, Node reqChildNode)
-            throws ClientAttributesDataException {
-        Node templateDynamicNode = XmlUtils.getNearestDynamicNodeChild(path, templateChildNode);
-        Node reqDynamicNode = XmlUtils.getNearestDynamicNodeChild(path, reqChildNode);
-        if (templateDynamicNode == null || reqDynamicNode == null) {
-            throw new IllegalArgumentException("Некорректная структура данных.");
+    // читаем из дерева шаблона отметки и описания ошибок клиентского атрибута
+    // для динамического пути описание ошибки дополняется описанием ближайшей динамической ноды
+    public static TemplateAttribute createTemplateAttribute(XmlPath path, Node templateNode) {
+        String errorDescription = getErrorDescription(templateNode);
+        boolean personalData = nodeHasPersonalDataMark(templateNode);
+        if (!isDynamicPath(path)) {
+            return new TemplateAttribute(templateNode.getNodeName(), errorDescription, personalData);
         }
 
-        String error = XmlUtils.getErrorDescription(templateChildNode);
-        if (error == null) {
-            throw new ClientAttributesDataException("Не найдено описание ошибки атрибута "
-                    + templateChildNode.getNodeName());
-        }
+        Node templateDynamicNode = getNearestDynamicNodeChild(path, templateNode);
+        return new TemplateAttribute(templateNode.getNodeName(), errorDescription, personalData, true,
+                templateDynamicNode != null,
+                templateDynamicNode == null ? null : getPrefixDescription(templateDynamicNode),
+                templateDynamicNode == null ? null : getPostfixDescription(templateDynamicNode));
+    }
 
-        String additionalDescription = XmlUtils.getPrefixDescription(templateDynamicNode);
-        if (additionalDescription != null) {
-            return additionalDescription + reqDynamicNode.getFirstChild().getNodeValue() + ". " + error;
-        } else {
-            additionalDescription = XmlUtils.getPostfixDescription(templateDynamicNode);
-            if (additionalDescription == null) {
-                throw new IllegalArgumentException("Для динамической ошибки не найдена переменная часть описания.");
-            } else {
-                return error +". " +  additionalDescription + reqDynamicNode.getFirstChild().getNodeValue();
+    // копируем из дерева запроса значение клиентского атрибута, найденного по пути шаблона
+    // значение нормализуется сразу (для файлов сравнивается только хеш, числа - в канонической форме)
+    public static RequestAttributeValue createRequestAttributeValue(XmlPath templatePath,
+                                                                    TemplateAttribute templateAttribute,
+                                                                    Node reqNode) {
+        String value = reqNode.getFirstChild() == null ? null : reqNode.getFirstChild().getNodeValue();
+        String comparableValue = value;
+        boolean zero = false;
+        if (value != null && !value.isBlank()) {
+            switch (ClientAttrValues.classify(value)) {
+                case NUMERIC:
+                    comparableValue = ClientAttrValues.toCanonicalNumber(value);
+                    zero = comparableValue.equals("0");
+                    break;
+                case FILE:
+                    value = ClientAttrValues.toFileHash(value);
+                    comparableValue = value;
+                    break;
+                default:
+                    break;
             }
         }
+        String dynamicValue = templateAttribute.isDynamic() ? getDynamicNodeValue(templatePath, reqNode) : null;
+
+        return new RequestAttributeValue(value, comparableValue, zero, nodeIsTextValueNode(reqNode), dynamicValue);
+    }
+
+    // значение динамической ноды запроса (например, номер множественной секции), к которой относится атрибут
+    public static String getDynamicNodeValue(XmlPath templatePath, Node reqChildNode) {
+        Node reqDynamicNode = getNearestDynamicNodeChild(templatePath, reqChildNode);
+        if (reqDynamicNode == null || reqDynamicNode.getFirstChild() == null) {
+            return null;
+        }
+
+        return reqDynamicNode.getFirstChild().getNodeValue();
     }
 
     public static String getPrefixDescription(Node node) {
@@ -399,62 +455,165 @@ public class XmlUtils {
     }
 
     public static Map<XmlPath, Node> findNodesMatchingPathFromParent(Node parentNode, XmlPath templatePath) {
+        return findNodesMatchingPathFromParent(parentNode, templatePath, null);
+    }
+
+    // элементы путей с конкретными динамическими значениями приводятся к общим экземплярам пула шаблона
+    public static Map<XmlPath, Node> findNodesMatchingPathFromParent(Node parentNode, XmlPath templatePath,
+                                                                     XmlPathNodePool pathNodePool) {
+        return findNodesMatchingPathFromParent(parentNode, templatePath, pathNodePool, null, 0);
+    }
+
+    // если под одной нодой найдено не меньше forkThreshold нод очередного элемента пути
+    // (например, множественных секций или FileInfo), их поддеревья обходятся параллельно в pool,
+    // небольшие запросы обходятся последовательно в текущем потоке
+    // найденные пути объединяются в порядке нод, как при последовательном обходе
+    public static Map<XmlPath, Node> findNodesMatchingPathFromParent(Node parentNode, XmlPath templatePath,
+                                                                     XmlPathNodePool pathNodePool,
+                                                                     ForkJoinPool pool, int forkThreshold) {
+        return findNodesMatchingPathFromParent(parentNode, templatePath, 0,
+                new XmlPathNode[templatePath.getPathElementsLength()], pathNodePool, pool, forkThreshold);
+    }
+
+    // ищем ноды по части пути шаблона, начиная с элемента index
+    // matchedPath содержит уже найденные элементы пути (до index), полный путь создается только для найденной ноды
+    private static Map<XmlPath, Node> findNodesMatchingPathFromParent(Node parentNode, XmlPath templatePath,
+                                                                      int index, XmlPathNode[] matchedPath,
+                                                                      XmlPathNodePool pathNodePool,
+                                                                      ForkJoinPool pool, int forkThreshold) {
+        XmlPathNode currentPathNode = templatePath.getPathElement(index);
+        // ноды, имя которых не совпадает с тем, которое ищем, пропускаем
+        List<Node> nodes = new ArrayList<>();
+        for (Node node : XmlUtils.getElementNodesSorted(parentNode)) {
+            if (node.getNodeName().equals(currentPathNode.getName())) {
+                nodes.add(node);
+            }
+        }
+
         // формируем все пути, которые получаем из текущей ноды
+        Map<XmlPath, Node> nodePaths;
+        if (pool != null && nodes.size() >= forkThreshold) {
+            SubtreeMatchTask task = new SubtreeMatchTask(nodes, 0, nodes.size(), templatePath, index, matchedPath,
+                    pathNodePool, pool, forkThreshold);
+            // внутри задачи пула подзадачи выполняются в том же пуле, из другого пула (например, общего) -
+            // передаются в пул сопоставления, чтобы не занимать чужие потоки
+            nodePaths = ForkJoinTask.getPool() == pool ? task.invoke() : pool.invoke(task);
+        } else {
+            nodePaths = findNodesMatchingPathInSubtrees(nodes, 0, nodes.size(), templatePath, index, matchedPath,
+                    pathNodePool, pool, forkThreshold);
+        }
+        // для динамических нод (например, множественных секций) проверяем,
+        // если такая множественная секция найдена одна, то формируем путь без учета динамического значения
+        // (т.к. для сравнения не важно, с каким динамическим значением будет нода, если она одна)
+        // если больше одной - путь формируется с конкретным динамическим значением (например, sectionNumber = 0, 1...)
+        return updateDynamicPathNodeIfSingle(currentPathNode, index, nodePaths);
+    }
+
+    // проходим по нодам с from по to (не включая), подходящим по имени под элемент пути index
+    private static Map<XmlPath, Node> findNodesMatchingPathInSubtrees(List<Node> nodes, int from, int to,
+                                                                      XmlPath templatePath, int index,
+                                                                      XmlPathNode[] matchedPath,
+                                                                      XmlPathNodePool pathNodePool,
+                                                                      ForkJoinPool pool, int forkThreshold) {
         Map<XmlPath, Node> nodePaths = new HashMap<>();
-        // проходим по каждой ноде из пути
-        XmlPathNode currentPathNode = templatePath.getPathElement(0);
-        for (Node node : XmlUtils.getElementNodesSorted(parentNode.getChildNodes())) {
-            // если имя ноды не совпадает с тем, которое ищем, пропускаем
-            if (!node.getNodeName().equals(currentPathNode.getName())) {
-                continue;
-            }
+        XmlPathNode currentPathNode = templatePath.getPathElement(index);
+        for (Node node : nodes.subList(from, to)) {
             XmlPathNode firstPathNode = null;
             if (currentPathNode.getType() == NODE) {
                 firstPathNode = currentPathNode;
             } else if (currentPathNode.getType() == NODE_WITH_CHILDREN) {
-                if (XmlUtils.nodeHasChildNodesByChildPaths(XmlUtils.getElementNodesSorted(
-                        node.getChildNodes()), currentPathNode.getChildNodes())) {
+                if (XmlUtils.nodeHasChildNodesByChildPaths(XmlUtils.getElementNodesSorted(node),
+                        currentPathNode.getChildNodes())) {
                     firstPathNode = currentPathNode;
                     // для динамического элемента пути формируем ноду пути с конкретным динамическим значением
                     if (XmlUtils.isParentPathNodeDynamic(currentPathNode)) {
                         firstPathNode = createParentDynamicNodeByTemplatePathNode(node, currentPathNode);
+                        if (pathNodePool != null) {
+                            firstPathNode = pathNodePool.intern(firstPathNode);
+                        }
                     }
                 }
             }
             if (firstPathNode != null) {
-                if (templatePath.getPathElementsLength() == 1) {
-                    nodePaths.put(new XmlPath(List.of(firstPathNode)), node);
+                matchedPath[index] = firstPathNode;
+                if (index == templatePath.getPathElementsLength() - 1) {
+                    nodePaths.put(new XmlPath(matchedPath), node);
                 } else {
-                    // рекурсивно ищем следующие элементы и формируем обобщенный путь
-                    XmlPathNode finalParentPathNode = firstPathNode;
-                    findNodesMatchingPathFromParent(node, new XmlPath(templatePath.getPathElementsSubList(1)))
-                            .forEach((key, value) -> {
-                                // создаем новый путь из текущей ноды
-                                // и пути полученного из рекурсивного вызова для вложенных нод
-                                XmlPath p = new XmlPath(finalParentPathNode);
-                                p.addAllElements(key);
-                                nodePaths.put(p, value);});
+                    // рекурсивно ищем следующие элементы пути
+                    nodePaths.putAll(findNodesMatchingPathFromParent(node, templatePath, index + 1, matchedPath,
+                            pathNodePool, pool, forkThreshold));
                 }
             }
         }
-        // для динамических нод (например, множественных секций) проверяем,
-        // если такая множественная секция найдена одна, то формируем путь без учета динамического значения
-        // (т.к. для сравнения не важно, с каким динамическим значением будет нода, если она одна)
-        // если больше одной - путь формируется с конкретным динамическим значением (например, sectionNumber = 0, 1...)
-        return updateDynamicPathNodeIfSingle(currentPathNode, nodePaths);
+
+        return nodePaths;
+    }
+
+    // параллельный обход поддеревьев: диапазон нод делится пополам до PARALLEL_MATCH_BATCH нод,
+    // у каждой задачи своя копия найденной части пути, результаты объединяются слева направо
+    private static class SubtreeMatchTask extends RecursiveTask<Map<XmlPath, Node>> {
+
+        private final List<Node> nodes;
+        private final int from;
+        private final int to;
+        private final XmlPath templatePath;
+        private final int index;
+        private final XmlPathNode[] matchedPath;
+        private final XmlPathNodePool pathNodePool;
+        private final ForkJoinPool pool;
+        private final int forkThreshold;
+
+        private SubtreeMatchTask(List<Node> nodes, int from, int to, XmlPath templatePath, int index,
+                                 XmlPathNode[] matchedPath, XmlPathNodePool pathNodePool,
+                                 ForkJoinPool pool, int forkThreshold) {
+            this.nodes = nodes;
+            this.from = from;
+            this.to = to;
+            this.templatePath = templatePath;
+            this.index = index;
+            this.matchedPath = matchedPath;
+            this.pathNodePool = pathNodePool;
+            this.pool = pool;
+            this.forkThreshold = forkThreshold;
+        }
+
+        @Override
+        protected Map<XmlPath, Node> compute() {
+            if (to - from <= PARALLEL_MATCH_BATCH) {
+                return findNodesMatchingPathInSubtrees(nodes, from, to, templatePath, index, matchedPath.clone(),
+                        pathNodePool, pool, forkThreshold);
+            }
+
+            int middle = (from + to) >>> 1;
+            SubtreeMatchTask left = new SubtreeMatchTask(nodes, from, middle, templatePath, index, matchedPath,
+                    pathNodePool, pool, forkThreshold);
+            SubtreeMatchTask right = new SubtreeMatchTask(nodes, middle, to, templatePath, index, matchedPath,
+                    pathNodePool, pool, forkThreshold);
+            right.fork();
+            Map<XmlPath, Node> nodePaths = left.compute();
+            // при совпадении путей побеждает нода, стоящая дальше, как при последовательном обходе
+            nodePaths.putAll(right.join());
+
+            return nodePaths;
+        }
     }
 
     public static Map<XmlPath, Node> updateDynamicPathNodeIfSingle(XmlPathNode dynamicPathNode,
                                                                    Map<XmlPath, Node> nodePaths) {
+        return updateDynamicPathNodeIfSingle(dynamicPathNode, 0, nodePaths);
+    }
+
+    private static Map<XmlPath, Node> updateDynamicPathNodeIfSingle(XmlPathNode dynamicPathNode, int index,
+                                                                    Map<XmlPath, Node> nodePaths) {
         if (XmlUtils.isParentPathNodeDynamic(dynamicPathNode)) {
             XmlPathNode pathNode = null;
             boolean singleDynamicPath = true;
             for (Map.Entry<XmlPath, Node> e : nodePaths.entrySet()) {
                 if (pathNode == null) {
-                    pathNode = e.getKey().getPathElement(0);
+                    pathNode = e.getKey().getPathElement(index);
                 } else {
                     // исключаем дублирование множественной секции с одним и тем же sectionNumber
-                    if (!e.getKey().getPathElement(0).equals(pathNode)) {
+                    if (!e.getKey().getPathElement(index).equals(pathNode)) {
                         singleDynamicPath = false;
                     }
                 }
@@ -462,13 +621,11 @@ public class XmlUtils {
 
             // если обнаружена только одна динамическая нода для текущего динамического пути
             if (singleDynamicPath) {
-                return nodePaths.entrySet().stream().collect(Collectors.toMap(e -> {
-                    // подменяем в ней первую ноду, которая и есть динамическая,
-                    // оставляя без конкретного динамического значения, т.к. оно не играет роли при сравнении
-                    XmlPath newPath = new XmlPath(dynamicPathNode);
-                    newPath.addAllElements(e.getKey().getPathElementsSubList(1));
-                    return newPath;
-                }, Map.Entry::getValue));
+                Map<XmlPath, Node> updatedPaths = new HashMap<>();
+                // подменяем в ней ноду, которая и есть динамическая,
+                // оставляя без конкретного динамического значения, т.к. оно не играет роли при сравнении
+                nodePaths.forEach((path, node) -> updatedPaths.put(path.replace(index, dynamicPathNode), node));
+                return updatedPaths;
             } else {
                 return nodePaths;
             }
@@ -512,6 +669,37 @@ public class XmlUtils {
         return lastStepNode;
     }
 
+    // поднимаемся от последней ноды пути вверх по дереву до элемента пути fromIndex
+    // аналог findParentNodeByBackwardPath без построения обратного пути
+    private static Node findParentNodeByPathSuffix(Node pathLastNode, XmlPath path, int fromIndex) {
+        Node lastStepNode = pathLastNode;
+
+        for (int i = path.getPathElementsLength() - 1; i >= fromIndex; i--) {
+            XmlPathNode el = path.getPathElement(i);
+            // если один из элементов пути не найден, ноды с таким путем не существует
+            if (lastStepNode == null || !pathNodeMatches(lastStepNode, el)) {
+                return null;
+            }
+            if (i != fromIndex) {
+                lastStepNode = lastStepNode.getParentNode();
+            }
+        }
+
+        return lastStepNode;
+    }
+
+    private static boolean pathNodeMatches(Node node, XmlPathNode el) {
+        switch (el.getType()) {
+            case NODE:
+                return node.getNodeName().equals(el.getName());
+            case NODE_WITH_CHILDREN:
+                return node.getNodeName().equals(el.getName())
+                        && nodeHasChildNodesByChildPaths(getElementNodesSorted(node), el.getChildNodes());
+            default:
+                return false;
+        }
+    }
+
     public static List<Node> getChildNodesByName(List<Node> nodeChildren, String nodeName) {
         List<Node> nodes = new ArrayList<>();
         for (Node child : nodeChildren) {
@@ -554,12 +742,9 @@ public class XmlUtils {
             if (node.getNodeType() == Node.TEXT_NODE) {
                 String value = node.getNodeValue();
                 if (value != null && !value.isEmpty()) {
-                    value = value.toLowerCase(Locale.ROOT).replaceAll(CLIENT_ATTR_VALUE_REG_EX, "");
+                    value = CLIENT_ATTR_VALUE_PATTERN.matcher(value.toLowerCase(Locale.ROOT)).replaceAll("");
                     // для файлов проверяем неизменность клиентского атрибута по хешу
-                    if (value.contains(SEGMENT) && value.contains(KEY) && value.contains(HASH)) {
-                        value = HASH + StringUtils.substringAfter(value, HASH);
-                    }
-                    node.setNodeValue(value);
+                    node.setNodeValue(checkFileAttribute(value));
                 }
             } else {
                 replaceTextValueIrrelevantSymbols(node);
@@ -570,9 +755,7 @@ public class XmlUtils {
     public static String replaceTextValueIrrelevantSymbols(String value) {
         if (value != null && !value.isBlank()) {
             // для файлов проверяем неизменность клиентского атрибута по хешу
-            if (value.contains(SEGMENT) && value.contains(KEY) && value.contains(HASH)) {
-                value = HASH + StringUtils.substringAfter(value, HASH);
-            }
+            value = checkFileAttribute(value);
         }
 
         return value == null ? null : value.trim();
@@ -598,8 +781,7 @@ public class XmlUtils {
             XmlPathNode childNode = null;
             // найден динамический элемент пути шаблона
             if (childPathNode.getType() == CHILD_NODE_DYNAMIC) {
-                match = getChildNodeByName(getElementNodesSorted(node.getChildNodes()),
-                        childPathNode.getName());
+                match = getChildNodeByName(getElementNodesSorted(node), childPathNode.getName());
                 if (match != null) {
                     // если клиентский атрибут был передан с конкретным текстовым значением
                     if (XmlUtils.nodeIsTextValueNode(match)) {
@@ -613,7 +795,7 @@ public class XmlUtils {
             } else {
                 // найден НЕдинамический элемент пути шаблона
                 match = getChildNodeByNameAndTextValue(
-                        getElementNodesSorted(node.getChildNodes()), childPathNode.getName(), childPathNode.getValue());
+                        getElementNodesSorted(node), childPathNode.getName(), childPathNode.getValue());
                 if (match != null) {
                     childNode = new XmlPathNode(CHILD_NODE, match.getNodeName(), match.getFirstChild().getNodeValue());
                 }
@@ -666,9 +848,7 @@ public class XmlUtils {
 
             // если необходимо вернуться назад по предыдущему пути, находим последнюю совпадающую ноду
             if (subPathEndIndex < oldPath.getPathElementsLength() - 1) {
-                List<XmlPathNode> backShortPath = new ArrayList<>(oldPath.getPathElementsSubList(subPathEndIndex));
-                Collections.reverse(backShortPath);
-                backParent = XmlUtils.findParentNodeByBackwardPath(oldPathLastNode, new XmlPath(backShortPath));
+                backParent = findParentNodeByPathSuffix(oldPathLastNode, oldPath, subPathEndIndex);
             }
 
             // если поднимались вверх по дереву и новый путь был короче старого и оказались на последней ноде нового пути
@@ -678,57 +858,42 @@ public class XmlUtils {
                 return children;
             }
 
-            // ищем несовпадающую часть
-            List<XmlPathNode> shortPathNodes = newPath.getPathElementsSubList(subPathEndIndex + 1);
-            XmlPath shortPath = new XmlPath(shortPathNodes);
-            children = XmlUtils.findNodesMatchingPathFromParent(backParent, shortPath);
+            if (backParent == null) {
+                return children;
+            }
 
-            return children.entrySet().stream()
-                    .collect(Collectors.toMap(e -> {
-                        XmlPath fullPath = new XmlPath();
-                        fullPath.addAllElements(newPath.getPathElementsSubList(0, subPathEndIndex + 1));
-                        fullPath.addAllElements(shortPath);
-                        return fullPath;
-                    }, Map.Entry::getValue));
+            // ищем несовпадающую часть, совпадающее начало пути переиспользуем
+            XmlPathNode[] matchedPath = new XmlPathNode[newPath.getPathElementsLength()];
+            for (int i = 0; i <= subPathEndIndex; i++) {
+                matchedPath[i] = newPath.getPathElement(i);
+            }
+            return findNodesMatchingPathFromParent(backParent, newPath, subPathEndIndex + 1, matchedPath, null,
+                    null, 0);
         }
 
         return children;
     }
 
     public static boolean compareClientAttrsValues(String savedValue, String checkValue) {
-        // проверяем, числовые значения или нет
-        try {
-            double doubleSavedValue = Double.parseDouble(savedValue.trim());
-            BigDecimal savedBigDecimal = new BigDecimal(String.valueOf(doubleSavedValue));
-
-            double doubleCheckValue = Double.parseDouble(checkValue.trim());
-            BigDecimal checkBigDecimal = new BigDecimal(String.valueOf(doubleCheckValue));
-
-            // сравниваем числа без учета нулей
-            return savedBigDecimal.compareTo(checkBigDecimal) == 0;
-
-        } catch (NumberFormatException e) {
-            return checkValue
-                    .equals(savedValue);
-        }
+        // числа сравниваются точно без учета незначащих нулей, остальные значения - как строки
+        return ClientAttrValues.toComparableValue(savedValue).equals(ClientAttrValues.toComparableValue(checkValue));
     }
 
     public static String checkFileAttribute(String value) {
         // для файлов проверяем неизменность клиентского атрибута по хешу
-        if (value.contains(SEGMENT) && value.contains(KEY) && value.contains(HASH)) {
-            value = HASH + StringUtils.substringAfter(value, HASH);
+        if (ClientAttrValues.classify(value) == ClientAttrValues.Kind.FILE) {
+            value = ClientAttrValues.toFileHash(value);
         }
 
         return value;
     }
 
     public static boolean checkIsZeroNumberAttribute(Node pathNode) {
-        try {
-            double value = Double.parseDouble(pathNode.getFirstChild().getNodeValue().trim());
+        return checkIsZeroNumberAttribute(pathNode.getFirstChild().getNodeValue());
+    }
 
-            return new BigDecimal(String.valueOf(value)).compareTo(BigDecimal.ZERO) == 0;
-        } catch (NumberFormatException e) {
-            return false;
-        }
+    public static boolean checkIsZeroNumberAttribute(String attributeValue) {
+        return ClientAttrValues.classify(attributeValue) == ClientAttrValues.Kind.NUMERIC
+                && new BigDecimal(attributeValue.trim()).signum() == 0;
     }
 }
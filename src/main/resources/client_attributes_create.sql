@@ -13,4 +13,33 @@ CREATE TABLE IF NOT EXISTS public.client_attrs_requests (
     message_id varchar(50) NOT NULL,
     updated_at timestamp NOT NULL,
     request varchar
-);
\ No newline at end of file
+);
+
+-- корневой дайджест нормализованных значений клиентских атрибутов сохраненного запроса
+ALTER TABLE public.client_attrs_requests ADD COLUMN IF NOT EXISTS attrs_digest varchar(64);
+-- дайджесты поддеревьев (секций, вложений, атрибутов корня запроса) через запятую
+ALTER TABLE public.client_attrs_requests ADD COLUMN IF NOT EXISTS attrs_subtree_digests varchar;
+
+-- значения клиентских атрибутов поддеревьев сохраненного запроса (JSON), строка адресуется дайджестом поддерева
+-- при проверке загружаются только поддеревья, дайджесты которых изменились
+CREATE TABLE IF NOT EXISTS public.client_attrs_subtrees (
+    flow varchar(50) NOT NULL,
+    filial varchar(20) NOT NULL,
+    message_id varchar(50) NOT NULL,
+    subtree_digest varchar(64) NOT NULL,
+    template_name varchar(255) NOT NULL,
+    attrs varchar,
+    PRIMARY KEY (flow, filial, message_id, subtree_digest)
+);
+
+-- версии конфигурации (шаблонов клиентских атрибутов), увеличиваются при каждом изменении
+CREATE TABLE IF NOT EXISTS public.config_versions (
+    name varchar(50) PRIMARY KEY,
+    version bigint NOT NULL,
+    updated_at timestamp
+);
+
+-- строка версии шаблонов создается вместе со схемой, сохранение шаблона только увеличивает версию
+INSERT INTO public.config_versions (name, version, updated_at)
+SELECT 'client_attrs_templates', 0, NULL
+WHERE NOT EXISTS (SELECT 1 FROM public.config_versions WHERE name = 'client_attrs_templates');
@@ -0,0 +1,189 @@
+package org.myprojects.srvrequestcontrolservice;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.jupiter.api.Assertions;
+import org.junit.runner.RunWith;
+import org.myprojects.srvrequestcontrolservice.data.ServiceRequest;
+import org.myprojects.srvrequestcontrolservice.exceptions.AdmissionRejectedException;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.test.context.junit4.SpringRunner;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+@RunWith(SpringRunner.class)
+@SpringBootTest
+public class AdmissionControlTest {
+
+    @Autowired
+    AdmissionControl admissionControl;
+
+    @Value("${spring.datasource.hikari.maximum-pool-size:10}")
+    int maximumPoolSize;
+
+    long maxWait;
+    int filialInitialLimit;
+    long targetLatency;
+    long bulkMaxWait;
+    long filialIdleTimeout;
+
+    ServiceRequest.DataFlowType testFlow = ServiceRequest.DataFlowType.DATA_FLOW_TYPE_2;
+
+    @Before
+    public void init() {
+        maxWait = admissionControl.maxWait;
+        filialInitialLimit = admissionControl.filialInitialLimit;
+        targetLatency = admissionControl.targetLatency;
+        bulkMaxWait = admissionControl.bulkMaxWait;
+        filialIdleTimeout = admissionControl.filialIdleTimeout;
+        admissionControl.maxWait = 50;
+        admissionControl.filialInitialLimit = 3;
+    }
+
+    @After
+    public void restore() {
+        admissionControl.maxWait = maxWait;
+        admissionControl.filialInitialLimit = filialInitialLimit;
+        admissionControl.targetLatency = targetLatency;
+        admissionControl.bulkMaxWait = bulkMaxWait;
+        admissionControl.filialIdleTimeout = filialIdleTimeout;
+    }
+
+    @Test
+    public void givenSaturatedFilial_requestIsRejectedAndOtherFilialsAreAdmitted() {
+        ServiceRequest burstRequest = new ServiceRequest(testFlow, uniqueFilial(), "BURST", null);
+        List<AdmissionControl.Permit> permits = new ArrayList<>();
+        for (int i = 0; i < 3; i++) {
+            permits.add(admissionControl.acquire(burstRequest));
+        }
+
+        AdmissionRejectedException rejected = Assertions.assertThrows(AdmissionRejectedException.class,
+                () -> admissionControl.acquire(burstRequest));
+        Assertions.assertTrue(rejected.getRetryAfterSeconds() >= 1);
+
+        // досинхронизация одного филиала не блокирует запросы других филиалов
+        try (AdmissionControl.Permit ignored = admissionControl.acquire(
+                new ServiceRequest(testFlow, uniqueFilial(), "INTERACTIVE", null))) {
+            Assertions.assertNotNull(ignored);
+        }
+
+        permits.remove(0).close();
+        permits.add(admissionControl.acquire(burstRequest));
+        permits.forEach(AdmissionControl.Permit::close);
+    }
+
+    @Test
+    public void givenSlowRequests_limitIsDecreased() {
+        admissionControl.targetLatency = 0;
+        String filial = uniqueFilial();
+        ServiceRequest serviceRequest = new ServiceRequest(testFlow, filial, "SLOW", null);
+
+        admissionControl.acquire(serviceRequest).close();
+        admissionControl.acquire(serviceRequest).close();
+
+        Assertions.assertEquals(2, admissionControl.getLimit("filial", testFlow + "-" + filial));
+    }
+
+    @Test
+    public void givenSaturatedFilial_bulkRequestIsRejectedWithoutWaiting() {
+        admissionControl.maxWait = 5000;
+        ServiceRequest serviceRequest = new ServiceRequest(testFlow, uniqueFilial(), "BULK", null);
+        List<AdmissionControl.Permit> permits = new ArrayList<>();
+        for (int i = 0; i < 3; i++) {
+            permits.add(admissionControl.acquire(serviceRequest, RequestExecutor.Priority.BULK));
+        }
+
+        // пакетный запрос не занимает поток пула обработки ожиданием разрешения
+        long startedAt = System.nanoTime();
+        Assertions.assertThrows(AdmissionRejectedException.class,
+                () -> admissionControl.acquire(serviceRequest, RequestExecutor.Priority.BULK));
+        Assertions.assertTrue(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startedAt) < 1000);
+        permits.forEach(AdmissionControl.Permit::close);
+    }
+
+    @Test
+    public void givenInteractiveAndBulkWaiting_interactiveGetsReleasedPermitFirst() throws Exception {
+        admissionControl.maxWait = 5000;
+        admissionControl.bulkMaxWait = 5000;
+        ServiceRequest serviceRequest = new ServiceRequest(testFlow, uniqueFilial(), "WAITING", null);
+        List<AdmissionControl.Permit> permits = new ArrayList<>();
+        for (int i = 0; i < 3; i++) {
+            permits.add(admissionControl.acquire(serviceRequest));
+        }
+
+        ExecutorService waiters = Executors.newFixedThreadPool(2);
+        try {
+            CompletableFuture<AdmissionControl.Permit> bulk = CompletableFuture.supplyAsync(
+                    () -> admissionControl.acquire(serviceRequest, RequestExecutor.Priority.BULK), waiters);
+            Thread.sleep(100);
+            CompletableFuture<AdmissionControl.Permit> interactive = CompletableFuture.supplyAsync(
+                    () -> admissionControl.acquire(serviceRequest, RequestExecutor.Priority.INTERACTIVE), waiters);
+            Thread.sleep(100);
+
+            // освободившееся разрешение получает интерактивный запрос, хотя пакетный ждет дольше
+            permits.remove(0).close();
+            permits.add(interactive.get(5, TimeUnit.SECONDS));
+            Assertions.assertFalse(bulk.isDone());
+
+            permits.remove(0).close();
+            permits.add(bulk.get(5, TimeUnit.SECONDS));
+        } finally {
+            permits.forEach(AdmissionControl.Permit::close);
+            waiters.shutdownNow();
+        }
+    }
+
+    @Test
+    public void givenSaturatedConnectionPool_requestOfAnyFilialIsRejected() {
+        // общий лимит по умолчанию равен размеру пула соединений
+        Assertions.assertEquals(maximumPoolSize, admissionControl.getLimit("global", "all"));
+
+        List<AdmissionControl.Permit> permits = new ArrayList<>();
+        try {
+            for (int i = 0; i < maximumPoolSize; i++) {
+                ServiceRequest.DataFlowType flow = ServiceRequest.DataFlowType.values()[
+                        i % ServiceRequest.DataFlowType.values().length];
+                permits.add(admissionControl.acquire(new ServiceRequest(flow, uniqueFilial(), "GLOBAL", null)));
+            }
+
+            AdmissionRejectedException rejected = Assertions.assertThrows(AdmissionRejectedException.class,
+                    () -> admissionControl.acquire(new ServiceRequest(testFlow, uniqueFilial(), "GLOBAL", null)));
+            Assertions.assertTrue(rejected.getMessage().contains("global"));
+        } finally {
+            permits.forEach(AdmissionControl.Permit::close);
+        }
+
+        // отклоненный запрос вернул разрешения филиала и потока
+        admissionControl.acquire(new ServiceRequest(testFlow, uniqueFilial(), "GLOBAL", null)).close();
+    }
+
+    @Test
+    public void givenIdleFilial_limiterIsEvicted() {
+        admissionControl.filialIdleTimeout = 0;
+        String idleFilial = uniqueFilial();
+        String busyFilial = uniqueFilial();
+        admissionControl.acquire(new ServiceRequest(testFlow, idleFilial, "IDLE", null)).close();
+
+        try (AdmissionControl.Permit ignored = admissionControl.acquire(
+                new ServiceRequest(testFlow, busyFilial, "BUSY", null))) {
+            admissionControl.evictIdleFilialLimiters();
+
+            Assertions.assertEquals(-1, admissionControl.getLimit("filial", testFlow + "-" + idleFilial));
+            // лимит филиала с запросом в обработке не удаляется
+            Assertions.assertEquals(3, admissionControl.getLimit("filial", testFlow + "-" + busyFilial));
+        }
+    }
+
+    private static String uniqueFilial() {
+        return UUID.randomUUID().toString().substring(0, 8);
+    }
+}
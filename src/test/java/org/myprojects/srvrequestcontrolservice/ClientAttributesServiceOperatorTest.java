@@ -6,6 +6,10 @@ import org.junit.jupiter.api.Assertions;
 import org.junit.runner.RunWith;
 import org.myprojects.srvrequestcontrolservice.data.*;
 import org.myprojects.srvrequestcontrolservice.utils.TempCache;
+import org.myprojects.srvrequestcontrolservice.workload.RequestPair;
+import org.myprojects.srvrequestcontrolservice.workload.WorkloadGenerator;
+import org.myprojects.srvrequestcontrolservice.workload.WorkloadProfile;
+import org.myprojects.srvrequestcontrolservice.workload.WorkloadSeeder;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.beans.factory.annotation.Value;
 import org.springframework.boot.test.context.SpringBootTest;
@@ -22,9 +26,13 @@ import java.io.Reader;
 import java.nio.charset.StandardCharsets;
 import java.sql.Connection;
 import java.sql.PreparedStatement;
+import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.time.LocalDateTime;
+import java.util.Arrays;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Set;
 import java.util.concurrent.TimeUnit;
 
 import static org.awaitility.Awaitility.await;
@@ -53,6 +61,9 @@ public class ClientAttributesServiceOperatorTest {
     @Autowired
     DataSource dataSource;
 
+    @Autowired
+    TemplateRegistry templateRegistry;
+
     @SpyBean
     TempCache<TempCache.Unit<ParsedXmlRequest>> savedRequestCache;
 
@@ -107,7 +118,9 @@ public class ClientAttributesServiceOperatorTest {
                 ServiceRequest.DataFlowType.DATA_FLOW_TYPE_1, testSegment)
                 .setRequestIdentifiers(new IdList(List.of(new RequestIdentifier(RequestIdentifier.Id.ID_MASTER_SYSTEM, testMasterId))))
                 .setRequest(reqStr).build();
-        clientAttributesServiceOperator.saveRequest(controlTypeRequest, dataSource.getConnection());
+        try (Connection conn = dataSource.getConnection()) {
+            clientAttributesServiceOperator.saveRequest(controlTypeRequest, conn);
+        }
     }
 
     @Test
@@ -206,7 +219,7 @@ public class ClientAttributesServiceOperatorTest {
     }
 
     @Test
-    public void givenSleepByCacheCleanPeriod_savedRequestCacheIsEmpty() throws SQLException {
+    public void givenMatchingAttributesDigest_savedRequestIsNotLoaded() throws SQLException {
         ControlTypeRequest checkRequest = new ControlTypeRequest.Builder(Operators.ControlType.CLIENT_ATTRIBUTES,
                 ServiceRequest.DataFlowType.DATA_FLOW_TYPE_1, testSegment)
                 .setRequestIdentifiers(new IdList(List.of(new RequestIdentifier(RequestIdentifier.Id.ID_MASTER_SYSTEM, testMasterId))))
@@ -214,9 +227,146 @@ public class ClientAttributesServiceOperatorTest {
 
         ControlTypeResult checkResponse;
         try (Connection conn = dataSource.getConnection()) {
+            // тело сохраненного запроса недоступно, результат определяется только дайджестом
+            PreparedStatement preparedStatement = conn.prepareStatement(
+                    "UPDATE client_attrs_requests SET request=NULL WHERE message_id=?");
+            preparedStatement.setString(1, testMasterId);
+            preparedStatement.executeUpdate();
+
+            checkResponse = clientAttributesServiceOperator.checkClientAttributes(checkRequest, conn);
+        }
+
+        Assertions.assertSame(ServiceResponse.Status.OK, checkResponse.getStatus());
+        Assertions.assertNull(savedRequestCache.getCachedUnit(ClientAttributesServiceOperator.getRequestIdentifier(
+                testFlow, testSegment, testMasterId)));
+    }
+
+    @Test
+    public void givenUnchangedSubtreeDigest_subtreeIsNotCompared() throws Exception {
+        ControlTypeRequest checkRequest = new ControlTypeRequest.Builder(Operators.ControlType.CLIENT_ATTRIBUTES,
+                ServiceRequest.DataFlowType.DATA_FLOW_TYPE_1, testSegment)
+                .setRequestIdentifiers(new IdList(List.of(new RequestIdentifier(RequestIdentifier.Id.ID_MASTER_SYSTEM, testMasterId))))
+                .setRequest(reqStr.replace("<main:Value>PersonallySend</main:Value>", "<main:Value>ByPost</main:Value>"))
+                .build();
+
+        ControlTypeResult checkResponse;
+        try (Connection conn = dataSource.getConnection()) {
+            // тело сохраненного запроса отличается в атрибутах корня запроса, но дайджесты остались прежними,
+            // поэтому атрибуты корня запроса не сравниваются
+            String savedRequest = clientAttributesServiceOperator.getSavedRequest(testFlow, testSegment, testMasterId, conn);
+            PreparedStatement preparedStatement = conn.prepareStatement(
+                    "UPDATE client_attrs_requests SET request=? WHERE message_id=?");
+            preparedStatement.setString(1, savedRequest.replace("<main:RegionId>25</main:RegionId>",
+                    "<main:RegionId>26</main:RegionId>"));
+            preparedStatement.setString(2, testMasterId);
+            preparedStatement.executeUpdate();
+
             checkResponse = clientAttributesServiceOperator.checkClientAttributes(checkRequest, conn);
         }
 
+        Assertions.assertSame(ServiceResponse.Status.ERROR, checkResponse.getStatus());
+        Assertions.assertTrue(checkResponse.getErrorDescription().contains("ContractTransferType description"));
+        Assertions.assertFalse(checkResponse.getErrorDescription().contains("RegionId description"));
+    }
+
+    @Test
+    public void givenChangedSubtrees_savedRequestIsNotParsed() throws SQLException {
+        ControlTypeRequest checkRequest = new ControlTypeRequest.Builder(Operators.ControlType.CLIENT_ATTRIBUTES,
+                ServiceRequest.DataFlowType.DATA_FLOW_TYPE_1, testSegment)
+                .setRequestIdentifiers(new IdList(List.of(new RequestIdentifier(RequestIdentifier.Id.ID_MASTER_SYSTEM, testMasterId))))
+                .setRequest(invalidReqStr).build();
+
+        ControlTypeResult checkResponse;
+        try (Connection conn = dataSource.getConnection()) {
+            // тело сохраненного запроса недоступно, сравниваются сохраненные значения измененных поддеревьев
+            PreparedStatement preparedStatement = conn.prepareStatement(
+                    "UPDATE client_attrs_requests SET request=NULL WHERE message_id=?");
+            preparedStatement.setString(1, testMasterId);
+            preparedStatement.executeUpdate();
+
+            checkResponse = clientAttributesServiceOperator.checkClientAttributes(checkRequest, conn);
+        }
+
+        Assertions.assertSame(ServiceResponse.Status.ERROR, checkResponse.getStatus());
+        Assertions.assertTrue(checkResponse.getErrorDescription().contains("operationMonth description"));
+        Assertions.assertTrue(checkResponse.getErrorDescription().contains("designMonth description"));
+        Assertions.assertNull(savedRequestCache.getCachedUnit(ClientAttributesServiceOperator.getRequestIdentifier(
+                testFlow, testSegment, testMasterId)));
+    }
+
+    @Test
+    public void givenResavedRequest_onlyChangedSubtreesAreWritten() throws SQLException {
+        ControlTypeRequest saveRequest = new ControlTypeRequest.Builder(Operators.ControlType.CLIENT_ATTRIBUTES,
+                ServiceRequest.DataFlowType.DATA_FLOW_TYPE_1, testSegment)
+                .setRequestIdentifiers(new IdList(List.of(new RequestIdentifier(RequestIdentifier.Id.ID_MASTER_SYSTEM, testMasterId))))
+                .setRequest(invalidReqStr).build();
+
+        try (Connection conn = dataSource.getConnection()) {
+            Set<String> savedDigests = getSubtreeDigests(conn, null);
+            // помечаем сохраненные строки, чтобы отличить перезаписанные строки от нетронутых
+            PreparedStatement preparedStatement = conn.prepareStatement(
+                    "UPDATE client_attrs_subtrees SET template_name='UNCHANGED' WHERE message_id=?");
+            preparedStatement.setString(1, testMasterId);
+            preparedStatement.executeUpdate();
+
+            clientAttributesServiceOperator.saveRequest(saveRequest, conn);
+
+            preparedStatement = conn.prepareStatement(
+                    "SELECT attrs_subtree_digests FROM client_attrs_requests WHERE message_id=?");
+            preparedStatement.setString(1, testMasterId);
+            ResultSet rs = preparedStatement.executeQuery();
+            Assertions.assertTrue(rs.next());
+            Set<String> requestDigests = new HashSet<>(Arrays.asList(rs.getString(1).split(",")));
+            // строки удаленных и измененных поддеревьев удалены, новых - добавлены
+            Assertions.assertEquals(requestDigests, getSubtreeDigests(conn, null));
+
+            Set<String> unchangedDigests = new HashSet<>(savedDigests);
+            unchangedDigests.retainAll(requestDigests);
+            Assertions.assertFalse(unchangedDigests.isEmpty());
+            Assertions.assertNotEquals(savedDigests, requestDigests);
+            // строки неизмененных поддеревьев не перезаписываются
+            Assertions.assertEquals(unchangedDigests, getSubtreeDigests(conn, "UNCHANGED"));
+        }
+    }
+
+    private Set<String> getSubtreeDigests(Connection conn, String templateName) throws SQLException {
+        PreparedStatement preparedStatement = conn.prepareStatement(templateName == null
+                ? "SELECT subtree_digest FROM client_attrs_subtrees WHERE message_id=?"
+                : "SELECT subtree_digest FROM client_attrs_subtrees WHERE message_id=? AND template_name=?");
+        preparedStatement.setString(1, testMasterId);
+        if (templateName != null) {
+            preparedStatement.setString(2, templateName);
+        }
+        ResultSet rs = preparedStatement.executeQuery();
+        Set<String> digests = new HashSet<>();
+        while (rs.next()) {
+            digests.add(rs.getString(1));
+        }
+
+        return digests;
+    }
+
+    @Test
+    public void givenSleepByCacheCleanPeriod_savedRequestCacheIsEmpty() throws SQLException {
+        // при совпадении дайджестов сохраненный запрос не загружается, поэтому проверяем измененный запрос
+        ControlTypeRequest checkRequest = new ControlTypeRequest.Builder(Operators.ControlType.CLIENT_ATTRIBUTES,
+                ServiceRequest.DataFlowType.DATA_FLOW_TYPE_1, testSegment)
+                .setRequestIdentifiers(new IdList(List.of(new RequestIdentifier(RequestIdentifier.Id.ID_MASTER_SYSTEM, testMasterId))))
+                .setRequest(invalidReqStr).build();
+
+        ControlTypeResult checkResponse;
+        try (Connection conn = dataSource.getConnection()) {
+            // значения поддеревьев не сохранены (запрос сохранен до их появления), запрос разбирается целиком и кешируется
+            PreparedStatement preparedStatement = conn.prepareStatement(
+                    "DELETE FROM client_attrs_subtrees WHERE message_id=?");
+            preparedStatement.setString(1, testMasterId);
+            preparedStatement.executeUpdate();
+
+            checkResponse = clientAttributesServiceOperator.checkClientAttributes(checkRequest, conn);
+        }
+
+        Assertions.assertTrue(checkResponse.getErrorDescription().contains("operationMonth description"));
+
         Assertions.assertNotNull(savedRequestCache.getCachedUnit(ClientAttributesServiceOperator.getRequestIdentifier(
                 testFlow,
                 testSegment, testMasterId)));
@@ -225,4 +375,50 @@ public class ClientAttributesServiceOperatorTest {
                 .atMost(cacheTimePeriod*3, TimeUnit.MILLISECONDS)
                 .until(() -> savedRequestCache.getSize() == 0);
     }
+
+    @Test
+    public void givenSharedRequestContext_requestIsParsedAndHashedOnce() throws Exception {
+        WorkloadGenerator generator = new WorkloadGenerator(new WorkloadProfile.Builder()
+                .setPersonalDataRatio(0.5)
+                .build());
+        RequestPair requestPair = generator.generateRequestPair(0);
+        ServiceRequest.DataFlowType flow = ServiceRequest.DataFlowType.DATA_FLOW_TYPE_2;
+
+        try (Connection conn = dataSource.getConnection()) {
+            new WorkloadSeeder(generator, 1).seedTemplate(flow.name(), saveTimestamp, conn);
+            templateRegistry.refreshIfChanged(conn);
+            clientAttributesServiceOperator.saveRequest(buildRequest(flow, requestPair, requestPair.getMasterId(),
+                    null), conn);
+
+            // проверка и сохранение в рамках одного запроса к сервису
+            RequestContext requestContext = new RequestContext();
+            ControlTypeResult checkResponse = clientAttributesServiceOperator.checkClientAttributes(
+                    buildRequest(flow, requestPair, requestPair.getMasterId(), requestContext), conn);
+            Assertions.assertSame(ServiceResponse.Status.OK, checkResponse.getStatus());
+            Assertions.assertNotNull(requestContext.getTemplate());
+            Assertions.assertNotNull(requestContext.getRequestDocument(requestPair.getMasterRequest()));
+            Assertions.assertTrue(requestContext.isPersonalDataHashed());
+
+            clientAttributesServiceOperator.saveRequest(buildRequest(flow, requestPair, "WITH_CONTEXT",
+                    requestContext), conn);
+            clientAttributesServiceOperator.saveRequest(buildRequest(flow, requestPair, "WITHOUT_CONTEXT",
+                    null), conn);
+
+            // персональные данные не должны хешироваться повторно
+            Assertions.assertEquals(
+                    clientAttributesServiceOperator.getSavedRequest(flow.name(), requestPair.getFilial(),
+                            "WITHOUT_CONTEXT", conn),
+                    clientAttributesServiceOperator.getSavedRequest(flow.name(), requestPair.getFilial(),
+                            "WITH_CONTEXT", conn));
+        }
+    }
+
+    private ControlTypeRequest buildRequest(ServiceRequest.DataFlowType flow, RequestPair requestPair,
+                                            String masterId, RequestContext requestContext) {
+        return new ControlTypeRequest.Builder(Operators.ControlType.CLIENT_ATTRIBUTES, flow, requestPair.getFilial())
+                .setRequestIdentifiers(new IdList(List.of(new RequestIdentifier(RequestIdentifier.Id.ID_MASTER_SYSTEM, masterId))))
+                .setRequest(requestPair.getMasterRequest())
+                .setRequestContext(requestContext)
+                .build();
+    }
 }
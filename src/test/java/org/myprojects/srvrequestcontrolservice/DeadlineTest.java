@@ -0,0 +1,94 @@
+package org.myprojects.srvrequestcontrolservice;
+
+import org.junit.After;
+import org.junit.Test;
+import org.junit.jupiter.api.Assertions;
+import org.junit.runner.RunWith;
+import org.myprojects.srvrequestcontrolservice.data.*;
+import org.myprojects.srvrequestcontrolservice.exceptions.DeadlineExceededException;
+import org.myprojects.srvrequestcontrolservice.utils.Deadline;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.test.context.junit4.SpringRunner;
+
+import javax.sql.DataSource;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.util.List;
+import java.util.Map;
+
+@RunWith(SpringRunner.class)
+@SpringBootTest
+public class DeadlineTest {
+
+    @Autowired
+    RequestControlService requestControlService;
+
+    @Autowired
+    DataSource dataSource;
+
+    @After
+    public void detach() {
+        Deadline.detach();
+    }
+
+    @Test
+    public void givenExpiredDeadline_failedWithTimeoutReasonIsReturned() throws Exception {
+        ServiceRequest serviceRequest = new ServiceRequest(ServiceRequest.DataFlowType.DATA_FLOW_TYPE_1,
+                "TEST_DEADLINE", "TEST_DEADLINE_MESSAGE_ID",
+                new Operators(Map.of(Operators.ControlType.CONTROL_IDENTIFIERS, Operators.Operation.CHECK,
+                        Operators.ControlType.REQUEST_VERSION, Operators.Operation.CHECK)));
+        serviceRequest.setRequestVersion(1);
+        serviceRequest.setIdList(new IdList(List.of(
+                new RequestIdentifier(RequestIdentifier.Id.ID_MASTER_SYSTEM, "TEST_DEADLINE_MASTER_ID"),
+                new RequestIdentifier(RequestIdentifier.Id.ID_INTEGRATION, "TEST_DEADLINE_INTEGRATION_ID"))));
+
+        RequestContext requestContext = new RequestContext();
+        requestContext.setDeadline(Deadline.after(0));
+        ServiceResponse serviceResponse = requestControlService.processServiceRequest(serviceRequest, requestContext);
+
+        Assertions.assertSame(ServiceResponse.Status.FAILED, serviceResponse.getStatus());
+        Assertions.assertTrue(serviceResponse.getErrorDescription().contains("Истек срок обработки запроса"));
+        // срок отвязывается от потока после обработки запроса
+        Assertions.assertNull(Deadline.current());
+    }
+
+    @Test
+    public void givenDeadline_queryTimeoutIsSetByRemainingTime() throws Exception {
+        Deadline.attach(Deadline.after(3500));
+        try (Connection conn = dataSource.getConnection();
+             PreparedStatement preparedStatement = conn.prepareStatement("SELECT 1")) {
+            preparedStatement.executeQuery().close();
+
+            Assertions.assertEquals(4, preparedStatement.getQueryTimeout());
+        }
+
+        Deadline.attach(Deadline.after(0));
+        Assertions.assertThrows(DeadlineExceededException.class, () -> dataSource.getConnection());
+    }
+
+    @Test
+    public void givenChecksFinishedWithErrorAfterExpiry_errorIsNotReplaced() throws Exception {
+        ServiceRequest serviceRequest = new ServiceRequest(ServiceRequest.DataFlowType.DATA_FLOW_TYPE_1,
+                "TEST_DEADLINE", "TEST_DEADLINE_ERROR_MESSAGE_ID",
+                new Operators(Map.of(Operators.ControlType.REQUEST_VERSION, Operators.Operation.CHECK)));
+        Deadline deadline = Deadline.after(20);
+        ServiceResponse checkResponse = new ServiceResponse(ServiceResponse.Status.ERROR,
+                "Версия обращения устарела");
+        // проверки завершились с ошибкой сразу после истечения срока, операторы не пропускались
+        Thread.sleep(50);
+        Assertions.assertTrue(deadline.isExpired());
+
+        ServiceResponse serviceResponse = requestControlService.applyDeadline(serviceRequest, deadline, checkResponse);
+
+        Assertions.assertSame(checkResponse, serviceResponse);
+        Assertions.assertSame(ServiceResponse.Status.ERROR, serviceResponse.getStatus());
+
+        // после пропуска этапа по истечении срока ошибка заменяется причиной - истечением срока
+        Assertions.assertThrows(DeadlineExceededException.class, () -> deadline.check("обновление"));
+        serviceResponse = requestControlService.applyDeadline(serviceRequest, deadline, checkResponse);
+
+        Assertions.assertSame(ServiceResponse.Status.FAILED, serviceResponse.getStatus());
+        Assertions.assertTrue(serviceResponse.getErrorDescription().contains("Истек срок обработки запроса"));
+    }
+}
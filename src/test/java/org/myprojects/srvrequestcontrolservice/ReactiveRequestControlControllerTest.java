@@ -0,0 +1,141 @@
+package org.myprojects.srvrequestcontrolservice;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.jupiter.api.Assertions;
+import org.junit.runner.RunWith;
+import org.myprojects.srvrequestcontrolservice.data.*;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.core.io.Resource;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.ResponseEntity;
+import org.springframework.test.context.junit4.SpringRunner;
+import org.springframework.util.FileCopyUtils;
+
+import javax.sql.DataSource;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.nio.charset.StandardCharsets;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.time.Duration;
+import java.time.LocalDateTime;
+import java.util.List;
+import java.util.Map;
+
+@RunWith(SpringRunner.class)
+@SpringBootTest(properties = {
+        "service.reactive.enabled=true",
+        "service.reactive.xml-threads=2",
+        "service.reactive.jdbc-threads=2"})
+public class ReactiveRequestControlControllerTest {
+
+    @Autowired
+    private ClientAttributesServiceOperator clientAttributesServiceOperator;
+    @Autowired
+    private ReactiveRequestControlController reactiveRequestControlController;
+    @Autowired
+    private AdmissionControl admissionControl;
+    @Autowired
+    DataSource dataSource;
+
+    @Value("classpath:request.xml")
+    Resource requestFile;
+    @Value("classpath:template.xml")
+    Resource templateFile;
+    @Value("classpath:create.sql")
+    Resource sqlFile;
+
+    String reqStr;
+
+    String testSegment = "TEST_REACTIVE";
+    String testMasterId = "TEST_REACTIVE_MASTER_ID";
+
+    @Before
+    public void init() throws Exception {
+        reqStr = readResource(requestFile);
+
+        try (Connection conn = dataSource.getConnection()) {
+            PreparedStatement preparedStatement = conn.prepareStatement(readResource(sqlFile));
+            preparedStatement.executeUpdate();
+
+            clientAttributesServiceOperator.saveTemplate(ServiceRequest.DataFlowType.DATA_FLOW_TYPE_1.name(),
+                    LocalDateTime.now(), readResource(templateFile), conn);
+
+            ControlTypeRequest controlTypeRequest = new ControlTypeRequest.Builder(Operators.ControlType.CLIENT_ATTRIBUTES,
+                    ServiceRequest.DataFlowType.DATA_FLOW_TYPE_1, testSegment)
+                    .setRequestIdentifiers(new IdList(List.of(new RequestIdentifier(RequestIdentifier.Id.ID_MASTER_SYSTEM, testMasterId))))
+                    .setRequest(reqStr).build();
+            clientAttributesServiceOperator.saveRequest(controlTypeRequest, conn);
+        }
+    }
+
+    @Test
+    public void givenCheckRequest_requestIsProcessedOnReactiveSchedulers() {
+        ResponseEntity<ServiceResponse> response = reactiveRequestControlController
+                .process(checkRequest(reqStr), null, null)
+                .block(Duration.ofSeconds(30));
+
+        Assertions.assertNotNull(response);
+        Assertions.assertEquals(HttpStatus.OK, response.getStatusCode());
+        Assertions.assertSame(ServiceResponse.Status.OK, response.getBody().getStatus());
+    }
+
+    @Test
+    public void givenMalformedRequestBody_operatorErrorIsReturned() {
+        ResponseEntity<ServiceResponse> response = reactiveRequestControlController
+                .process(checkRequest("<main:Request"), null, null)
+                .block(Duration.ofSeconds(30));
+
+        Assertions.assertNotNull(response);
+        Assertions.assertEquals(HttpStatus.OK, response.getStatusCode());
+        Assertions.assertNotSame(ServiceResponse.Status.OK, response.getBody().getStatus());
+    }
+
+    @Test
+    public void givenSaturatedFilial_requestIsRejectedByAdmissionControl() {
+        long maxWait = admissionControl.maxWait;
+        int filialInitialLimit = admissionControl.filialInitialLimit;
+        // реактивная обработка не ждет разрешения, даже если ожидание разрешено настройкой
+        admissionControl.maxWait = 60_000;
+        admissionControl.filialInitialLimit = 2;
+        // отдельный филиал, чтобы лимит филиала создавался с filialInitialLimit
+        ServiceRequest serviceRequest = checkRequest(reqStr, "TEST_REACTIVE_ADM");
+        try (AdmissionControl.Permit first = admissionControl.acquire(serviceRequest);
+             AdmissionControl.Permit second = admissionControl.acquire(serviceRequest)) {
+            ResponseEntity<ServiceResponse> response = reactiveRequestControlController
+                    .process(serviceRequest, null, null)
+                    .block(Duration.ofSeconds(5));
+
+            Assertions.assertNotNull(response);
+            Assertions.assertEquals(HttpStatus.TOO_MANY_REQUESTS, response.getStatusCode());
+            Assertions.assertSame(ServiceResponse.Status.FAILED, response.getBody().getStatus());
+            Assertions.assertNotNull(response.getHeaders().getFirst(HttpHeaders.RETRY_AFTER));
+        } finally {
+            admissionControl.maxWait = maxWait;
+            admissionControl.filialInitialLimit = filialInitialLimit;
+        }
+    }
+
+    private ServiceRequest checkRequest(String body) {
+        return checkRequest(body, testSegment);
+    }
+
+    private ServiceRequest checkRequest(String body, String segment) {
+        ServiceRequest serviceRequest = new ServiceRequest(ServiceRequest.DataFlowType.DATA_FLOW_TYPE_1,
+                segment, "TEST_REACTIVE_MESSAGE_ID",
+                new Operators(Map.of(Operators.ControlType.CLIENT_ATTRIBUTES, Operators.Operation.CHECK)));
+        serviceRequest.setIdList(new IdList(List.of(new RequestIdentifier(RequestIdentifier.Id.ID_MASTER_SYSTEM, testMasterId))));
+        serviceRequest.setCheckRequestBody(body);
+        return serviceRequest;
+    }
+
+    private static String readResource(Resource resource) throws Exception {
+        try (Reader reader = new InputStreamReader(resource.getInputStream(), StandardCharsets.UTF_8)) {
+            return FileCopyUtils.copyToString(reader);
+        }
+    }
+}
@@ -0,0 +1,229 @@
+package org.myprojects.srvrequestcontrolservice;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import lombok.extern.slf4j.Slf4j;
+import org.HdrHistogram.Histogram;
+import org.HdrHistogram.Recorder;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.jupiter.api.Assertions;
+import org.junit.runner.RunWith;
+import org.myprojects.srvrequestcontrolservice.data.ServiceRequest;
+import org.myprojects.srvrequestcontrolservice.loadtest.LoadTestResult;
+import org.myprojects.srvrequestcontrolservice.loadtest.OperationMix;
+import org.myprojects.srvrequestcontrolservice.workload.WorkloadGenerator;
+import org.myprojects.srvrequestcontrolservice.workload.WorkloadProfile;
+import org.myprojects.srvrequestcontrolservice.workload.WorkloadSeeder;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.boot.web.server.LocalServerPort;
+import org.springframework.test.context.junit4.SpringRunner;
+
+import javax.sql.DataSource;
+import java.io.File;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.time.Duration;
+import java.time.LocalDateTime;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+// нагрузочный тест /requestControl/control, запускается отдельно: mvn test -P load-test
+// по умолчанию работает с H2, для локального PostgreSQL: -Dspring.profiles.active=loadtest-pg
+// параметры: -Dloadtest.rate, -Dloadtest.duration-seconds, -Dloadtest.warmup-seconds, -Dloadtest.pairs,
+// -Dloadtest.max-in-flight, -Dloadtest.baseline, -Dloadtest.tolerance, -Dloadtest.update-baseline,
+// -Dloadtest.slo.p99-ms, -Dloadtest.slo.error-rate,
+// размеры пулов: -Dspring.datasource.hikari.maximum-pool-size, -Dserver.tomcat.threads.max
+// базовая линия по умолчанию сохраняется в target/loadtest/baseline.json, чтобы не изменять ресурсы тестов,
+// для сравнения между сборками передайте путь вне target в -Dloadtest.baseline
+@Slf4j
+@RunWith(SpringRunner.class)
+@SpringBootTest(webEnvironment = SpringBootTest.WebEnvironment.RANDOM_PORT)
+public class RequestControlLoadTest {
+
+    @LocalServerPort
+    int port;
+
+    @Autowired
+    DataSource dataSource;
+
+    @Autowired
+    TemplateRegistry templateRegistry;
+
+    @Value("${spring.datasource.hikari.maximum-pool-size:10}")
+    int maximumPoolSize;
+
+    @Value("${server.tomcat.threads.max:200}")
+    int tomcatMaxThreads;
+
+    double rate = Double.parseDouble(System.getProperty("loadtest.rate", "50"));
+    int durationSeconds = Integer.getInteger("loadtest.duration-seconds", 30);
+    int warmupSeconds = Integer.getInteger("loadtest.warmup-seconds", 5);
+    int pairCount = Integer.getInteger("loadtest.pairs", 1000);
+    int maxInFlight = Integer.getInteger("loadtest.max-in-flight", 256);
+    String baselinePath = System.getProperty("loadtest.baseline", "target/loadtest/baseline.json");
+    double tolerance = Double.parseDouble(System.getProperty("loadtest.tolerance", "0.2"));
+    boolean updateBaseline = Boolean.getBoolean("loadtest.update-baseline");
+    double sloP99Millis = Double.parseDouble(System.getProperty("loadtest.slo.p99-ms", "500"));
+    double sloErrorRate = Double.parseDouble(System.getProperty("loadtest.slo.error-rate", "0.01"));
+
+    ServiceRequest.DataFlowType testFlow = ServiceRequest.DataFlowType.DATA_FLOW_TYPE_1;
+    WorkloadGenerator generator = new WorkloadGenerator(new WorkloadProfile.Builder()
+            .setSectionCount(8)
+            .setMultiSectionCount(2)
+            .setSectionNumberCardinality(3)
+            .setAttributesPerSection(10)
+            .setAttachedFilesPerSection(1)
+            .setAttachedFiles(3)
+            .setPersonalDataRatio(0.1)
+            .setMismatchRatio(0.05)
+            .build());
+
+    private final ObjectMapper mapper = new ObjectMapper();
+
+    @Before
+    public void init() throws Exception {
+        WorkloadSeeder seeder = new WorkloadSeeder(generator, 500);
+        try (Connection conn = dataSource.getConnection()) {
+            seeder.createSchema(conn);
+            // удаляем только данные предыдущих запусков нагрузочного теста
+            for (String sql : List.of(
+                    "DELETE FROM client_attrs_templates WHERE name = 'DATA_FLOW_TYPE_1-workload-template'",
+                    "DELETE FROM client_attrs_requests WHERE message_id LIKE 'WL-%'",
+                    "DELETE FROM request_identifiers WHERE id_master_system LIKE 'WL-%'",
+                    "DELETE FROM request_cache WHERE message_id LIKE 'WL-%'")) {
+                try (PreparedStatement preparedStatement = conn.prepareStatement(sql)) {
+                    preparedStatement.executeUpdate();
+                }
+            }
+            seeder.seedTemplate(testFlow.name(), LocalDateTime.now().minusMinutes(1), conn);
+            templateRegistry.refreshIfChanged(conn);
+            seeder.seedClientAttrsRequests(testFlow.name(), 0, pairCount, conn);
+            seeder.seedRequestIdentifiers(testFlow.name(), 0, pairCount, conn);
+        }
+    }
+
+    @Test
+    public void givenTargetRate_latencyMeetsSloAndBaseline() throws Exception {
+        OperationMix operationMix = new OperationMix(Map.of(
+                OperationMix.OperationType.CHECK, 50,
+                OperationMix.OperationType.CHECK_AND_UPDATE, 30,
+                OperationMix.OperationType.CACHE, 10,
+                OperationMix.OperationType.CONFIRM, 6,
+                OperationMix.OperationType.RESTORE, 4), pairCount);
+
+        ExecutorService clientExecutor = Executors.newFixedThreadPool(4);
+        HttpClient client = HttpClient.newBuilder()
+                .executor(clientExecutor)
+                .connectTimeout(Duration.ofSeconds(5))
+                .build();
+        URI uri = URI.create("http://localhost:" + port + "/requestControl/control");
+
+        Recorder recorder = new Recorder(3);
+        AtomicLong errors = new AtomicLong();
+        AtomicLong checkErrors = new AtomicLong();
+        Semaphore inFlight = new Semaphore(maxInFlight);
+        Random random = new Random(42);
+
+        long intervalNanos = (long) (TimeUnit.SECONDS.toNanos(1) / rate);
+        long totalRequests = (long) (rate * (warmupSeconds + durationSeconds));
+        long startedAt = System.nanoTime();
+        long measureFrom = startedAt + TimeUnit.SECONDS.toNanos(warmupSeconds);
+
+        for (long i = 0; i < totalRequests; i++) {
+            // время отправки задается расписанием, а не моментом завершения предыдущих запросов,
+            // поэтому задержка сервиса не уменьшает нагрузку и учитывается в латентности (coordinated omission)
+            long intendedAt = startedAt + i * intervalNanos;
+            long now;
+            while ((now = System.nanoTime()) < intendedAt) {
+                LockSupport.parkNanos(intendedAt - now);
+            }
+            inFlight.acquire();
+
+            OperationMix.Operation operation = operationMix.nextOperation(random,
+                    generator.generateRequestPair(random.nextInt(pairCount)), testFlow);
+            HttpRequest request = HttpRequest.newBuilder(uri)
+                    .header("Content-Type", "application/json")
+                    .timeout(Duration.ofSeconds(30))
+                    .POST(HttpRequest.BodyPublishers.ofString(
+                            mapper.writeValueAsString(operation.getServiceRequest())))
+                    .build();
+            boolean measured = intendedAt >= measureFrom;
+
+            client.sendAsync(request, HttpResponse.BodyHandlers.ofString())
+                    .whenComplete((response, e) -> {
+                        try {
+                            if (measured) {
+                                recorder.recordValue(TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - intendedAt));
+                            }
+                            String status = e == null && response.statusCode() == 200
+                                    ? getStatus(response.body())
+                                    : null;
+                            if (status == null || "FAILED".equals(status)) {
+                                if (measured) {
+                                    errors.incrementAndGet();
+                                }
+                            } else if ("ERROR".equals(status)) {
+                                if (measured) {
+                                    checkErrors.incrementAndGet();
+                                }
+                            } else {
+                                operationMix.onSuccess(operation);
+                            }
+                        } finally {
+                            inFlight.release();
+                        }
+                    });
+        }
+
+        // дожидаемся завершения всех запросов
+        Assertions.assertTrue(inFlight.tryAcquire(maxInFlight, 60, TimeUnit.SECONDS));
+        double elapsedSeconds = (System.nanoTime() - measureFrom) / (double) TimeUnit.SECONDS.toNanos(1);
+        clientExecutor.shutdown();
+
+        Histogram latencies = recorder.getIntervalHistogram();
+        LoadTestResult result = new LoadTestResult(latencies, elapsedSeconds, errors.get(), checkErrors.get());
+        result.setTargetRate(rate);
+        result.setMaximumPoolSize(maximumPoolSize);
+        result.setTomcatMaxThreads(tomcatMaxThreads);
+        log.info("Результат нагрузочного теста:" + System.lineSeparator() + result.format());
+
+        File baselineFile = new File(baselinePath);
+        if (updateBaseline || !baselineFile.exists()) {
+            baselineFile.getParentFile().mkdirs();
+            mapper.writerWithDefaultPrettyPrinter().writeValue(baselineFile, result);
+            log.info("Базовая линия сохранена в " + baselineFile.getAbsolutePath());
+        } else {
+            LoadTestResult baseline = mapper.readValue(baselineFile, LoadTestResult.class);
+            List<String> regressions = result.getRegressions(baseline, tolerance);
+            Assertions.assertTrue(regressions.isEmpty(), "Ухудшение относительно базовой линии: " + regressions);
+        }
+
+        Assertions.assertTrue(result.getP99Millis() <= sloP99Millis,
+                String.format("p99 %.3f мс превышает SLO %.3f мс", result.getP99Millis(), sloP99Millis));
+        Assertions.assertTrue(result.getErrorRate() <= sloErrorRate,
+                String.format("Доля ошибок %.4f превышает SLO %.4f", result.getErrorRate(), sloErrorRate));
+    }
+
+    private String getStatus(String body) {
+        try {
+            JsonNode status = mapper.readTree(body).get("status");
+            return status == null ? null : status.asText();
+        } catch (Exception e) {
+            return null;
+        }
+    }
+}
@@ -0,0 +1,127 @@
+package org.myprojects.srvrequestcontrolservice;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.jupiter.api.Assertions;
+import org.junit.runner.RunWith;
+import org.myprojects.srvrequestcontrolservice.data.*;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.core.io.Resource;
+import org.springframework.test.context.junit4.SpringRunner;
+import org.springframework.util.FileCopyUtils;
+
+import javax.sql.DataSource;
+import javax.validation.ConstraintViolation;
+import javax.validation.Validator;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.nio.charset.StandardCharsets;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+@RunWith(SpringRunner.class)
+@SpringBootTest
+public class RequestControlServiceTest {
+
+    @Autowired
+    RequestControlService requestControlService;
+
+    @Autowired
+    Validator validator;
+
+    @Autowired
+    DataSource dataSource;
+
+    @Value("classpath:create.sql")
+    Resource sqlFile;
+
+    String testSegment = "TEST_REQUEST_CACHE";
+    String testMessageId = "TEST_REQUEST_CACHE_MESSAGE_ID";
+
+    @Before
+    public void init() throws Exception {
+        try (Connection conn = dataSource.getConnection();
+             PreparedStatement preparedStatement = conn.prepareStatement(readResource(sqlFile))) {
+            preparedStatement.executeUpdate();
+        }
+    }
+
+    // запросы к request_cache и request_identifiers используют имена колонок схемы (message_id, id_main_check_system),
+    // а кешированная строка читается без повторного сдвига курсора
+    @Test
+    public void givenCachedValues_restoreFromCacheReturnsThemToIdentifiers() throws Exception {
+        ServiceRequest serviceRequest = restoreRequest();
+        IdList cachedIdList = new IdList(List.of(
+                new RequestIdentifier(RequestIdentifier.Id.ID_INTEGRATION, "TEST_REQUEST_CACHE_INTEGRATION_ID"),
+                new RequestIdentifier(RequestIdentifier.Id.ID_MASTER_SYSTEM, "TEST_REQUEST_CACHE_MASTER_ID"),
+                new RequestIdentifier(RequestIdentifier.Id.ID_MAIN_CHECK_SYSTEM, "TEST_REQUEST_CACHE_MAIN_ID")));
+
+        try (Connection conn = dataSource.getConnection()) {
+            // неподтвержденная версия обращения, сохраненная после кеширования
+            ControlTypeRequest controlTypeRequest = new ControlTypeRequest.Builder(Operators.ControlType.CONTROL_IDENTIFIERS,
+                    ServiceRequest.DataFlowType.DATA_FLOW_TYPE_1, testSegment)
+                    .setRequestVersion(2)
+                    .setRequestIdentifiers(new IdList(List.of(
+                            new RequestIdentifier(RequestIdentifier.Id.ID_INTEGRATION, "TEST_REQUEST_CACHE_INTEGRATION_ID"),
+                            new RequestIdentifier(RequestIdentifier.Id.ID_MASTER_SYSTEM, "TEST_REQUEST_CACHE_MASTER_ID"),
+                            new RequestIdentifier(RequestIdentifier.Id.ID_MAIN_CHECK_SYSTEM, "TEST_REQUEST_CACHE_NEW_MAIN_ID"))))
+                    .build();
+            requestControlService.insertIdentifiersAndRequestVersionToDB(controlTypeRequest, conn);
+            Assertions.assertEquals("TEST_REQUEST_CACHE_NEW_MAIN_ID", RequestControlService
+                    .getIdentifiersFromDB(controlTypeRequest, conn)
+                    .get(RequestIdentifier.Id.ID_MAIN_CHECK_SYSTEM).getIdValue());
+
+            ServiceRequest currentValues = new ServiceRequest(ServiceRequest.DataFlowType.DATA_FLOW_TYPE_1,
+                    testSegment, testMessageId, new Operators());
+            currentValues.setRequestVersion(1);
+            currentValues.setIdList(cachedIdList);
+            requestControlService.cacheCurrentValues(currentValues, conn);
+
+            ServiceRequest cachedData = requestControlService.getCachedData(serviceRequest, conn);
+            Assertions.assertNotNull(cachedData);
+            Assertions.assertEquals(1, cachedData.getRequestVersion());
+            Assertions.assertEquals("TEST_REQUEST_CACHE_MASTER_ID",
+                    cachedData.getIdList().get(RequestIdentifier.Id.ID_MASTER_SYSTEM).getIdValue());
+            Assertions.assertEquals("TEST_REQUEST_CACHE_MAIN_ID",
+                    cachedData.getIdList().get(RequestIdentifier.Id.ID_MAIN_CHECK_SYSTEM).getIdValue());
+
+            requestControlService.processRestoreRequest(serviceRequest, conn);
+
+            IdList restoredIdList = RequestControlService.getIdentifiersFromDB(controlTypeRequest, conn);
+            Assertions.assertEquals("TEST_REQUEST_CACHE_INTEGRATION_ID",
+                    restoredIdList.get(RequestIdentifier.Id.ID_INTEGRATION).getIdValue());
+            Assertions.assertEquals("TEST_REQUEST_CACHE_MAIN_ID",
+                    restoredIdList.get(RequestIdentifier.Id.ID_MAIN_CHECK_SYSTEM).getIdValue());
+            // после восстановления кеш очищается
+            Assertions.assertNull(requestControlService.getCachedData(serviceRequest, conn));
+        }
+    }
+
+    // @NotBlank не применим к перечислению и отклонял любой HTTP-запрос
+    @Test
+    public void givenServiceRequest_dataFlowTypeIsValidatedOnlyForNull() {
+        Set<ConstraintViolation<ServiceRequest>> violations = validator.validate(restoreRequest());
+        Assertions.assertTrue(violations.isEmpty(), violations.toString());
+
+        violations = validator.validate(new ServiceRequest(null, testSegment, testMessageId,
+                new Operators(Map.of(Operators.ControlType.REQUEST, Operators.Operation.RESTORE_FROM_CACHE))));
+        Assertions.assertEquals(1, violations.size());
+        Assertions.assertEquals("dataFlowType", violations.iterator().next().getPropertyPath().toString());
+    }
+
+    private ServiceRequest restoreRequest() {
+        return new ServiceRequest(ServiceRequest.DataFlowType.DATA_FLOW_TYPE_1, testSegment, testMessageId,
+                new Operators(Map.of(Operators.ControlType.REQUEST, Operators.Operation.RESTORE_FROM_CACHE)));
+    }
+
+    private static String readResource(Resource resource) throws Exception {
+        try (Reader reader = new InputStreamReader(resource.getInputStream(), StandardCharsets.UTF_8)) {
+            return FileCopyUtils.copyToString(reader);
+        }
+    }
+}
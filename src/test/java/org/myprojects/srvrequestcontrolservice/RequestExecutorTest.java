@@ -0,0 +1,135 @@
+package org.myprojects.srvrequestcontrolservice;
+
+import io.micrometer.core.instrument.MeterRegistry;
+import org.junit.Test;
+import org.junit.jupiter.api.Assertions;
+import org.junit.runner.RunWith;
+import org.myprojects.srvrequestcontrolservice.data.Operators;
+import org.myprojects.srvrequestcontrolservice.data.ServiceRequest;
+import org.myprojects.srvrequestcontrolservice.data.ServiceResponse;
+import org.myprojects.srvrequestcontrolservice.exceptions.AdmissionRejectedException;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.ResponseEntity;
+import org.springframework.test.context.junit4.SpringRunner;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+@RunWith(SpringRunner.class)
+@SpringBootTest(properties = {
+        "service.executor.threads=1",
+        "service.executor.queue=1",
+        "service.executor.priority.interactive-queue=8",
+        "service.executor.priority.interactive-weight=2"})
+public class RequestExecutorTest {
+
+    @Autowired
+    private RequestExecutor requestExecutor;
+    @Autowired
+    private RequestControlController requestControlController;
+    @Autowired
+    private MeterRegistry meterRegistry;
+
+    @Test
+    public void givenFullQueue_requestIsRejected() throws Exception {
+        double rejectedBefore = meterRegistry.get("request.control.executor.rejected")
+                .tag("priority", "bulk").counter().count();
+        CountDownLatch release = new CountDownLatch(1);
+        try {
+            CompletableFuture<Boolean> running = submitBlocking(release);
+            CompletableFuture<Boolean> queued = requestExecutor.submit(() -> true);
+            CompletableFuture<Boolean> rejected = requestExecutor.submit(() -> true);
+
+            ExecutionException e = Assertions.assertThrows(ExecutionException.class,
+                    () -> rejected.get(1, TimeUnit.SECONDS));
+            Assertions.assertTrue(e.getCause() instanceof AdmissionRejectedException);
+            Assertions.assertEquals(rejectedBefore + 1,
+                    meterRegistry.get("request.control.executor.rejected").tag("priority", "bulk").counter().count());
+
+            release.countDown();
+            Assertions.assertTrue(running.get(30, TimeUnit.SECONDS));
+            Assertions.assertTrue(queued.get(30, TimeUnit.SECONDS));
+        } finally {
+            release.countDown();
+        }
+    }
+
+    @Test
+    public void givenFullQueue_controllerReturnsFailedWithRetryAfter() throws Exception {
+        CountDownLatch release = new CountDownLatch(1);
+        CompletableFuture<Boolean> running = submitBlocking(release);
+        CompletableFuture<Boolean> queued = requestExecutor.submit(() -> true);
+        try {
+
+            ServiceRequest serviceRequest = new ServiceRequest(ServiceRequest.DataFlowType.DATA_FLOW_TYPE_1,
+                    "TEST_EXECUTOR", "TEST_EXECUTOR_MESSAGE_ID",
+                    new Operators(Map.of(Operators.ControlType.CLIENT_ATTRIBUTES, Operators.Operation.CHECK)));
+            ResponseEntity<ServiceResponse> response = requestControlController.process(serviceRequest, null, null)
+                    .get(1, TimeUnit.SECONDS);
+
+            Assertions.assertSame(ServiceResponse.Status.FAILED, response.getBody().getStatus());
+            Assertions.assertEquals(429, response.getStatusCodeValue());
+            Assertions.assertEquals("1", response.getHeaders().getFirst(HttpHeaders.RETRY_AFTER));
+        } finally {
+            release.countDown();
+            CompletableFuture.allOf(running, queued).get(30, TimeUnit.SECONDS);
+        }
+    }
+
+    @Test
+    public void givenInteractiveAndBulkQueued_interactiveRunsFirstByWeight() throws Exception {
+        CountDownLatch release = new CountDownLatch(1);
+        List<String> order = Collections.synchronizedList(new ArrayList<>());
+        try {
+            CompletableFuture<Boolean> running = submitBlocking(release);
+            List<CompletableFuture<Boolean>> queued = List.of(
+                    requestExecutor.submit(RequestExecutor.Priority.BULK, () -> order.add("B1")),
+                    requestExecutor.submit(RequestExecutor.Priority.INTERACTIVE, () -> order.add("I1")),
+                    requestExecutor.submit(RequestExecutor.Priority.INTERACTIVE, () -> order.add("I2")),
+                    requestExecutor.submit(RequestExecutor.Priority.INTERACTIVE, () -> order.add("I3")));
+
+            release.countDown();
+            Assertions.assertTrue(running.get(30, TimeUnit.SECONDS));
+            CompletableFuture.allOf(queued.toArray(new CompletableFuture[0])).get(30, TimeUnit.SECONDS);
+            // на 2 интерактивных запроса выбирается один пакетный
+            Assertions.assertEquals(List.of("I1", "I2", "B1", "I3"), order);
+        } finally {
+            release.countDown();
+        }
+    }
+
+    @Test
+    public void givenHeaderOrRequestOperation_priorityIsDetermined() {
+        ServiceRequest check = new ServiceRequest(ServiceRequest.DataFlowType.DATA_FLOW_TYPE_1,
+                "TEST_EXECUTOR", "TEST_EXECUTOR_MESSAGE_ID",
+                new Operators(Map.of(Operators.ControlType.CLIENT_ATTRIBUTES, Operators.Operation.CHECK)));
+        ServiceRequest confirm = new ServiceRequest(ServiceRequest.DataFlowType.DATA_FLOW_TYPE_1,
+                "TEST_EXECUTOR", "TEST_EXECUTOR_MESSAGE_ID",
+                new Operators(Map.of(Operators.ControlType.REQUEST, Operators.Operation.CONFIRM_REQUEST)));
+
+        Assertions.assertSame(RequestExecutor.Priority.BULK, requestExecutor.getPriority(check, null));
+        Assertions.assertSame(RequestExecutor.Priority.INTERACTIVE, requestExecutor.getPriority(confirm, null));
+        Assertions.assertSame(RequestExecutor.Priority.INTERACTIVE, requestExecutor.getPriority(check, "interactive"));
+        Assertions.assertSame(RequestExecutor.Priority.BULK, requestExecutor.getPriority(confirm, "bulk"));
+    }
+
+    // занимаем единственный поток пула и дожидаемся начала выполнения задачи,
+    // иначе задача может попасть в очередь (например, если поток пула завершился по простою)
+    private CompletableFuture<Boolean> submitBlocking(CountDownLatch release) throws InterruptedException {
+        CountDownLatch started = new CountDownLatch(1);
+        CompletableFuture<Boolean> running = requestExecutor.submit(() -> {
+            started.countDown();
+            return release.await(30, TimeUnit.SECONDS);
+        });
+        Assertions.assertTrue(started.await(30, TimeUnit.SECONDS));
+        return running;
+    }
+}
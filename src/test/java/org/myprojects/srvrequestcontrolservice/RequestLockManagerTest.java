@@ -0,0 +1,126 @@
+package org.myprojects.srvrequestcontrolservice;
+
+import io.micrometer.core.instrument.MeterRegistry;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.jupiter.api.Assertions;
+import org.junit.runner.RunWith;
+import org.myprojects.srvrequestcontrolservice.data.*;
+import org.myprojects.srvrequestcontrolservice.exceptions.RequestControlServiceException;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.test.context.junit4.SpringRunner;
+
+import javax.sql.DataSource;
+import java.sql.Connection;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+@RunWith(SpringRunner.class)
+@SpringBootTest
+public class RequestLockManagerTest {
+
+    @Autowired
+    RequestLockManager requestLockManager;
+
+    @Autowired
+    MeterRegistry meterRegistry;
+
+    @Autowired
+    DataSource dataSource;
+
+    @Value("${spring.datasource.hikari.maximum-pool-size:10}")
+    int maximumPoolSize;
+
+    long waitTimeout;
+    boolean advisory;
+
+    @Before
+    public void init() {
+        waitTimeout = requestLockManager.waitTimeout;
+        advisory = requestLockManager.advisory;
+        requestLockManager.waitTimeout = 100;
+    }
+
+    @After
+    public void restore() {
+        requestLockManager.waitTimeout = waitTimeout;
+        requestLockManager.advisory = advisory;
+    }
+
+    @Test
+    public void givenSameRequestKey_secondRequestWaitsWithTimeout() throws Exception {
+        String key = RequestLockManager.getRequestKey(buildRequest("ID-1", "MASTER-1"));
+        Assertions.assertEquals(ServiceRequest.DataFlowType.DATA_FLOW_TYPE_1 + "-TEST_SEGMENT-ID-1", key);
+
+        long timeouts = meterRegistry.timer("request.control.lock.wait", "result", "timeout").count();
+        try (RequestLockManager.Lease ignored = requestLockManager.acquire(key)) {
+            // тот же ключ в другом потоке ждет не дольше wait-timeout-ms
+            CompletableFuture<Throwable> sameKey = CompletableFuture.supplyAsync(() -> {
+                try (RequestLockManager.Lease lease = requestLockManager.acquire(key)) {
+                    return null;
+                } catch (RequestControlServiceException e) {
+                    return e;
+                }
+            });
+            Assertions.assertNotNull(sameKey.get(5, TimeUnit.SECONDS));
+            Assertions.assertEquals(timeouts + 1,
+                    meterRegistry.timer("request.control.lock.wait", "result", "timeout").count());
+
+            // другой ключ не ждет
+            CompletableFuture<Boolean> otherKey = CompletableFuture.supplyAsync(() -> {
+                try (RequestLockManager.Lease lease = requestLockManager.acquire(
+                        RequestLockManager.getRequestKey(buildRequest(null, "MASTER-2")))) {
+                    return true;
+                }
+            });
+            Assertions.assertTrue(otherKey.get(5, TimeUnit.SECONDS));
+        }
+
+        // после освобождения ключ снова доступен
+        CompletableFuture<Boolean> released = CompletableFuture.supplyAsync(() -> {
+            try (RequestLockManager.Lease lease = requestLockManager.acquire(key)) {
+                return true;
+            }
+        });
+        Assertions.assertTrue(released.get(5, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void givenSaturatedPool_advisoryLockDoesNotWaitForPoolConnection() throws Exception {
+        requestLockManager.advisory = true;
+        String key = RequestLockManager.getRequestKey(buildRequest("ID-POOL", "MASTER-POOL"));
+        List<Connection> connections = new ArrayList<>();
+        try {
+            // все соединения пула заняты обработкой запросов
+            for (int i = 0; i < maximumPoolSize; i++) {
+                connections.add(dataSource.getConnection());
+            }
+
+            // блокировка берется на соединении пула advisory-блокировок, а не ждет соединения основного пула
+            CompletableFuture<Boolean> locked = CompletableFuture.supplyAsync(() -> {
+                try (RequestLockManager.Lease lease = requestLockManager.acquire(key)) {
+                    return true;
+                }
+            });
+            Assertions.assertTrue(locked.get(5, TimeUnit.SECONDS));
+        } finally {
+            for (Connection conn : connections) {
+                conn.close();
+            }
+        }
+    }
+
+    private ServiceRequest buildRequest(String integrationId, String masterId) {
+        ServiceRequest serviceRequest = new ServiceRequest(ServiceRequest.DataFlowType.DATA_FLOW_TYPE_1,
+                "TEST_SEGMENT", "TEST_MESSAGE_ID", null);
+        serviceRequest.setIdList(new IdList(List.of(
+                new RequestIdentifier(RequestIdentifier.Id.ID_INTEGRATION, integrationId),
+                new RequestIdentifier(RequestIdentifier.Id.ID_MASTER_SYSTEM, masterId))));
+        return serviceRequest;
+    }
+}
@@ -0,0 +1,123 @@
+package org.myprojects.srvrequestcontrolservice;
+
+import io.micrometer.core.instrument.MeterRegistry;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.jupiter.api.Assertions;
+import org.junit.runner.RunWith;
+import org.myprojects.srvrequestcontrolservice.data.*;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.core.io.Resource;
+import org.springframework.test.context.junit4.SpringRunner;
+import org.springframework.util.FileCopyUtils;
+
+import javax.sql.DataSource;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.nio.charset.StandardCharsets;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.time.LocalDateTime;
+import java.util.List;
+import java.util.Map;
+
+@RunWith(SpringRunner.class)
+@SpringBootTest
+public class RequestPrefetchTest {
+
+    @Autowired
+    private ClientAttributesServiceOperator clientAttributesServiceOperator;
+    @Autowired
+    private RequestControlService requestControlService;
+    @Autowired
+    private MeterRegistry meterRegistry;
+    @Autowired
+    DataSource dataSource;
+
+    @Value("classpath:request.xml")
+    Resource requestFile;
+    @Value("classpath:template.xml")
+    Resource templateFile;
+    @Value("classpath:create.sql")
+    Resource sqlFile;
+
+    String reqStr;
+
+    String testSegment = "TEST_PREFETCH";
+    String testMasterId = "TEST_PREFETCH_MASTER_ID";
+
+    @Before
+    public void init() throws Exception {
+        reqStr = readResource(requestFile);
+
+        try (Connection conn = dataSource.getConnection()) {
+            PreparedStatement preparedStatement = conn.prepareStatement(readResource(sqlFile));
+            preparedStatement.executeUpdate();
+
+            clientAttributesServiceOperator.saveTemplate(ServiceRequest.DataFlowType.DATA_FLOW_TYPE_1.name(),
+                    LocalDateTime.now(), readResource(templateFile), conn);
+
+            ControlTypeRequest controlTypeRequest = new ControlTypeRequest.Builder(Operators.ControlType.CLIENT_ATTRIBUTES,
+                    ServiceRequest.DataFlowType.DATA_FLOW_TYPE_1, testSegment)
+                    .setRequestIdentifiers(new IdList(List.of(new RequestIdentifier(RequestIdentifier.Id.ID_MASTER_SYSTEM, testMasterId))))
+                    .setRequest(reqStr).build();
+            clientAttributesServiceOperator.saveRequest(controlTypeRequest, conn);
+        }
+    }
+
+    @Test
+    public void givenCheckRequest_bodyIsParsedInParallelAndJoinedIntoCheck() throws Exception {
+        double submitted = getPrefetchCount();
+
+        ServiceResponse serviceResponse = requestControlService.processServiceRequest(checkRequest(reqStr));
+
+        Assertions.assertSame(ServiceResponse.Status.OK, serviceResponse.getStatus());
+        Assertions.assertEquals(submitted + 1, getPrefetchCount());
+    }
+
+    @Test
+    public void givenMalformedRequestBody_prefetchedParseErrorIsReturnedByCheck() throws Exception {
+        ServiceResponse serviceResponse = requestControlService.processServiceRequest(checkRequest("<main:Request"));
+
+        Assertions.assertSame(ServiceResponse.Status.FAILED, serviceResponse.getStatus());
+        Assertions.assertTrue(serviceResponse.getErrorDescription().contains("xml"));
+    }
+
+    @Test
+    public void givenFailedRequestLevelOperation_prefetchedParseIsCancelled() {
+        // восстановление из пустого кеша завершает запрос ошибкой до проверки клиентских атрибутов
+        ServiceRequest serviceRequest = new ServiceRequest(ServiceRequest.DataFlowType.DATA_FLOW_TYPE_1,
+                testSegment, "TEST_PREFETCH_CANCEL_MESSAGE_ID",
+                new Operators(Map.of(Operators.ControlType.REQUEST, Operators.Operation.RESTORE_FROM_CACHE,
+                        Operators.ControlType.CLIENT_ATTRIBUTES, Operators.Operation.CHECK)));
+        serviceRequest.setIdList(new IdList(List.of(new RequestIdentifier(RequestIdentifier.Id.ID_MASTER_SYSTEM, testMasterId))));
+        serviceRequest.setCheckRequestBody(reqStr);
+        RequestContext requestContext = new RequestContext();
+
+        ServiceResponse serviceResponse = requestControlService.processChecks(serviceRequest, requestContext);
+
+        Assertions.assertSame(ServiceResponse.Status.FAILED, serviceResponse.getStatus());
+        Assertions.assertNull(requestContext.getPrefetchedDocument(reqStr));
+    }
+
+    private double getPrefetchCount() {
+        return meterRegistry.get("request.control.prefetch").tag("result", "submitted").counter().count();
+    }
+
+    private ServiceRequest checkRequest(String body) {
+        ServiceRequest serviceRequest = new ServiceRequest(ServiceRequest.DataFlowType.DATA_FLOW_TYPE_1,
+                testSegment, "TEST_PREFETCH_MESSAGE_ID",
+                new Operators(Map.of(Operators.ControlType.CLIENT_ATTRIBUTES, Operators.Operation.CHECK)));
+        serviceRequest.setIdList(new IdList(List.of(new RequestIdentifier(RequestIdentifier.Id.ID_MASTER_SYSTEM, testMasterId))));
+        serviceRequest.setCheckRequestBody(body);
+        return serviceRequest;
+    }
+
+    private static String readResource(Resource resource) throws Exception {
+        try (Reader reader = new InputStreamReader(resource.getInputStream(), StandardCharsets.UTF_8)) {
+            return FileCopyUtils.copyToString(reader);
+        }
+    }
+}
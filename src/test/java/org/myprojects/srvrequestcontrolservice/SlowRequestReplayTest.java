@@ -0,0 +1,137 @@
+package org.myprojects.srvrequestcontrolservice;
+
+import org.apache.commons.codec.digest.DigestUtils;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.jupiter.api.Assertions;
+import org.junit.runner.RunWith;
+import org.myprojects.srvrequestcontrolservice.capture.CapturedRequest;
+import org.myprojects.srvrequestcontrolservice.capture.CapturedRequestStore;
+import org.myprojects.srvrequestcontrolservice.capture.ReplayReport;
+import org.myprojects.srvrequestcontrolservice.capture.SlowRequestCapture;
+import org.myprojects.srvrequestcontrolservice.capture.SlowRequestReplayer;
+import org.myprojects.srvrequestcontrolservice.data.*;
+import org.myprojects.srvrequestcontrolservice.metrics.StageClock;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.core.io.Resource;
+import org.springframework.test.context.junit4.SpringRunner;
+import org.springframework.util.FileCopyUtils;
+import org.springframework.util.FileSystemUtils;
+
+import javax.sql.DataSource;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.time.LocalDateTime;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+@RunWith(SpringRunner.class)
+@SpringBootTest(properties = {
+        "service.capture.enabled=true",
+        "service.capture.threshold-ms=0",
+        "service.capture.dir=target/capture-replay-test"})
+public class SlowRequestReplayTest {
+
+    @Autowired
+    private ClientAttributesServiceOperator clientAttributesServiceOperator;
+    @Autowired
+    private RequestControlService requestControlService;
+    @Autowired
+    private SlowRequestCapture slowRequestCapture;
+    @Autowired
+    private CapturedRequestStore capturedRequestStore;
+    @Autowired
+    private SlowRequestReplayer slowRequestReplayer;
+    @Autowired
+    DataSource dataSource;
+
+    @Value("classpath:request.xml")
+    Resource requestFile;
+    @Value("classpath:valid_request.xml")
+    Resource validRequestFile;
+    @Value("classpath:template.xml")
+    Resource templateFile;
+    @Value("classpath:create.sql")
+    Resource sqlFile;
+
+    String validReqStr;
+
+    String testSegment = "TEST_SEGMENT";
+    String testMasterId = "TEST_MASTER_ID";
+    String testEmail = "sokolov2020@mail.ru";
+
+    @Before
+    public void init() throws Exception {
+        FileSystemUtils.deleteRecursively(Paths.get("target/capture-replay-test"));
+
+        String templateStr = readResource(templateFile)
+                .replace("<main:ClientEmail clientAttribute=\"true\"",
+                        "<main:ClientEmail clientAttribute=\"true\" personalData=\"true\"");
+        String reqStr = readResource(requestFile);
+        validReqStr = readResource(validRequestFile);
+
+        try (Connection conn = dataSource.getConnection()) {
+            PreparedStatement preparedStatement = conn.prepareStatement(readResource(sqlFile));
+            preparedStatement.executeUpdate();
+
+            clientAttributesServiceOperator.saveTemplate(ServiceRequest.DataFlowType.DATA_FLOW_TYPE_1.name(),
+                    LocalDateTime.now(), templateStr, conn);
+
+            ControlTypeRequest controlTypeRequest = new ControlTypeRequest.Builder(Operators.ControlType.CLIENT_ATTRIBUTES,
+                    ServiceRequest.DataFlowType.DATA_FLOW_TYPE_1, testSegment)
+                    .setRequestIdentifiers(new IdList(List.of(new RequestIdentifier(RequestIdentifier.Id.ID_MASTER_SYSTEM, testMasterId))))
+                    .setRequest(reqStr).build();
+            clientAttributesServiceOperator.saveRequest(controlTypeRequest, conn);
+        }
+    }
+
+    @Test
+    public void givenSlowCheckRequest_requestIsCapturedWithHashedPersonalDataAndReplayed() throws Exception {
+        ServiceRequest serviceRequest = new ServiceRequest(ServiceRequest.DataFlowType.DATA_FLOW_TYPE_1,
+                testSegment, "TEST_MESSAGE_ID",
+                new Operators(Map.of(Operators.ControlType.CLIENT_ATTRIBUTES, Operators.Operation.CHECK)));
+        serviceRequest.setIdList(new IdList(List.of(new RequestIdentifier(RequestIdentifier.Id.ID_MASTER_SYSTEM, testMasterId))));
+        serviceRequest.setCheckRequestBody(validReqStr);
+
+        StageClock clock = StageClock.start();
+        ServiceResponse serviceResponse;
+        try {
+            serviceResponse = requestControlService.processServiceRequest(serviceRequest);
+        } finally {
+            StageClock.stop();
+        }
+        slowRequestCapture.captureIfSlow(serviceRequest, clock).get(30, TimeUnit.SECONDS);
+
+        Assertions.assertSame(ServiceResponse.Status.OK, serviceResponse.getStatus());
+
+        List<CapturedRequest> capturedRequests = capturedRequestStore.readAll();
+        Assertions.assertEquals(1, capturedRequests.size());
+        String capturedBody = capturedRequests.get(0).getServiceRequest().getCheckRequestBody();
+        Assertions.assertFalse(capturedBody.contains(testEmail));
+        Assertions.assertTrue(capturedBody.contains(DigestUtils.md5Hex(testEmail)));
+        Assertions.assertTrue(capturedRequests.get(0).getSqlRoundTrips() > 0);
+
+        ReplayReport report = slowRequestReplayer.replay(capturedRequests, 3, true);
+
+        ReplayReport.Entry entry = report.getEntries().get(0);
+        Assertions.assertEquals(3, entry.getRunCount());
+        // персональные данные не хешируются повторно, поэтому результат проверки совпадает с исходным
+        Assertions.assertEquals(List.of(serviceResponse.getStatus()), entry.getStatuses());
+        Assertions.assertTrue(entry.getWarmStageMillis(StageClock.Stage.PARSE) > 0);
+        Assertions.assertTrue(entry.getWarmTotalMillis() > 0);
+        Assertions.assertFalse(report.format().isBlank());
+    }
+
+    private static String readResource(Resource resource) throws Exception {
+        try (Reader reader = new InputStreamReader(resource.getInputStream(), StandardCharsets.UTF_8)) {
+            return FileCopyUtils.copyToString(reader);
+        }
+    }
+}
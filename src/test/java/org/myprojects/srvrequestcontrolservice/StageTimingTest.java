@@ -0,0 +1,203 @@
+package org.myprojects.srvrequestcontrolservice;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.jupiter.api.Assertions;
+import org.junit.runner.RunWith;
+import org.myprojects.srvrequestcontrolservice.data.*;
+import org.myprojects.srvrequestcontrolservice.metrics.StageClock;
+import org.myprojects.srvrequestcontrolservice.metrics.StageTimingDataSource;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.core.io.Resource;
+import org.springframework.http.ResponseEntity;
+import org.springframework.test.context.junit4.SpringRunner;
+import org.springframework.test.util.AopTestUtils;
+import org.springframework.util.FileCopyUtils;
+
+import javax.sql.DataSource;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.nio.charset.StandardCharsets;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.Statement;
+import java.time.LocalDateTime;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+@RunWith(SpringRunner.class)
+@SpringBootTest
+public class StageTimingTest {
+
+    @Autowired
+    private ClientAttributesServiceOperator clientAttributesServiceOperator;
+    @Autowired
+    RequestControlController requestControlController;
+    @Autowired
+    TemplateRegistry templateRegistry;
+
+    @Autowired
+    DataSource dataSource;
+
+    @Value("classpath:request.xml")
+    Resource requestFile;
+    @Value("classpath:template.xml")
+    Resource templateFile;
+    @Value("classpath:create.sql")
+    Resource sqlFile;
+
+    String reqStr;
+
+    String testSegment = "TEST_SERVER_TIMING";
+    String testMasterId = "TEST_SERVER_TIMING_MASTER_ID";
+
+    @Before
+    public void init() throws Exception {
+        reqStr = readResource(requestFile);
+
+        try (Connection conn = dataSource.getConnection()) {
+            PreparedStatement preparedStatement = conn.prepareStatement(readResource(sqlFile));
+            preparedStatement.executeUpdate();
+
+            clientAttributesServiceOperator.saveTemplate(ServiceRequest.DataFlowType.DATA_FLOW_TYPE_1.name(),
+                    LocalDateTime.now(), readResource(templateFile), conn);
+
+            ControlTypeRequest controlTypeRequest = new ControlTypeRequest.Builder(Operators.ControlType.CLIENT_ATTRIBUTES,
+                    ServiceRequest.DataFlowType.DATA_FLOW_TYPE_1, testSegment)
+                    .setRequestIdentifiers(new IdList(List.of(new RequestIdentifier(RequestIdentifier.Id.ID_MASTER_SYSTEM, testMasterId))))
+                    .setRequest(reqStr).build();
+            clientAttributesServiceOperator.saveRequest(controlTypeRequest, conn);
+        }
+    }
+
+    @After
+    public void stop() {
+        StageClock.stop();
+    }
+
+    @Test
+    public void givenNestedStages_exclusiveStageTimesSumIsNotGreaterThanTotal() throws Exception {
+        StageClock clock = StageClock.start();
+        long parseStartedAt = System.nanoTime();
+        try (StageClock.Span ignored = clock.enter(StageClock.Stage.PARSE)) {
+            Thread.sleep(20);
+            try (StageClock.Span nested = clock.enter(StageClock.Stage.DATABASE)) {
+                Thread.sleep(30);
+            }
+        }
+        long parseElapsed = System.nanoTime() - parseStartedAt;
+        try (StageClock.Span ignored = clock.enter(StageClock.Stage.COMPARE)) {
+            Thread.sleep(10);
+        }
+        StageClock.stop();
+
+        long stagesSum = 0;
+        for (StageClock.Stage stage : StageClock.Stage.values()) {
+            stagesSum += clock.getStageNanos(stage);
+        }
+        Assertions.assertTrue(stagesSum <= clock.getTotalNanos(),
+                String.format("Сумма этапов %d нс больше общего времени %d нс", stagesSum, clock.getTotalNanos()));
+        // время вложенного этапа не учитывается во внешнем
+        Assertions.assertTrue(clock.getStageNanos(StageClock.Stage.DATABASE) >= TimeUnit.MILLISECONDS.toNanos(30));
+        Assertions.assertTrue(clock.getStageNanos(StageClock.Stage.PARSE)
+                <= parseElapsed - clock.getStageNanos(StageClock.Stage.DATABASE));
+    }
+
+    @Test
+    public void givenTemplateResolution_templateCacheHitIsCountedByResolvedTemplate() throws Exception {
+        try (Connection conn = dataSource.getConnection()) {
+            StageClock clock = StageClock.start();
+            Assertions.assertNotNull(templateRegistry.getTemplate(ServiceRequest.DataFlowType.DATA_FLOW_TYPE_1.name(),
+                    LocalDateTime.now(), conn));
+            StageClock.stop();
+            Assertions.assertEquals(Boolean.TRUE, clock.getTemplateCacheHit());
+
+            // реестр загружен, но шаблона потока нет - промах
+            clock = StageClock.start();
+            Assertions.assertNull(templateRegistry.getTemplate(ServiceRequest.DataFlowType.DATA_FLOW_TYPE_2.name(),
+                    LocalDateTime.now(), conn));
+            StageClock.stop();
+            Assertions.assertEquals(Boolean.FALSE, clock.getTemplateCacheHit());
+        }
+    }
+
+    @Test
+    public void givenStatementsThroughDataSource_sqlRoundTripsAreCounted() throws Exception {
+        Assertions.assertTrue(dataSource instanceof StageTimingDataSource);
+
+        StageClock clock = StageClock.start();
+        try (Connection conn = dataSource.getConnection();
+             PreparedStatement preparedStatement = conn.prepareStatement("SELECT 1");
+             Statement statement = conn.createStatement()) {
+            preparedStatement.executeQuery().close();
+            preparedStatement.executeQuery().close();
+            statement.execute("SELECT 2");
+            // подготовка выражения и чтение результата не являются обращениями к БД
+            preparedStatement.getQueryTimeout();
+        }
+        StageClock.stop();
+
+        Assertions.assertEquals(3, clock.getSqlRoundTrips());
+        Assertions.assertTrue(clock.getStageNanos(StageClock.Stage.DATABASE) > 0);
+        Assertions.assertTrue(clock.toServerTimingHeader().contains("db;dur="));
+        Assertions.assertTrue(clock.toServerTimingHeader().contains("desc=\"sql=3\""));
+
+        // вне запроса обращения к БД не учитываются
+        try (Connection conn = dataSource.getConnection();
+             Statement statement = conn.createStatement()) {
+            statement.execute("SELECT 1");
+        }
+        Assertions.assertEquals(3, clock.getSqlRoundTrips());
+        Assertions.assertEquals(0, StageClock.current().getSqlRoundTrips());
+    }
+
+    @Test
+    public void givenServerTimingSetting_headerIsReturnedOnlyWhenEnabled() throws Exception {
+        // контроллер с @Validated - прокси, настройка меняется у самого контроллера
+        RequestControlController controller = AopTestUtils.getTargetObject(requestControlController);
+        boolean serverTimingEnabled = controller.serverTimingEnabled;
+        try {
+            controller.serverTimingEnabled = false;
+            ResponseEntity<ServiceResponse> response = requestControlController
+                    .process(checkRequest("TEST_SERVER_TIMING_DISABLED"), null, null)
+                    .get(30, TimeUnit.SECONDS);
+
+            Assertions.assertSame(ServiceResponse.Status.OK, response.getBody().getStatus());
+            Assertions.assertFalse(response.getHeaders().containsKey("Server-Timing"));
+
+            controller.serverTimingEnabled = true;
+            response = requestControlController
+                    .process(checkRequest("TEST_SERVER_TIMING_ENABLED"), null, null)
+                    .get(30, TimeUnit.SECONDS);
+
+            Assertions.assertSame(ServiceResponse.Status.OK, response.getBody().getStatus());
+            String serverTiming = response.getHeaders().getFirst("Server-Timing");
+            Assertions.assertNotNull(serverTiming);
+            for (StageClock.Stage stage : StageClock.Stage.values()) {
+                Assertions.assertTrue(serverTiming.contains(stage.getMetricName() + ";dur="), serverTiming);
+            }
+            Assertions.assertTrue(serverTiming.contains("total;dur="), serverTiming);
+        } finally {
+            controller.serverTimingEnabled = serverTimingEnabled;
+        }
+    }
+
+    private ServiceRequest checkRequest(String messageId) {
+        ServiceRequest serviceRequest = new ServiceRequest(ServiceRequest.DataFlowType.DATA_FLOW_TYPE_1,
+                testSegment, messageId,
+                new Operators(Map.of(Operators.ControlType.CLIENT_ATTRIBUTES, Operators.Operation.CHECK)));
+        serviceRequest.setIdList(new IdList(List.of(new RequestIdentifier(RequestIdentifier.Id.ID_MASTER_SYSTEM, testMasterId))));
+        serviceRequest.setCheckRequestBody(reqStr);
+        return serviceRequest;
+    }
+
+    private static String readResource(Resource resource) throws Exception {
+        try (Reader reader = new InputStreamReader(resource.getInputStream(), StandardCharsets.UTF_8)) {
+            return FileCopyUtils.copyToString(reader);
+        }
+    }
+}
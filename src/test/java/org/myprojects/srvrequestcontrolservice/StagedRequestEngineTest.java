@@ -0,0 +1,149 @@
+package org.myprojects.srvrequestcontrolservice;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.jupiter.api.Assertions;
+import org.junit.runner.RunWith;
+import org.myprojects.srvrequestcontrolservice.data.*;
+import org.myprojects.srvrequestcontrolservice.exceptions.AdmissionRejectedException;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.core.io.Resource;
+import org.springframework.test.context.junit4.SpringRunner;
+import org.springframework.util.FileCopyUtils;
+
+import javax.sql.DataSource;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.nio.charset.StandardCharsets;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.time.LocalDateTime;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+@RunWith(SpringRunner.class)
+@SpringBootTest(properties = {
+        "service.staged.enabled=true",
+        "service.staged.xml.threads=2",
+        "service.staged.check.threads=2"})
+public class StagedRequestEngineTest {
+
+    @Autowired
+    private ClientAttributesServiceOperator clientAttributesServiceOperator;
+    @Autowired
+    private StagedRequestEngine stagedRequestEngine;
+    @Autowired
+    private MeterRegistry meterRegistry;
+    @Autowired
+    private AdmissionControl admissionControl;
+    @Autowired
+    DataSource dataSource;
+
+    @Value("classpath:request.xml")
+    Resource requestFile;
+    @Value("classpath:template.xml")
+    Resource templateFile;
+    @Value("classpath:create.sql")
+    Resource sqlFile;
+
+    String reqStr;
+
+    String testSegment = "TEST_STAGED";
+    String testMasterId = "TEST_STAGED_MASTER_ID";
+
+    @Before
+    public void init() throws Exception {
+        reqStr = readResource(requestFile);
+
+        try (Connection conn = dataSource.getConnection()) {
+            PreparedStatement preparedStatement = conn.prepareStatement(readResource(sqlFile));
+            preparedStatement.executeUpdate();
+
+            clientAttributesServiceOperator.saveTemplate(ServiceRequest.DataFlowType.DATA_FLOW_TYPE_1.name(),
+                    LocalDateTime.now(), readResource(templateFile), conn);
+
+            ControlTypeRequest controlTypeRequest = new ControlTypeRequest.Builder(Operators.ControlType.CLIENT_ATTRIBUTES,
+                    ServiceRequest.DataFlowType.DATA_FLOW_TYPE_1, testSegment)
+                    .setRequestIdentifiers(new IdList(List.of(new RequestIdentifier(RequestIdentifier.Id.ID_MASTER_SYSTEM, testMasterId))))
+                    .setRequest(reqStr).build();
+            clientAttributesServiceOperator.saveRequest(controlTypeRequest, conn);
+        }
+    }
+
+    @Test
+    public void givenCheckRequest_requestPassesAllStages() throws Exception {
+        ServiceRequest serviceRequest = new ServiceRequest(ServiceRequest.DataFlowType.DATA_FLOW_TYPE_1,
+                testSegment, "TEST_STAGED_MESSAGE_ID",
+                new Operators(Map.of(Operators.ControlType.CLIENT_ATTRIBUTES, Operators.Operation.CHECK)));
+        serviceRequest.setIdList(new IdList(List.of(new RequestIdentifier(RequestIdentifier.Id.ID_MASTER_SYSTEM, testMasterId))));
+        serviceRequest.setCheckRequestBody(reqStr);
+
+        ServiceResponse response = stagedRequestEngine
+                .process(new ObjectMapper().writeValueAsString(serviceRequest), null)
+                .get(30, TimeUnit.SECONDS);
+
+        Assertions.assertSame(ServiceResponse.Status.OK, response.getStatus());
+        for (String stage : List.of("decode", "xml", "check")) {
+            Assertions.assertTrue(meterRegistry.get("request.control.staged.service")
+                    .tag("stage", stage).timer().count() > 0);
+        }
+    }
+
+    @Test
+    public void givenMalformedJson_failedIsReturnedFromDecodeStage() throws Exception {
+        ServiceResponse response = stagedRequestEngine.process("{\"flowType\":", null)
+                .get(30, TimeUnit.SECONDS);
+
+        Assertions.assertSame(ServiceResponse.Status.FAILED, response.getStatus());
+    }
+
+    @Test
+    public void givenSaturatedFilial_requestIsRejectedAtDecodeStage() throws Exception {
+        long maxWait = admissionControl.maxWait;
+        int filialInitialLimit = admissionControl.filialInitialLimit;
+        admissionControl.maxWait = 0;
+        admissionControl.filialInitialLimit = 2;
+        // отдельный филиал, чтобы лимит филиала создавался с filialInitialLimit
+        ServiceRequest serviceRequest = new ServiceRequest(ServiceRequest.DataFlowType.DATA_FLOW_TYPE_1,
+                "TEST_STAGED_ADM", "TEST_STAGED_MESSAGE_ID",
+                new Operators(Map.of(Operators.ControlType.CLIENT_ATTRIBUTES, Operators.Operation.CHECK)));
+        serviceRequest.setIdList(new IdList(List.of(new RequestIdentifier(RequestIdentifier.Id.ID_MASTER_SYSTEM, testMasterId))));
+        serviceRequest.setCheckRequestBody(reqStr);
+        try {
+            try (AdmissionControl.Permit first = admissionControl.acquire(serviceRequest);
+                 AdmissionControl.Permit second = admissionControl.acquire(serviceRequest)) {
+                CompletableFuture<ServiceResponse> response = stagedRequestEngine
+                        .process(new ObjectMapper().writeValueAsString(serviceRequest), null);
+
+                ExecutionException e = Assertions.assertThrows(ExecutionException.class,
+                        () -> response.get(30, TimeUnit.SECONDS));
+                Assertions.assertTrue(e.getCause() instanceof AdmissionRejectedException);
+            }
+
+            // после обработки запроса разрешение возвращается
+            Assertions.assertNotNull(stagedRequestEngine
+                    .process(new ObjectMapper().writeValueAsString(serviceRequest), null)
+                    .get(30, TimeUnit.SECONDS));
+            try (AdmissionControl.Permit first = admissionControl.acquire(serviceRequest);
+                 AdmissionControl.Permit second = admissionControl.acquire(serviceRequest)) {
+                Assertions.assertNotNull(second);
+            }
+        } finally {
+            admissionControl.maxWait = maxWait;
+            admissionControl.filialInitialLimit = filialInitialLimit;
+        }
+    }
+
+    private static String readResource(Resource resource) throws Exception {
+        try (Reader reader = new InputStreamReader(resource.getInputStream(), StandardCharsets.UTF_8)) {
+            return FileCopyUtils.copyToString(reader);
+        }
+    }
+}
@@ -0,0 +1,340 @@
+package org.myprojects.srvrequestcontrolservice;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.jupiter.api.Assertions;
+import org.junit.runner.RunWith;
+import org.myprojects.srvrequestcontrolservice.data.ServiceRequest;
+import org.myprojects.srvrequestcontrolservice.exceptions.DatabaseException;
+import org.myprojects.srvrequestcontrolservice.utils.XmlUtils;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.core.io.Resource;
+import org.springframework.test.context.junit4.SpringRunner;
+import org.springframework.util.FileCopyUtils;
+
+import javax.sql.DataSource;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.nio.charset.StandardCharsets;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.Types;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+@RunWith(SpringRunner.class)
+@SpringBootTest
+public class TemplateRegistryTest {
+
+    @Autowired
+    TemplateRegistry templateRegistry;
+
+    @Autowired
+    ClientAttributesServiceOperator clientAttributesServiceOperator;
+
+    @Autowired
+    DataSource dataSource;
+
+    @Value("classpath:template.xml")
+    Resource templateFile;
+    @Value("classpath:create.sql")
+    Resource sqlFile;
+
+    String testFlow = ServiceRequest.DataFlowType.DATA_FLOW_TYPE_1.name();
+    String templateStr;
+    LocalDateTime firstCreatedAt = LocalDateTime.of(2022, 1, 1, 0, 0);
+    LocalDateTime secondCreatedAt = LocalDateTime.of(2022, 6, 1, 0, 0);
+
+    @Before
+    public void init() throws Exception {
+        String sql;
+        try (Reader reader = new InputStreamReader(sqlFile.getInputStream(), StandardCharsets.UTF_8)) {
+            sql = FileCopyUtils.copyToString(reader);
+        }
+        try (Reader reader = new InputStreamReader(templateFile.getInputStream(), StandardCharsets.UTF_8)) {
+            templateStr = FileCopyUtils.copyToString(reader);
+        }
+
+        try (Connection conn = dataSource.getConnection()) {
+            conn.prepareStatement(sql).executeUpdate();
+            clientAttributesServiceOperator.saveTemplate(testFlow, firstCreatedAt, templateStr, conn);
+            clientAttributesServiceOperator.saveTemplate(testFlow, secondCreatedAt, templateStr, conn);
+        }
+    }
+
+    @Test
+    public void givenTwoTemplates_templateIsResolvedByEffectiveDate() throws Exception {
+        try (Connection conn = dataSource.getConnection()) {
+            Assertions.assertNull(templateRegistry.getTemplate(testFlow, firstCreatedAt, conn));
+            Assertions.assertEquals(testFlow + "-" + firstCreatedAt,
+                    templateRegistry.getTemplate(testFlow, firstCreatedAt.plusDays(1), conn).getName());
+            Assertions.assertEquals(testFlow + "-" + firstCreatedAt,
+                    templateRegistry.getTemplate(testFlow, secondCreatedAt, conn).getName());
+            Assertions.assertEquals(testFlow + "-" + secondCreatedAt,
+                    templateRegistry.getTemplate(testFlow, secondCreatedAt.plusSeconds(1), conn).getName());
+            Assertions.assertNull(templateRegistry.getTemplate(
+                    ServiceRequest.DataFlowType.DATA_FLOW_TYPE_2.name(), secondCreatedAt.plusSeconds(1), conn));
+        }
+    }
+
+    @Test
+    public void givenUnchangedTemplates_registryIsNotReloaded() throws Exception {
+        try (Connection conn = dataSource.getConnection()) {
+            XmlRequestTemplate template = templateRegistry.getTemplate(testFlow, secondCreatedAt.plusSeconds(1), conn);
+
+            Assertions.assertFalse(templateRegistry.refreshIfChanged(conn));
+
+            // сохранение шаблона увеличивает версию, ранее скомпилированные шаблоны переиспользуются
+            LocalDateTime thirdCreatedAt = secondCreatedAt.plusDays(1);
+            clientAttributesServiceOperator.saveTemplate(testFlow, thirdCreatedAt, templateStr, conn);
+            Assertions.assertFalse(templateRegistry.refreshIfChanged(conn));
+            Assertions.assertSame(template,
+                    templateRegistry.getTemplate(testFlow, secondCreatedAt.plusSeconds(1), conn));
+            Assertions.assertEquals(testFlow + "-" + thirdCreatedAt,
+                    templateRegistry.getTemplate(testFlow, thirdCreatedAt.plusSeconds(1), conn).getName());
+        }
+    }
+
+    @Test
+    public void givenCallerTransaction_failedTemplateSaveDoesNotRollBackCallerWork() throws Exception {
+        LocalDateTime createdAt = secondCreatedAt.plusDays(1);
+        try (Connection conn = dataSource.getConnection()) {
+            conn.setAutoCommit(false);
+            try {
+                // изменения вызывающего кода в той же транзакции
+                PreparedStatement preparedStatement = conn.prepareStatement(
+                        "INSERT INTO client_attrs_templates (flow, created_at, name, template) VALUES (?,?,?,?)");
+                preparedStatement.setString(1, testFlow);
+                preparedStatement.setObject(2, createdAt, Types.TIMESTAMP);
+                preparedStatement.setString(3, "caller-template");
+                preparedStatement.setString(4, templateStr);
+                preparedStatement.executeUpdate();
+
+                // поток длиннее колонки flow - ошибка сохранения шаблона
+                Assertions.assertThrows(DatabaseException.class, () -> clientAttributesServiceOperator.saveTemplate(
+                        "TOO_LONG_FLOW_NAME_FOR_COLUMN", createdAt, templateStr, conn));
+                // транзакция вызывающего кода не откатывается и не завершается внутри сохранения шаблона
+                Assertions.assertFalse(conn.getAutoCommit());
+                conn.commit();
+            } finally {
+                conn.setAutoCommit(true);
+            }
+
+            PreparedStatement preparedStatement = conn.prepareStatement(
+                    "SELECT count(*) FROM client_attrs_templates WHERE name=?");
+            preparedStatement.setString(1, "caller-template");
+            ResultSet rs = preparedStatement.executeQuery();
+            Assertions.assertTrue(rs.next());
+            Assertions.assertEquals(1, rs.getInt(1));
+        }
+    }
+
+    @Test
+    public void givenTemplateInsertedByAnotherNode_registryIsReloadedOnVersionChange() throws Exception {
+        LocalDateTime createdAt = secondCreatedAt.plusDays(1);
+        try (Connection conn = dataSource.getConnection()) {
+            templateRegistry.getTemplate(testFlow, createdAt, conn);
+
+            // другой узел сохраняет шаблон и увеличивает версию
+            PreparedStatement preparedStatement = conn.prepareStatement(
+                    "INSERT INTO client_attrs_templates (flow, created_at, name, template) VALUES (?,?,?,?)");
+            preparedStatement.setString(1, testFlow);
+            preparedStatement.setObject(2, createdAt, Types.TIMESTAMP);
+            preparedStatement.setString(3, "another-node-template");
+            preparedStatement.setString(4, templateStr);
+            preparedStatement.executeUpdate();
+            TemplateRegistry.incrementTemplatesVersion(conn);
+
+            templateRegistry.pollTemplatesVersion();
+            Assertions.assertEquals("another-node-template",
+                    templateRegistry.getTemplate(testFlow, createdAt.plusSeconds(1), conn).getName());
+        }
+    }
+
+    @Test
+    public void givenSchemaScript_versionRowIsSeededAndConcurrentIncrementsAreCounted() throws Exception {
+        String sql;
+        try (Reader reader = new InputStreamReader(sqlFile.getInputStream(), StandardCharsets.UTF_8)) {
+            sql = FileCopyUtils.copyToString(reader);
+        }
+        long previousVersion;
+        try (Connection conn = dataSource.getConnection()) {
+            previousVersion = getTemplatesVersion(conn);
+            conn.prepareStatement("DELETE FROM config_versions").executeUpdate();
+            conn.prepareStatement(sql).executeUpdate();
+            Assertions.assertEquals(0, getTemplatesVersion(conn));
+        }
+
+        // узлы сохраняют шаблоны одновременно, строка версии уже существует и только обновляется
+        int threadCount = 8;
+        ExecutorService executor = Executors.newFixedThreadPool(threadCount);
+        try {
+            List<Future<?>> futures = new ArrayList<>();
+            for (int i = 0; i < threadCount; i++) {
+                futures.add(executor.submit(() -> {
+                    try (Connection conn = dataSource.getConnection()) {
+                        TemplateRegistry.incrementTemplatesVersion(conn);
+                    }
+                    return null;
+                }));
+            }
+            for (Future<?> future : futures) {
+                future.get(30, TimeUnit.SECONDS);
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+
+        try (Connection conn = dataSource.getConnection()) {
+            Assertions.assertEquals(threadCount, getTemplatesVersion(conn));
+            // версия не должна повторять уже загруженную реестром версию
+            PreparedStatement preparedStatement = conn.prepareStatement(
+                    "UPDATE config_versions SET version=? WHERE name=?");
+            preparedStatement.setLong(1, previousVersion + threadCount);
+            preparedStatement.setString(2, TemplateRegistry.TEMPLATES_VERSION_NAME);
+            preparedStatement.executeUpdate();
+        }
+    }
+
+    @Test
+    public void givenCompiledTemplate_errorDescriptionsArePreResolved() throws Exception {
+        try (Connection conn = dataSource.getConnection()) {
+            XmlRequestTemplate template = templateRegistry.getTemplate(testFlow, secondCreatedAt.plusSeconds(1), conn);
+
+            XmlPathDictionary dictionary = template.getDictionary();
+            List<TemplateAttribute> attributes = IntStream.range(0, dictionary.getPathCount())
+                    .mapToObj(dictionary::getAttribute)
+                    .collect(Collectors.toList());
+
+            TemplateAttribute designMonth = attributes.stream()
+                    .filter(a -> a.isDynamic() && "designMonth description".equals(getErrorDescription(a)))
+                    .findFirst()
+                    .orElseThrow();
+            Assertions.assertEquals("SectionId 6, SectionNumber 2. designMonth description",
+                    designMonth.getDynamicErrorDescription("2"));
+            Assertions.assertTrue(attributes.stream()
+                    .filter(a -> !a.isDynamic())
+                    .allMatch(a -> getErrorDescription(a) != null));
+        }
+    }
+
+    @Test
+    public void givenConcreteDynamicPath_pathIsInternedOnce() throws Exception {
+        try (Connection conn = dataSource.getConnection()) {
+            XmlPathDictionary dictionary = templateRegistry.getTemplate(
+                    testFlow, secondCreatedAt.plusSeconds(1), conn).getDictionary();
+            int dynamicPathId = IntStream.range(0, dictionary.getPathCount())
+                    .filter(i -> dictionary.getAttribute(i).isDynamic())
+                    .findFirst()
+                    .orElseThrow();
+            int staticPathId = IntStream.range(0, dictionary.getPathCount())
+                    .filter(i -> !dictionary.getAttribute(i).isDynamic())
+                    .findFirst()
+                    .orElseThrow();
+
+            // путь с конкретным номером множественной секции
+            List<XmlPathNode> pathNodes = new ArrayList<>();
+            for (XmlPathNode pathNode : dictionary.getTemplatePath(dynamicPathId).getPathElements()) {
+                if (XmlUtils.isParentPathNodeDynamic(pathNode)) {
+                    List<XmlPathNode> children = new ArrayList<>();
+                    for (XmlPathNode child : pathNode.getChildNodes()) {
+                        children.add(child.getType() == XmlPathNode.Type.CHILD_NODE_DYNAMIC
+                                ? new XmlPathNode(XmlPathNode.Type.CHILD_NODE_DYNAMIC, child.getName(), "1")
+                                : child);
+                    }
+                    pathNode = new XmlPathNode(XmlPathNode.Type.NODE_WITH_CHILDREN, pathNode.getName(), children);
+                }
+                pathNodes.add(pathNode);
+            }
+            XmlPath concretePath = new XmlPath(pathNodes);
+
+            Assertions.assertEquals(staticPathId,
+                    dictionary.intern(staticPathId, dictionary.getTemplatePath(staticPathId)));
+            Assertions.assertEquals(dynamicPathId,
+                    dictionary.intern(dynamicPathId, dictionary.getTemplatePath(dynamicPathId)));
+            // конкретный динамический путь не получает номер в словаре шаблона
+            Assertions.assertEquals(XmlPathDictionary.REQUEST_PATH, dictionary.intern(dynamicPathId, concretePath));
+            XmlPathDictionary requestDictionary = dictionary.newRequestDictionary();
+            int slot = requestDictionary.intern(dynamicPathId, concretePath);
+            Assertions.assertEquals(dictionary.getPathCount(), slot);
+            Assertions.assertEquals(slot, requestDictionary.intern(dynamicPathId, new XmlPath(pathNodes)));
+            Assertions.assertSame(dictionary.getAttribute(dynamicPathId), requestDictionary.getSlotAttribute(slot));
+            Assertions.assertEquals(concretePath, requestDictionary.getSlotPath(slot));
+        }
+    }
+
+    @Test
+    public void givenRequestDictionaries_templateDictionaryDoesNotGrow() throws Exception {
+        try (Connection conn = dataSource.getConnection()) {
+            XmlPathDictionary dictionary = templateRegistry.getTemplate(
+                    testFlow, secondCreatedAt.plusSeconds(1), conn).getDictionary();
+            int dynamicPathId = IntStream.range(0, dictionary.getPathCount())
+                    .filter(i -> dictionary.getAttribute(i).isDynamic())
+                    .findFirst()
+                    .orElseThrow();
+
+            // номера конкретных путей каждого запроса начинаются после путей шаблона и не зависят от других запросов
+            XmlPathDictionary firstRequestDictionary = dictionary.newRequestDictionary();
+            XmlPathDictionary secondRequestDictionary = dictionary.newRequestDictionary();
+            XmlPath firstPath = getSectionPath(dictionary, dynamicPathId, "1");
+            XmlPath secondPath = getSectionPath(dictionary, dynamicPathId, "2");
+            Assertions.assertEquals(dictionary.getPathCount(), firstRequestDictionary.intern(dynamicPathId, firstPath));
+            Assertions.assertEquals(dictionary.getPathCount() + 1,
+                    firstRequestDictionary.intern(dynamicPathId, secondPath));
+            Assertions.assertEquals(dictionary.getPathCount(), secondRequestDictionary.intern(dynamicPathId, secondPath));
+
+            Assertions.assertEquals(secondPath, firstRequestDictionary.getSlotPath(dictionary.getPathCount() + 1));
+            Assertions.assertEquals(secondPath, secondRequestDictionary.getSlotPath(dictionary.getPathCount()));
+            Assertions.assertEquals(dictionary.getPathCount() + 2, firstRequestDictionary.getSlotCount());
+            Assertions.assertEquals(dictionary.getPathCount() + 1, secondRequestDictionary.getSlotCount());
+            Assertions.assertSame(dictionary, firstRequestDictionary.getShared());
+            Assertions.assertSame(dictionary, firstRequestDictionary.newRequestDictionary().getShared());
+            Assertions.assertEquals(dictionary.getPathCount(), dictionary.getSlotCount());
+        }
+    }
+
+    // путь шаблона с конкретным номером множественной секции
+    private static XmlPath getSectionPath(XmlPathDictionary dictionary, int pathId, String sectionNumber) {
+        List<XmlPathNode> pathNodes = new ArrayList<>();
+        for (XmlPathNode pathNode : dictionary.getTemplatePath(pathId).getPathElements()) {
+            if (XmlUtils.isParentPathNodeDynamic(pathNode)) {
+                List<XmlPathNode> children = new ArrayList<>();
+                for (XmlPathNode child : pathNode.getChildNodes()) {
+                    children.add(child.getType() == XmlPathNode.Type.CHILD_NODE_DYNAMIC
+                            ? new XmlPathNode(XmlPathNode.Type.CHILD_NODE_DYNAMIC, child.getName(), sectionNumber)
+                            : child);
+                }
+                pathNode = new XmlPathNode(XmlPathNode.Type.NODE_WITH_CHILDREN, pathNode.getName(), children);
+            }
+            pathNodes.add(pathNode);
+        }
+
+        return new XmlPath(pathNodes);
+    }
+
+    private static String getErrorDescription(TemplateAttribute attribute) {
+        try {
+            return attribute.getErrorDescription();
+        } catch (Exception e) {
+            return null;
+        }
+    }
+
+    private static long getTemplatesVersion(Connection conn) throws Exception {
+        PreparedStatement preparedStatement = conn.prepareStatement("SELECT version FROM config_versions WHERE name=?");
+        preparedStatement.setString(1, TemplateRegistry.TEMPLATES_VERSION_NAME);
+        ResultSet rs = preparedStatement.executeQuery();
+        Assertions.assertTrue(rs.next());
+        return rs.getLong(1);
+    }
+}
@@ -0,0 +1,165 @@
+package org.myprojects.srvrequestcontrolservice;
+
+import lombok.extern.slf4j.Slf4j;
+import org.HdrHistogram.Histogram;
+import org.HdrHistogram.Recorder;
+import org.junit.Assume;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.jupiter.api.Assertions;
+import org.junit.runner.RunWith;
+import org.myprojects.srvrequestcontrolservice.data.ServiceRequest;
+import org.myprojects.srvrequestcontrolservice.data.ServiceResponse;
+import org.myprojects.srvrequestcontrolservice.loadtest.OperationMix;
+import org.myprojects.srvrequestcontrolservice.utils.VirtualThreads;
+import org.myprojects.srvrequestcontrolservice.workload.WorkloadGenerator;
+import org.myprojects.srvrequestcontrolservice.workload.WorkloadProfile;
+import org.myprojects.srvrequestcontrolservice.workload.WorkloadSeeder;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.test.context.junit4.SpringRunner;
+
+import javax.sql.DataSource;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.time.LocalDateTime;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+// сравнение обработки запросов на потоках платформы и виртуальных потоках (Java 21+), запускается профилями:
+// mvn test -P java21,load-test -Dtest=VirtualThreadsLoadTest [-Dspring.profiles.active=loadtest-pg]
+// запросы вызываются напрямую через RequestControlService, без HTTP и AdmissionControl,
+// пул потоков платформы соответствует server.tomcat.threads.max
+// параметры: -Dloadtest.in-flight, -Dloadtest.requests, -Dloadtest.pairs, -Dloadtest.platform-threads
+// тест только выводит пропускную способность и задержки обоих вариантов в лог и проверяет отсутствие ошибок
+// на виртуальных потоках, результатов сравнения в репозитории нет - на Java ниже 21 тест пропускается
+@Slf4j
+@RunWith(SpringRunner.class)
+@SpringBootTest
+public class VirtualThreadsLoadTest {
+
+    @Autowired
+    DataSource dataSource;
+
+    @Autowired
+    TemplateRegistry templateRegistry;
+
+    @Autowired
+    RequestControlService requestControlService;
+
+    int inFlight = Integer.getInteger("loadtest.in-flight", 1000);
+    int requestCount = Integer.getInteger("loadtest.requests", 20000);
+    int pairCount = Integer.getInteger("loadtest.pairs", 1000);
+    int platformThreads = Integer.getInteger("loadtest.platform-threads", 200);
+
+    ServiceRequest.DataFlowType testFlow = ServiceRequest.DataFlowType.DATA_FLOW_TYPE_1;
+    WorkloadGenerator generator = new WorkloadGenerator(new WorkloadProfile.Builder()
+            .setSectionCount(8)
+            .setMultiSectionCount(2)
+            .setAttributesPerSection(10)
+            .setMismatchRatio(0.05)
+            .build());
+
+    @Before
+    public void init() throws Exception {
+        Assume.assumeTrue("Виртуальные потоки поддерживаются начиная с Java 21", VirtualThreads.isSupported());
+
+        WorkloadSeeder seeder = new WorkloadSeeder(generator, 500);
+        try (Connection conn = dataSource.getConnection()) {
+            seeder.createSchema(conn);
+            for (String sql : List.of(
+                    "DELETE FROM client_attrs_templates WHERE name = 'DATA_FLOW_TYPE_1-workload-template'",
+                    "DELETE FROM client_attrs_requests WHERE message_id LIKE 'WL-%'",
+                    "DELETE FROM request_identifiers WHERE id_master_system LIKE 'WL-%'")) {
+                try (PreparedStatement preparedStatement = conn.prepareStatement(sql)) {
+                    preparedStatement.executeUpdate();
+                }
+            }
+            seeder.seedTemplate(testFlow.name(), LocalDateTime.now().minusMinutes(1), conn);
+            templateRegistry.refreshIfChanged(conn);
+            seeder.seedClientAttrsRequests(testFlow.name(), 0, pairCount, conn);
+            seeder.seedRequestIdentifiers(testFlow.name(), 0, pairCount, conn);
+        }
+    }
+
+    @Test
+    public void givenManyInFlightRequests_platformAndVirtualThreadsAreCompared() throws Exception {
+        // прогрев
+        run(Executors.newFixedThreadPool(platformThreads), requestCount / 10);
+
+        Result platform = run(Executors.newFixedThreadPool(platformThreads), requestCount);
+        Result virtual = run(VirtualThreads.newThreadPerTaskExecutor("benchmark-virtual-"), requestCount);
+
+        log.info(String.format("Запросов в обработке: %d, запросов: %d%n"
+                        + "потоки платформы (%d): %.1f запр/с, p50 %.3f мс, p99 %.3f мс, ошибок %d%n"
+                        + "виртуальные потоки: %.1f запр/с, p50 %.3f мс, p99 %.3f мс, ошибок %d",
+                inFlight, requestCount, platformThreads,
+                platform.throughput, platform.p50Millis, platform.p99Millis, platform.errors,
+                virtual.throughput, virtual.p50Millis, virtual.p99Millis, virtual.errors));
+
+        Assertions.assertEquals(0, virtual.errors);
+    }
+
+    private Result run(ExecutorService executor, int count) throws InterruptedException {
+        OperationMix operationMix = new OperationMix(Map.of(OperationMix.OperationType.CHECK, 1), pairCount);
+        Random random = new Random(42);
+        Recorder recorder = new Recorder(3);
+        AtomicLong errors = new AtomicLong();
+        Semaphore permits = new Semaphore(inFlight);
+        CountDownLatch done = new CountDownLatch(count);
+
+        long startedAt = System.nanoTime();
+        for (int i = 0; i < count; i++) {
+            // количество запросов в обработке (включая ожидающие в очереди пула) не превышает inFlight
+            permits.acquire();
+            ServiceRequest serviceRequest = operationMix.nextOperation(random,
+                    generator.generateRequestPair(random.nextInt(pairCount)), testFlow).getServiceRequest();
+            long submittedAt = System.nanoTime();
+            executor.execute(() -> {
+                try {
+                    ServiceResponse response = requestControlService.processServiceRequest(serviceRequest);
+                    if (response.getStatus() == ServiceResponse.Status.FAILED) {
+                        errors.incrementAndGet();
+                    }
+                } catch (Exception e) {
+                    errors.incrementAndGet();
+                } finally {
+                    recorder.recordValue(TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - submittedAt));
+                    permits.release();
+                    done.countDown();
+                }
+            });
+        }
+        Assertions.assertTrue(done.await(10, TimeUnit.MINUTES));
+        double elapsedSeconds = (System.nanoTime() - startedAt) / (double) TimeUnit.SECONDS.toNanos(1);
+        executor.shutdown();
+
+        Histogram histogram = recorder.getIntervalHistogram();
+        return new Result(count / elapsedSeconds,
+                histogram.getValueAtPercentile(50) / 1000.0,
+                histogram.getValueAtPercentile(99) / 1000.0,
+                errors.get());
+    }
+
+    private static class Result {
+
+        private final double throughput;
+        private final double p50Millis;
+        private final double p99Millis;
+        private final long errors;
+
+        private Result(double throughput, double p50Millis, double p99Millis, long errors) {
+            this.throughput = throughput;
+            this.p50Millis = p50Millis;
+            this.p99Millis = p99Millis;
+            this.errors = errors;
+        }
+    }
+}
@@ -0,0 +1,122 @@
+package org.myprojects.srvrequestcontrolservice;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.jupiter.api.Assertions;
+import org.junit.runner.RunWith;
+import org.myprojects.srvrequestcontrolservice.data.*;
+import org.myprojects.srvrequestcontrolservice.workload.RequestPair;
+import org.myprojects.srvrequestcontrolservice.workload.WorkloadGenerator;
+import org.myprojects.srvrequestcontrolservice.workload.WorkloadProfile;
+import org.myprojects.srvrequestcontrolservice.workload.WorkloadSeeder;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.core.io.Resource;
+import org.springframework.test.context.junit4.SpringRunner;
+import org.springframework.util.FileCopyUtils;
+
+import javax.sql.DataSource;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.nio.charset.StandardCharsets;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.time.LocalDateTime;
+import java.util.List;
+
+@RunWith(SpringRunner.class)
+@SpringBootTest
+public class WorkloadGeneratorTest {
+
+    @Autowired
+    private ClientAttributesServiceOperator clientAttributesServiceOperator;
+
+    @Autowired
+    private TemplateRegistry templateRegistry;
+
+    @Autowired
+    DataSource dataSource;
+
+    @Value("classpath:create.sql")
+    Resource sqlFile;
+
+    String testFlow = ServiceRequest.DataFlowType.DATA_FLOW_TYPE_1.name();
+    int requestCount = 30;
+
+    WorkloadGenerator generator = new WorkloadGenerator(new WorkloadProfile.Builder()
+            .setSectionCount(4)
+            .setMultiSectionCount(2)
+            .setSectionNumberCardinality(3)
+            .setAttributesPerSection(6)
+            .setAttachedFilesPerSection(1)
+            .setAttachedFiles(2)
+            .setPersonalDataRatio(0.3)
+            .setMismatchRatio(0.5)
+            .setFilialCount(3)
+            .build());
+    WorkloadSeeder seeder = new WorkloadSeeder(generator, 7);
+
+    @Before
+    public void init() throws Exception {
+        String sql;
+        try (Reader reader = new InputStreamReader(sqlFile.getInputStream(), StandardCharsets.UTF_8)) {
+            sql = FileCopyUtils.copyToString(reader);
+        }
+
+        try (Connection conn = dataSource.getConnection()) {
+            PreparedStatement preparedStatement = conn.prepareStatement(sql);
+            preparedStatement.executeUpdate();
+            conn.prepareStatement("DROP TABLE IF EXISTS public.request_identifiers").executeUpdate();
+            seeder.createSchema(conn);
+
+            seeder.seedTemplate(testFlow, LocalDateTime.now().minusMinutes(1), conn);
+            templateRegistry.refreshIfChanged(conn);
+            seeder.seedClientAttrsRequests(testFlow, 0, requestCount, conn);
+            seeder.seedRequestIdentifiers(testFlow, 0, requestCount, conn);
+        }
+    }
+
+    @Test
+    public void givenSameIndex_generatedPairIsTheSame() {
+        RequestPair first = generator.generateRequestPair(7);
+        RequestPair second = generator.generateRequestPair(7);
+
+        Assertions.assertEquals(first.getMasterRequest(), second.getMasterRequest());
+        Assertions.assertEquals(first.getFilialRequest(), second.getFilialRequest());
+        Assertions.assertEquals(first.isMismatch(), second.isMismatch());
+    }
+
+    @Test
+    public void givenSeededRequests_filialRequestsAreCheckedAccordingToMismatchFlag() throws Exception {
+        int mismatches = 0;
+        try (Connection conn = dataSource.getConnection()) {
+            for (int i = 0; i < requestCount; i++) {
+                RequestPair requestPair = generator.generateRequestPair(i);
+                ControlTypeRequest checkRequest = new ControlTypeRequest.Builder(Operators.ControlType.CLIENT_ATTRIBUTES,
+                        ServiceRequest.DataFlowType.DATA_FLOW_TYPE_1, requestPair.getFilial())
+                        .setRequestIdentifiers(new IdList(List.of(
+                                requestPair.getIdentifiers().get(RequestIdentifier.Id.ID_MASTER_SYSTEM))))
+                        .setRequest(requestPair.getFilialRequest()).build();
+
+                ControlTypeResult checkResult = clientAttributesServiceOperator.checkClientAttributes(checkRequest, conn);
+
+                Assertions.assertSame(requestPair.isMismatch() ? ServiceResponse.Status.ERROR : ServiceResponse.Status.OK,
+                        checkResult.getStatus(), "pair " + i + ": " + checkResult.getErrorDescription());
+                mismatches += requestPair.isMismatch() ? 1 : 0;
+            }
+        }
+
+        Assertions.assertTrue(mismatches > 0 && mismatches < requestCount);
+    }
+
+    @Test
+    public void givenSeededIdentifiers_allRowsAreInserted() throws Exception {
+        try (Connection conn = dataSource.getConnection();
+             ResultSet rs = conn.prepareStatement("SELECT COUNT(*) FROM request_identifiers").executeQuery()) {
+            rs.next();
+            Assertions.assertEquals(requestCount, rs.getInt(1));
+        }
+    }
+}
@@ -4,7 +4,10 @@ import org.junit.Before;
 import org.junit.Test;
 import org.junit.jupiter.api.Assertions;
 import org.junit.runner.RunWith;
+import org.myprojects.srvrequestcontrolservice.utils.ClientAttrValues;
 import org.myprojects.srvrequestcontrolservice.utils.XmlUtils;
+import org.myprojects.srvrequestcontrolservice.workload.WorkloadGenerator;
+import org.myprojects.srvrequestcontrolservice.workload.WorkloadProfile;
 import org.springframework.beans.factory.annotation.Value;
 import org.springframework.boot.test.context.SpringBootTest;
 import org.springframework.core.io.Resource;
@@ -23,6 +26,7 @@ import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
 
 @SpringBootTest
 @RunWith(SpringRunner.class)
@@ -491,4 +495,119 @@ public class XmlUtilsTest {
                 XmlUtils.getElementNodesSorted(templatePaths.get(path).getChildNodes()));
         Assertions.assertEquals(2, matchNodes.size());
     }
+
+    @Test
+    public void givenImmutablePath_appendAndReplaceReturnNewPaths() {
+        XmlPathNode n1 = new XmlPathNode(XmlPathNode.Type.NODE, "tem:MainRequest");
+        XmlPathNode n2 = new XmlPathNode(XmlPathNode.Type.NODE, "tem:Request");
+        XmlPathNode n3 = new XmlPathNode(XmlPathNode.Type.NODE, "main:ClientINN");
+
+        XmlPath parent = new XmlPath(List.of(n1, n2));
+        XmlPath path = parent.append(n3);
+
+        Assertions.assertEquals(2, parent.getPathElementsLength());
+        Assertions.assertEquals(new XmlPath(List.of(n1, n2, n3)), path);
+        Assertions.assertEquals(new XmlPath(List.of(n1, n2, n3)).hashCode(), path.hashCode());
+        Assertions.assertEquals(new XmlPath(List.of(n1, n3, n3)), path.replace(1, n3));
+        Assertions.assertEquals(new XmlPath(List.of(n1, n2, n3)), path);
+        Assertions.assertEquals(1, path.containsPath(parent, 0));
+    }
+
+    @Test
+    public void givenEqualPathNodes_poolReturnsSharedInstance() {
+        XmlPathNodePool pool = new XmlPathNodePool();
+        XmlPathNode section1 = new XmlPathNode(XmlPathNode.Type.NODE_WITH_CHILDREN, "main:Section",
+                List.of(new XmlPathNode(XmlPathNode.Type.CHILD_NODE, "main:SectionId", "6"),
+                        new XmlPathNode(XmlPathNode.Type.CHILD_NODE_DYNAMIC, "main:SectionNumber", "1")));
+        XmlPathNode section2 = new XmlPathNode(XmlPathNode.Type.NODE_WITH_CHILDREN, "main:Section",
+                List.of(new XmlPathNode(XmlPathNode.Type.CHILD_NODE, "main:SectionId", "6"),
+                        new XmlPathNode(XmlPathNode.Type.CHILD_NODE_DYNAMIC, "main:SectionNumber", "1")));
+        XmlPathNode sectionId = new XmlPathNode(XmlPathNode.Type.CHILD_NODE, "main:SectionId", "6");
+
+        XmlPathNode canonical = pool.intern(section1);
+        Assertions.assertSame(canonical, pool.intern(section2));
+        Assertions.assertSame(canonical.getChildNodes().get(0), pool.intern(sectionId));
+
+        XmlPath path = pool.intern(new XmlPath(List.of(
+                new XmlPathNode(XmlPathNode.Type.NODE, "main:ArrayOfSections"), section2)));
+        Assertions.assertSame(canonical, path.getPathElement(1));
+        Assertions.assertEquals(4, pool.size());
+    }
+
+    @Test
+    public void givenClientAttrValues_valuesAreClassifiedAndComparedExactly() {
+        Assertions.assertEquals(ClientAttrValues.Kind.NUMERIC, ClientAttrValues.classify(" -1.50E+3 "));
+        Assertions.assertEquals(ClientAttrValues.Kind.PLAIN, ClientAttrValues.classify("1.5.0"));
+        Assertions.assertEquals(ClientAttrValues.Kind.PLAIN, ClientAttrValues.classify("NaN"));
+        Assertions.assertEquals(ClientAttrValues.Kind.FILE,
+                ClientAttrValues.classify("filial=1;key=abc;hash=123"));
+
+        Assertions.assertTrue(XmlUtils.compareClientAttrsValues("1.50", "1.5"));
+        Assertions.assertTrue(XmlUtils.compareClientAttrsValues("100", "1E+2"));
+        // длинные числовые идентификаторы сравниваются без потери точности
+        Assertions.assertFalse(XmlUtils.compareClientAttrsValues("12345678901234567890", "12345678901234567891"));
+        Assertions.assertTrue(XmlUtils.compareClientAttrsValues("filial=1;key=a;hash=123", "filial=2;key=b;hash=123"));
+        Assertions.assertFalse(XmlUtils.compareClientAttrsValues("abc", "abd"));
+
+        Assertions.assertTrue(XmlUtils.checkIsZeroNumberAttribute("0.000"));
+        Assertions.assertFalse(XmlUtils.checkIsZeroNumberAttribute("0.001"));
+        Assertions.assertFalse(XmlUtils.checkIsZeroNumberAttribute("zero"));
+    }
+
+    @Test
+    public void givenManySections_parallelMatchEqualsSequentialMatch() throws Exception {
+        WorkloadGenerator generator = new WorkloadGenerator(new WorkloadProfile.Builder()
+                .setSectionCount(4)
+                .setMultiSectionCount(2)
+                .setSectionNumberCardinality(100)
+                .setAttributesPerSection(5)
+                .setAttachedFiles(100)
+                .build());
+        Document templateDoc = XmlUtils.getDocumentFromXmlString(generator.generateTemplate());
+        Document requestDoc = XmlUtils.getDocumentFromXmlString(generator.generateRequestPair(0).getFilialRequest());
+
+        ForkJoinPool pool = new ForkJoinPool(4);
+        try {
+            for (XmlPath templatePath : XmlUtils.getTemplatePathsFromNode(new XmlPath(),
+                    templateDoc.getFirstChild()).keySet()) {
+                Map<XmlPath, Node> sequential = XmlUtils.findNodesMatchingPathFromParent(requestDoc, templatePath);
+                Map<XmlPath, Node> parallel = XmlUtils.findNodesMatchingPathFromParent(requestDoc, templatePath,
+                        null, pool, 2);
+
+                Assertions.assertEquals(sequential, parallel);
+            }
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    @Test
+    public void givenCallFromAnotherForkJoinPool_matchRunsInMatchPool() throws Exception {
+        WorkloadGenerator generator = new WorkloadGenerator(new WorkloadProfile.Builder()
+                .setSectionCount(4)
+                .setMultiSectionCount(2)
+                .setSectionNumberCardinality(100)
+                .setAttributesPerSection(5)
+                .build());
+        Document templateDoc = XmlUtils.getDocumentFromXmlString(generator.generateTemplate());
+        Document requestDoc = XmlUtils.getDocumentFromXmlString(generator.generateRequestPair(0).getFilialRequest());
+        List<XmlPath> templatePaths = new ArrayList<>(XmlUtils.getTemplatePathsFromNode(new XmlPath(),
+                templateDoc.getFirstChild()).keySet());
+
+        ForkJoinPool pool = new ForkJoinPool(2);
+        ForkJoinPool otherPool = new ForkJoinPool(2);
+        try {
+            // задача чужого пула не выполняет сопоставление в своих потоках
+            otherPool.submit(() -> {
+                for (XmlPath templatePath : templatePaths) {
+                    XmlUtils.findNodesMatchingPathFromParent(requestDoc, templatePath, null, pool, 2);
+                }
+            }).get();
+
+            Assertions.assertTrue(pool.getPoolSize() > 0);
+        } finally {
+            pool.shutdown();
+            otherPool.shutdown();
+        }
+    }
 }
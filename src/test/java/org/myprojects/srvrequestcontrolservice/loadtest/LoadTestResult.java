@@ -0,0 +1,81 @@
+package org.myprojects.srvrequestcontrolservice.loadtest;
+
+import lombok.Getter;
+import lombok.Setter;
+import org.HdrHistogram.Histogram;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+// результат нагрузочного теста, сохраняется в json как базовая линия для последующих запусков
+@Getter
+@Setter
+public class LoadTestResult {
+
+    private double targetRate;
+    private int maximumPoolSize;
+    private int tomcatMaxThreads;
+    private long requests;
+    private double throughput;
+    private double p50Millis;
+    private double p99Millis;
+    private double p999Millis;
+    private double maxMillis;
+    // доля ответов FAILED и ошибок HTTP
+    private double errorRate;
+    // доля ответов ERROR (несовпадение данных, ожидаемо при ненулевой доле расхождений)
+    private double checkErrorRate;
+
+    public LoadTestResult() {}
+
+    public LoadTestResult(Histogram latencies, double elapsedSeconds, long errors, long checkErrors) {
+        this.requests = latencies.getTotalCount();
+        this.throughput = requests / elapsedSeconds;
+        this.p50Millis = toMillis(latencies.getValueAtPercentile(50));
+        this.p99Millis = toMillis(latencies.getValueAtPercentile(99));
+        this.p999Millis = toMillis(latencies.getValueAtPercentile(99.9));
+        this.maxMillis = toMillis(latencies.getMaxValue());
+        this.errorRate = requests == 0 ? 0 : (double) errors / requests;
+        this.checkErrorRate = requests == 0 ? 0 : (double) checkErrors / requests;
+    }
+
+    // сравниваем с базовой линией, tolerance - допустимое относительное ухудшение
+    public List<String> getRegressions(LoadTestResult baseline, double tolerance) {
+        List<String> regressions = new ArrayList<>();
+        if (p50Millis > baseline.p50Millis * (1 + tolerance)) {
+            regressions.add(String.format(Locale.ROOT, "p50 %.3f мс > %.3f мс", p50Millis, baseline.p50Millis));
+        }
+        if (p99Millis > baseline.p99Millis * (1 + tolerance)) {
+            regressions.add(String.format(Locale.ROOT, "p99 %.3f мс > %.3f мс", p99Millis, baseline.p99Millis));
+        }
+        if (p999Millis > baseline.p999Millis * (1 + tolerance)) {
+            regressions.add(String.format(Locale.ROOT, "p99.9 %.3f мс > %.3f мс", p999Millis, baseline.p999Millis));
+        }
+        if (throughput < baseline.throughput * (1 - tolerance)) {
+            regressions.add(String.format(Locale.ROOT, "throughput %.1f/с < %.1f/с", throughput, baseline.throughput));
+        }
+        // доля ошибок сравнивается по абсолютному значению
+        if (errorRate > baseline.errorRate + tolerance / 100) {
+            regressions.add(String.format(Locale.ROOT, "error rate %.4f > %.4f", errorRate, baseline.errorRate));
+        }
+
+        return regressions;
+    }
+
+    public String format() {
+        return String.format(Locale.ROOT,
+                "target rate: %.1f/с, pool: %d, tomcat threads: %d%n"
+                        + "requests: %d, throughput: %.1f/с%n"
+                        + "latency p50: %.3f мс, p99: %.3f мс, p99.9: %.3f мс, max: %.3f мс%n"
+                        + "error rate: %.4f, check error rate: %.4f",
+                targetRate, maximumPoolSize, tomcatMaxThreads,
+                requests, throughput,
+                p50Millis, p99Millis, p999Millis, maxMillis,
+                errorRate, checkErrorRate);
+    }
+
+    private static double toMillis(long micros) {
+        return micros / 1000d;
+    }
+}
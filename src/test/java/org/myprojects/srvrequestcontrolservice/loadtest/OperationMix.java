@@ -0,0 +1,165 @@
+package org.myprojects.srvrequestcontrolservice.loadtest;
+
+import org.myprojects.srvrequestcontrolservice.data.Operators;
+import org.myprojects.srvrequestcontrolservice.data.ServiceRequest;
+import org.myprojects.srvrequestcontrolservice.workload.RequestPair;
+
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Random;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLong;
+
+// смесь операций нагрузочного теста
+// версии обращений отслеживаются по каждой паре, чтобы обновления не получали ошибку устаревшей версии,
+// подтверждение и откат выполняются только для ранее закешированных обращений
+public class OperationMix {
+
+    public enum OperationType {
+        CHECK,
+        CHECK_AND_UPDATE,
+        CACHE,
+        CONFIRM,
+        RESTORE
+    }
+
+    private final Map<OperationType, Integer> weights;
+    private final int totalWeight;
+    private final AtomicIntegerArray requestVersions;
+    private final Queue<CachedRequest> cachedRequests = new ConcurrentLinkedQueue<>();
+    private final AtomicLong messageCounter = new AtomicLong();
+
+    public OperationMix(Map<OperationType, Integer> weights, int pairCount) {
+        this.weights = new EnumMap<>(weights);
+        this.totalWeight = weights.values().stream().mapToInt(Integer::intValue).sum();
+        // засеянные обращения имеют версию 1
+        this.requestVersions = new AtomicIntegerArray(pairCount);
+        for (int i = 0; i < pairCount; i++) {
+            requestVersions.set(i, 1);
+        }
+    }
+
+    public OperationType nextOperationType(Random random) {
+        int value = random.nextInt(totalWeight);
+        for (Map.Entry<OperationType, Integer> weight : weights.entrySet()) {
+            value -= weight.getValue();
+            if (value < 0) {
+                return weight.getKey();
+            }
+        }
+
+        return OperationType.CHECK;
+    }
+
+    public Operation nextOperation(Random random, RequestPair requestPair, ServiceRequest.DataFlowType flow) {
+        OperationType type = nextOperationType(random);
+        int index = requestPair.getIndex();
+        int nextVersion = requestVersions.get(index) + 1;
+        String messageId = "WL-MSG-" + messageCounter.incrementAndGet();
+
+        Map<Operators.ControlType, Operators.Operation> operations = new EnumMap<>(Operators.ControlType.class);
+        switch (type) {
+            case CONFIRM:
+            case RESTORE:
+                CachedRequest cachedRequest = cachedRequests.poll();
+                if (cachedRequest != null) {
+                    operations.put(Operators.ControlType.REQUEST, type == OperationType.CONFIRM
+                            ? Operators.Operation.CONFIRM_REQUEST
+                            : Operators.Operation.RESTORE_FROM_CACHE);
+                    ServiceRequest serviceRequest = new ServiceRequest(flow, cachedRequest.requestPair.getFilial(),
+                            cachedRequest.messageId, new Operators(operations));
+                    serviceRequest.setRequestVersion(cachedRequest.version);
+                    serviceRequest.setIdList(cachedRequest.requestPair.getIdentifiers());
+
+                    return new Operation(type, serviceRequest, null);
+                }
+                // если закешированных обращений нет, выполняем кеширование
+                type = OperationType.CACHE;
+                operations.put(Operators.ControlType.REQUEST, Operators.Operation.CACHE_CURRENT_VALUES);
+                putIdentifiersAndVersion(operations, Operators.Operation.CHECK_AND_UPDATE);
+                break;
+            case CACHE:
+                operations.put(Operators.ControlType.REQUEST, Operators.Operation.CACHE_CURRENT_VALUES);
+                putIdentifiersAndVersion(operations, Operators.Operation.CHECK_AND_UPDATE);
+                break;
+            case CHECK_AND_UPDATE:
+                putIdentifiersAndVersion(operations, Operators.Operation.CHECK_AND_UPDATE);
+                operations.put(Operators.ControlType.CLIENT_ATTRIBUTES, Operators.Operation.CHECK_AND_UPDATE);
+                break;
+            default:
+                putIdentifiersAndVersion(operations, Operators.Operation.CHECK);
+                operations.put(Operators.ControlType.CLIENT_ATTRIBUTES, Operators.Operation.CHECK);
+                break;
+        }
+
+        ServiceRequest serviceRequest = new ServiceRequest(flow, requestPair.getFilial(), messageId,
+                new Operators(operations));
+        serviceRequest.setRequestVersion(nextVersion);
+        serviceRequest.setIdList(requestPair.getIdentifiers());
+        // сохраненный запрос обновляет Мастер-система, Филиалы только проверяют свои запросы
+        if (type == OperationType.CHECK_AND_UPDATE) {
+            serviceRequest.setCheckRequestBody(requestPair.getMasterRequest());
+        } else if (operations.containsKey(Operators.ControlType.CLIENT_ATTRIBUTES)) {
+            serviceRequest.setCheckRequestBody(requestPair.getFilialRequest());
+        }
+
+        return new Operation(type, serviceRequest, requestPair);
+    }
+
+    // вызывается после успешного выполнения операции
+    public void onSuccess(Operation operation) {
+        if (operation.requestPair == null) {
+            return;
+        }
+        if (operation.type == OperationType.CHECK_AND_UPDATE || operation.type == OperationType.CACHE) {
+            requestVersions.accumulateAndGet(operation.requestPair.getIndex(),
+                    operation.serviceRequest.getRequestVersion(), Math::max);
+        }
+        if (operation.type == OperationType.CACHE) {
+            cachedRequests.add(new CachedRequest(operation.requestPair, operation.serviceRequest.getMessageId(),
+                    operation.serviceRequest.getRequestVersion()));
+        }
+    }
+
+    private static void putIdentifiersAndVersion(Map<Operators.ControlType, Operators.Operation> operations,
+                                                 Operators.Operation operation) {
+        operations.put(Operators.ControlType.CONTROL_IDENTIFIERS, operation);
+        operations.put(Operators.ControlType.REQUEST_VERSION, operation);
+    }
+
+    public static class Operation {
+
+        private final OperationType type;
+        private final ServiceRequest serviceRequest;
+        private final RequestPair requestPair;
+
+        private Operation(OperationType type, ServiceRequest serviceRequest, RequestPair requestPair) {
+            this.type = type;
+            this.serviceRequest = serviceRequest;
+            this.requestPair = requestPair;
+        }
+
+        public OperationType getType() {
+            return type;
+        }
+
+        public ServiceRequest getServiceRequest() {
+            return serviceRequest;
+        }
+    }
+
+    private static class CachedRequest {
+
+        private final RequestPair requestPair;
+        private final String messageId;
+        private final int version;
+
+        private CachedRequest(RequestPair requestPair, String messageId, int version) {
+            this.requestPair = requestPair;
+            this.messageId = messageId;
+            this.version = version;
+        }
+    }
+}
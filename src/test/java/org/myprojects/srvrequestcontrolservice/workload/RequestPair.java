@@ -0,0 +1,61 @@
+package org.myprojects.srvrequestcontrolservice.workload;
+
+import org.myprojects.srvrequestcontrolservice.data.IdList;
+
+// пара запросов по одному обращению: запрос Мастер-системы (сохраняется) и запрос Филиала (проверяется)
+public class RequestPair {
+
+    private final int index;
+    private final String filial;
+    private final String masterId;
+    private final IdList identifiers;
+    private final String masterRequest;
+    private final String filialRequest;
+    // запрос Мастер-системы в том виде, в котором его сохраняет сервис (персональные данные хешированы)
+    private final String savedMasterRequest;
+    private final boolean mismatch;
+
+    RequestPair(int index, String filial, String masterId, IdList identifiers,
+                String masterRequest, String filialRequest, String savedMasterRequest, boolean mismatch) {
+        this.index = index;
+        this.filial = filial;
+        this.masterId = masterId;
+        this.identifiers = identifiers;
+        this.masterRequest = masterRequest;
+        this.filialRequest = filialRequest;
+        this.savedMasterRequest = savedMasterRequest;
+        this.mismatch = mismatch;
+    }
+
+    public int getIndex() {
+        return index;
+    }
+
+    public String getFilial() {
+        return filial;
+    }
+
+    public String getMasterId() {
+        return masterId;
+    }
+
+    public IdList getIdentifiers() {
+        return identifiers;
+    }
+
+    public String getMasterRequest() {
+        return masterRequest;
+    }
+
+    public String getFilialRequest() {
+        return filialRequest;
+    }
+
+    public String getSavedMasterRequest() {
+        return savedMasterRequest;
+    }
+
+    public boolean isMismatch() {
+        return mismatch;
+    }
+}
@@ -0,0 +1,297 @@
+package org.myprojects.srvrequestcontrolservice.workload;
+
+import org.apache.commons.codec.digest.DigestUtils;
+import org.myprojects.srvrequestcontrolservice.data.IdList;
+import org.myprojects.srvrequestcontrolservice.data.RequestIdentifier;
+
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.Locale;
+import java.util.Random;
+import java.util.SplittableRandom;
+import java.util.UUID;
+
+// генератор шаблона клиентских атрибутов и пар запросов Мастер-системы и Филиала по профилю нагрузки
+// пара с заданным номером всегда генерируется одинаково, поэтому данные можно засеять в БД,
+// а затем независимо сгенерировать те же запросы для проверки
+public class WorkloadGenerator {
+
+    private static final String HEADER = "<?xml version='1.0' encoding='UTF-8'?>\n"
+            + "<tem:MainRequest xmlns:main=\"http://CommonEntities.org\" xmlns:tem=\"http://tempuri.org/\">\n"
+            + "    <tem:Request>\n";
+    private static final String FOOTER = "    </tem:Request>\n</tem:MainRequest>";
+    private static final String[] TOP_LEVEL_ATTRIBUTES = {"ClientTypeId", "ClientINN", "ClientPhone", "ClientEmail", "RegionId"};
+    // первая секция получает этот SectionId, остальные - следующие по порядку
+    private static final int FIRST_SECTION_ID = 1;
+
+    private final WorkloadProfile profile;
+    // отметки персональных данных: [0] - атрибуты верхнего уровня, [1 + s] - атрибуты секции s
+    private final boolean[][] personalData;
+
+    public WorkloadGenerator(WorkloadProfile profile) {
+        this.profile = profile;
+        this.personalData = new boolean[profile.getSectionCount() + 1][];
+
+        Random random = new Random(profile.getSeed());
+        personalData[0] = new boolean[TOP_LEVEL_ATTRIBUTES.length];
+        for (int a = 0; a < TOP_LEVEL_ATTRIBUTES.length; a++) {
+            personalData[0][a] = random.nextDouble() < profile.getPersonalDataRatio();
+        }
+        for (int s = 0; s < profile.getSectionCount(); s++) {
+            personalData[s + 1] = new boolean[profile.getAttributesPerSection()];
+            for (int a = 0; a < profile.getAttributesPerSection(); a++) {
+                personalData[s + 1][a] = random.nextDouble() < profile.getPersonalDataRatio();
+            }
+        }
+    }
+
+    public WorkloadProfile getProfile() {
+        return profile;
+    }
+
+    public String generateTemplate() {
+        StringBuilder template = new StringBuilder(HEADER);
+        for (int a = 0; a < TOP_LEVEL_ATTRIBUTES.length; a++) {
+            String name = TOP_LEVEL_ATTRIBUTES[a];
+            template.append("        <main:").append(name);
+            appendClientAttributeMarks(template, name, personalData[0][a]);
+            template.append("></main:").append(name).append(">\n");
+        }
+        template.append("        <main:RequestTypeId path=\"true\">1</main:RequestTypeId>\n");
+
+        template.append("        <main:ArrayOfSections>\n");
+        for (int s = 0; s < profile.getSectionCount(); s++) {
+            int sectionId = FIRST_SECTION_ID + s;
+            template.append("            <main:Section>\n");
+            template.append("                <main:SectionAttributes>\n");
+            for (int a = 0; a < profile.getAttributesPerSection(); a++) {
+                String name = getAttributeName(s, a);
+                template.append("                    <main:SectionAttribute>\n")
+                        .append("                        <main:Name path=\"true\">").append(name).append("</main:Name>\n")
+                        .append("                        <main:Value");
+                appendClientAttributeMarks(template, name, personalData[s + 1][a]);
+                template.append("></main:Value>\n")
+                        .append("                    </main:SectionAttribute>\n");
+            }
+            template.append("                </main:SectionAttributes>\n");
+            appendTemplateFiles(template, "                ", s, profile.getAttachedFilesPerSection());
+            if (isMultiSection(s)) {
+                template.append("                <main:SectionNumber path=\"true\" prefixDescription=\"SectionId ")
+                        .append(sectionId).append(", SectionNumber \"></main:SectionNumber>\n");
+            }
+            template.append("                <main:SectionId path=\"true\">").append(sectionId).append("</main:SectionId>\n");
+            template.append("            </main:Section>\n");
+        }
+        template.append("        </main:ArrayOfSections>\n");
+        appendTemplateFiles(template, "        ", -1, profile.getAttachedFiles());
+        template.append(FOOTER);
+
+        return template.toString();
+    }
+
+    public RequestPair generateRequestPair(int index) {
+        // перемешиваем seed, т.к. у Random с соседними seed первые значения сильно коррелируют
+        Random random = new Random(new SplittableRandom(profile.getSeed() + index * 0x9E3779B97F4A7C15L).nextLong());
+        String filial = getFilial(index);
+        String masterId = getMasterId(index);
+
+        boolean mismatch = random.nextDouble() < profile.getMismatchRatio();
+        int mismatchSlot = mismatch ? random.nextInt(getValueSlotCount()) : -1;
+
+        RequestWriter writer = new RequestWriter(random, filial, mismatchSlot);
+        writer.appendAll(HEADER);
+        writer.appendAll("        <main:RequestId_MasterSystem>" + masterId + "</main:RequestId_MasterSystem>\n");
+        for (int a = 0; a < TOP_LEVEL_ATTRIBUTES.length; a++) {
+            writer.appendValue("        ", TOP_LEVEL_ATTRIBUTES[a], a % 4, personalData[0][a]);
+        }
+        writer.appendAll("        <main:RequestTypeId>1</main:RequestTypeId>\n");
+
+        writer.appendAll("        <main:ArrayOfSections>\n");
+        for (int s = 0; s < profile.getSectionCount(); s++) {
+            int sectionId = FIRST_SECTION_ID + s;
+            int instances = isMultiSection(s) ? profile.getSectionNumberCardinality() : 1;
+            for (int n = 0; n < instances; n++) {
+                writer.appendAll("            <main:Section>\n");
+                writer.appendAll("                <main:SectionAttributes>\n");
+                for (int a = 0; a < profile.getAttributesPerSection(); a++) {
+                    writer.appendAll("                    <main:SectionAttribute>\n"
+                            + "                        <main:Name>" + getAttributeName(s, a) + "</main:Name>\n");
+                    writer.appendValue("                        ", "Value", (s + a) % 4, personalData[s + 1][a]);
+                    writer.appendAll("                    </main:SectionAttribute>\n");
+                }
+                writer.appendAll("                </main:SectionAttributes>\n");
+                writer.appendFiles("                ", s, profile.getAttachedFilesPerSection());
+                writer.appendAll("                <main:SectionNumber>" + n + "</main:SectionNumber>\n"
+                        + "                <main:SectionId>" + sectionId + "</main:SectionId>\n"
+                        + "            </main:Section>\n");
+            }
+        }
+        writer.appendAll("        </main:ArrayOfSections>\n");
+        writer.appendFiles("        ", -1, profile.getAttachedFiles());
+        writer.appendAll(FOOTER);
+
+        return new RequestPair(index, filial, masterId, getIdentifiers(index),
+                writer.master.toString(), writer.filial.toString(), writer.saved.toString(), mismatch);
+    }
+
+    public String getFilial(int index) {
+        return "FILIAL" + (index % profile.getFilialCount() + 1);
+    }
+
+    public String getMasterId(int index) {
+        return String.format("WL-M-%010d", index);
+    }
+
+    public IdList getIdentifiers(int index) {
+        return new IdList(List.of(
+                new RequestIdentifier(RequestIdentifier.Id.ID_MASTER_SYSTEM, getMasterId(index)),
+                new RequestIdentifier(RequestIdentifier.Id.ID_FILIAL, String.format("WL-F-%010d", index)),
+                new RequestIdentifier(RequestIdentifier.Id.ID_MAIN_CHECK_SYSTEM, String.format("WL-C-%010d", index)),
+                new RequestIdentifier(RequestIdentifier.Id.ID_INTEGRATION, UUID.nameUUIDFromBytes(
+                        (profile.getSeed() + "-" + index).getBytes(StandardCharsets.UTF_8)).toString()),
+                new RequestIdentifier(RequestIdentifier.Id.FILIAL_ID, getFilial(index)),
+                new RequestIdentifier(RequestIdentifier.Id.REQUEST_TYPE_ID, "1")));
+    }
+
+    // количество клиентских атрибутов (включая вложения) в одном запросе
+    public int getValueSlotCount() {
+        int sectionSlots = profile.getAttributesPerSection() + profile.getAttachedFilesPerSection();
+        int sectionInstances = profile.getSectionCount() - profile.getMultiSectionCount()
+                + profile.getMultiSectionCount() * profile.getSectionNumberCardinality();
+
+        return TOP_LEVEL_ATTRIBUTES.length + sectionInstances * sectionSlots + profile.getAttachedFiles();
+    }
+
+    private boolean isMultiSection(int section) {
+        return section < profile.getMultiSectionCount();
+    }
+
+    private static String getAttributeName(int section, int attribute) {
+        return "attr" + section + "_" + attribute;
+    }
+
+    private static String getFileName(int section, int file) {
+        return section < 0 ? "file" + file : "file" + section + "_" + file;
+    }
+
+    private static void appendClientAttributeMarks(StringBuilder template, String name, boolean personal) {
+        template.append(" clientAttribute=\"true\" errorDescription=\"").append(name).append(" description\"");
+        if (personal) {
+            template.append(" personalData=\"true\"");
+        }
+    }
+
+    private static void appendTemplateFiles(StringBuilder template, String indent, int section, int files) {
+        if (files <= 0) {
+            return;
+        }
+        template.append(indent).append("<main:AttachedFiles>\n");
+        for (int f = 0; f < files; f++) {
+            String name = getFileName(section, f);
+            template.append(indent).append("    <main:FileInfo>\n")
+                    .append(indent).append("        <main:Content clientAttribute=\"true\" errorDescription=\"")
+                    .append(name).append(" description\"></main:Content>\n")
+                    .append(indent).append("        <main:Name path=\"true\">").append(name).append("</main:Name>\n")
+                    .append(indent).append("    </main:FileInfo>\n");
+        }
+        template.append(indent).append("</main:AttachedFiles>\n");
+    }
+
+    // пишет одновременно запрос Мастер-системы, запрос Филиала и запрос Мастер-системы
+    // в том виде, в котором он сохраняется сервисом (с хешированными персональными данными)
+    private class RequestWriter {
+
+        private final StringBuilder master = new StringBuilder();
+        private final StringBuilder filial = new StringBuilder();
+        private final StringBuilder saved = new StringBuilder();
+        private final Random random;
+        private final String filialName;
+        private final int mismatchSlot;
+        private int slot;
+
+        private RequestWriter(Random random, String filialName, int mismatchSlot) {
+            this.random = random;
+            this.filialName = filialName;
+            this.mismatchSlot = mismatchSlot;
+        }
+
+        private void appendAll(String text) {
+            master.append(text);
+            filial.append(text);
+            saved.append(text);
+        }
+
+        private void appendValue(String indent, String name, int kind, boolean personal) {
+            String masterValue;
+            String filialValue;
+            switch (kind) {
+                case 0:
+                    masterValue = String.valueOf(random.nextInt(1_000_000));
+                    filialValue = masterValue;
+                    break;
+                case 1:
+                    // одинаковые числа в разной записи
+                    // персональные данные сравниваются по хешу, поэтому для них запись должна совпадать
+                    double decimal = random.nextInt(100_000) / 100d;
+                    masterValue = String.format(Locale.ROOT, "%.2f", decimal);
+                    filialValue = personal ? masterValue : String.format(Locale.ROOT, "%.4f", decimal);
+                    break;
+                case 2:
+                    masterValue = String.format(Locale.ROOT, "20%02d-%02d-%02d",
+                            random.nextInt(30), random.nextInt(12) + 1, random.nextInt(28) + 1);
+                    filialValue = masterValue;
+                    break;
+                default:
+                    masterValue = "значение " + Long.toHexString(random.nextLong());
+                    filialValue = masterValue;
+                    break;
+            }
+            if (slot++ == mismatchSlot) {
+                filialValue = masterValue + "-changed";
+            }
+
+            append(master, indent, name, masterValue);
+            append(filial, indent, name, filialValue);
+            append(saved, indent, name, personal ? DigestUtils.md5Hex(masterValue) : masterValue);
+        }
+
+        private void appendFiles(String indent, int section, int files) {
+            if (files <= 0) {
+                return;
+            }
+            appendAll(indent + "<main:AttachedFiles>\n");
+            for (int f = 0; f < files; f++) {
+                String hash = DigestUtils.sha256Hex(Long.toString(random.nextLong()));
+                // у Филиала и Мастер-системы разные ключи файла, но одинаковый хеш содержимого
+                String masterContent = getFileContent("MASTER", randomKey(), hash);
+                String filialContent = getFileContent(filialName, randomKey(), hash);
+                if (slot++ == mismatchSlot) {
+                    filialContent = getFileContent(filialName, randomKey(),
+                            DigestUtils.sha256Hex(hash));
+                }
+
+                appendAll(indent + "    <main:FileInfo>\n");
+                append(master, indent + "        ", "Content", masterContent);
+                append(filial, indent + "        ", "Content", filialContent);
+                append(saved, indent + "        ", "Content", masterContent);
+                appendAll(indent + "        <main:Name>" + getFileName(section, f) + "</main:Name>\n"
+                        + indent + "    </main:FileInfo>\n");
+            }
+            appendAll(indent + "</main:AttachedFiles>\n");
+        }
+
+        private String randomKey() {
+            return new UUID(random.nextLong(), random.nextLong()).toString();
+        }
+
+        private String getFileContent(String filialName, String key, String hash) {
+            return "{\"filial\":\"" + filialName + "\",\"key\":\"" + key + "\",\"hash\":\"" + hash + "\"}";
+        }
+
+        private void append(StringBuilder request, String indent, String name, String value) {
+            request.append(indent).append("<main:").append(name).append('>')
+                    .append(value)
+                    .append("</main:").append(name).append(">\n");
+        }
+    }
+}
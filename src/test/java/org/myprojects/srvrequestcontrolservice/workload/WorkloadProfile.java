@@ -0,0 +1,127 @@
+package org.myprojects.srvrequestcontrolservice.workload;
+
+// параметры синтетической нагрузки: форма шаблона клиентских атрибутов и пар запросов Мастер/Филиал
+public class WorkloadProfile {
+
+    private int sectionCount = 5;
+    // количество секций, которые повторяются в запросе с разными значениями SectionNumber
+    private int multiSectionCount = 1;
+    // количество значений SectionNumber у повторяющихся секций
+    private int sectionNumberCardinality = 3;
+    private int attributesPerSection = 10;
+    private int attachedFilesPerSection = 1;
+    private int attachedFiles = 2;
+    // доля клиентских атрибутов с отметкой персональных данных
+    private double personalDataRatio = 0.1;
+    // доля пар запросов, в которых запрос Филиала отличается от запроса Мастер-системы
+    private double mismatchRatio = 0.1;
+    private int filialCount = 10;
+    private long seed = 42L;
+
+    private WorkloadProfile() {}
+
+    public int getSectionCount() {
+        return sectionCount;
+    }
+
+    public int getMultiSectionCount() {
+        return multiSectionCount;
+    }
+
+    public int getSectionNumberCardinality() {
+        return sectionNumberCardinality;
+    }
+
+    public int getAttributesPerSection() {
+        return attributesPerSection;
+    }
+
+    public int getAttachedFilesPerSection() {
+        return attachedFilesPerSection;
+    }
+
+    public int getAttachedFiles() {
+        return attachedFiles;
+    }
+
+    public double getPersonalDataRatio() {
+        return personalDataRatio;
+    }
+
+    public double getMismatchRatio() {
+        return mismatchRatio;
+    }
+
+    public int getFilialCount() {
+        return filialCount;
+    }
+
+    public long getSeed() {
+        return seed;
+    }
+
+    public static class Builder {
+
+        private final WorkloadProfile workloadProfile = new WorkloadProfile();
+
+        public Builder setSectionCount(int sectionCount) {
+            this.workloadProfile.sectionCount = sectionCount;
+            return this;
+        }
+
+        public Builder setMultiSectionCount(int multiSectionCount) {
+            this.workloadProfile.multiSectionCount = multiSectionCount;
+            return this;
+        }
+
+        public Builder setSectionNumberCardinality(int sectionNumberCardinality) {
+            this.workloadProfile.sectionNumberCardinality = sectionNumberCardinality;
+            return this;
+        }
+
+        public Builder setAttributesPerSection(int attributesPerSection) {
+            this.workloadProfile.attributesPerSection = attributesPerSection;
+            return this;
+        }
+
+        public Builder setAttachedFilesPerSection(int attachedFilesPerSection) {
+            this.workloadProfile.attachedFilesPerSection = attachedFilesPerSection;
+            return this;
+        }
+
+        public Builder setAttachedFiles(int attachedFiles) {
+            this.workloadProfile.attachedFiles = attachedFiles;
+            return this;
+        }
+
+        public Builder setPersonalDataRatio(double personalDataRatio) {
+            this.workloadProfile.personalDataRatio = personalDataRatio;
+            return this;
+        }
+
+        public Builder setMismatchRatio(double mismatchRatio) {
+            this.workloadProfile.mismatchRatio = mismatchRatio;
+            return this;
+        }
+
+        public Builder setFilialCount(int filialCount) {
+            this.workloadProfile.filialCount = filialCount;
+            return this;
+        }
+
+        public Builder setSeed(long seed) {
+            this.workloadProfile.seed = seed;
+            return this;
+        }
+
+        public WorkloadProfile build() {
+            if (workloadProfile.multiSectionCount > workloadProfile.sectionCount) {
+                throw new IllegalArgumentException("Количество повторяющихся секций превышает общее количество секций.");
+            }
+            if (workloadProfile.sectionNumberCardinality < 1 || workloadProfile.filialCount < 1) {
+                throw new IllegalArgumentException("Некорректные параметры нагрузки.");
+            }
+            return workloadProfile;
+        }
+    }
+}
@@ -0,0 +1,134 @@
+package org.myprojects.srvrequestcontrolservice.workload;
+
+import org.myprojects.srvrequestcontrolservice.TemplateRegistry;
+import org.myprojects.srvrequestcontrolservice.data.IdList;
+import org.myprojects.srvrequestcontrolservice.data.RequestIdentifier;
+import org.springframework.core.io.ClassPathResource;
+import org.springframework.util.FileCopyUtils;
+
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.nio.charset.StandardCharsets;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.sql.Types;
+import java.time.LocalDateTime;
+
+// пакетное заполнение БД синтетическими данными (до миллионов строк)
+// строки с номером i соответствуют паре запросов WorkloadGenerator.generateRequestPair(i)
+// для PostgreSQL рекомендуется добавить в url параметр reWriteBatchedInserts=true
+public class WorkloadSeeder {
+
+    private static final String[] SCHEMA_FILES = {"client_attributes_create.sql", "identifiers_create.sql"};
+
+    private final WorkloadGenerator generator;
+    private final int batchSize;
+
+    public WorkloadSeeder(WorkloadGenerator generator, int batchSize) {
+        this.generator = generator;
+        this.batchSize = batchSize;
+    }
+
+    // создаем таблицы сервиса (если их нет) по скриптам из ресурсов
+    public void createSchema(Connection conn) throws SQLException, IOException {
+        for (String schemaFile : SCHEMA_FILES) {
+            String sql;
+            try (Reader reader = new InputStreamReader(new ClassPathResource(schemaFile).getInputStream(),
+                    StandardCharsets.UTF_8)) {
+                sql = FileCopyUtils.copyToString(reader);
+            }
+            try (Statement statement = conn.createStatement()) {
+                statement.execute(sql);
+            }
+        }
+    }
+
+    // как и при сохранении шаблона сервисом, в той же транзакции увеличиваем версию шаблонов
+    public void seedTemplate(String flow, LocalDateTime createdAt, Connection conn) throws SQLException {
+        String sql = "INSERT INTO client_attrs_templates (flow, created_at, name, template) VALUES (?,?,?,?)";
+        boolean autoCommit = conn.getAutoCommit();
+        conn.setAutoCommit(false);
+        try (PreparedStatement preparedStatement = conn.prepareStatement(sql)) {
+            preparedStatement.setString(1, flow);
+            preparedStatement.setObject(2, createdAt, Types.TIMESTAMP);
+            preparedStatement.setString(3, flow + "-workload-template");
+            preparedStatement.setString(4, generator.generateTemplate());
+
+            preparedStatement.executeUpdate();
+            TemplateRegistry.incrementTemplatesVersion(conn);
+            conn.commit();
+        } catch (SQLException e) {
+            conn.rollback();
+            throw e;
+        } finally {
+            conn.setAutoCommit(autoCommit);
+        }
+    }
+
+    // сохраненные запросы Мастер-системы для строк [from, from + count)
+    public void seedClientAttrsRequests(String flow, int from, int count, Connection conn) throws SQLException {
+        String sql = "INSERT INTO client_attrs_requests (flow, filial, message_id, updated_at, request) VALUES (?,?,?,?,?)";
+        LocalDateTime updatedAt = LocalDateTime.now();
+        runInBatches(conn, sql, from, count, (preparedStatement, index) -> {
+            RequestPair requestPair = generator.generateRequestPair(index);
+            preparedStatement.setString(1, flow);
+            preparedStatement.setString(2, requestPair.getFilial());
+            preparedStatement.setString(3, requestPair.getMasterId());
+            preparedStatement.setObject(4, updatedAt, Types.TIMESTAMP);
+            preparedStatement.setString(5, requestPair.getSavedMasterRequest());
+        });
+    }
+
+    // идентификаторы обращений для строк [from, from + count)
+    public void seedRequestIdentifiers(String flow, int from, int count, Connection conn) throws SQLException {
+        String sql = "INSERT INTO request_identifiers (flow, filial, request_version, id_integration, id_master_system, "
+                + "id_filial, id_main_check_system, filial_id, request_type_id) VALUES (?,?,?,?,?,?,?,?,?)";
+        runInBatches(conn, sql, from, count, (preparedStatement, index) -> {
+            IdList identifiers = generator.getIdentifiers(index);
+            preparedStatement.setString(1, flow);
+            preparedStatement.setString(2, generator.getFilial(index));
+            preparedStatement.setInt(3, 1);
+            preparedStatement.setString(4, identifiers.getValue(RequestIdentifier.Id.ID_INTEGRATION));
+            preparedStatement.setString(5, identifiers.getValue(RequestIdentifier.Id.ID_MASTER_SYSTEM));
+            preparedStatement.setString(6, identifiers.getValue(RequestIdentifier.Id.ID_FILIAL));
+            preparedStatement.setString(7, identifiers.getValue(RequestIdentifier.Id.ID_MAIN_CHECK_SYSTEM));
+            preparedStatement.setString(8, identifiers.getValue(RequestIdentifier.Id.FILIAL_ID));
+            preparedStatement.setString(9, identifiers.getValue(RequestIdentifier.Id.REQUEST_TYPE_ID));
+        });
+    }
+
+    private void runInBatches(Connection conn, String sql, int from, int count, RowBinder rowBinder)
+            throws SQLException {
+        boolean autoCommit = conn.getAutoCommit();
+        conn.setAutoCommit(false);
+        try (PreparedStatement preparedStatement = conn.prepareStatement(sql)) {
+            int pending = 0;
+            for (int index = from; index < from + count; index++) {
+                rowBinder.bind(preparedStatement, index);
+                preparedStatement.addBatch();
+                // фиксируем каждую пачку, чтобы не держать длинную транзакцию
+                if (++pending == batchSize) {
+                    preparedStatement.executeBatch();
+                    conn.commit();
+                    pending = 0;
+                }
+            }
+            if (pending > 0) {
+                preparedStatement.executeBatch();
+                conn.commit();
+            }
+        } catch (SQLException e) {
+            conn.rollback();
+            throw e;
+        } finally {
+            conn.setAutoCommit(autoCommit);
+        }
+    }
+
+    private interface RowBinder {
+        void bind(PreparedStatement preparedStatement, int index) throws SQLException;
+    }
+}
@@ -1,6 +1,8 @@
 DROP TABLE IF EXISTS public.client_attrs_templates;
 DROP TABLE IF EXISTS public.client_attrs_requests;
+DROP TABLE IF EXISTS public.client_attrs_subtrees;
 DROP TABLE IF EXISTS public.request_cache;
+DROP TABLE IF EXISTS public.request_identifiers;
 
 CREATE TABLE IF NOT EXISTS public.client_attrs_templates (
     id serial PRIMARY KEY,
@@ -16,7 +18,36 @@ CREATE TABLE IF NOT EXISTS public.client_attrs_requests (
     filial varchar(20) NOT NULL,
     message_id varchar(50) NOT NULL,
     updated_at timestamp NOT NULL,
-    request varchar
+    request varchar,
+    -- корневой дайджест нормализованных значений клиентских атрибутов сохраненного запроса
+    attrs_digest varchar(64),
+    -- дайджесты поддеревьев (секций, вложений, атрибутов корня запроса) через запятую
+    attrs_subtree_digests varchar
+);
+
+-- значения клиентских атрибутов поддеревьев сохраненного запроса (JSON), строка адресуется дайджестом поддерева
+-- при проверке загружаются только поддеревья, дайджесты которых изменились
+CREATE TABLE IF NOT EXISTS public.client_attrs_subtrees (
+    flow varchar(50) NOT NULL,
+    filial varchar(20) NOT NULL,
+    message_id varchar(50) NOT NULL,
+    subtree_digest varchar(64) NOT NULL,
+    template_name varchar(255) NOT NULL,
+    attrs varchar,
+    PRIMARY KEY (flow, filial, message_id, subtree_digest)
+);
+
+CREATE TABLE IF NOT EXISTS public.request_identifiers (
+    id serial PRIMARY KEY,
+    flow varchar(255) NOT NULL,
+    filial varchar(255) NOT NULL,
+    request_version int NOT NULL,
+    id_integration varchar(255),
+    id_master_system varchar(255),
+    id_filial varchar(255),
+    id_main_check_system varchar(255),
+    filial_id varchar(255),
+    request_type_id varchar(255)
 );
 
 CREATE TABLE IF NOT EXISTS public.request_cache (
@@ -31,4 +62,16 @@ CREATE TABLE IF NOT EXISTS public.request_cache (
     id_main_check_system varchar(255),
     filial_id varchar(255),
     request_type_id varchar(255)
-);
\ No newline at end of file
+);
+
+-- версии конфигурации (шаблонов клиентских атрибутов), увеличиваются при каждом изменении
+CREATE TABLE IF NOT EXISTS public.config_versions (
+    name varchar(50) PRIMARY KEY,
+    version bigint NOT NULL,
+    updated_at timestamp
+);
+
+-- строка версии шаблонов создается вместе со схемой, сохранение шаблона только увеличивает версию
+INSERT INTO public.config_versions (name, version, updated_at)
+SELECT 'client_attrs_templates', 0, NULL
+WHERE NOT EXISTS (SELECT 1 FROM public.config_versions WHERE name = 'client_attrs_templates');